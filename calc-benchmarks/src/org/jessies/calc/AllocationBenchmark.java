@@ -0,0 +1,76 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures integer accumulation with and without a node per step. The interesting number is the allocation rate, so
+ * run with "-prof gc" and compare gc.alloc.rate.norm (bytes per operation) as well as the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+    private static final int COUNT = 10000;
+
+    private Calculator calculator;
+    private IntegerNode[] terms;
+    private Node total;
+    private Node digitCount;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        // Mostly outside IntegerNode's small-value cache, so every partial sum is a new node.
+        terms = new IntegerNode[COUNT];
+        for (int i = 0; i < COUNT; ++i) {
+            terms[i] = IntegerNode.valueOf(1000L * i + 7);
+        }
+        total = new CalculatorParser(calculator, "Total(Range(10^5))").parse();
+        digitCount = new CalculatorParser(calculator, "DigitCount(987654321012345678)").parse();
+    }
+
+    @Benchmark public NumberNode nodePerStep() {
+        NumberNode result = IntegerNode.ZERO;
+        for (IntegerNode term : terms) {
+            result = result.plus(term);
+        }
+        return result;
+    }
+
+    @Benchmark public IntegerNode accumulator() {
+        final IntegerAccumulator result = new IntegerAccumulator();
+        for (IntegerNode term : terms) {
+            result.add(term);
+        }
+        return result.value();
+    }
+
+    @Benchmark public Node total() {
+        return total.evaluate(calculator);
+    }
+
+    @Benchmark public Node digitCount() {
+        return digitCount.evaluate(calculator);
+    }
+}
@@ -0,0 +1,83 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures evaluating one formula over a table of rows: one Calculator.evaluate per row, against evaluateBatch on
+ * double columns (compiled) and integer columns (evaluated row by row).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    private static final String FORMULA = "price*qty*(1 - discount)";
+    private static final int ROWS = 100000;
+
+    private Calculator calculator;
+    private double[] price;
+    private double[] discount;
+    private double[] qty;
+    private Map<String, Object> realColumns;
+    private Map<String, Object> mixedColumns;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        price = new double[ROWS];
+        discount = new double[ROWS];
+        qty = new double[ROWS];
+        final long[] integerQty = new long[ROWS];
+        final Random random = new Random(0);
+        for (int i = 0; i < ROWS; ++i) {
+            price[i] = random.nextInt(100000) / 100.0;
+            discount[i] = random.nextInt(30) / 100.0;
+            integerQty[i] = 1 + random.nextInt(20);
+            qty[i] = integerQty[i];
+        }
+        realColumns = new HashMap<String, Object>();
+        realColumns.put("price", price);
+        realColumns.put("discount", discount);
+        realColumns.put("qty", qty);
+        mixedColumns = new HashMap<String, Object>(realColumns);
+        mixedColumns.put("qty", integerQty);
+    }
+
+    @Benchmark public double rowByRow() {
+        double total = 0;
+        for (int i = 0; i < ROWS; ++i) {
+            final Node result = calculator.evaluate(price[i] + "*" + qty[i] + "*(1 - " + discount[i] + ")");
+            total += ((NumberNode) result).toReal().doubleValue();
+        }
+        return total;
+    }
+
+    @Benchmark public Object realBatch() {
+        return calculator.evaluateBatch(FORMULA, realColumns);
+    }
+
+    @Benchmark public Object mixedBatch() {
+        return calculator.evaluateBatch(FORMULA, mixedColumns);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the arbitrary-precision elementary functions. The constants are cached after the first call, so these
+ * measure the functions themselves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class BigRealBenchmark {
+    @Param({ "50", "1000", "10000" })
+    public int digits;
+
+    private MathContext mc;
+    private BigDecimal x;
+
+    @Setup public void setUp() {
+        mc = new MathContext(digits);
+        x = new BigDecimal("0.7853981");
+    }
+
+    @Benchmark public BigDecimal sqrt() {
+        return BigRealMath.sqrt(x, mc);
+    }
+
+    @Benchmark public BigDecimal exp() {
+        return BigRealMath.exp(x, mc);
+    }
+
+    @Benchmark public BigDecimal log() {
+        return BigRealMath.log(x, mc);
+    }
+
+    @Benchmark public BigDecimal sin() {
+        return BigRealMath.sin(x, mc);
+    }
+
+    @Benchmark public BigDecimal atan() {
+        return BigRealMath.atan(x, mc);
+    }
+}
@@ -0,0 +1,72 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures root finding with FindRoot against the old way of searching a Range with Filter, integration with Integrate
+ * against the old way of adding up small steps with Sum, and symbolic differentiation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class CalculusBenchmark {
+    private Calculator calculator;
+    private Node findRoot;
+    private Node filter;
+    private Node derivative;
+    private Node integrate;
+    private Node sum;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        findRoot = new CalculatorParser(calculator, "FindRoot(Cos(x) - x, x, 0, 1)").parse();
+        // Only good to 3 decimal places, and it already has to evaluate the expression 1000 times.
+        filter = new CalculatorParser(calculator, "Filter(Abs(Cos(x/1000) - x/1000) < 0.0005, x, Range(1000))").parse();
+        derivative = new CalculatorParser(calculator, "D(Sin(x)*Exp(-x/10) + x^2/100, x)").parse();
+        integrate = new CalculatorParser(calculator, "Integrate(Sin(x)*Exp(-x/10), x, 0, 100)").parse();
+        // A midpoint rule with 10^5 steps, which is still less accurate.
+        sum = new CalculatorParser(calculator, "Sum(Sin(x/1000)*Exp(-x/10000)/1000, x, 0.5, 99999.5)").parse();
+    }
+
+    @Benchmark public Node findRoot() {
+        return findRoot.evaluate(calculator);
+    }
+
+    @Benchmark public Node filterRange() {
+        return filter.evaluate(calculator);
+    }
+
+    @Benchmark public Node integrate() {
+        return integrate.evaluate(calculator);
+    }
+
+    @Benchmark public Node sumSteps() {
+        return sum.evaluate(calculator);
+    }
+
+    @Benchmark public Node differentiate() {
+        return derivative.evaluate(calculator);
+    }
+}
@@ -0,0 +1,162 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures IntegerNode arithmetic, in both its fixnum (long) and bignum (BigInteger) representations, and the number
+ * theory built on it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class IntegerNodeBenchmark {
+    private IntegerNode smallA;
+    private IntegerNode smallB;
+    private IntegerNode bigA;
+    private IntegerNode bigB;
+
+    // Primes and semiprimes (whose two prime factors are both close to the root) of 31, 63 and 67 bits.
+    private IntegerNode largePrime;
+    private IntegerNode semiprime;
+    private IntegerNode fixnumPrime;
+    private IntegerNode fixnumSemiprime;
+    private IntegerNode bignumPrime;
+    private IntegerNode bignumSemiprime;
+
+    // Numbers of about a million bits, big enough to use the transform-based multiplication and recursive division.
+    private IntegerNode hugeA;
+    private IntegerNode hugeB;
+
+    @Setup public void setUp() {
+        smallA = IntegerNode.valueOf(123456789L);
+        smallB = IntegerNode.valueOf(987654321L);
+        bigA = (IntegerNode) IntegerNode.valueOf(3).power(IntegerNode.valueOf(200));
+        bigB = (IntegerNode) IntegerNode.valueOf(7).power(IntegerNode.valueOf(150));
+        largePrime = IntegerNode.valueOf(2147483647L);
+        semiprime = (IntegerNode) IntegerNode.valueOf(46337L).times(IntegerNode.valueOf(46327L));
+        fixnumPrime = IntegerNode.valueOf(9223372036854775783L);
+        fixnumSemiprime = (IntegerNode) IntegerNode.valueOf(3037000453L).times(IntegerNode.valueOf(3037000493L));
+        bignumPrime = new IntegerNode("147573952589676412909", 10); // The largest prime below 2^67.
+        bignumSemiprime = (IntegerNode) IntegerNode.valueOf(99999999977L).times(IntegerNode.valueOf(100000000003L));
+        hugeA = (IntegerNode) IntegerNode.valueOf(3).power(IntegerNode.valueOf(700000));
+        hugeB = (IntegerNode) IntegerNode.valueOf(7).power(IntegerNode.valueOf(300000));
+    }
+
+    @Benchmark public NumberNode fixnumPlus() {
+        return smallA.plus(smallB);
+    }
+
+    @Benchmark public NumberNode fixnumTimes() {
+        return smallA.times(smallB);
+    }
+
+    @Benchmark public NumberNode bignumPlus() {
+        return bigA.plus(bigB);
+    }
+
+    @Benchmark public NumberNode bignumTimes() {
+        return bigA.times(bigB);
+    }
+
+    @Benchmark public NumberNode bignumDivide() {
+        return bigA.divide(bigB);
+    }
+
+    @Benchmark public String bignumToString() {
+        return bigA.toString();
+    }
+
+    @Benchmark public IntegerNode factorial1000() {
+        return IntegerNode.valueOf(1000).factorial();
+    }
+
+    @Benchmark public IntegerNode factorial20000() {
+        return IntegerNode.valueOf(20000).factorial();
+    }
+
+    @Benchmark public IntegerNode factorial1000000() {
+        return IntegerNode.valueOf(1000000).factorial();
+    }
+
+    @Benchmark public IntegerNode nCrFixnum() {
+        return IntegerNode.valueOf(1000000).binomial(IntegerNode.valueOf(3));
+    }
+
+    @Benchmark public IntegerNode nCrMillionHalf() {
+        return IntegerNode.valueOf(1000000).binomial(IntegerNode.valueOf(500000));
+    }
+
+    @Benchmark public IntegerNode nPrMillion() {
+        return IntegerNode.valueOf(1000000).fallingFactorial(IntegerNode.valueOf(1000));
+    }
+
+    @Benchmark public NumberNode hugeTimes() {
+        return hugeA.times(hugeB);
+    }
+
+    @Benchmark public IntegerNode hugeMod() {
+        return hugeA.mod(hugeB);
+    }
+
+    @Benchmark public String hugeToString() {
+        return hugeA.toString();
+    }
+
+    @Benchmark public BooleanNode isPrimeSmall() {
+        return IntegerNode.valueOf(1000003).isPrime();
+    }
+
+    @Benchmark public BooleanNode isPrimeLarge() {
+        return largePrime.isPrime();
+    }
+
+    @Benchmark public ListNode factorsSmall() {
+        return IntegerNode.valueOf(1000002).primeFactors();
+    }
+
+    @Benchmark public ListNode factorsSemiprime() {
+        return semiprime.primeFactors();
+    }
+
+    @Benchmark public BooleanNode isPrimeFixnum() {
+        return fixnumPrime.isPrime();
+    }
+
+    @Benchmark public BooleanNode isPrimeBignum() {
+        return bignumPrime.isPrime();
+    }
+
+    @Benchmark public ListNode factorsFixnumSemiprime() {
+        return fixnumSemiprime.primeFactors();
+    }
+
+    @Benchmark public ListNode factorsBignumSemiprime() {
+        return bignumSemiprime.primeFactors();
+    }
+
+    @Benchmark public ListNode divisorsFactorial() {
+        return IntegerNode.valueOf(20).factorial().divisors();
+    }
+}
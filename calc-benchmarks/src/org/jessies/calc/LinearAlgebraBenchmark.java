@@ -0,0 +1,80 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures determinants and inverses of square matrices, both exact (integer) and real.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class LinearAlgebraBenchmark {
+    @Param({ "4", "16", "64" })
+    public int size;
+
+    private Calculator calculator;
+    private CalculatorFunction integerDet;
+    private CalculatorFunction integerInverse;
+    private CalculatorFunction realDet;
+    private CalculatorFunction realInverse;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        final Random random = new Random(42);
+        final ListNode a = new ListNode();
+        final ListNode x = new ListNode();
+        for (int i = 0; i < size; ++i) {
+            final ListNode aRow = new ListNode();
+            final ListNode xRow = new ListNode();
+            for (int j = 0; j < size; ++j) {
+                aRow.add(IntegerNode.valueOf(random.nextInt(21) - 10));
+                xRow.add(new RealNode(random.nextDouble()));
+            }
+            a.add(aRow);
+            x.add(xRow);
+        }
+        integerDet = calculator.getFunction("Det").bind(a);
+        integerInverse = calculator.getFunction("Inverse").bind(a);
+        realDet = calculator.getFunction("Det").bind(x);
+        realInverse = calculator.getFunction("Inverse").bind(x);
+    }
+
+    @Benchmark public Node integerDet() {
+        return integerDet.evaluate(calculator);
+    }
+
+    @Benchmark public Node integerInverse() {
+        return integerInverse.evaluate(calculator);
+    }
+
+    @Benchmark public Node realDet() {
+        return realDet.evaluate(calculator);
+    }
+
+    @Benchmark public Node realInverse() {
+        return realInverse.evaluate(calculator);
+    }
+}
@@ -0,0 +1,73 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures list processing over ranges, where neither the range nor the intermediate lists should be materialized,
+ * and the parallel versions of Map and Total.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class ListBenchmark {
+    @Param({ "1000", "100000" })
+    public int n;
+
+    private Calculator calculator;
+    private Node total;
+    private Node totalOfMap;
+    private Node lengthOfFilter;
+    private Node map;
+    private Node parallelMap;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        total = new CalculatorParser(calculator, "Total(Range(" + n + "))").parse();
+        totalOfMap = new CalculatorParser(calculator, "Total(Map(x^2, x, Range(" + n + ")))").parse();
+        lengthOfFilter = new CalculatorParser(calculator, "Length(Filter(Mod(x, 3) == 0, x, Range(" + n + ")))").parse();
+        map = new CalculatorParser(calculator, "Map(IsPrime(x^2 + 1), x, Range(" + n + "))").parse();
+        parallelMap = new CalculatorParser(calculator, "ParallelMap(IsPrime(x^2 + 1), x, Range(" + n + "))").parse();
+    }
+
+    @Benchmark public Node total() {
+        return total.evaluate(calculator);
+    }
+
+    @Benchmark public Node totalOfMap() {
+        return totalOfMap.evaluate(calculator);
+    }
+
+    @Benchmark public Node lengthOfFilter() {
+        return lengthOfFilter.evaluate(calculator);
+    }
+
+    @Benchmark public Node map() {
+        return map.evaluate(calculator);
+    }
+
+    @Benchmark public Node parallelMap() {
+        return parallelMap.evaluate(calculator);
+    }
+}
@@ -0,0 +1,88 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures matrix arithmetic on square matrices of integers and of reals.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class MatrixBenchmark {
+    @Param({ "4", "16", "64", "500" })
+    public int size;
+
+    private Calculator calculator;
+    private CalculatorFunction integerProduct;
+    private CalculatorFunction realProduct;
+    private CalculatorFunction integerSum;
+    private CalculatorFunction transpose;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        final Random random = new Random(42);
+        final ListNode a = new ListNode();
+        final ListNode b = new ListNode();
+        final ListNode x = new ListNode();
+        final ListNode y = new ListNode();
+        for (int i = 0; i < size; ++i) {
+            final ListNode aRow = new ListNode();
+            final ListNode bRow = new ListNode();
+            final ListNode xRow = new ListNode();
+            final ListNode yRow = new ListNode();
+            for (int j = 0; j < size; ++j) {
+                aRow.add(IntegerNode.valueOf(random.nextInt(1000) - 500));
+                bRow.add(IntegerNode.valueOf(random.nextInt(1000) - 500));
+                xRow.add(new RealNode(random.nextDouble()));
+                yRow.add(new RealNode(random.nextDouble()));
+            }
+            a.add(aRow);
+            b.add(bRow);
+            x.add(xRow);
+            y.add(yRow);
+        }
+        integerProduct = calculator.getFunction("Times").bind(a, b);
+        realProduct = calculator.getFunction("Times").bind(x, y);
+        integerSum = calculator.getFunction("Plus").bind(a, b);
+        transpose = calculator.getFunction("Transpose").bind(a);
+    }
+
+    @Benchmark public Node integerTimes() {
+        return integerProduct.evaluate(calculator);
+    }
+
+    @Benchmark public Node realTimes() {
+        return realProduct.evaluate(calculator);
+    }
+
+    @Benchmark public Node integerPlus() {
+        return integerSum.evaluate(calculator);
+    }
+
+    @Benchmark public Node transpose() {
+        return transpose.evaluate(calculator);
+    }
+}
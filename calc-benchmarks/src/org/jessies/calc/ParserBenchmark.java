@@ -0,0 +1,72 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the front end: lexing, parsing and simplification, and evaluation with and without the parse cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @Param({ "1 + 2*3", "Sum(i^2 + 3*i - 1, i, 1, 10) / (4 + Sqrt(16))", "Map(Sin(x)^2 + Cos(x)^2, x, [0.1, 0.2, 0.3, 0.4, 0.5])" })
+    public String expression;
+
+    private Calculator calculator;
+    private Calculator uncachedCalculator;
+    private Node parsedExpression;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        uncachedCalculator = new Calculator();
+        uncachedCalculator.setParseCacheSize(0);
+        parsedExpression = new CalculatorParser(calculator, expression).parse();
+    }
+
+    @Benchmark public void lex(Blackhole bh) {
+        final CalculatorLexer lexer = new CalculatorLexer(expression);
+        while (lexer.token() != CalculatorToken.END_OF_INPUT) {
+            bh.consume(lexer.token());
+            lexer.nextToken();
+        }
+    }
+
+    @Benchmark public Node parse() {
+        return new CalculatorParser(calculator, expression).parse();
+    }
+
+    @Benchmark public Node simplify() {
+        return parsedExpression.simplify(calculator);
+    }
+
+    @Benchmark public Node evaluateCached() {
+        return calculator.evaluate(expression);
+    }
+
+    @Benchmark public Node evaluateUncached() {
+        return uncachedCalculator.evaluate(expression);
+    }
+}
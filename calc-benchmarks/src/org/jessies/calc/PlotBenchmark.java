@@ -0,0 +1,82 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures Plot sampling, both for expressions that compile to doubles and for those that need the ordinary evaluator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class PlotBenchmark {
+    @Param({ "300", "4000" })
+    public int resolution;
+
+    private Calculator calculator;
+    private Node realExpression;
+    private Node genericExpression;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        calculator.setPlotter(new CalculatorPlotter() {
+            public void showPlot(CalculatorPlotData plotData) {
+            }
+        });
+        realExpression = new CalculatorParser(calculator, "Sin(x)*Exp(-x/10) + x^2/100").parse();
+        // Max has no double implementation, so this has to go through the ordinary evaluator.
+        genericExpression = new CalculatorParser(calculator, "Max(Sin(x), Cos(x))").parse();
+    }
+
+    @Benchmark public double[] sampleReal() {
+        final CalculatorPlotData plotData = new CalculatorPlotData(resolution, new RealNode(-10.0), new RealNode(10.0));
+        new CalculatorPlotSampler(plotData).sample(new CalculatorPlotSampler.RealFunction(CompiledRealExpression.compile(calculator, realExpression, "x")), false);
+        return plotData.data;
+    }
+
+    @Benchmark public double[] sampleGeneric() {
+        final CalculatorPlotData plotData = new CalculatorPlotData(resolution, new RealNode(-10.0), new RealNode(10.0));
+        new CalculatorPlotSampler(plotData).sample(new CalculatorPlotSampler.GenericFunction(calculator, genericExpression, "x"), false);
+        return plotData.data;
+    }
+
+    @Benchmark public double[] sampleRealWithRefinement() {
+        final CalculatorPlotData plotData = new CalculatorPlotData(resolution, new RealNode(-10.0), new RealNode(10.0));
+        new CalculatorPlotSampler(plotData).sample(new CalculatorPlotSampler.RealFunction(CompiledRealExpression.compile(calculator, realExpression, "x")), true);
+        return plotData.data;
+    }
+
+    @Benchmark public double sampleRealWithRange() {
+        final CalculatorPlotData plotData = new CalculatorPlotData(resolution, new RealNode(-10.0), new RealNode(10.0));
+        final CalculatorPlotSampler sampler = new CalculatorPlotSampler(plotData);
+        final CalculatorPlotSampler.Function function = new CalculatorPlotSampler.RealFunction(CompiledRealExpression.compile(calculator, realExpression, "x"));
+        sampler.sample(function, false);
+        sampler.calculateRange(function);
+        return plotData.yMax;
+    }
+
+    @Benchmark public Node plot() {
+        return calculator.evaluate("Plot(Sin(x)*Exp(-x/10), x, -10, 10, " + resolution + ")");
+    }
+}
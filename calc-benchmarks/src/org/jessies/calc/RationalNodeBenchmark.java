@@ -0,0 +1,69 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures RationalNode arithmetic, including the gcd reduction every operation performs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class RationalNodeBenchmark {
+    private NumberNode a;
+    private NumberNode b;
+    private NumberNode bigA;
+    private NumberNode bigB;
+
+    @Setup public void setUp() {
+        a = RationalNode.valueOf(IntegerNode.valueOf(355), IntegerNode.valueOf(113));
+        b = RationalNode.valueOf(IntegerNode.valueOf(22), IntegerNode.valueOf(7));
+        bigA = RationalNode.valueOf((IntegerNode) IntegerNode.valueOf(3).power(IntegerNode.valueOf(100)), (IntegerNode) IntegerNode.valueOf(2).power(IntegerNode.valueOf(90)));
+        bigB = RationalNode.valueOf((IntegerNode) IntegerNode.valueOf(5).power(IntegerNode.valueOf(60)), (IntegerNode) IntegerNode.valueOf(6).power(IntegerNode.valueOf(70)));
+    }
+
+    @Benchmark public NumberNode plus() {
+        return a.plus(b);
+    }
+
+    @Benchmark public NumberNode times() {
+        return a.times(b);
+    }
+
+    @Benchmark public NumberNode divide() {
+        return a.divide(b);
+    }
+
+    @Benchmark public NumberNode bigPlus() {
+        return bigA.plus(bigB);
+    }
+
+    @Benchmark public NumberNode bigTimes() {
+        return bigA.times(bigB);
+    }
+
+    @Benchmark public RealNode toReal() {
+        return bigA.toReal();
+    }
+}
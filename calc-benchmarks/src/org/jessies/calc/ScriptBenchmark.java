@@ -0,0 +1,61 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures evaluateScript on a script of mostly independent definitions, run in order and in parallel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class ScriptBenchmark {
+    private static final CalculatorScriptListener IGNORE = new CalculatorScriptListener() {
+        public void statementEvaluated(int lineNumber, String statement, Node result) {
+        }
+
+        public void statementFailed(int lineNumber, String statement, CalculatorError error) {
+            throw error;
+        }
+    };
+
+    private String script;
+
+    @Setup public void setUp() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            text.append("x").append(i).append(" = Sum(Mod(k^2, ").append(i + 2).append("), k, 1, 200)\n");
+        }
+        script = text.toString();
+    }
+
+    @Benchmark public void sequential() throws IOException {
+        new Calculator().evaluateScript(new StringReader(script), IGNORE, false);
+    }
+
+    @Benchmark public void parallel() throws IOException {
+        new Calculator().evaluateScript(new StringReader(script), IGNORE, true);
+    }
+}
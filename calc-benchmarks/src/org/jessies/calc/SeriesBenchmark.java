@@ -0,0 +1,81 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures Sum and Product over integer ranges: polynomial sums in closed form, and everything else term by term
+ * (sharing any repeated subexpressions within each term, and simplifying the term first so that anything not
+ * depending on the loop variable is only evaluated once).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class SeriesBenchmark {
+    private Calculator calculator;
+    private Node polynomialSum;
+    private Node termByTermSum;
+    private Node product;
+    private Node repeatedSubexpressions;
+    private Node loopInvariant;
+    private Node unsimplified;
+    private long simplifyCount;
+
+    @Setup public void setUp() {
+        calculator = new Calculator();
+        polynomialSum = new CalculatorParser(calculator, "Sum(3*i^4 - i^2 + 7, i, 1, 10^9)").parse();
+        termByTermSum = new CalculatorParser(calculator, "Sum(Mod(i^2, 7), i, 1, 10^4)").parse();
+        product = new CalculatorParser(calculator, "Product(i, i, 1, 2000)").parse();
+        repeatedSubexpressions = new CalculatorParser(calculator, "Sum(Sin(i)^2 + Sin(i)*Cos(i) + Sin(i), i, 1, 10^4)").parse();
+        calculator.evaluate("a = 3");
+        loopInvariant = new CalculatorParser(calculator, "Sum(Sqrt(Factorial(20)*a)*Sin(i) + Exp(a)/a*Sin(i), i, 1, 10^4)").parse();
+        unsimplified = new CalculatorParser(calculator, "2*x*3*x*4 + x*x - 5*x + 7 - x + Factorial(6)*x*x*x").parse();
+    }
+
+    @Benchmark public Node polynomialSum() {
+        return polynomialSum.evaluate(calculator);
+    }
+
+    @Benchmark public Node termByTermSum() {
+        return termByTermSum.evaluate(calculator);
+    }
+
+    @Benchmark public Node product() {
+        return product.evaluate(calculator);
+    }
+
+    @Benchmark public Node repeatedSubexpressions() {
+        return repeatedSubexpressions.evaluate(calculator);
+    }
+
+    @Benchmark public Node loopInvariant() {
+        return loopInvariant.evaluate(calculator);
+    }
+
+    @Benchmark public Node simplify() {
+        // A different expression each time, so we measure the rules rather than the cache.
+        final Node expression = calculator.getFunction("Plus").bind(unsimplified, IntegerNode.valueOf(++simplifyCount));
+        return Simplifier.simplify(calculator, expression, "x");
+    }
+}
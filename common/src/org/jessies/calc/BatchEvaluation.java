@@ -0,0 +1,197 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluation of one expression over many rows of variable values, for Calculator.evaluateBatch.
+ *
+ * The expression is parsed, simplified and compiled once. If every column it uses holds doubles and it compiles to a
+ * CompiledRealExpression, the rows are evaluated a block at a time, each operation a loop over primitive arrays.
+ * Anything else is evaluated row by row by the ordinary evaluator. Either way, large batches are split across the
+ * fork/join pool, and results go into an array by row, so the output order is the same as the input order.
+ */
+class BatchEvaluation {
+    // How many rows the compiled form evaluates at once. Small enough for a block of every column to stay in cache.
+    private static final int ROWS_PER_BLOCK = 1024;
+
+    // How many rows each task evaluates on its own. Compiled rows are much cheaper than evaluated ones.
+    private static final int REAL_ROWS_PER_TASK = 16 * ROWS_PER_BLOCK;
+    private static final int NODE_ROWS_PER_TASK = 256;
+
+    private BatchEvaluation() {
+    }
+
+    /**
+     * Returns the values of 'expression' for each row of 'columns', which maps variable names to equal-length
+     * double[], long[] or Node[] columns. Free variables without a column keep their current values,
+     * or stay symbolic if they have none.
+     * The result is a double[] if the expression could be evaluated on doubles, and a Node[] otherwise.
+     */
+    static Object evaluate(Calculator environment, Node expression, Map<String, ?> columns) {
+        if (CommonSubexpressions.hasAssignment(expression)) {
+            // Rows are evaluated concurrently, and all in the same scope.
+            throw new CalculatorError("batch evaluation can't assign to variables");
+        }
+        // Index the columns by key, checking they're all of a type we understand, and all the same length.
+        final HashMap<String, Object> columnsByKey = new HashMap<String, Object>();
+        int rowCount = -1;
+        for (Map.Entry<String, ?> entry : columns.entrySet()) {
+            final String name = entry.getKey();
+            final Object column = entry.getValue();
+            final int length = columnLength(name, column);
+            if (rowCount != -1 && length != rowCount) {
+                throw new CalculatorError("column '" + name + "' has " + length + " rows, but other columns have " + rowCount);
+            }
+            rowCount = length;
+            // Variable names are case-insensitive, so "x" and "X" would be the same variable.
+            if (columnsByKey.put(name.toLowerCase(Locale.US), column) != null) {
+                throw new CalculatorError("more than one column is named '" + name + "' (ignoring case)");
+            }
+        }
+        if (rowCount == -1) {
+            throw new CalculatorError("batch evaluation needs at least one column");
+        }
+
+        final CompiledExpression compiled = new CompiledExpression(environment, expression);
+        final List<String> names = compiled.getVariableNames();
+        final Object[] parameters = new Object[names.size()];
+        final ArrayList<String> realNames = new ArrayList<String>();
+        final ArrayList<double[]> realColumns = new ArrayList<double[]>();
+        boolean isReal = true;
+        for (int i = 0; i < parameters.length; ++i) {
+            final String name = names.get(i);
+            final Object column = columnsByKey.get(name.toLowerCase(Locale.US));
+            if (column != null) {
+                parameters[i] = column;
+                if (column instanceof double[]) {
+                    realNames.add(name);
+                    realColumns.add((double[]) column);
+                } else {
+                    isReal = false;
+                }
+            } else {
+                // An undefined variable stays symbolic, just as it would in an ordinary evaluation.
+                final Node value = environment.getVariable(name);
+                parameters[i] = (value != null) ? value : new CalculatorVariableNode(name);
+            }
+        }
+
+        if (isReal) {
+            // Variables without columns are constants as far as the compiled form is concerned.
+            final CompiledRealExpression realExpression = CompiledRealExpression.compile(environment, expression, realNames.toArray(new String[realNames.size()]));
+            if (realExpression != null) {
+                final double[] result = new double[rowCount];
+                new RealTask(realExpression, realColumns.toArray(new double[realColumns.size()][]), result, 0, rowCount).invoke();
+                return result;
+            }
+        }
+        final Node[] result = new Node[rowCount];
+        new NodeTask(compiled, parameters, result, 0, rowCount).invoke();
+        return result;
+    }
+
+    private static int columnLength(String name, Object column) {
+        if (column instanceof double[]) {
+            return ((double[]) column).length;
+        } else if (column instanceof long[]) {
+            return ((long[]) column).length;
+        } else if (column instanceof Node[]) {
+            return ((Node[]) column).length;
+        }
+        throw new CalculatorError("column '" + name + "' must be a double[], long[] or Node[]");
+    }
+
+    private static class RealTask extends RecursiveAction {
+        private final CompiledRealExpression expression;
+        private final double[][] columns;
+        private final double[] result;
+        private final int from;
+        private final int to;
+
+        RealTask(CompiledRealExpression expression, double[][] columns, double[] result, int from, int to) {
+            this.expression = expression;
+            this.columns = columns;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= REAL_ROWS_PER_TASK) {
+                final double[] block = new double[Math.min(ROWS_PER_BLOCK, to - from)];
+                for (int offset = from; offset < to; offset += block.length) {
+                    final int count = Math.min(block.length, to - offset);
+                    expression.evaluate(columns, offset, count, block);
+                    System.arraycopy(block, 0, result, offset, count);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new RealTask(expression, columns, result, from, mid),
+                      new RealTask(expression, columns, result, mid, to));
+        }
+    }
+
+    private static class NodeTask extends RecursiveAction {
+        private final CompiledExpression expression;
+        private final Object[] parameters;
+        private final Node[] result;
+        private final int from;
+        private final int to;
+
+        NodeTask(CompiledExpression expression, Object[] parameters, Node[] result, int from, int to) {
+            this.expression = expression;
+            this.parameters = parameters;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= NODE_ROWS_PER_TASK) {
+                final Node[] values = new Node[parameters.length];
+                for (int row = from; row < to; ++row) {
+                    for (int i = 0; i < values.length; ++i) {
+                        values[i] = valueAt(parameters[i], row);
+                    }
+                    result[row] = expression.evaluate(values);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new NodeTask(expression, parameters, result, from, mid),
+                      new NodeTask(expression, parameters, result, mid, to));
+        }
+
+        // Returns the value of a parameter in the given row: an element of its column, or a value shared by every row.
+        private static Node valueAt(Object parameter, int row) {
+            if (parameter instanceof double[]) {
+                return new RealNode(((double[]) parameter)[row]);
+            } else if (parameter instanceof long[]) {
+                return IntegerNode.valueOf(((long[]) parameter)[row]);
+            } else if (parameter instanceof Node[]) {
+                return ((Node[]) parameter)[row];
+            }
+            return (Node) parameter;
+        }
+    }
+}
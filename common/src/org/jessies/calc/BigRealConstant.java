@@ -0,0 +1,151 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * A process-wide cache of a mathematical constant, to however many bits anyone has asked for so far.
+ *
+ * Each constant is a sum of series computed by binary splitting, and we keep the exact partial sums around. When a
+ * higher precision is asked for, we only sum the additional terms and combine them with the old ones, rather than
+ * starting again from scratch. To avoid lots of small extensions when the precision is increased gradually, we
+ * always grow by at least a quarter.
+ *
+ * Reads are lock-free: the digits we have are an immutable snapshot in a volatile field. Extensions happen under the
+ * constant's own lock, so two threads wanting more digits of pi at once only compute them once, and a thread wanting
+ * ln(2) doesn't have to wait for either of them.
+ */
+abstract class BigRealConstant {
+    // Chudnovsky's series: 1/pi = 12 * sum (-1)^k (6k)! (13591409 + 545140134k) / ((3k)! k!^3 640320^(3k+3/2)).
+    static final BigRealConstant PI = new BigRealConstant() {
+        private final BigInteger c3Over24 = BigInteger.valueOf(640320).pow(3).divide(BigInteger.valueOf(24));
+        private final BigRealMath.PartialSum series = new BigRealMath.PartialSum(new BigRealMath.Series() {
+            BigInteger p(int k) {
+                if (k == 0) {
+                    return BigInteger.ONE;
+                }
+                return BigInteger.valueOf(-(6L * k - 5) * (2L * k - 1) * (6L * k - 1));
+            }
+
+            BigInteger q(int k) {
+                if (k == 0) {
+                    return BigInteger.ONE;
+                }
+                return BigInteger.valueOf(k).pow(3).multiply(c3Over24);
+            }
+
+            BigInteger a(int k) {
+                return BigInteger.valueOf(13591409L + 545140134L * k);
+            }
+        });
+
+        BigInteger compute(int bits) {
+            final int b = bits + BigRealMath.GUARD_BITS;
+            // Each term adds about 14 decimal digits.
+            final BigInteger sum = series.sum(b / 47 + 2, b);
+            final BigInteger sqrt10005 = NumberTheory.sqrt(BigInteger.valueOf(10005).shiftLeft(2 * b));
+            return BigRealMath.divide(sqrt10005.multiply(BigInteger.valueOf(426880)), sum, b).shiftRight(BigRealMath.GUARD_BITS);
+        }
+    };
+
+    // e = sum 1/k!.
+    static final BigRealConstant E = new BigRealConstant() {
+        private final BigRealMath.PartialSum series = new BigRealMath.PartialSum(new BigRealMath.Series() {
+            BigInteger p(int k) {
+                return BigInteger.ONE;
+            }
+
+            BigInteger q(int k) {
+                return (k == 0) ? BigInteger.ONE : BigInteger.valueOf(k);
+            }
+        });
+
+        BigInteger compute(int bits) {
+            final int b = bits + 4;
+            return series.sum(BigRealMath.termCount(0, b, 1), b).shiftRight(4);
+        }
+    };
+
+    // ln(2) = 4*atanh(1/7) + 2*atanh(1/17).
+    static final BigRealConstant LN2 = new BigRealConstant() {
+        private final BigRealMath.PartialSum atanh7 = new BigRealMath.PartialSum(BigRealMath.atanhInverse(7));
+        private final BigRealMath.PartialSum atanh17 = new BigRealMath.PartialSum(BigRealMath.atanhInverse(17));
+
+        BigInteger compute(int bits) {
+            final int b = bits + 4;
+            final BigInteger a = atanh7.sum(BigRealMath.atanhInverseTermCount(7, b), b);
+            final BigInteger c = atanh17.sum(BigRealMath.atanhInverseTermCount(17, b), b);
+            return a.shiftLeft(2).add(c.shiftLeft(1)).shiftRight(4);
+        }
+    };
+
+    // ln(10) = 3*ln(2) + ln(5/4), and ln(5/4) = 2*atanh(1/9).
+    static final BigRealConstant LN10 = new BigRealConstant() {
+        private final BigRealMath.PartialSum atanh9 = new BigRealMath.PartialSum(BigRealMath.atanhInverse(9));
+
+        BigInteger compute(int bits) {
+            final int b = bits + 4;
+            final BigInteger a = atanh9.sum(BigRealMath.atanhInverseTermCount(9, b), b);
+            return LN2.fixed(b).multiply(BigInteger.valueOf(3)).add(a.shiftLeft(1)).shiftRight(4);
+        }
+    };
+
+    // The most precise value we've computed so far. Replaced, never modified.
+    private static final class Expansion {
+        final BigInteger fixed;
+        final int bits;
+
+        Expansion(BigInteger fixed, int bits) {
+            this.fixed = fixed;
+            this.bits = bits;
+        }
+    }
+
+    private volatile Expansion expansion = new Expansion(BigInteger.ZERO, 0);
+
+    // Returns the constant times 2^bits, truncated. Called with this constant's lock held, so it can keep state.
+    abstract BigInteger compute(int bits);
+
+    /**
+     * Returns the constant times 2^bits, truncated.
+     */
+    BigInteger fixed(int bits) {
+        Expansion current = expansion;
+        if (current.bits < bits) {
+            synchronized (this) {
+                current = expansion;
+                if (current.bits < bits) {
+                    final int newBits = Math.max(bits, current.bits + current.bits / 4);
+                    current = new Expansion(compute(newBits), newBits);
+                    expansion = current;
+                }
+            }
+        }
+        return current.fixed.shiftRight(current.bits - bits);
+    }
+
+    /**
+     * Returns the constant rounded to the given precision.
+     */
+    BigDecimal value(MathContext mc) {
+        final int bits = BigRealMath.workingBits(mc);
+        return BigRealMath.fromFixed(fixed(bits), bits, mc);
+    }
+}
@@ -0,0 +1,561 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import org.jessies.calc.bigint.*;
+
+/**
+ * Elementary functions of BigDecimals, to any precision.
+ *
+ * The work is done in binary fixed point: a BigInteger x at 'bits' bits stands for x/2^bits. Each function works out
+ * how many bits it needs for the requested number of significant digits (allowing for cancellation and for the size
+ * of its argument), and only converts back to decimal at the end.
+ *
+ * The constants are summed by binary splitting: Chudnovsky's series for pi, and Machin-like arctanh formulas for the
+ * logarithms. Exp, sin and cos use the "bit-burst" algorithm, which splits the argument into pieces of 2, 2, 4, 8, ...
+ * bits, each short enough to sum its Taylor series by binary splitting too. Log uses the arithmetic-geometric mean,
+ * and arctan uses Newton's method on sin and cos, doubling the precision at each step. All of these cost a small
+ * multiple of a full-precision multiplication (times a few logarithmic factors), rather than the quadratic or worse
+ * cost of summing Taylor series term by term.
+ *
+ * The constants themselves are cached by BigRealConstant.
+ */
+final class BigRealMath {
+    private static final double BITS_PER_DIGIT = Math.log(10) / Math.log(2);
+
+    // Extra bits carried through every computation to absorb rounding errors.
+    static final int GUARD_BITS = 32;
+
+    private BigRealMath() {
+    }
+
+    static BigDecimal pi(MathContext mc) {
+        return BigRealConstant.PI.value(mc);
+    }
+
+    static BigDecimal e(MathContext mc) {
+        return BigRealConstant.E.value(mc);
+    }
+
+    /**
+     * Returns the square root of the non-negative 'x'.
+     */
+    static BigDecimal sqrt(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return x;
+        }
+        // Arrange for an even scale, and at least two more digits than we need in the root.
+        BigInteger unscaled = x.unscaledValue();
+        int scale = x.scale();
+        if ((scale & 1) != 0) {
+            unscaled = unscaled.multiply(BigInteger.TEN);
+            ++scale;
+        }
+        final int extraDigits = (Math.max(0, 2 * (mc.getPrecision() + 2) - x.precision()) + 1) & ~1;
+        unscaled = unscaled.multiply(BigInteger.TEN.pow(extraDigits));
+        scale += extraDigits;
+        return new BigDecimal(NumberTheory.sqrt(unscaled), scale / 2).round(mc);
+    }
+
+    /**
+     * Returns e^x, or null if the result would be too large (or small) for a BigDecimal.
+     */
+    static BigDecimal exp(BigDecimal x, MathContext mc) {
+        // e^x = 10^j * e^r, where x = j*ln(10) + r and 0 <= r < ln(10), and the 10^j is just a change of scale.
+        final double estimate = x.doubleValue() / Math.log(10);
+        if (Math.abs(estimate) > Integer.MAX_VALUE / 2) {
+            return null;
+        }
+        long j = (long) Math.floor(estimate);
+        final int bits = workingBits(mc) + bitLength(Math.abs(j));
+        final BigInteger ln10 = BigRealConstant.LN10.fixed(bits);
+        BigInteger r = toFixed(x, bits).subtract(ln10.multiply(BigInteger.valueOf(j)));
+        // The estimate can be off by one for huge x.
+        while (r.signum() < 0) {
+            r = r.add(ln10);
+            --j;
+        }
+        while (r.compareTo(ln10) >= 0) {
+            r = r.subtract(ln10);
+            ++j;
+        }
+        return fromFixed(expFixed(r, bits), bits, mc).scaleByPowerOfTen((int) j).round(mc);
+    }
+
+    /**
+     * Returns the natural logarithm of the positive 'x'.
+     */
+    static BigDecimal log(BigDecimal x, MathContext mc) {
+        final BigDecimal xMinusOne = x.subtract(BigDecimal.ONE);
+        if (xMinusOne.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        // When x is close to 1, its logarithm is close to 0, so we need more bits to get the same relative precision.
+        final int cancellation = Math.max(0, (int) (-exponent10(xMinusOne) * BITS_PER_DIGIT));
+        final int bits = workingBits(mc) + cancellation;
+        return fromFixed(logFixed(x, bits), bits, mc);
+    }
+
+    static BigDecimal sin(BigDecimal x, MathContext mc) {
+        return sinCos(x, mc)[0];
+    }
+
+    static BigDecimal cos(BigDecimal x, MathContext mc) {
+        return sinCos(x, mc)[1];
+    }
+
+    static BigDecimal tan(BigDecimal x, MathContext mc) {
+        final BigDecimal[] sinCos = sinCos(x, widen(mc));
+        return sinCos[0].divide(sinCos[1], mc);
+    }
+
+    /**
+     * Returns the arcsine of 'x', for |x| <= 1.
+     */
+    static BigDecimal asin(BigDecimal x, MathContext mc) {
+        final BigDecimal oneMinusXSquared = BigDecimal.ONE.subtract(x.multiply(x));
+        if (oneMinusXSquared.signum() == 0) {
+            return halfPi(x.signum(), mc);
+        }
+        // asin(x) = atan(x/sqrt(1 - x^2)), where 1 - x^2 is exact.
+        final MathContext wide = widen(mc);
+        return atan(x.divide(sqrt(oneMinusXSquared, wide), wide), mc);
+    }
+
+    /**
+     * Returns the arccosine of 'x', for |x| <= 1.
+     */
+    static BigDecimal acos(BigDecimal x, MathContext mc) {
+        final BigDecimal onePlusX = BigDecimal.ONE.add(x);
+        if (onePlusX.signum() == 0) {
+            return pi(mc);
+        }
+        // acos(x) = 2*atan(sqrt((1 - x)/(1 + x))), which unlike pi/2 - asin(x) doesn't suffer cancellation near 1.
+        final MathContext wide = widen(mc);
+        final BigDecimal ratio = BigDecimal.ONE.subtract(x).divide(onePlusX, wide);
+        return atan(sqrt(ratio, wide), wide).multiply(BigDecimal.valueOf(2)).round(mc);
+    }
+
+    static BigDecimal atan(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return x;
+        }
+        if (x.abs().compareTo(BigDecimal.ONE) > 0) {
+            // atan(x) = sign(x)*pi/2 - atan(1/x), which is at least pi/4 in magnitude, so we need no extra bits.
+            final int bits = workingBits(mc);
+            final BigInteger y = atanFixed(toFixed(BigDecimal.ONE.divide(x, widen(mc)), bits), bits);
+            final BigInteger halfPi = BigRealConstant.PI.fixed(bits).shiftRight(1);
+            return fromFixed((x.signum() > 0 ? halfPi : halfPi.negate()).subtract(y), bits, mc);
+        }
+        // atan(x) is about x when x is small, so we need enough bits to represent x to the requested precision.
+        final int bits = workingBits(mc) + Math.max(0, (int) (-exponent10(x) * BITS_PER_DIGIT));
+        return fromFixed(atanFixed(toFixed(x, bits), bits), bits, mc);
+    }
+
+    // Returns { sin(x), cos(x) }.
+    private static BigDecimal[] sinCos(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return new BigDecimal[] { BigDecimal.ZERO, BigDecimal.ONE };
+        }
+        // Reducing x modulo pi/2 needs enough bits of pi to cover the integer part of x as well as the fraction. If x
+        // is tiny, or close to a multiple of pi/2, we need more bits to keep the relative precision of the small
+        // result.
+        final int magnitude = (int) (exponent10(x) * BITS_PER_DIGIT);
+        int bits = workingBits(mc) + Math.max(0, -magnitude);
+        BigInteger r;
+        long quadrant;
+        while (true) {
+            final int reductionBits = bits + Math.max(0, magnitude);
+            final BigInteger halfPi = BigRealConstant.PI.fixed(reductionBits).shiftRight(1);
+            final BigInteger xFixed = toFixed(x, reductionBits);
+            // Round to the nearest multiple of pi/2, so |r| <= pi/4. BigInteger division truncates, but we want floor.
+            final BigInteger[] qr = Division.divideAndRemainder(xFixed.add(halfPi.shiftRight(1)), halfPi);
+            BigInteger q = qr[0];
+            if (qr[1].signum() < 0) {
+                q = q.subtract(BigInteger.ONE);
+            }
+            quadrant = q.and(BigInteger.valueOf(3)).longValue();
+            r = xFixed.subtract(q.multiply(halfPi)).shiftRight(reductionBits - bits);
+            // The result may be as small as r, so we need as many more bits as r has leading zeros.
+            final int neededBits = workingBits(mc) + (bits - r.bitLength());
+            if (neededBits <= bits) {
+                break;
+            }
+            bits = neededBits;
+        }
+        final BigInteger[] sinCos = sinCosFixed(r, bits);
+        final BigInteger s = sinCos[0];
+        final BigInteger c = sinCos[1];
+        final BigInteger sin;
+        final BigInteger cos;
+        if (quadrant == 0) {
+            sin = s;
+            cos = c;
+        } else if (quadrant == 1) {
+            sin = c;
+            cos = s.negate();
+        } else if (quadrant == 2) {
+            sin = s.negate();
+            cos = c.negate();
+        } else {
+            sin = c.negate();
+            cos = s;
+        }
+        return new BigDecimal[] { fromFixed(sin, bits, mc), fromFixed(cos, bits, mc) };
+    }
+
+    private static BigDecimal halfPi(int signum, MathContext mc) {
+        final BigDecimal halfPi = pi(widen(mc)).divide(BigDecimal.valueOf(2)).round(mc);
+        return (signum < 0) ? halfPi.negate() : halfPi;
+    }
+
+    // A few more digits than 'mc', for intermediate results.
+    private static MathContext widen(MathContext mc) {
+        return new MathContext(mc.getPrecision() + 10);
+    }
+
+    // Returns the number of bits needed for the significant digits of 'mc', plus guard bits.
+    static int workingBits(MathContext mc) {
+        return (int) Math.ceil(mc.getPrecision() * BITS_PER_DIGIT) + GUARD_BITS;
+    }
+
+    // Returns e such that 10^(e-1) <= |x| < 10^e, for non-zero x.
+    private static long exponent10(BigDecimal x) {
+        return (long) x.precision() - x.scale();
+    }
+
+    private static int bitLength(long n) {
+        return 64 - Long.numberOfLeadingZeros(n);
+    }
+
+    // Returns x*2^bits, truncated.
+    private static BigInteger toFixed(BigDecimal x, int bits) {
+        final BigInteger unscaled = x.unscaledValue();
+        final int scale = x.scale();
+        if (scale <= 0) {
+            return unscaled.multiply(BigInteger.TEN.pow(-scale)).shiftLeft(bits);
+        }
+        return Division.divide(unscaled.shiftLeft(bits), BigInteger.TEN.pow(scale));
+    }
+
+    // Returns x/2^bits, rounded to 'mc'. x/2^bits = x*5^bits/10^bits, which is exact.
+    static BigDecimal fromFixed(BigInteger x, int bits, MathContext mc) {
+        return new BigDecimal(Multiplication.multiply(x, Multiplication.pow(BigInteger.valueOf(5), bits)), bits).round(mc);
+    }
+
+    private static BigInteger multiply(BigInteger a, BigInteger b, int bits) {
+        return Multiplication.multiply(a, b).shiftRight(bits);
+    }
+
+    static BigInteger divide(BigInteger a, BigInteger b, int bits) {
+        return Division.divide(a.shiftLeft(bits), b);
+    }
+
+    /**
+     * A series sum of a(k)/b(k) * p(0)*...*p(k) / (q(0)*2^shift(0)*...*q(k)*2^shift(k)), for k from 0 to n-1, with
+     * integer p, q, a and b, summed by binary splitting.
+     *
+     * Rather than computing each term to full precision, we compute the exact sum of each half of the range as a
+     * fraction, and combine them, so most of the work is a few big multiplications of numbers of similar size.
+     * Powers of two in the denominators are kept as shifts, so they don't make those multiplications any bigger.
+     *
+     * "Fast multiprecision evaluation of series of rational numbers", Bruno Haible and Thomas Papanikolaou, 1997.
+     */
+    abstract static class Series {
+        abstract BigInteger p(int k);
+        abstract BigInteger q(int k);
+
+        int shift(int k) {
+            return 0;
+        }
+
+        BigInteger a(int k) {
+            return BigInteger.ONE;
+        }
+
+        BigInteger b(int k) {
+            return BigInteger.ONE;
+        }
+
+        // Returns the sum of the first n terms, at 'bits' bits.
+        BigInteger sum(int n, int bits) {
+            return split(0, n).value(bits);
+        }
+
+        private Split split(int from, int to) {
+            if (to - from == 1) {
+                final Split result = new Split();
+                result.p = p(from);
+                result.q = q(from);
+                result.shift = shift(from);
+                result.b = b(from);
+                result.t = a(from).multiply(result.p);
+                return result;
+            }
+            final int mid = (from + to) >>> 1;
+            return combine(split(from, mid), split(mid, to));
+        }
+
+        // Returns the Split for the terms of 'l' followed by the terms of 'r'.
+        private static Split combine(Split l, Split r) {
+            final Split result = new Split();
+            result.p = Multiplication.multiply(l.p, r.p);
+            result.q = Multiplication.multiply(l.q, r.q);
+            result.shift = l.shift + r.shift;
+            result.b = Multiplication.multiply(l.b, r.b);
+            // T = Br*Qr*Tl + Bl*Pl*Tr, where Qr includes its power of two.
+            result.t = Multiplication.multiply(Multiplication.multiply(r.b, r.q), l.t).shiftLeft(r.shift).add(Multiplication.multiply(Multiplication.multiply(l.b, l.p), r.t));
+            return result;
+        }
+    }
+
+    // The products P, Q (with its power of two as a shift) and B of the terms in a range, and T, which is B*Q times
+    // the sum of those terms.
+    private static final class Split {
+        BigInteger p;
+        BigInteger q;
+        int shift;
+        BigInteger b;
+        BigInteger t;
+
+        // Returns T/(B*Q), the sum of the terms, at 'bits' bits.
+        BigInteger value(int bits) {
+            final BigInteger denominator = Multiplication.multiply(q, b);
+            final int s = bits - shift;
+            return (s >= 0) ? divide(t, denominator, s) : Division.divide(t, denominator.shiftLeft(-s));
+        }
+    }
+
+    /**
+     * The sum of a Series that can be extended to more terms without redoing the terms already summed: because
+     * binary splitting keeps the sum of a range of terms as exact products, we can sum just the new range, and
+     * combine it with the old one. Not thread-safe.
+     */
+    static final class PartialSum {
+        private final Series series;
+        private Split split;
+        private int terms;
+
+        PartialSum(Series series) {
+            this.series = series;
+        }
+
+        // Returns the sum of at least the first n terms, at 'bits' bits.
+        BigInteger sum(int n, int bits) {
+            if (n > terms) {
+                final Split more = series.split(terms, n);
+                split = (split == null) ? more : Series.combine(split, more);
+                terms = n;
+            }
+            return split.value(bits);
+        }
+    }
+
+    // Returns the number of terms of the sum of x^(step*k)/(step*k)! needed for an error below 2^-bits.
+    static int termCount(double log2X, int bits, int step) {
+        double log2Term = 0;
+        int k = 0;
+        do {
+            ++k;
+            for (int i = step * (k - 1) + 1; i <= step * k; ++i) {
+                log2Term += log2X - Math.log(i) / Math.log(2);
+            }
+        } while (log2Term > -bits - 2);
+        return k + 1;
+    }
+
+    // Returns the series atanh(1/q) = sum 1/((2k+1) q^(2k+1)), for integer q > 1.
+    static Series atanhInverse(long q) {
+        final BigInteger qBig = BigInteger.valueOf(q);
+        final BigInteger qSquared = qBig.multiply(qBig);
+        return new Series() {
+            BigInteger p(int k) {
+                return BigInteger.ONE;
+            }
+
+            BigInteger q(int k) {
+                return (k == 0) ? qBig : qSquared;
+            }
+
+            BigInteger b(int k) {
+                return BigInteger.valueOf(2L * k + 1);
+            }
+        };
+    }
+
+    // Returns the number of terms of atanh(1/q) needed for an error below 2^-bits.
+    static int atanhInverseTermCount(long q, int bits) {
+        return (int) (bits / (2 * Math.log(q) / Math.log(2))) + 2;
+    }
+
+    // Returns e^(n/2^m), for 0 <= n/2^m < 4, by summing its Taylor series.
+    private static BigInteger expRational(final BigInteger n, final int m, int bits) {
+        final Series series = new Series() {
+            BigInteger p(int k) {
+                return (k == 0) ? BigInteger.ONE : n;
+            }
+
+            BigInteger q(int k) {
+                return (k == 0) ? BigInteger.ONE : BigInteger.valueOf(k);
+            }
+
+            int shift(int k) {
+                return (k == 0) ? 0 : m;
+            }
+        };
+        return series.sum(termCount(log2(n, m), bits, 1), bits);
+    }
+
+    // Returns { sin(n/2^m), cos(n/2^m) }, for 0 <= n/2^m < 1, by summing the Taylor series for sin. Because n/2^m is
+    // less than pi/2, cos is the positive root of 1 - sin^2.
+    private static BigInteger[] sinCosRational(final BigInteger n, final int m, int bits) {
+        final BigInteger minusNSquared = n.multiply(n).negate();
+        final Series series = new Series() {
+            BigInteger p(int k) {
+                return (k == 0) ? BigInteger.ONE : minusNSquared;
+            }
+
+            BigInteger q(int k) {
+                return (k == 0) ? BigInteger.ONE : BigInteger.valueOf(2L * k * (2 * k + 1));
+            }
+
+            int shift(int k) {
+                return (k == 0) ? 0 : 2 * m;
+            }
+        };
+        final BigInteger sin = series.sum(termCount(log2(n, m), bits, 2), bits).multiply(n).shiftRight(m);
+        final BigInteger cos = NumberTheory.sqrt(BigInteger.ONE.shiftLeft(2 * bits).subtract(Multiplication.square(sin)));
+        return new BigInteger[] { sin, cos };
+    }
+
+    private static double log2(BigInteger n, int m) {
+        return Math.log(toDouble(n, m)) / Math.log(2);
+    }
+
+    // Returns x/2^bits as a double, even when x itself is too large for one.
+    private static double toDouble(BigInteger x, int bits) {
+        final int shift = Math.max(0, x.bitLength() - 62);
+        return Math.scalb(x.shiftRight(shift).doubleValue(), shift - bits);
+    }
+
+    /**
+     * Splits the non-negative 'x' at 'bits' bits into pieces for the bit-burst algorithm, returning { n, m } pairs
+     * such that x = sum n/2^m. The first piece is the integer part and the first two bits of the fraction, and
+     * each subsequent piece has as many bits as all those before it, so each piece is about the square of the
+     * previous one, and needs about half as many terms of a Taylor series.
+     */
+    private static BigInteger[][] bitBurst(BigInteger x, int bits) {
+        final java.util.ArrayList<BigInteger[]> pieces = new java.util.ArrayList<BigInteger[]>();
+        int from = 0;
+        int to = 2;
+        while (from < bits) {
+            to = Math.min(to, bits);
+            final BigInteger n = (from == 0) ? x.shiftRight(bits - to) : x.shiftRight(bits - to).and(BigInteger.ONE.shiftLeft(to - from).subtract(BigInteger.ONE));
+            if (n.signum() != 0) {
+                pieces.add(new BigInteger[] { n, BigInteger.valueOf(to) });
+            }
+            from = to;
+            to *= 2;
+        }
+        return pieces.toArray(new BigInteger[pieces.size()][]);
+    }
+
+    // Returns e^x for 0 <= x < 4.
+    private static BigInteger expFixed(BigInteger x, int bits) {
+        BigInteger result = BigInteger.ONE.shiftLeft(bits);
+        for (BigInteger[] piece : bitBurst(x, bits)) {
+            result = multiply(result, expRational(piece[0], piece[1].intValue(), bits), bits);
+        }
+        return result;
+    }
+
+    // Returns { sin(x), cos(x) } for |x| < 1.
+    private static BigInteger[] sinCosFixed(BigInteger x, int bits) {
+        BigInteger sin = BigInteger.ZERO;
+        BigInteger cos = BigInteger.ONE.shiftLeft(bits);
+        for (BigInteger[] piece : bitBurst(x.abs(), bits)) {
+            final BigInteger[] sc = sinCosRational(piece[0], piece[1].intValue(), bits);
+            // sin(a+b) = sin(a)cos(b) + cos(a)sin(b), and cos(a+b) = cos(a)cos(b) - sin(a)sin(b).
+            final BigInteger newSin = multiply(sin, sc[1], bits).add(multiply(cos, sc[0], bits));
+            cos = multiply(cos, sc[1], bits).subtract(multiply(sin, sc[0], bits));
+            sin = newSin;
+        }
+        return new BigInteger[] { (x.signum() < 0) ? sin.negate() : sin, cos };
+    }
+
+    // Returns ln(x) for positive x, using ln(s) ~= pi/(2*AGM(1, 4/s)) for s = x*2^m > 2^(bits/2), with an error
+    // of order 1/s^2. Because 4/s is so small, it needs an extra bits/2 bits to have full relative precision.
+    private static BigInteger logFixed(BigDecimal x, int bits) {
+        final double log2X = exponent10(x) * BITS_PER_DIGIT;
+        final int m = Math.max(0, (int) Math.ceil(bits / 2.0 - log2X) + 2);
+        final int b = bits + bits / 2 + bitLength(m) + 4;
+        // 4/s = 4*10^scale/(unscaled*2^m).
+        BigInteger numerator = BigInteger.ONE;
+        BigInteger denominator = x.unscaledValue();
+        if (x.scale() >= 0) {
+            numerator = BigInteger.TEN.pow(x.scale());
+        } else {
+            denominator = denominator.multiply(BigInteger.TEN.pow(-x.scale()));
+        }
+        final int shift = b + 2 - m;
+        if (shift >= 0) {
+            numerator = numerator.shiftLeft(shift);
+        } else {
+            denominator = denominator.shiftLeft(-shift);
+        }
+        final BigInteger agm = agm(BigInteger.ONE.shiftLeft(b), Division.divide(numerator, denominator));
+        final BigInteger logS = divide(BigRealConstant.PI.fixed(b), agm.shiftLeft(1), b);
+        return logS.subtract(BigRealConstant.LN2.fixed(b).multiply(BigInteger.valueOf(m))).shiftRight(b - bits);
+    }
+
+    // Returns the arithmetic-geometric mean of the fixed-point numbers a and b.
+    private static BigInteger agm(BigInteger a, BigInteger b) {
+        while (a.subtract(b).abs().bitLength() > 2) {
+            final BigInteger mean = a.add(b).shiftRight(1);
+            b = NumberTheory.sqrt(Multiplication.multiply(a, b));
+            a = mean;
+        }
+        return a;
+    }
+
+    // Returns atan(x) for |x| <= 1, by Newton's method on f(y) = sin(y) - x*cos(y), starting from the double result
+    // and doubling the precision at each step.
+    private static BigInteger atanFixed(BigInteger x, int bits) {
+        final java.util.ArrayList<Integer> precisions = new java.util.ArrayList<Integer>();
+        for (int b = bits; b > 40; b = b / 2 + 1) {
+            precisions.add(b);
+        }
+        // Start at 50 bits, where the double is good to about 50 bits.
+        int currentBits = 50;
+        BigInteger y = BigInteger.valueOf((long) Math.scalb(Math.atan(toDouble(x, bits)), currentBits));
+        for (int i = precisions.size() - 1; i >= -1; --i) {
+            // Take one extra step at the full precision, to be sure of the last few bits.
+            final int b = (i >= 0) ? precisions.get(i) : bits;
+            y = y.shiftLeft(b - currentBits);
+            currentBits = b;
+            final BigInteger xb = x.shiftRight(bits - b);
+            final BigInteger[] sinCos = sinCosFixed(y, b);
+            final BigInteger f = sinCos[0].subtract(multiply(xb, sinCos[1], b));
+            final BigInteger fPrime = sinCos[1].add(multiply(xb, sinCos[0], b));
+            y = y.subtract(divide(f, fPrime, b));
+        }
+        return y;
+    }
+}
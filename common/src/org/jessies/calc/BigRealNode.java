@@ -36,6 +36,22 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
         this(new BigDecimal(s));
     }
 
+    /**
+     * Returns 'n' as a BigRealNode. Rationals are rounded to 'mc'; anything else is converted exactly.
+     */
+    public static BigRealNode valueOf(NumberNode n, MathContext mc) {
+        if (n instanceof BigRealNode) {
+            return (BigRealNode) n;
+        } else if (n instanceof IntegerNode) {
+            return ((IntegerNode) n).toBigReal();
+        } else if (n instanceof RationalNode) {
+            final RationalNode r = (RationalNode) n;
+            return new BigRealNode(new BigDecimal(r.numerator().big()).divide(new BigDecimal(r.denominator().big()), mc));
+        } else {
+            return new BigRealNode(new BigDecimal(((RealNode) n).doubleValue()));
+        }
+    }
+
     public Node evaluate(Calculator environment) {
         return this;
     }
@@ -49,19 +65,18 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public NumberNode divide(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        return divide(rhs, MathContext.DECIMAL128);
+    }
+
+    public NumberNode divide(NumberNode rhs, MathContext mc) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).divide(rhs);
+        } else if (rhs instanceof RealNode) {
             return toReal().divide(rhs);
         }
-        BigDecimal divisor;
-        if (rhs instanceof IntegerNode) {
-            IntegerNode iRhs = (IntegerNode) rhs;
-            divisor = new BigDecimal(iRhs.big());
-        } else {
-            BigRealNode bRhs = (BigRealNode) rhs;
-            divisor = bRhs.value;
-        }
+        final BigDecimal divisor = valueOf(rhs, mc).value;
         try {
-            return new BigRealNode(value.divide(divisor, MathContext.DECIMAL128));
+            return new BigRealNode(value.divide(divisor, mc));
         } catch (ArithmeticException ex) {
             throw new CalculatorError("division by zero");
         }
@@ -82,6 +97,79 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
         return value.hashCode();
     }
 
+    // The elementary functions, computed to 'mc'. Arguments outside a function's real domain are handed to RealNode,
+    // which returns NaN or an infinity as appropriate.
+
+    public NumberNode acos(MathContext mc) {
+        if (value.abs().compareTo(BigDecimal.ONE) > 0) {
+            return toReal().acos();
+        }
+        return new BigRealNode(BigRealMath.acos(value, mc));
+    }
+
+    public NumberNode asin(MathContext mc) {
+        if (value.abs().compareTo(BigDecimal.ONE) > 0) {
+            return toReal().asin();
+        }
+        return new BigRealNode(BigRealMath.asin(value, mc));
+    }
+
+    public BigRealNode atan(MathContext mc) {
+        return new BigRealNode(BigRealMath.atan(value, mc));
+    }
+
+    public BigRealNode cos(MathContext mc) {
+        return new BigRealNode(BigRealMath.cos(value, mc));
+    }
+
+    public NumberNode exp(MathContext mc) {
+        final BigDecimal result = BigRealMath.exp(value, mc);
+        return (result != null) ? new BigRealNode(result) : toReal().exp();
+    }
+
+    public NumberNode log(BigRealNode base, MathContext mc) {
+        if (value.signum() <= 0 || base.value.signum() <= 0) {
+            return toReal().log(base.toReal());
+        }
+        final MathContext wide = new MathContext(mc.getPrecision() + 10);
+        BigDecimal result = BigRealMath.log(value, wide).divide(BigRealMath.log(base.value, wide), mc).stripTrailingZeros();
+        if (result.scale() < 0 && result.precision() - result.scale() <= mc.getPrecision()) {
+            // An integer, like Log2(1024), which would otherwise be 1E+1.
+            result = result.setScale(0);
+        }
+        return new BigRealNode(result);
+    }
+
+    public NumberNode log2(MathContext mc) {
+        return log(new BigRealNode(BigDecimal.valueOf(2)), mc);
+    }
+
+    public NumberNode logE(MathContext mc) {
+        if (value.signum() <= 0) {
+            return toReal().logE();
+        }
+        return new BigRealNode(BigRealMath.log(value, mc));
+    }
+
+    public NumberNode log10(MathContext mc) {
+        return log(new BigRealNode(BigDecimal.TEN), mc);
+    }
+
+    public BigRealNode sin(MathContext mc) {
+        return new BigRealNode(BigRealMath.sin(value, mc));
+    }
+
+    public NumberNode sqrt(MathContext mc) {
+        if (value.signum() < 0) {
+            return toReal().sqrt();
+        }
+        return new BigRealNode(BigRealMath.sqrt(value, mc));
+    }
+
+    public BigRealNode tan(MathContext mc) {
+        return new BigRealNode(BigRealMath.tan(value, mc));
+    }
+
     public NumberNode fractionalPart() {
         BigDecimal integerPart = new BigDecimal(value.toBigInteger());
         if (value.equals(integerPart)) {
@@ -99,7 +187,9 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public NumberNode plus(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).plus(rhs);
+        } else if (rhs instanceof RealNode) {
             return toReal().plus(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
@@ -111,7 +201,9 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public NumberNode power(NumberNode rhs) {
-        if (rhs instanceof IntegerNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).power(rhs);
+        } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
             if (!iRhs.isBig() && iRhs.fix() <= Integer.MAX_VALUE) {
                 return new BigRealNode(value.pow((int) iRhs.fix()));
@@ -129,7 +221,9 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public NumberNode subtract(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).subtract(rhs);
+        } else if (rhs instanceof RealNode) {
             return toReal().subtract(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
@@ -141,7 +235,9 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public NumberNode times(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).times(rhs);
+        } else if (rhs instanceof RealNode) {
             return toReal().times(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
@@ -165,6 +261,9 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     @Override public String toString() {
-        return value.toPlainString();
+        // Very large or very small numbers, like e^1000 or e^-1000 to 50 digits, would be misleading (and very long)
+        // written out in full, with hundreds of zeros that aren't significant digits.
+        final int exponent = value.precision() - value.scale() - 1;
+        return (exponent < -6 || exponent > 20) ? value.toString() : value.toPlainString();
     }
 }
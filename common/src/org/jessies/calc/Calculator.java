@@ -18,52 +18,140 @@ package org.jessies.calc;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.*;
 import java.math.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 // FIXME: Mac OS' calculator offers -d variants of all the trig functions for degrees. that, or offer constants to multiply by to convert to degrees/radians?
-// FIXME: higher-order built-in functions like http://www.vitanuova.com/inferno/man/1/calc.html (sum, product, integral, differential, solve).
 // FIXME: integer division (//).
 public class Calculator {
-    private final Map<String, CalculatorFunction> functions;
-    private final Map<CalculatorToken, CalculatorFunction> operators;
-    private final Map<String, Variable> variables;
-    private final Variable ans;
+    // The built-in functions and constants never change, so they're shared by all Calculators (and all threads).
+    // They're only written during class initialization, which makes them safe to read without locking.
+    private static final Map<String, CalculatorFunction> functions = new HashMap<String, CalculatorFunction>();
+    private static final Map<CalculatorToken, CalculatorFunction> operators = new EnumMap<CalculatorToken, CalculatorFunction>(CalculatorToken.class);
+    private static final Map<String, Variable> constants = new HashMap<String, Variable>();
 
     // We keep track of the "basic" names (like "ArcCos", as distinct from the
     // derived names like "arccos" and "arc_cos") so we can automatically
     // generate the on-line help.
-    private final TreeSet<String> basicFunctionNames = new TreeSet<String>();
+    private static final TreeSet<String> basicFunctionNames = new TreeSet<String>();
+
+    static {
+        initBuiltInConstants();
+        initBuiltInFunctions();
+    }
+
+    // A Calculator is either a root, which owns the user's variables and settings and can be shared between threads,
+    // or a scope, which binds local variables (such as the variable in a Map or Sum) for a single evaluation.
+    // Scopes are cheap to create, and are only ever used by the thread that created them.
+    private final Calculator parent;
+    private final Calculator root;
+    private final Map<String, Variable> variables;
+    private final Variable ans;
+
+    // The values of a CompiledExpression's parameters, if this scope was created to evaluate one.
+    private final Node[] arguments;
 
-    private boolean degreesMode = false;
-    private static int outputBase = 10; // TODO: pass this around instead of using static.
+    // The values of common subexpressions, if this scope was created to evaluate a CommonSubexpressions.Let.
+    private final CommonSubexpressions.Values sharedValues;
 
-    private CalculatorPlotter plotter;
+    // Shared by a root and all its scopes.
+    private final CalculatorParseCache parseCache;
+
+    private volatile boolean degreesMode = false;
+    private volatile int precision = 0;
+    private static volatile int outputBase = 10; // TODO: pass this around instead of using static.
+
+    private volatile CalculatorPlotter plotter;
+    // The most points Plot will sample.
+    static final int MAX_PLOT_RESOLUTION = 1 << 20;
+
+    private volatile int plotResolution = 300;
+    private volatile boolean plotRefinement = false;
 
     // Variable names are case-insensitive but case-preserving.
     // We implement case-insensitivity by using name.toLowerCase() as the key.
     // We preserve case by using a pair of the first-encountered name and the variable's value as the map's value type.
     static class Variable {
         String name;
-        Node value;
+        volatile Node value;
         boolean isAssignable = true;
     }
 
     public Calculator() {
-        this.functions = new HashMap<String, CalculatorFunction>();
-        this.operators = new EnumMap<CalculatorToken, CalculatorFunction>(CalculatorToken.class);
-        this.variables = new HashMap<String, Variable>();
+        this.parent = null;
+        this.root = this;
+        this.variables = new ConcurrentHashMap<String, Variable>();
+        this.arguments = null;
+        this.sharedValues = null;
+        this.parseCache = new CalculatorParseCache(256);
         this.ans = initAns();
-        initBuiltInConstants();
-        initBuiltInFunctions();
+    }
+
+    private Calculator(Calculator parent, Node[] arguments, CommonSubexpressions.Values sharedValues) {
+        this.parent = parent;
+        this.root = parent.root;
+        // A scope for shared values never binds variables of its own.
+        this.variables = (sharedValues != null) ? Collections.<String, Variable>emptyMap() : new HashMap<String, Variable>();
+        this.arguments = arguments;
+        this.sharedValues = sharedValues;
+        this.parseCache = root.parseCache;
+        this.ans = root.ans;
+    }
+
+    /**
+     * Returns a new scope for binding local variables, whose lookups fall back to this Calculator.
+     */
+    Calculator newScope() {
+        return new Calculator(this, null, null);
+    }
+
+    /**
+     * Returns a new scope in which the parameters of a CompiledExpression have the given values.
+     */
+    Calculator newScope(Node[] arguments) {
+        return new Calculator(this, arguments, null);
+    }
+
+    /**
+     * Returns a new scope in which a CommonSubexpressions.Let keeps the values of its shared subexpressions.
+     */
+    Calculator newScope(CommonSubexpressions.Values sharedValues) {
+        return new Calculator(this, null, sharedValues);
     }
 
     public void setPlotter(CalculatorPlotter plotter) {
-        this.plotter = plotter;
+        root.plotter = plotter;
     }
 
     public CalculatorPlotter getPlotter() {
-        return plotter;
+        return root.plotter;
+    }
+
+    /**
+     * Sets the number of points Plot samples when not given an explicit resolution.
+     */
+    public void setPlotResolution(int plotResolution) {
+        if (plotResolution < 2 || plotResolution > MAX_PLOT_RESOLUTION) {
+            throw new IllegalArgumentException("plot resolution must be between 2 and " + MAX_PLOT_RESOLUTION + "; got " + plotResolution + " instead");
+        }
+        root.plotResolution = plotResolution;
+    }
+
+    public int getPlotResolution() {
+        return root.plotResolution;
+    }
+
+    /**
+     * Tells Plot to take a closer look wherever the curve jumps sharply, and break the line at discontinuities.
+     */
+    public void setPlotRefinement(boolean plotRefinement) {
+        root.plotRefinement = plotRefinement;
+    }
+
+    public boolean getPlotRefinement() {
+        return root.plotRefinement;
     }
 
     private Variable initAns() {
@@ -75,11 +163,10 @@ public class Calculator {
         return result;
     }
 
-    private void initBuiltInConstants() {
-        // FIXME: use higher-precision string forms?
-        initConstant("e", new RealNode(Math.E));
+    private static void initBuiltInConstants() {
+        initConstant("e", new RealConstantNode("e", Math.E, BigRealConstant.E));
 
-        final Node pi = new RealNode(Math.PI);
+        final Node pi = new RealConstantNode("pi", Math.PI, BigRealConstant.PI);
         initConstant("pi", pi);
         initConstant("\u03c0", pi);
 
@@ -87,16 +174,16 @@ public class Calculator {
         initConstant("true", BooleanNode.TRUE);
     }
 
-    private void initConstant(String name, Node value) {
+    private static void initConstant(String name, Node value) {
         final Variable constant = new Variable();
         constant.name = name;
         constant.value = value;
         constant.isAssignable = false;
         final String key = name.toLowerCase(Locale.US);
-        variables.put(key, constant);
+        constants.put(key, constant);
     }
 
-    private void initBuiltInFunctions() {
+    private static void initBuiltInFunctions() {
         // FIXME: acosh, asinh, atanh, chop, clip.
         addFunction(new CalculatorFunctions.Abs(),            "Abs");
         addFunction(new CalculatorFunctions.Acos(),           "Acos", "ArcCos");
@@ -119,7 +206,9 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Ceiling(),        "Ceiling", "Ceil");
         addFunction(new CalculatorFunctions.Cosh(),           "Cosh");
         addFunction(new CalculatorFunctions.Cos(),            "Cos");
+        addFunction(new CalculatorFunctions.D(),              "D");
         addFunction(new CalculatorFunctions.Define(),         "Define");
+        addFunction(new CalculatorFunctions.Det(),            "Det");
         addFunction(new CalculatorFunctions.DigitCount(),     "DigitCount");
         addFunction(new CalculatorFunctions.Dimensions(),     "Dimensions");
         addFunction(new CalculatorFunctions.Divide(),         "Divide");
@@ -129,6 +218,7 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Factorial(),      "Factorial");
         addFunction(new CalculatorFunctions.Factors(),        "Factors");
         addFunction(new CalculatorFunctions.Filter(),         "Filter");
+        addFunction(new CalculatorFunctions.FindRoot(),       "FindRoot", "Solve");
         addFunction(new CalculatorFunctions.Floor(),          "Floor");
         addFunction(new CalculatorFunctions.FractionalPart(), "FractionalPart");
         addFunction(new CalculatorFunctions.GCD(),            "GCD");
@@ -138,18 +228,23 @@ public class Calculator {
         addFunction(new CalculatorFunctions.IdentityMatrix(), "IdentityMatrix");
         addFunction(new CalculatorFunctions.IntegerLength(),  "IntegerLength");
         addFunction(new CalculatorFunctions.IntegerPart(),    "IntegerPart");
+        addFunction(new CalculatorFunctions.Integrate(),      "Integrate");
+        addFunction(new CalculatorFunctions.Interval(),       "Interval");
+        addFunction(new CalculatorFunctions.Inverse(),        "Inverse");
         addFunction(new CalculatorFunctions.IsMatrix(),       "IsMatrix");
         addFunction(new CalculatorFunctions.IsPrime(),        "IsPrime");
         addFunction(new CalculatorFunctions.LCM(),            "LCM");
         addFunction(new CalculatorFunctions.Length(),         "Length");
         addFunction(new CalculatorFunctions.LessEqual(),      "LessEqual");
         addFunction(new CalculatorFunctions.Less(),           "Less");
+        addFunction(new CalculatorFunctions.LinearSolve(),    "LinearSolve");
         addFunction(new CalculatorFunctions.ListBuilder(),    "List");
         addFunction(new CalculatorFunctions.Log10(),          "Log10");
         addFunction(new CalculatorFunctions.Log2(),           "Log2");
         addFunction(new CalculatorFunctions.LogE(),           "LogE", "Ln");
         addFunction(new CalculatorFunctions.Log(),            "Log");
         addFunction(new CalculatorFunctions.Map(),            "Map");
+        addFunction(new CalculatorFunctions.MatrixPower(),    "MatrixPower");
         addFunction(new CalculatorFunctions.Max(),            "Max");
         addFunction(new CalculatorFunctions.Min(),            "Min");
         addFunction(new CalculatorFunctions.Mod(),            "Mod");
@@ -157,6 +252,8 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Not(),            "Not");
         addFunction(new CalculatorFunctions.nPr(),            "nPr");
         addFunction(new CalculatorFunctions.Or(),             "Or");
+        addFunction(new CalculatorFunctions.ParallelFilter(), "ParallelFilter");
+        addFunction(new CalculatorFunctions.ParallelMap(),    "ParallelMap");
         addFunction(new CalculatorFunctions.Plot(),           "Plot");
         addFunction(new CalculatorFunctions.Plus(),           "Plus");
         addFunction(new CalculatorFunctions.Power(),          "Power");
@@ -200,14 +297,23 @@ public class Calculator {
     }
 
     public Iterable<String> getFunctionNames() {
-      return basicFunctionNames;
+      return Collections.unmodifiableSet(basicFunctionNames);
+    }
+
+    // Returns every spelling of every built-in function and constant name, for the lexer.
+    static Collection<String> getBuiltInNames() {
+        final HashSet<String> result = new HashSet<String>(functions.keySet());
+        for (Variable constant : constants.values()) {
+            result.add(constant.name);
+        }
+        return result;
     }
 
     public Iterable<CalculatorToken> getOperators() {
-      return operators.keySet();
+      return Collections.unmodifiableSet(operators.keySet());
     }
 
-    private void addFunction(CalculatorFunction function, String... names) {
+    private static void addFunction(CalculatorFunction function, String... names) {
         for (String name : names) {
             addUniqueFunction(function, name);
             basicFunctionNames.add(name);
@@ -222,7 +328,7 @@ public class Calculator {
         }
     }
 
-    private void addUniqueFunction(CalculatorFunction function, String name) {
+    private static void addUniqueFunction(CalculatorFunction function, String name) {
         // The checks in addFunction ensure no duplication for a single function.
         // This check is to avoid accidental duplication between functions.
         if (functions.get(name) != null) {
@@ -237,15 +343,41 @@ public class Calculator {
     }
 
     private Node simplify(Node expression) {
-        return expression.simplify(this);
+        return CommonSubexpressions.eliminate(Simplifier.simplify(this, expression));
+    }
+
+    // Returns the parsed forms of 'stringExpression', from the cache if possible.
+    private CalculatorParseCache.Entry parseEntry(String stringExpression) throws CalculatorError {
+        CalculatorParseCache.Entry entry = parseCache.get(stringExpression);
+        if (entry == null) {
+            final Node expression = parse(stringExpression);
+            entry = new CalculatorParseCache.Entry(expression, CommonSubexpressions.eliminate(expression));
+            parseCache.put(stringExpression, entry);
+        }
+        return entry;
+    }
+
+    // Returns the simplified form of 'entry', simplifying it if no one has yet.
+    private Node simplifiedExpression(CalculatorParseCache.Entry entry) {
+        Node result = entry.simplifiedExpression;
+        if (result == null) {
+            result = simplify(entry.parsedExpression);
+            entry.simplifiedExpression = result;
+        }
+        return result;
+    }
+
+    // Sets Ans, for scripts, which evaluate their statements without going through evaluate(String).
+    void setAns(Node value) {
+        ans.value = value;
     }
 
     public Node evaluate(String stringExpression) throws CalculatorError {
-        final Node expression = parse(stringExpression);
-        final Node simplifiedExpression = simplify(expression);
+        final CalculatorParseCache.Entry entry = parseEntry(stringExpression);
+        final Node expression = entry.expression;
         if (false) {
             final String expressionString = expression.toInputString();
-            final String simplifiedString = simplifiedExpression.toInputString();
+            final String simplifiedString = simplifiedExpression(entry).toInputString();
             System.err.println(expressionString + (expressionString.equals(simplifiedString) ? "" : (" --- " + simplifiedString)));
         }
         final Node result = expression.evaluate(this);
@@ -253,6 +385,66 @@ public class Calculator {
         return result;
     }
 
+    /**
+     * Parses and simplifies 'stringExpression' once, returning a CompiledExpression that can be evaluated repeatedly.
+     */
+    public CompiledExpression compile(String stringExpression) throws CalculatorError {
+        return new CompiledExpression(this, simplifiedExpression(parseEntry(stringExpression)));
+    }
+
+    /**
+     * Evaluates 'stringExpression' once for each row of 'columns', which maps variable names to columns of values.
+     * Each column must be a double[], long[] or Node[], and all must be the same length. Variables without a column
+     * keep their current values. Returns a column of results: a double[] if the expression only uses double[] columns
+     * and can be evaluated directly on doubles, and a Node[] otherwise.
+     */
+    public Object evaluateBatch(String stringExpression, Map<String, ?> columns) throws CalculatorError {
+        return BatchEvaluation.evaluate(this, simplifiedExpression(parseEntry(stringExpression)), columns);
+    }
+
+    /**
+     * Evaluates each statement read from 'reader' in turn, reporting each result (or error) to 'listener'.
+     * Statements are separated by semicolons or newlines, though a newline inside parentheses or square brackets
+     * doesn't end a statement. The script is parsed as it's read, so it can be arbitrarily large.
+     */
+    public void evaluateScript(Reader reader, CalculatorScriptListener listener) throws IOException {
+        evaluateScript(reader, listener, false);
+    }
+
+    /**
+     * Like evaluateScript(Reader, CalculatorScriptListener), but optionally evaluates statements that don't depend
+     * on each other in parallel. Results are still reported in order.
+     */
+    public void evaluateScript(Reader reader, CalculatorScriptListener listener, boolean parallel) throws IOException {
+        parallel = parallel && Runtime.getRuntime().availableProcessors() > 1;
+        new CalculatorScript(this, reader, listener, parallel).run();
+    }
+
+    /**
+     * Sets the maximum number of parsed expressions to keep. Zero disables the cache.
+     */
+    public void setParseCacheSize(int size) {
+        parseCache.setCapacity(size);
+    }
+
+    public int getParseCacheSize() {
+        return parseCache.getCapacity();
+    }
+
+    /**
+     * Returns the number of times evaluate or compile found its expression already parsed.
+     */
+    public long getParseCacheHitCount() {
+        return parseCache.getHitCount();
+    }
+
+    /**
+     * Returns the number of times evaluate or compile had to parse its expression.
+     */
+    public long getParseCacheMissCount() {
+        return parseCache.getMissCount();
+    }
+
     public CalculatorFunction getFunction(String name) {
         return functions.get(name);
     }
@@ -262,37 +454,191 @@ public class Calculator {
     }
 
     public Node getVariable(String name) {
-        final Variable v = variables.get(name.toLowerCase(Locale.US));
+        final Variable v = lookUp(name.toLowerCase(Locale.US));
         return (v != null) ? v.value : null;
     }
 
+    // Returns the innermost Variable for 'key', or null.
+    private Variable lookUp(String key) {
+        final Variable constant = constants.get(key);
+        if (constant != null) {
+            return constant;
+        }
+        for (Calculator scope = this; scope != null; scope = scope.parent) {
+            final Variable v = scope.variables.get(key);
+            if (v != null) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    // Returns the Variable for 'name' if it's a constant or Ans, whose values can't be assigned to, or null otherwise.
+    // Used by CompiledExpression to resolve references to them ahead of time.
+    Variable getUnassignableVariable(String name) {
+        final String key = name.toLowerCase(Locale.US);
+        final Variable constant = constants.get(key);
+        if (constant != null) {
+            return constant;
+        }
+        return key.equals("ans") ? ans : null;
+    }
+
+    // Returns the value of the CompiledExpression parameter 'index', falling back to the variable 'name' if we're not
+    // evaluating a CompiledExpression with arguments.
+    Node getArgument(int index, String name) {
+        for (Calculator scope = this; scope != null; scope = scope.parent) {
+            if (scope.arguments != null) {
+                return scope.arguments[index];
+            }
+        }
+        return getVariable(name);
+    }
+
+    // Returns the values of the shared subexpressions of the CommonSubexpressions.Let identified by 'token', or null
+    // if we're not evaluating it.
+    CommonSubexpressions.Values getSharedValues(Object token) {
+        for (Calculator scope = this; scope != null; scope = scope.parent) {
+            if (scope.sharedValues != null && scope.sharedValues.token == token) {
+                return scope.sharedValues;
+            }
+        }
+        return null;
+    }
+
     public void setVariable(String name, Node newValue) {
         final String key = name.toLowerCase(Locale.US);
+        checkAssignable(key);
+        // Assign to the innermost local variable of this name, if any...
+        for (Calculator scope = this; scope.parent != null; scope = scope.parent) {
+            final Variable v = scope.variables.get(key);
+            if (v != null) {
+                v.value = newValue;
+                return;
+            }
+        }
+        // ...or to the global variable, invalidating any cached expressions that refer to it.
+        Variable v = root.variables.get(key);
+        if (v == null) {
+            final Variable newVariable = new Variable();
+            newVariable.name = name;
+            v = ((ConcurrentHashMap<String, Variable>) root.variables).putIfAbsent(key, newVariable);
+            if (v == null) {
+                v = newVariable;
+            }
+        }
+        v.value = newValue;
+        parseCache.invalidate(key);
+    }
+
+    /**
+     * Binds 'name' to 'newValue' in this scope, hiding any variable of the same name in enclosing scopes.
+     */
+    void setLocalVariable(String name, Node newValue) {
+        final String key = name.toLowerCase(Locale.US);
+        checkAssignable(key);
         Variable v = variables.get(key);
         if (v == null) {
             v = new Variable();
             v.name = name;
             variables.put(key, v);
-        } else  if (!v.isAssignable) {
-            if (v.name.equals("Ans")) {
-                throw new CalculatorError("can't assign a new value to Ans");
-            } else {
-                throw new CalculatorError("can't assign a new value to the constant " + v.name);
-            }
         }
         v.value = newValue;
     }
 
+    private void checkAssignable(String key) {
+        final Variable v = (key.equals("ans")) ? ans : constants.get(key);
+        if (v == ans) {
+            throw new CalculatorError("can't assign a new value to Ans");
+        } else if (v != null) {
+            throw new CalculatorError("can't assign a new value to the constant " + v.name);
+        }
+    }
+
     /**
      * Tells all trigonometric functions to take/return degrees rather than radians.
      */
     public void setDegreesMode(boolean degreesMode) {
-        this.degreesMode = degreesMode;
+        root.degreesMode = degreesMode;
+    }
+
+    boolean isDegreesMode() {
+        return root.degreesMode;
+    }
+
+    /**
+     * Sets the number of significant digits to which the elementary functions (and division) compute approximate
+     * results, using BigRealNode. The default, 0, means they use doubles, except for dividing BigRealNodes, which uses
+     * 34 digits. Arguments that are already doubles always give double results.
+     */
+    public void setPrecision(int digits) {
+        if (digits < 0) {
+            throw new IllegalArgumentException("precision must be non-negative; got " + digits + " instead");
+        }
+        root.precision = digits;
+    }
+
+    public int getPrecision() {
+        return root.precision;
+    }
+
+    MathContext getMathContext() {
+        final int digits = root.precision;
+        return (digits == 0) ? MathContext.DECIMAL128 : new MathContext(digits);
+    }
+
+    /**
+     * Returns 'n' as a BigRealNode if functions of it should be computed to our precision, or null if doubles will do.
+     */
+    BigRealNode bigRealArgument(NumberNode n) {
+        if (root.precision == 0 || n instanceof RealNode) {
+            return null;
+        }
+        return BigRealNode.valueOf(n, getMathContext());
+    }
+
+    /**
+     * Like bigRealArgument, but converts from degrees to radians if necessary.
+     */
+    BigRealNode bigRealAngleArgument(NumberNode n) {
+        final BigRealNode value = bigRealArgument(n);
+        if (value == null || !root.degreesMode) {
+            return value;
+        }
+        final MathContext mc = getMathContext();
+        return (BigRealNode) ((BigRealNode) value.times(new BigRealNode(BigRealMath.pi(mc)))).divide(IntegerNode.valueOf(180), mc);
+    }
+
+    /**
+     * Like angleResult, for the results of bigRealArgument's inverse trigonometric functions.
+     */
+    NumberNode bigRealAngleResult(NumberNode n) {
+        if (!(n instanceof BigRealNode)) {
+            return angleResult(n);
+        } else if (!root.degreesMode) {
+            return n;
+        }
+        final MathContext mc = getMathContext();
+        return ((BigRealNode) n.times(IntegerNode.valueOf(180))).divide(new BigRealNode(BigRealMath.pi(mc)), mc);
+    }
+
+    /**
+     * Like angleArgument, for intervals.
+     */
+    IntervalNode intervalAngleArgument(IntervalNode n) {
+        return root.degreesMode ? n.toRadians() : n;
+    }
+
+    /**
+     * Like angleResult, for intervals.
+     */
+    IntervalNode intervalAngleResult(IntervalNode n) {
+        return root.degreesMode ? n.toDegrees() : n;
     }
 
     public RealNode angleArgument(NumberNode n) {
         RealNode value = n.toReal();
-        if (degreesMode) {
+        if (root.degreesMode) {
             value = new RealNode(Math.toRadians(value.doubleValue()));
         }
         return value;
@@ -300,14 +646,14 @@ public class Calculator {
 
     public RealNode angleResult(NumberNode n) {
         RealNode value = n.toReal();
-        if (degreesMode) {
+        if (root.degreesMode) {
             value = new RealNode(Math.toDegrees(value.doubleValue()));
         }
         return value;
     }
 
     public void setOutputBase(int outputBase) {
-        this.outputBase = outputBase;
+        Calculator.outputBase = outputBase;
     }
 
     public static int getOutputBase() {
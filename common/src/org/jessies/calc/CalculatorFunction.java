@@ -32,6 +32,9 @@ public abstract class CalculatorFunction implements Cloneable, Node {
     // Only valid in a bound function.
     protected List<Node> args;
 
+    // Cached by hashCode. A bound function's arguments never change.
+    private int hash;
+
     // A fixed-arity function.
     public CalculatorFunction(String name, int arity) {
         this(name, arity, arity);
@@ -70,6 +73,7 @@ public abstract class CalculatorFunction implements Cloneable, Node {
         try {
             CalculatorFunction result = (CalculatorFunction) this.clone();
             result.args = args;
+            result.hash = 0;
             return result;
         } catch (CloneNotSupportedException ex) {
             throw new CalculatorError("internal error: couldn't clone '" + name + "'");
@@ -81,19 +85,19 @@ public abstract class CalculatorFunction implements Cloneable, Node {
     }
 
     public Node simplify(Calculator environment) {
-        return bind(simplifyArgs(environment));
-    }
-
-    protected ArrayList<Node> simplifyArgs(Calculator environment) {
-        ArrayList<Node> simplifiedArgs = new ArrayList<Node>();
-        for (int i = 0; i < args.size(); ++i) {
-            simplifiedArgs.add(args.get(i).simplify(environment));
-        }
-        return simplifiedArgs;
+        return Simplifier.simplify(environment, this);
     }
 
     public abstract Node apply(Calculator environment);
 
+    /**
+     * Returns the index of the argument naming a variable that this function binds while evaluating its first argument.
+     * Functions like Map and Sum override this; most functions don't bind anything, and return -1.
+     */
+    public int boundVariableIndex() {
+        return -1;
+    }
+
     public String name() {
         return name;
     }
@@ -138,6 +142,15 @@ public abstract class CalculatorFunction implements Cloneable, Node {
         return (args != null) ? args.equals(rhs.args) : rhs.args == null;
     }
 
+    @Override public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            result = 31 * name.hashCode() + ((args != null) ? args.hashCode() : 0);
+            hash = result;
+        }
+        return result;
+    }
+
     public static CalculatorError expected(String function, String type) {
         throw new CalculatorError("'" + function + "' expected " + type + " argument");
     }
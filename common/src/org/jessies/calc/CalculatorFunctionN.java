@@ -28,6 +28,9 @@ public abstract class CalculatorFunctionN extends CalculatorFunction {
     
     public Node apply(Calculator environment) {
         NumberNode arg = toNumber(name(), environment, arg(environment, 0));
+        if (arg instanceof IntervalNode) {
+            return applyInterval(environment, (IntervalNode) arg);
+        }
 //        Node arg = arg(environment, 0);
 //        if (!(arg instanceof NumberNode)) {
 //            if (isUnacceptable(arg)) {
@@ -43,4 +46,12 @@ public abstract class CalculatorFunctionN extends CalculatorFunction {
 //    }
     
     public abstract Node apply(Calculator environment, NumberNode arg);
+    
+    /**
+     * Returns an interval containing this function's value at every point in 'arg'.
+     * Functions must opt in, because the default would silently use the interval's midpoint.
+     */
+    public Node applyInterval(Calculator environment, IntervalNode arg) {
+        throw new CalculatorError("'" + name() + "' doesn't support intervals");
+    }
 }
@@ -29,6 +29,9 @@ public abstract class CalculatorFunctionNN extends CalculatorFunction {
     public Node apply(Calculator environment) {
         NumberNode lhs = toNumber(name(), environment, arg(environment, 0));
         NumberNode rhs = toNumber(name(), environment, arg(environment, 1));
+        if (lhs instanceof IntervalNode || rhs instanceof IntervalNode) {
+            return applyInterval(environment, IntervalNode.valueOf(lhs), IntervalNode.valueOf(rhs));
+        }
 //        Node lhs = arg(environment, 0);
 //        Node rhs = arg(environment, 1);
 //        if (!(lhs instanceof NumberNode) || !(rhs instanceof NumberNode)) {
@@ -45,4 +48,12 @@ public abstract class CalculatorFunctionNN extends CalculatorFunction {
 //    }
     
     public abstract Node apply(Calculator environment, NumberNode lhs, NumberNode rhs);
+    
+    /**
+     * Returns an interval containing this function's value at every pair of points in 'lhs' and 'rhs'.
+     * Functions must opt in, because the default would silently use the intervals' midpoints.
+     */
+    public Node applyInterval(Calculator environment, IntervalNode lhs, IntervalNode rhs) {
+        throw new CalculatorError("'" + name() + "' doesn't support intervals");
+    }
 }
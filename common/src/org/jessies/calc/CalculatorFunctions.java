@@ -28,14 +28,6 @@ public class CalculatorFunctions {
         return (n instanceof NumberNode);
     }
 
-    private static boolean isZero(Node n) {
-        return (n instanceof IntegerNode) && (((IntegerNode) n).compareTo(IntegerNode.ZERO) == 0);
-    }
-
-    private static boolean isOne(Node n) {
-        return (n instanceof IntegerNode) && (((IntegerNode) n).compareTo(IntegerNode.ONE) == 0);
-    }
-
     private static int cmp(Calculator environment, List<Node> args) {
         final NumberNode lhs = CalculatorFunction.toNumber("cmp", environment, args.get(0));
         final NumberNode rhs = CalculatorFunction.toNumber("cmp", environment, args.get(1));
@@ -77,6 +69,9 @@ public class CalculatorFunctions {
 
     // Returns [rowCount, columnCount], or null if 'node' is not a matrix.
     private static ListNode matrixDimensions(Node node) {
+        if (node instanceof MatrixNode) {
+            return ((MatrixNode) node).dimensions();
+        }
         // A node is a matrix if:
         // 1. it's a list..
         if (!(node instanceof ListNode)) {
@@ -107,12 +102,13 @@ public class CalculatorFunctions {
         return new ListNode().add(IntegerNode.valueOf(rowCount)).add(IntegerNode.valueOf(columnCount));
     }
 
-    // Returns the 'j'th element of row 'i' of 'm'.
-    // Uses zero-based indexes, for internal use only.
-    private static Node matrixElementAt(ListNode m, IntegerNode i, IntegerNode j) {
-        ListNode row = (ListNode) m.get(i);
-        Node element = row.get(j);
-        return element;
+    // Returns 'node' as a MatrixNode, or throws if it isn't a numeric matrix.
+    private static MatrixNode toMatrix(String function, Node node) {
+        final MatrixNode result = MatrixNode.valueOf(node);
+        if (result == null) {
+            throw CalculatorFunction.expected(function, "numeric matrix");
+        }
+        return result;
     }
 
     private enum MatrixOp {
@@ -129,49 +125,30 @@ public class CalculatorFunctions {
         if (equal(lhsDimensions, rhsDimensions) == BooleanNode.FALSE) {
             throw new CalculatorError("matrix " + op + " requires compatible matrices");
         }
-        final IntegerNode rowCount = (IntegerNode) lhsDimensions.get(0);
-        final IntegerNode columnCount = (IntegerNode) rhsDimensions.get(1);
-        final ListNode result = new ListNode();
-        for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
-            final ListNode newRow = new ListNode();
-            for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
-                Node lhsNode = matrixElementAt(lhs, i, j);
-                Node rhsNode = matrixElementAt(rhs, i, j);
-                if (!isNumber(lhsNode) || !isNumber(rhsNode)) {
-                    throw new CalculatorError(op + " of a matrix and a scalar requires numeric matrices");
-                }
-                NumberNode lhsNumber = (NumberNode) lhsNode;
-                NumberNode rhsNumber = (NumberNode) rhsNode;
-                switch (op) {
-                case ADD: newRow.add(lhsNumber.plus(rhsNumber)); break;
-                case SUB: newRow.add(lhsNumber.subtract(rhsNumber)); break;
-                default: throw new CalculatorError("elementwise matrix multiplication/reverse-subtract not implemented");
-                }
-            }
-            result.add(newRow);
+        final MatrixNode lhsMatrix = MatrixNode.valueOf(lhs);
+        final MatrixNode rhsMatrix = MatrixNode.valueOf(rhs);
+        if (lhsMatrix == null || rhsMatrix == null) {
+            throw new CalculatorError(op + " of a matrix and a scalar requires numeric matrices");
+        }
+        switch (op) {
+        case ADD: return lhsMatrix.plus(rhsMatrix);
+        case SUB: return lhsMatrix.subtract(rhsMatrix);
+        default: throw new CalculatorError("elementwise matrix multiplication/reverse-subtract not implemented");
         }
-        return result;
     }
 
     private static Node matrixScalarOp(ListNode matrix, ListNode dimensions, NumberNode scalar, MatrixOp op) {
-        final ListNode result = new ListNode();
-        for (Node row : matrix) {
-            final ListNode newRow = new ListNode();
-            for (Node value : (ListNode) row) {
-                if (!isNumber(value)) {
-                    throw new CalculatorError(op + " of a matrix and a scalar requires numeric matrices");
-                }
-                NumberNode element = (NumberNode) value;
-                switch (op) {
-                case ADD: newRow.add(element.plus(scalar)); break;
-                case MUL: newRow.add(element.times(scalar)); break;
-                case RSB: newRow.add(scalar.subtract(element)); break;
-                case SUB: newRow.add(element.subtract(scalar)); break;
-                }
-            }
-            result.add(newRow);
+        final MatrixNode m = MatrixNode.valueOf(matrix);
+        if (m == null) {
+            throw new CalculatorError(op + " of a matrix and a scalar requires numeric matrices");
+        }
+        switch (op) {
+        case ADD: return m.plus(scalar);
+        case MUL: return m.times(scalar);
+        case RSB: return m.subtractFrom(scalar);
+        case SUB: return m.subtract(scalar);
+        default: throw new CalculatorError("matrix " + op + " not implemented");
         }
-        return result;
     }
 
     public static class Abs extends CalculatorFunctionN {
@@ -183,6 +160,10 @@ public class CalculatorFunctions {
             return n.abs();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.abs();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the absolute value of its argument."; }
     }
@@ -193,9 +174,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return environment.bigRealAngleResult(x.acos(environment.getMathContext()));
+            }
             return environment.angleResult(n.toReal().acos());
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleResult(n.acos());
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc cosine (cos<sup>-1</sup>) of its argument."; }
     }
@@ -219,9 +208,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return environment.bigRealAngleResult(x.asin(environment.getMathContext()));
+            }
             return environment.angleResult(n.toReal().asin());
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleResult(n.asin());
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc sine (sin<sup>-1</sup>) of its argument."; }
     }
@@ -232,9 +229,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return environment.bigRealAngleResult(x.atan(environment.getMathContext()));
+            }
             return environment.angleResult(n.toReal().atan());
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleResult(n.atan());
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc tangent (tan<sup>-1</sup>) of its argument."; }
     }
@@ -248,6 +253,10 @@ public class CalculatorFunctions {
             return environment.angleResult(arg1.toReal().atan2(arg2.toReal()));
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode y, IntervalNode x) {
+            return environment.intervalAngleResult(y.atan2(x));
+        }
+
         public String syntax() { return "(y:Number, x:Number)"; }
         public String description() { return "Returns the principle value of <i>y/x</i>. That is, the angle when converting the cartesian coordinates (x,y) to polar form."; }
     }
@@ -405,6 +414,10 @@ public class CalculatorFunctions {
             return n.toReal().cbrt();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.cbrt();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the cube root of its argument."; }
     }
@@ -418,6 +431,10 @@ public class CalculatorFunctions {
             return n.toReal().ceiling();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.ceiling();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the ceiling of its argument; the smallest integer value not less than the argument."; }
     }
@@ -428,9 +445,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealAngleArgument(n);
+            if (x != null) {
+                return x.cos(environment.getMathContext());
+            }
             return environment.angleArgument(n).cos();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleArgument(n).cos();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the cosine of its argument."; }
     }
@@ -444,10 +469,37 @@ public class CalculatorFunctions {
             return n.toReal().cosh();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.cosh();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic cosine of its argument."; }
     }
 
+    public static class D extends CalculatorFunction {
+        public D() {
+            super("D", 2);
+        }
+
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
+
+        public Node apply(Calculator environment) {
+            final CalculatorVariableNode variable = toVariable("D", args.get(1));
+            final Node derivative = Calculus.derivative(environment, args.get(0), variable.name());
+            // If the variable has a value (inside Map, say), evaluate the derivative there.
+            if (variable.evaluate(environment) != variable) {
+                return derivative.evaluate(environment);
+            }
+            return derivative;
+        }
+
+        public String syntax() { return "(Expression, Variable)"; }
+        public String description() { return "Returns the derivative of the expression with respect to the given variable."; }
+    }
+
     public static class Define extends CalculatorFunction {
         public Define() {
             super("define", 2);
@@ -464,6 +516,19 @@ public class CalculatorFunctions {
         public String description() { return "Binds the given expression to the given name."; }
     }
 
+    public static class Det extends CalculatorFunction {
+        public Det() {
+            super("Det", 1);
+        }
+
+        public Node apply(Calculator environment) {
+            return LinearAlgebra.det(toMatrix(name(), arg(environment, 0)));
+        }
+
+        public String syntax() { return "(Matrix)"; }
+        public String description() { return "Returns the determinant of a square matrix."; }
+    }
+
     // DigitCount(n, base) - returns the number of instances of each digit in the given base representation of 'n'.
     // base defaults to 10
     public static class DigitCount extends CalculatorFunction {
@@ -478,17 +543,19 @@ public class CalculatorFunctions {
             final IntegerNode n = toInteger(name(), environment, arg(environment, 0));
             final int base = toBase(args.size() == 2 ? arg(environment, 1) : IntegerNode.valueOf(10));
 
-            String rep = n.toInputString(base);
-            if (base == 2 || base == 8 || base == 16) {
-              rep = rep.substring(2); // Strip 0b, 0o, or 0x prefix. TODO: need input form for other bases!
-            }
-            int[] counts = new int[base];
-            for (int i = 0; i < rep.length(); ++i) {
-                final char ch = rep.charAt(i);
-                if (ch != '-') {
-                  final int digit = Character.digit(ch, base);
-                  if (digit == -1) { throw new RuntimeException("'" + ch + "': " + rep); }
-                    ++counts[digit];
+            final int[] counts = new int[base];
+            if (!n.isBig()) {
+                // Peel off the digits arithmetically rather than formatting a string.
+                long value = n.fix();
+                do {
+                    ++counts[(int) Math.abs(value % base)];
+                    value /= base;
+                } while (value != 0);
+            } else {
+                // BigInteger can format in any base we accept, unlike toInputString.
+                final String rep = n.big().abs().toString(base);
+                for (int i = 0; i < rep.length(); ++i) {
+                    ++counts[Character.digit(rep.charAt(i), base)];
                 }
             }
 
@@ -523,6 +590,22 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode lhs, NumberNode rhs) {
+            if (lhs instanceof RealNode || rhs instanceof RealNode) {
+                return lhs.divide(rhs);
+            } else if (lhs instanceof BigRealNode || rhs instanceof BigRealNode) {
+                final MathContext mc = environment.getMathContext();
+                return BigRealNode.valueOf(lhs, mc).divide(rhs, mc);
+            }
+            final NumberNode result = lhs.divide(rhs);
+            if (result instanceof RealNode && environment.getPrecision() != 0) {
+                // An inexact quotient of integers or rationals, which we can do better than a double for.
+                final MathContext mc = environment.getMathContext();
+                return BigRealNode.valueOf(lhs, mc).divide(rhs, mc);
+            }
+            return result;
+        }
+
+        @Override public Node applyInterval(Calculator environment, IntervalNode lhs, IntervalNode rhs) {
             return lhs.divide(rhs);
         }
 
@@ -562,9 +645,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return x.exp(environment.getMathContext());
+            }
             return n.toReal().exp();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.exp();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns <i>e<sup>n</sup></i>."; }
     }
@@ -605,6 +696,31 @@ public class CalculatorFunctions {
         public String description() { return "Returns a list containing those elements of the given list for which evaluating the given expression with the given variable bound the value returns true."; }
     }
 
+    public static class FindRoot extends CalculatorFunction {
+        public FindRoot() {
+            super("FindRoot", 3, 4);
+        }
+
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
+
+        public Node apply(Calculator environment) {
+            Node expression = args.get(0);
+            if (expression instanceof Equal && ((Equal) expression).args != null) {
+                final List<Node> sides = ((Equal) expression).args;
+                expression = new Subtract().bind(sides.get(0), sides.get(1));
+            }
+            final CalculatorVariableNode variable = toVariable(name(), args.get(1));
+            final double x0 = toNumber(name(), environment, args.get(2)).toReal().doubleValue();
+            final double x1 = (args.size() == 4) ? toNumber(name(), environment, args.get(3)).toReal().doubleValue() : Double.NaN;
+            return new RealNode(Calculus.findRoot(environment, name(), expression, variable.name(), x0, x1));
+        }
+
+        public String syntax() { return "(Expression, Variable, x0:Number, x1:Number = none)"; }
+        public String description() { return "Returns a value of the variable for which the expression is zero (or, given an equation, for which it holds), starting from x0. If x1 is also given, the root is between x0 and x1."; }
+    }
+
     public static class Floor extends CalculatorFunctionN {
         public Floor() {
             super("floor");
@@ -614,6 +730,10 @@ public class CalculatorFunctions {
             return n.toReal().floor();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.floor();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the floor of its argument; the largest integer value not greater than the argument."; }
     }
@@ -627,6 +747,10 @@ public class CalculatorFunctions {
             return n.fractionalPart();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.fractionalPart();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the fractional part of its argument."; }
     }
@@ -679,6 +803,10 @@ public class CalculatorFunctions {
             return arg1.toReal().hypot(arg2.toReal());
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode x, IntervalNode y) {
+            return x.hypot(y);
+        }
+
         public String syntax() { return "(x:Number, y:Number)"; }
         public String description() { return "Returns <i>sqrt(x<sup>2</sup> + y<sup>2</sup>)</i>."; }
     }
@@ -689,15 +817,10 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, IntegerNode dimension) {
-            final ListNode result = new ListNode();
-            for (IntegerNode i = IntegerNode.ONE; i.compareTo(dimension) <= 0; i = i.increment()) {
-                final ListNode row = new ListNode();
-                for (IntegerNode j = IntegerNode.ONE; j.compareTo(dimension) <= 0; j = j.increment()) {
-                    row.add(j.compareTo(i) == 0 ? IntegerNode.ONE : IntegerNode.ZERO);
-                }
-                result.add(row);
+            if (dimension.compareTo(IntegerNode.ZERO) < 0) {
+                return new ListNode();
             }
-            return result;
+            return MatrixNode.identity(dimension.intValue());
         }
 
         public String syntax() { return "(dimension:Integer)"; }
@@ -713,11 +836,17 @@ public class CalculatorFunctions {
         public Node apply(Calculator environment) {
             final IntegerNode n = toInteger(name(), environment, arg(environment, 0));
             final int base = toBase(args.size() == 2 ? arg(environment, 1) : IntegerNode.valueOf(10));
-            String rep = n.abs().toInputString(base);
-            if (base == 2 || base == 8 || base == 16) {
-              rep = rep.substring(2); // Strip 0b, 0o, or 0x prefix. TODO: need input form for other bases!
+            if (!n.isBig()) {
+                long value = n.fix();
+                int length = 0;
+                do {
+                    ++length;
+                    value /= base;
+                } while (value != 0);
+                return IntegerNode.valueOf(length);
             }
-            return IntegerNode.valueOf(rep.length());
+            // BigInteger can format in any base we accept, unlike toInputString.
+            return IntegerNode.valueOf(n.big().abs().toString(base).length());
         }
 
         public String syntax() { return "(n:Integer, base:Integer = 10)"; }
@@ -733,10 +862,82 @@ public class CalculatorFunctions {
             return n.integerPart();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.integerPart();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the integer part of its argument."; }
     }
 
+    public static class Integrate extends CalculatorFunction {
+        public Integrate() {
+            super("Integrate", 4);
+        }
+
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
+
+        public Node apply(Calculator environment) {
+            final CalculatorVariableNode variable = toVariable(name(), args.get(1));
+            final double a = toLimit(environment, args.get(2));
+            final double b = toLimit(environment, args.get(3));
+            return new RealNode(Calculus.integrate(environment, name(), args.get(0), variable.name(), a, b));
+        }
+
+        private double toLimit(Calculator environment, Node node) {
+            final NumberNode limit = toNumber(name(), environment, node);
+            double result;
+            try {
+                result = limit.toReal().doubleValue();
+            } catch (RuntimeException ex) {
+                // IntegerNode.toReal refuses to return infinity for 10^400.
+                result = Double.NaN;
+            }
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                throw new CalculatorError("'" + name() + "' requires finite limits");
+            }
+            return result;
+        }
+
+        public String syntax() { return "(Expression, Variable, a:Number, b:Number)"; }
+        public String description() { return "Returns the definite integral of the expression with respect to the given variable, from a to b."; }
+    }
+
+    public static class Interval extends CalculatorFunctionNN {
+        public Interval() {
+            super("Interval");
+        }
+
+        public Node apply(Calculator environment, NumberNode lo, NumberNode hi) {
+            return applyInterval(environment, IntervalNode.valueOf(lo), IntervalNode.valueOf(hi));
+        }
+
+        @Override public Node applyInterval(Calculator environment, IntervalNode lo, IntervalNode hi) {
+            if (lo.lo() > hi.hi()) {
+                throw new CalculatorError("'Interval' requires lo <= hi");
+            }
+            return IntervalNode.valueOf(lo.lo(), hi.hi());
+        }
+
+        public String syntax() { return "(lo:Number, hi:Number)"; }
+        public String description() { return "Returns the interval of reals from <i>lo</i> to <i>hi</i>. Arithmetic on intervals gives intervals guaranteed to contain every possible result."; }
+    }
+
+    public static class Inverse extends CalculatorFunction {
+        public Inverse() {
+            super("Inverse", 1);
+        }
+
+        public Node apply(Calculator environment) {
+            return LinearAlgebra.inverse(toMatrix(name(), arg(environment, 0)));
+        }
+
+        public String syntax() { return "(Matrix)"; }
+        public String description() { return "Returns the inverse of a square matrix."; }
+    }
+
     public static class IsMatrix extends CalculatorFunction { // FIXME: CAS support.
         public IsMatrix() {
             super("IsMatrix", 1);
@@ -785,6 +986,18 @@ public class CalculatorFunctions {
             super("Length");
         }
 
+        @Override public Node apply(Calculator environment) {
+            final Iterator<Node> elements = MapOrFilter.fusedElements(environment, args.get(0));
+            if (elements != null) {
+                long length = 0;
+                for (; elements.hasNext(); elements.next()) {
+                    ++length;
+                }
+                return IntegerNode.valueOf(length);
+            }
+            return super.apply(environment);
+        }
+
         public Node apply(Calculator environment, ListNode list) {
             return IntegerNode.valueOf(list.size());
         }
@@ -819,6 +1032,35 @@ public class CalculatorFunctions {
         public String description() { return "Returns true if <i>lhs &lt;= rhs</i>, false otherwise."; }
     }
 
+    // LinearSolve(a, b) - returns x such that a*x = b, where 'b' is either a list (a vector) or a matrix.
+    public static class LinearSolve extends CalculatorFunction {
+        public LinearSolve() {
+            super("LinearSolve", 2);
+        }
+
+        public Node apply(Calculator environment) {
+            final MatrixNode a = toMatrix(name(), arg(environment, 0));
+            final Node b = arg(environment, 1);
+            if (b instanceof ListNode && matrixDimensions(b) == null) {
+                // Treat a vector as a single-column matrix, and return a vector.
+                final ListNode column = new ListNode();
+                for (Node element : (ListNode) b) {
+                    column.add(new ListNode().add(element));
+                }
+                final MatrixNode x = LinearAlgebra.solve(a, toMatrix(name(), column));
+                final ListNode result = new ListNode();
+                for (int i = 0; i < x.rowCount(); ++i) {
+                    result.add(x.elementAt(i, 0));
+                }
+                return result;
+            }
+            return LinearAlgebra.solve(a, toMatrix(name(), b));
+        }
+
+        public String syntax() { return "(a:Matrix, b:List)"; }
+        public String description() { return "Solves the linear system a*x = b for x, where b is a vector or a matrix."; }
+    }
+
     // We call this ListBuilder because reusing the name List in Java is just too confusing.
     public static class ListBuilder extends CalculatorFunction {
         public ListBuilder() {
@@ -844,9 +1086,18 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode base, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            final BigRealNode b = environment.bigRealArgument(base);
+            if (x != null && b != null) {
+                return x.log(b, environment.getMathContext());
+            }
             return n.toReal().log(base.toReal());
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode base, IntervalNode n) {
+            return n.log(base);
+        }
+
         public String syntax() { return "(base:Number, n:Number)"; }
         public String description() { return "Returns <i>log<sub>base</sub>(n)</i>."; }
     }
@@ -857,9 +1108,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return x.log2(environment.getMathContext());
+            }
             return n.toReal().log2();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.log2();
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>2</sub>(n)</i>."; }
     }
@@ -870,9 +1129,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return x.logE(environment.getMathContext());
+            }
             return n.toReal().logE();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.logE();
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>e</sub>(n)</i>."; }
     }
@@ -883,9 +1150,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return x.log10(environment.getMathContext());
+            }
             return n.toReal().log10();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.log10();
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>10</sub>(n)</i>."; }
     }
@@ -902,44 +1177,169 @@ public class CalculatorFunctions {
 
     public abstract static class MapOrFilter extends CalculatorFunction {
         private final boolean isMap;
+        private final boolean isParallel;
 
         public MapOrFilter(String name, boolean isMap) {
+            this(name, isMap, false);
+        }
+
+        public MapOrFilter(String name, boolean isMap, boolean isParallel) {
             super(name, 3);
             this.isMap = isMap;
+            this.isParallel = isParallel;
+        }
+
+        @Override public int boundVariableIndex() {
+            return 1;
         }
 
         public Node apply(Calculator environment) {
             final Node expr = args.get(0);
             final CalculatorVariableNode var = toVariable(name(), args.get(1));
-            final Node maybeList = arg(environment, 2);
 
-            if (!(maybeList instanceof ListNode)) {
-                if (maybeList instanceof BooleanNode || maybeList instanceof NumberNode) {
-                    throw new CalculatorError("'" + name() + "' requires a list argument");
+            // Map(f, x, Filter(p, y, list)) and the like don't need the intermediate list.
+            Iterator<Node> elements = fusedElements(environment, args.get(2));
+            if (elements == null) {
+                final Node maybeList = arg(environment, 2);
+                if (!(maybeList instanceof ListNode)) {
+                    if (maybeList instanceof BooleanNode || maybeList instanceof NumberNode) {
+                        throw new CalculatorError("'" + name() + "' requires a list argument");
+                    }
+                    return this;
+                }
+
+                final ListNode list = (ListNode) maybeList;
+                if (isMap) {
+                    final ListNode result = realMap(environment, expr, var, list);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                if (isParallel && ParallelEvaluation.isWorthwhile(list.size())) {
+                    return parallelApply(environment, expr, var, list);
                 }
-                return this;
+                elements = list.iterator();
             }
 
-            final ListNode list = (ListNode) maybeList;
-            final Node originalVarValue = environment.getVariable(var.name());
-            try {
-                final ListNode result = new ListNode();
-                for (int i = 0; i < list.size(); ++i) {
-                    environment.setVariable(var.name(), list.get(i));
-                    Node value = expr.evaluate(environment);
-                    if (isMap) {
-                        result.add(value);
-                    } else  if (value == BooleanNode.TRUE) {
-                        result.add(list.get(i));
+            final ListNode result = new ListNode();
+            for (Iterator<Node> it = lazily(environment, elements); it.hasNext(); ) {
+                result.add(it.next());
+            }
+            return result;
+        }
+
+        /**
+         * Returns an iterator over the elements of the list that 'node' evaluates to, if 'node' is a Map or Filter
+         * whose elements can be computed one at a time as they're consumed, without building a list. Returns null
+         * otherwise, in which case the caller should just evaluate 'node'.
+         */
+        static Iterator<Node> fusedElements(Calculator environment, Node node) {
+            if (!(node instanceof MapOrFilter) || ((MapOrFilter) node).args == null || ((MapOrFilter) node).isParallel) {
+                return null;
+            }
+            final MapOrFilter mapOrFilter = (MapOrFilter) node;
+            Iterator<Node> elements = fusedElements(environment, mapOrFilter.args.get(2));
+            if (elements == null) {
+                final Node list = mapOrFilter.arg(environment, 2);
+                if (!(list instanceof ListNode)) {
+                    return null;
+                }
+                elements = ((ListNode) list).iterator();
+            }
+            return mapOrFilter.lazily(environment, elements);
+        }
+
+        // Applies this Map or Filter to each element of 'list' across the fork/join pool.
+        private ListNode parallelApply(Calculator environment, Node expr, CalculatorVariableNode var, ListNode list) {
+            final Node[] values = ParallelEvaluation.evaluateEach(environment, expr, var.name(), list);
+            final ListNode result = new ListNode();
+            for (int i = 0; i < values.length; ++i) {
+                if (isMap) {
+                    result.add(values[i]);
+                } else if (values[i] == BooleanNode.TRUE) {
+                    result.add(list.get(i));
+                }
+            }
+            return result;
+        }
+
+        // Returns an iterator that applies this Map or Filter to each element of 'source' as it's needed.
+        private Iterator<Node> lazily(Calculator environment, final Iterator<Node> source) {
+            final String name = toVariable(name(), args.get(1)).name();
+            final Node expr = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, args.get(0), name, false));
+            final Calculator scope = environment.newScope();
+            return new Iterator<Node>() {
+                private Node next = advance();
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Node next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
                     }
+                    final Node result = next;
+                    next = advance();
+                    return result;
                 }
-                return result;
-            } finally {
-                environment.setVariable(var.name(), originalVarValue);
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private Node advance() {
+                    while (source.hasNext()) {
+                        final Node element = source.next();
+                        scope.setLocalVariable(name, element);
+                        final Node value = expr.evaluate(scope);
+                        if (isMap) {
+                            return value;
+                        } else if (value == BooleanNode.TRUE) {
+                            return element;
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+
+        // Maps a list of reals using a CompiledRealExpression, returning null if that's not possible.
+        private static ListNode realMap(Calculator environment, Node expr, CalculatorVariableNode var, ListNode list) {
+            for (Node element : list) {
+                if (!(element instanceof RealNode)) {
+                    return null;
+                }
+            }
+            final CompiledRealExpression realExpr = CompiledRealExpression.compile(environment, expr, var.name());
+            if (realExpr == null || realExpr.isConstant()) {
+                return null;
+            }
+            final double[] variables = new double[1];
+            final ListNode result = new ListNode();
+            for (Node element : list) {
+                variables[0] = ((RealNode) element).doubleValue();
+                result.add(new RealNode(realExpr.evaluate(variables)));
             }
+            return result;
         }
     }
 
+    public static class MatrixPower extends CalculatorFunction {
+        public MatrixPower() {
+            super("MatrixPower", 2);
+        }
+
+        public Node apply(Calculator environment) {
+            final MatrixNode m = toMatrix(name(), arg(environment, 0));
+            final IntegerNode k = toInteger(name(), environment, arg(environment, 1));
+            return LinearAlgebra.power(m, k);
+        }
+
+        public String syntax() { return "(m:Matrix, k:Integer)"; }
+        public String description() { return "Returns the square matrix m raised to the integer power k."; }
+    }
+
     public static class Max extends CalculatorFunctionNN {
         public Max() {
             super("Max");
@@ -985,10 +1385,8 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, IntegerNode lhs, IntegerNode rhs) {
-            // nCr(n,r) := n!/(r! * (n-r)!)
-            IntegerNode n = lhs;
-            IntegerNode r = rhs;
-            return n.factorial().divide(r.factorial().times(((IntegerNode) n.subtract(r)).factorial()));
+            // nCr(n,r) := n!/(r! * (n-r)!), computed without the factorials.
+            return lhs.binomial(rhs);
         }
 
         public String syntax() { return "(n:Integer, r:Integer)"; }
@@ -1014,10 +1412,8 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, IntegerNode lhs, IntegerNode rhs) {
-            // nPr(n,r) := n!/(n-r)!
-            IntegerNode n = lhs;
-            IntegerNode r = rhs;
-            return n.factorial().divide(((IntegerNode) n.subtract(r)).factorial());
+            // nPr(n,r) := n!/(n-r)!, computed without the factorials.
+            return lhs.fallingFactorial(rhs);
         }
 
         public String syntax() { return "(n:Integer, r:Integer)"; }
@@ -1037,13 +1433,35 @@ public class CalculatorFunctions {
         public String description() { return "Returns the logical or of its arguments."; }
     }
 
+    public static class ParallelFilter extends MapOrFilter {
+        public ParallelFilter() {
+            super("ParallelFilter", false, true);
+        }
+
+        public String syntax() { return "(Expression, Variable, List)"; }
+        public String description() { return "Like Filter, but evaluates the expression for different elements on different cores. The result is in the same order as the given list."; }
+    }
+
+    public static class ParallelMap extends MapOrFilter {
+        public ParallelMap() {
+            super("ParallelMap", true, true);
+        }
+
+        public String syntax() { return "(Expression, Variable, List)"; }
+        public String description() { return "Like Map, but evaluates the expression for different elements on different cores. The result is in the same order as the given list."; }
+    }
+
     public static class Plot extends CalculatorFunction {
         public Plot() {
-            super("Plot", 4);
+            super("Plot", 4, 5);
         }
 
-        public String syntax() { return "(Expression, Variable, xMin:Number, xMax:Number)"; }
-        public String description() { return "Plots the given expression."; }
+        public String syntax() { return "(Expression, Variable, xMin:Number, xMax:Number, resolution:Integer = 300)"; }
+        public String description() { return "Plots the given expression, sampling it at the given number of points."; }
+
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
 
         public Node apply(Calculator environment) {
             CalculatorPlotter plotter = environment.getPlotter();
@@ -1055,6 +1473,7 @@ public class CalculatorFunctions {
             // 1: variable
             // 2: xMin
             // 3: xMax
+            // 4: resolution (optional)
             // Example: plot(sin(x), x, 0, 2*pi)
             // FIXME: automatic guesses? (trig => pi? differentiate to find minima? solve to find axis crossings?).
 
@@ -1063,7 +1482,14 @@ public class CalculatorFunctions {
             final RealNode xMin = toNumber("Plot", environment, args.get(2)).toReal();
             final RealNode xMax = toNumber("Plot", environment, args.get(3)).toReal();
 
-            final int pixelWidth = 300;
+            int pixelWidth = environment.getPlotResolution();
+            if (args.size() == 5) {
+                final IntegerNode resolution = toInteger("Plot", environment, args.get(4));
+                if (resolution.compareTo(IntegerNode.valueOf(2)) < 0 || resolution.compareTo(IntegerNode.valueOf(Calculator.MAX_PLOT_RESOLUTION)) > 0) {
+                    throw new CalculatorError("plot resolution must be between 2 and " + Calculator.MAX_PLOT_RESOLUTION);
+                }
+                pixelWidth = resolution.intValue();
+            }
             CalculatorPlotData plotData = new CalculatorPlotData(pixelWidth, xMin, xMax);
 
             try {
@@ -1072,36 +1498,24 @@ public class CalculatorFunctions {
             } catch (CalculatorError ex) {
                 // That's what we hoped...
             }
-            final String variableName = variable.name();
-            try {
-                double x = plotData.xMin;
-                double xStep = plotData.xRange / pixelWidth;
-                for (int i = 0; i < pixelWidth; ++i) {
-                    try {
-                        environment.setVariable(variableName, new RealNode(x));
-                        double y = Double.parseDouble(expression.evaluate(environment).toString());
-                        if (Double.isInfinite(y)) {
-                            y = Double.NaN; // Infinity confuses the range calculations.
-                        }
-                        plotData.data[i] = y;
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        plotData.data[i] = Double.NaN;
-                    }
-                    x += xStep;
-                }
-            } finally {
-                environment.setVariable(variableName, null);
-            }
 
-            plotData.calculateRange();
+            final CompiledRealExpression realExpression = CompiledRealExpression.compile(environment, expression, variable.name());
+            final CalculatorPlotSampler.Function function;
+            if (realExpression != null) {
+                function = new CalculatorPlotSampler.RealFunction(realExpression);
+            } else {
+                function = new CalculatorPlotSampler.GenericFunction(environment, expression, variable.name());
+            }
+            final CalculatorPlotSampler sampler = new CalculatorPlotSampler(plotData);
+            sampler.sample(function, environment.getPlotRefinement());
+            sampler.calculateRange(function);
             plotter.showPlot(plotData);
 
             return BooleanNode.TRUE; // FIXME: "void"?
         }
     }
 
-    public static class Plus extends CalculatorFunction { // FIXME: CAS support.
+    public static class Plus extends CalculatorFunction {
         public Plus() {
             super("Plus", 2);
         }
@@ -1129,28 +1543,6 @@ public class CalculatorFunctions {
             }
         }
 
-        @Override public Node simplify(Calculator environment) {
-            final ArrayList<Node> args = simplifyArgs(environment);
-            NumberNode total = IntegerNode.ZERO;
-            for (int i = args.size() - 1; i >= 0; --i) {
-                final Node arg = args.get(i);
-                if (isNumber(arg)) {
-                    if (!isZero(arg)) {
-                        total = total.plus((NumberNode) arg);
-                    }
-                    args.remove(i);
-                }
-            }
-            if (args.size() == 0 || !isZero(total)) {
-                // Sort numeric terms last in sums (preferring "x + 1" rather than "1 + x").
-                args.add(total);
-            }
-            if (args.size() == 1) {
-                return args.get(0);
-            }
-            return bind(args);
-        }
-
         public String syntax() { return "(Value, Value)"; }
         public String description() { return "Returns the sum of its arguments."; }
     }
@@ -1164,6 +1556,10 @@ public class CalculatorFunctions {
             return lhs.power(rhs);
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode lhs, IntervalNode rhs) {
+            return lhs.power(rhs);
+        }
+
         public String syntax() { return "(x:Number, y:Number)"; }
         public String description() { return "Returns <i>x<sup>y</sup></i>."; }
     }
@@ -1177,6 +1573,10 @@ public class CalculatorFunctions {
             return series(name(), environment, args, IntegerNode.ONE, false);
         }
 
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
+
         public String syntax() { return "(Expression, Variable, min:Number, max:Number)"; }
         public String description() { return "Returns the product of the results of evaluating the given expression with the given variable bound to each value from min to max."; }
     }
@@ -1232,6 +1632,12 @@ public class CalculatorFunctions {
                 throw new CalculatorError("need a non-zero step size");
             }
 
+            // Integer ranges are generated lazily, so they cost nothing until they're used, and little after.
+            final RangeNode range = RangeNode.valueOf(start, end, step);
+            if (range != null) {
+                return range;
+            }
+
             final ListNode result = new ListNode();
             if (cmp(stepSign, IntegerNode.ZERO) > 0) {
                 for (NumberNode i = start; cmp(i, end) <= 0; i = i.plus(step)) {
@@ -1290,24 +1696,52 @@ public class CalculatorFunctions {
 
         // FIXME: support infinite sums/products, adding convergence testing.
 
-        // FIXME: let the user specify the sum variable.
-        final Node originalVarValue = environment.getVariable(var.name());
-        try {
-            NumberNode result = initial;
-            for (NumberNode i = iMin; cmp(i, iMax) <= 0; i = i.increment()) {
-                environment.setVariable(var.name(), i);
-                // FIXME: handle undefined and non-numeric terms.
-                final NumberNode term = (NumberNode) expr.evaluate(environment);
-                if (isSum) {
-                    result = result.plus(term);
-                } else {
-                    result = result.times(term);
+        if (iMin instanceof IntegerNode && iMax instanceof IntegerNode) {
+            if (isSum) {
+                final NumberNode[] polynomial = Summation.polynomial(environment, expr, var.name());
+                if (polynomial != null) {
+                    return Summation.sumPolynomial(polynomial, (IntegerNode) iMin, (IntegerNode) iMax);
                 }
             }
-            return result;
-        } finally {
-            environment.setVariable(var.name(), originalVarValue);
+            return Summation.series(name, environment, expr, var.name(), (IntegerNode) iMin, (IntegerNode) iMax, isSum);
         }
+
+        if (iMin instanceof RealNode) {
+            final CompiledRealExpression realExpr = CompiledRealExpression.compile(environment, expr, var.name());
+            if (realExpr != null && !realExpr.isConstant()) {
+                return realSeries(realExpr, ((RealNode) iMin).doubleValue(), ((RealNode) iMax).doubleValue(), isSum);
+            }
+        }
+
+        final Calculator scope = environment.newScope();
+        final Node term = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expr, var.name(), true));
+        NumberNode result = initial;
+        for (NumberNode i = iMin; cmp(i, iMax) <= 0; i = i.increment()) {
+            scope.setLocalVariable(var.name(), i);
+            // FIXME: handle undefined and non-numeric terms.
+            final NumberNode value = (NumberNode) term.evaluate(scope);
+            if (isSum) {
+                result = result.plus(value);
+            } else {
+                result = result.times(value);
+            }
+        }
+        return result;
+    }
+
+    // The equivalent of series for a real-valued expression over a real range, without any per-term allocation.
+    private static NumberNode realSeries(CompiledRealExpression expr, double min, double max, boolean isSum) {
+        final double[] variables = new double[1];
+        double result = isSum ? 0.0 : 1.0;
+        for (double i = min; Double.compare(i, max) <= 0; i += 1) {
+            variables[0] = i;
+            if (isSum) {
+                result += expr.evaluate(variables);
+            } else {
+                result *= expr.evaluate(variables);
+            }
+        }
+        return new RealNode(result);
     }
 
     public static class Sign extends CalculatorFunctionN {
@@ -1319,6 +1753,10 @@ public class CalculatorFunctions {
             return n.sign();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.sign();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns 0 if the argument is zero, 1 if the argument is greater than 0, or -1 if the argument is less than 0."; }
     }
@@ -1329,9 +1767,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealAngleArgument(n);
+            if (x != null) {
+                return x.sin(environment.getMathContext());
+            }
             return environment.angleArgument(n).sin();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleArgument(n).sin();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the sine of its argument."; }
     }
@@ -1345,6 +1791,10 @@ public class CalculatorFunctions {
             return n.toReal().sinh();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.sinh();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic sine of its argument."; }
     }
@@ -1355,14 +1805,22 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealArgument(n);
+            if (x != null) {
+                return x.sqrt(environment.getMathContext());
+            }
             return n.toReal().sqrt();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.sqrt();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the square root of its argument."; }
     }
 
-    public static class Subtract extends CalculatorFunction { // FIXME: CAS support.
+    public static class Subtract extends CalculatorFunction {
         public Subtract() {
             super("Subtract", 2);
         }
@@ -1403,6 +1861,10 @@ public class CalculatorFunctions {
             return series(name(), environment, args, IntegerNode.ZERO, true);
         }
 
+        @Override public int boundVariableIndex() {
+            return 1;
+        }
+
         public String syntax() { return "(Expression, Variable, min:Number, max:Number)"; }
         public String description() { return "Returns the sum of the results of evaluating the given expression with the given variable bound to each value from min to max."; }
     }
@@ -1413,9 +1875,17 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.bigRealAngleArgument(n);
+            if (x != null) {
+                return x.tan(environment.getMathContext());
+            }
             return environment.angleArgument(n).tan();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return environment.intervalAngleArgument(n).tan();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the tangent of its argument."; }
     }
@@ -1429,11 +1899,15 @@ public class CalculatorFunctions {
             return n.toReal().tanh();
         }
 
+        @Override public Node applyInterval(Calculator environment, IntervalNode n) {
+            return n.tanh();
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic tangent of its argument."; }
     }
 
-    public static class Times extends CalculatorFunction { // FIXME: CAS support.
+    public static class Times extends CalculatorFunction {
         public Times() {
             super("Times", 2);
         }
@@ -1468,55 +1942,12 @@ public class CalculatorFunctions {
             if (!n.equals((IntegerNode) rhsDimensions.get(0))) {
                 throw new CalculatorError("matrix multiplication requires compatible matrices");
             }
-            final IntegerNode rowCount = (IntegerNode) lhsDimensions.get(0);
-            final IntegerNode columnCount = (IntegerNode) rhsDimensions.get(1);
-            final ListNode result = new ListNode();
-            for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
-                final ListNode newRow = new ListNode();
-                for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
-                    newRow.add(dotProduct(lhs, rhs, i, j, n));
-                }
-                result.add(newRow);
-            }
-            return result;
-        }
-
-        // Returns the sum from r=0..n-1 of A(i,r)*B(r,j).
-        // (It's 0..n-1 instead of 1..n because we use zero-based indexes internally.)
-        // http://en.wikipedia.org/wiki/Dot_product
-        private static Node dotProduct(ListNode A, ListNode B, IntegerNode i, IntegerNode j, IntegerNode n) {
-            NumberNode result = IntegerNode.ZERO;
-            for (IntegerNode r = IntegerNode.ZERO; r.compareTo(n) < 0; r = r.increment()) {
-                final NumberNode Air = (NumberNode) matrixElementAt(A, i, r);
-                final NumberNode Brj = (NumberNode) matrixElementAt(B, r, j);
-                result = result.plus(Air.times(Brj));
-            }
-            return result;
-        }
-
-        @Override public Node simplify(Calculator environment) {
-            final ArrayList<Node> args = simplifyArgs(environment);
-            NumberNode total = IntegerNode.ONE;
-            for (int i = args.size() - 1; i >= 0; --i) {
-                final Node arg = args.get(i);
-                if (isNumber(arg)) {
-                    if (!isOne(arg)) {
-                        total = total.times((NumberNode) arg);
-                    }
-                    args.remove(i);
-                }
-            }
-            if (isZero(total)) {
-                return total;
-            }
-            if (args.size() == 0 || !isOne(total)) {
-                // Sort numeric factors first in products (preferring "2*x" rather than "x*2")..
-                args.add(0, total);
-            }
-            if (args.size() == 1) {
-                return args.get(0);
+            final MatrixNode lhsMatrix = MatrixNode.valueOf(lhs);
+            final MatrixNode rhsMatrix = MatrixNode.valueOf(rhs);
+            if (lhsMatrix == null || rhsMatrix == null) {
+                throw new CalculatorError("matrix multiplication requires numeric matrices");
             }
-            return bind(args);
+            return lhsMatrix.times(rhsMatrix);
         }
 
         public String syntax() { return "(Number, Number)"; }
@@ -1528,13 +1959,49 @@ public class CalculatorFunctions {
             super("Total");
         }
 
+        @Override public Node apply(Calculator environment) {
+            final Iterator<Node> elements = MapOrFilter.fusedElements(environment, args.get(0));
+            if (elements != null) {
+                return total(environment, elements);
+            }
+            return super.apply(environment);
+        }
+
         public Node apply(Calculator environment, ListNode list) {
+            // Long lists of integers and rationals are added up in parallel.
+            if (ParallelEvaluation.isWorthwhile(list.size())) {
+                final NumberNode result = ParallelEvaluation.exactTotal(list);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return total(environment, list.iterator());
+        }
+
+        // Adds up the elements as we go, so we never need them all at once.
+        private static Node total(Calculator environment, Iterator<Node> elements) {
             final CalculatorFunction plus = environment.getFunction("Plus");
+            // Runs of integers are totalled here without allocating a node per step, and everything else in 'result'.
+            final IntegerAccumulator integers = new IntegerAccumulator();
             Node result = IntegerNode.ZERO;
-            for (Node element : list) {
-                result = plus.bind(result, element);
+            while (elements.hasNext()) {
+                final Node element = elements.next();
+                if (element instanceof IntegerNode && (result instanceof IntegerNode || result instanceof RationalNode)) {
+                    integers.add((IntegerNode) element);
+                    continue;
+                }
+                if (!integers.isZero()) {
+                    // Inexact and symbolic addition aren't associative, so keep to the order the elements came in.
+                    result = ((NumberNode) result).plus(integers.value());
+                    integers.clear();
+                }
+                if (isNumber(result) && isNumber(element)) {
+                    result = ((NumberNode) result).plus((NumberNode) element);
+                } else {
+                    result = plus.bind(result, element).evaluate(environment);
+                }
             }
-            return result.evaluate(environment);
+            return integers.isZero() ? result : ((NumberNode) result).plus(integers.value());
         }
 
         public String syntax() { return "(List)"; }
@@ -1552,14 +2019,19 @@ public class CalculatorFunctions {
             if (dimensions == null) {
                 throw expected("Dimensions", "matrix");
             }
+            final MatrixNode matrix = MatrixNode.valueOf(node);
+            if (matrix != null) {
+                return matrix.transpose();
+            }
+            // A matrix of non-numeric elements.
             final ListNode m = (ListNode) node;
-            final IntegerNode rowCount = (IntegerNode) dimensions.get(1); // new row count == old column count.
-            final IntegerNode columnCount = (IntegerNode) dimensions.get(0); // new column count == old row count.
+            final int rowCount = ((IntegerNode) dimensions.get(1)).intValue(); // new row count == old column count.
+            final int columnCount = ((IntegerNode) dimensions.get(0)).intValue(); // new column count == old row count.
             final ListNode result = new ListNode();
-            for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
+            for (int i = 0; i < rowCount; ++i) {
                 final ListNode newRow = new ListNode();
-                for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
-                    newRow.add(matrixElementAt(m, j, i));
+                for (int j = 0; j < columnCount; ++j) {
+                    newRow.add(((ListNode) m.get(j)).get(i));
                 }
                 result.add(newRow);
             }
@@ -22,27 +22,53 @@ import java.io.*;
 import java.math.*;
 import java.util.*;
 
+/**
+ * Turns an expression into tokens.
+ *
+ * Lexing works directly on a char[] with index arithmetic. A string's characters are copied into the array once; a
+ * file is read into it a window at a time. Identifiers that name built-in functions and constants come back as
+ * shared String instances, and numbers that fit in a long are accumulated as they're scanned, so lexing a typical
+ * expression allocates little beyond its tokens' values.
+ */
 public class CalculatorLexer {
     private static final int EOF = -1;
 
     private final boolean DEBUG_LEXER = false;
 
-    private final MyPushbackReader reader;
+    // How much of a file we read at a time.
+    private static final int WINDOW_SIZE = 8192;
+
+    // The input. For a string, this is all of it. For a file, it's a window refilled from 'reader' as we go, which
+    // always keeps everything from 'start' (the beginning of the current token) onwards.
+    private char[] chars;
+    private int start;
+    private int pos;
+    private int limit;
+    private final Reader reader;
 
     private CalculatorToken token;
     private String identifier;
     private NumberNode number;
 
-    public CalculatorLexer(String expression) {
-        this(new StringReader(expression), null);
+    public CalculatorLexer(CharSequence expression) {
+        final int length = expression.length();
+        this.chars = new char[length];
+        if (expression instanceof String) {
+            ((String) expression).getChars(0, length, chars, 0);
+        } else {
+            for (int i = 0; i < length; ++i) {
+                chars[i] = expression.charAt(i);
+            }
+        }
+        this.limit = length;
+        this.reader = null;
+        nextToken();
     }
 
     public CalculatorLexer(File file) throws IOException {
-        this(new BufferedReader(new InputStreamReader(new FileInputStream(file))), file);
-    }
-
-    private CalculatorLexer(Reader reader, File file) {
-        this.reader = new MyPushbackReader(reader, file);
+        this.chars = new char[WINDOW_SIZE];
+        this.limit = 0;
+        this.reader = new InputStreamReader(new FileInputStream(file));
         nextToken();
     }
 
@@ -57,25 +83,65 @@ public class CalculatorLexer {
         }
     }
 
-    private CalculatorToken maybe(char expectedChar, CalculatorToken yesToken, CalculatorToken noToken) throws IOException {
-        int ch = reader.read();
-        if (ch == expectedChar) {
-            return yesToken;
+    // Returns the next character without consuming it, or EOF.
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return EOF;
+        }
+        return chars[pos];
+    }
+
+    // Consumes the next character if it's 'expectedChar'.
+    private boolean consume(char expectedChar) throws IOException {
+        if (peek() == expectedChar) {
+            ++pos;
+            return true;
+        }
+        return false;
+    }
+
+    // Reads more of a file into the window, returning false at the end of the input.
+    private boolean fill() throws IOException {
+        if (reader == null) {
+            return false;
+        }
+        if (start > 0) {
+            // Slide the current token down to the start of the window, to make room after it.
+            System.arraycopy(chars, start, chars, 0, limit - start);
+            pos -= start;
+            limit -= start;
+            start = 0;
+        }
+        if (limit == chars.length) {
+            // A token longer than the window.
+            chars = Arrays.copyOf(chars, 2 * chars.length);
+        }
+        final int count = reader.read(chars, limit, chars.length - limit);
+        if (count <= 0) {
+            return false;
         }
-        reader.unread(ch);
-        return noToken;
+        limit += count;
+        return true;
+    }
+
+    private CalculatorToken maybe(char expectedChar, CalculatorToken yesToken, CalculatorToken noToken) throws IOException {
+        return consume(expectedChar) ? yesToken : noToken;
     }
 
     private CalculatorToken nextToken0() throws IOException {
         int ch;
 
         // Skip whitespace and control characters.
-        while ((ch = reader.read()) != EOF && ch <= ' ') {
+        start = pos;
+        while ((ch = peek()) != EOF && ch <= ' ') {
+            start = ++pos;
+        }
+        if (ch == EOF) {
+            return CalculatorToken.END_OF_INPUT;
         }
+        ++pos;
 
         switch (ch) {
-        case EOF: return CalculatorToken.END_OF_INPUT;
-
         case '(': return CalculatorToken.OPEN_PARENTHESIS;
         case '[': return CalculatorToken.OPEN_SQUARE;
         case ',': return CalculatorToken.COMMA;
@@ -103,105 +169,106 @@ public class CalculatorLexer {
         case '\u221a': return CalculatorToken.SQRT;
 
         case '<':
-            {
-                int ch2 = reader.read();
-                if (ch2 == '<') {
-                    return CalculatorToken.SHL;
-                } else if (ch2 == '=') {
-                    return CalculatorToken.LE;
-                } else {
-                    reader.unread(ch2);
-                    return CalculatorToken.LT;
-                }
+            if (consume('<')) {
+                return CalculatorToken.SHL;
             }
+            return maybe('=', CalculatorToken.LE, CalculatorToken.LT);
         case '>':
-            {
-                int ch2 = reader.read();
-                if (ch2 == '>') {
-                    return CalculatorToken.SHR;
-                } else if (ch2 == '=') {
-                    return CalculatorToken.GE;
-                } else {
-                    reader.unread(ch2);
-                    return CalculatorToken.GT;
-                }
+            if (consume('>')) {
+                return CalculatorToken.SHR;
             }
+            return maybe('=', CalculatorToken.GE, CalculatorToken.GT);
 
         default:
             if ((ch >= '0' && ch <= '9') || ch == '.') {
-                // Number.
-                StringBuilder text = new StringBuilder();
-
-                // Work out the base.
-                int base = 10;
-                if (ch == '0') {
-                    int ch2 = reader.read();
-                    if (ch2 == 'x') {
-                        base = 16;
-                    } else if (ch2 == 'o') {
-                        base = 8;
-                    } else if (ch2 == 'b') {
-                        base = 2;
-                    } else {
-                        reader.unread(ch2);
-                    }
+                return lexNumber(ch);
+            } else if (isIdentifierStartCharacter(ch)) {
+                while ((ch = peek()) != EOF && isIdentifierCharacter(ch)) {
+                    ++pos;
                 }
-
-                boolean isReal = (ch == '.');
-                while (ch != EOF && (isValidDigit((char) ch, base) || (base == 10 && ch == '.'))) {
-                    text.append((char) ch);
-                    if (ch == '.') {
-                        isReal = true;
-                    }
-                    ch = reader.read();
+                final int length = pos - start;
+                identifier = BuiltInNames.lookUp(chars, start, length);
+                if (identifier == null) {
+                    identifier = new String(chars, start, length);
                 }
+                return CalculatorToken.IDENTIFIER;
+            } else {
+                throw new CalculatorError("invalid character '" + ensurePrintable(ch) + "' in input");
+            }
+        }
+    }
 
-                boolean engineering = (ch == 'E' || ch == 'e');
-                if (engineering) {
-                    isReal = true; // Because BigDecimal supports 'E' but BigInteger doesn't.
-                    text.append('E');
-                    ch = reader.read();
-                    if (ch == '-' || ch == '+') {
-                        text.append((char) ch);
-                        ch = reader.read();
-                    }
-                    while (ch != EOF && (isValidDigit((char) ch, 10))) {
-                        text.append((char) ch);
-                        ch = reader.read();
-                    }
-                }
-                reader.unread(ch);
-
-                if (isReal) {
-                    BigDecimal bigDecimal = new BigDecimal(text.toString());
-                    if (engineering) {
-                        // Try to return numbers like 1.2E3 as integers.
-                        try {
-                            number = IntegerNode.valueOf(bigDecimal.toBigIntegerExact());
-                            return CalculatorToken.NUMBER;
-                        } catch (ArithmeticException ignored) {
-                            // Not an integer, so fall through to the real case...
-                        }
-                    }
-                    number = new BigRealNode(bigDecimal);
+    private CalculatorToken lexNumber(int ch) throws IOException {
+        // Work out the base.
+        int base = 10;
+        if (ch == '0') {
+            final int ch2 = peek();
+            if (ch2 == 'x') {
+                base = 16;
+            } else if (ch2 == 'o') {
+                base = 8;
+            } else if (ch2 == 'b') {
+                base = 2;
+            }
+        }
+        if (base != 10) {
+            // The digits start after the prefix.
+            ++pos;
+            start = pos;
+        } else {
+            // Rescan the first character with the rest.
+            pos = start;
+        }
+
+        // Integers that fit in a long are accumulated as we go.
+        long value = 0;
+        boolean isBig = false;
+        boolean isReal = false;
+        while ((ch = peek()) != EOF && (isValidDigit((char) ch, base) || (base == 10 && ch == '.'))) {
+            ++pos;
+            if (ch == '.') {
+                isReal = true;
+            } else if (!isReal && !isBig) {
+                final int digit = Character.digit(ch, base);
+                if (value > (Long.MAX_VALUE - digit) / base) {
+                    isBig = true;
                 } else {
-                    number = new IntegerNode(text.toString(), base);
+                    value = value * base + digit;
                 }
-                return CalculatorToken.NUMBER;
-            } else if (isIdentifierStartCharacter(ch)) {
-                // Identifier.
-                StringBuilder text = new StringBuilder();
-                while (ch != EOF && isIdentifierCharacter(ch)) {
-                    text.append((char) ch);
-                    ch = reader.read();
+            }
+        }
+
+        final boolean engineering = (ch == 'E' || ch == 'e');
+        if (engineering) {
+            isReal = true; // Because BigDecimal supports 'E' but BigInteger doesn't.
+            ++pos;
+            ch = peek();
+            if (ch == '-' || ch == '+') {
+                ++pos;
+            }
+            while ((ch = peek()) != EOF && isValidDigit((char) ch, 10)) {
+                ++pos;
+            }
+        }
+
+        if (isReal) {
+            final BigDecimal bigDecimal = new BigDecimal(chars, start, pos - start);
+            if (engineering) {
+                // Try to return numbers like 1.2E3 as integers.
+                try {
+                    number = IntegerNode.valueOf(bigDecimal.toBigIntegerExact());
+                    return CalculatorToken.NUMBER;
+                } catch (ArithmeticException ignored) {
+                    // Not an integer, so fall through to the real case...
                 }
-                reader.unread(ch);
-                identifier = text.toString();
-                return CalculatorToken.IDENTIFIER;
-            } else {
-                throw new CalculatorError("invalid character '" + ensurePrintable(ch) + "' in input");
             }
+            number = new BigRealNode(bigDecimal);
+        } else if (isBig) {
+            number = new IntegerNode(new String(chars, start, pos - start), base);
+        } else {
+            number = IntegerNode.valueOf(value);
         }
+        return CalculatorToken.NUMBER;
     }
 
     public static String ensurePrintable(int ch) {
@@ -252,63 +319,54 @@ public class CalculatorLexer {
     }
 
     /**
-     * Like the JDK PushbackReader, but with a larger default pushback buffer, and more intelligent behavior when pushing back EOF.
+     * The names of the built-in functions and constants, looked up directly from the input's characters, so that
+     * lexing a reference to one doesn't allocate a new String each time. An open-addressed hash table, using the same
+     * hash as String, filled when first used and never changed after that.
      */
-    private static class MyPushbackReader extends FilterReader {
-        // The pushback buffer.
-        private static final int BUFFER_SIZE = 8;
-        private final char[] buf = new char[BUFFER_SIZE];
-        private int pos = buf.length;
-
-        // What file we're reading, or null if we're reading from a non-file source (such as a string).
-        private final File file;
-
-        // Humans count lines from 1, and these are for error reporting.
-        private int lineNumber = 1;
-        private int columnNumber = 1;
-
-        public MyPushbackReader(Reader in, File file) {
-            super(in);
-            this.file = file;
-        }
+    private static class BuiltInNames {
+        private static final String[] TABLE = makeTable(Calculator.getBuiltInNames());
 
-        @Override public int read() throws IOException {
-            synchronized (lock) {
-                int result = (pos < buf.length) ? buf[pos++] : super.read();
-                ++columnNumber;
-                if (result == '\n') {
-                    ++lineNumber;
-                    columnNumber = 1;
+        private static String[] makeTable(Collection<String> names) {
+            int size = 1;
+            while (size < 2 * names.size()) {
+                size <<= 1;
+            }
+            final String[] table = new String[size];
+            for (String name : names) {
+                int i = name.hashCode() & (size - 1);
+                while (table[i] != null) {
+                    i = (i + 1) & (size - 1);
                 }
-                return result;
+                table[i] = name;
             }
+            return table;
         }
 
-        public void unread(int c) {
-            if (c == EOF || c < ' ') {
-                // Don't push back stuff we'll only skip again anyway.
-                // In particular, pushing back \n to causes trouble because we don't know what column that puts us in.
-                return;
+        static String lookUp(char[] chars, int offset, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; ++i) {
+                hash = 31 * hash + chars[offset + i];
             }
-            synchronized (lock) {
-                if (pos == 0) {
-                    throw new CalculatorError("pushback buffer overflow");
+            final int mask = TABLE.length - 1;
+            for (int i = hash & mask; TABLE[i] != null; i = (i + 1) & mask) {
+                final String name = TABLE[i];
+                if (name.hashCode() == hash && matches(name, chars, offset, length)) {
+                    return name;
                 }
-                --columnNumber;
-                buf[--pos] = (char) c;
             }
+            return null;
         }
 
-        @Override public boolean ready() throws IOException {
-            synchronized (lock) {
-                return (pos < buf.length) || super.ready();
+        private static boolean matches(String name, char[] chars, int offset, int length) {
+            if (name.length() != length) {
+                return false;
             }
+            for (int i = 0; i < length; ++i) {
+                if (name.charAt(i) != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
         }
-
-        @Override public void mark(int readAheadLimit) throws IOException { throw new UnsupportedOperationException(); }
-        @Override public boolean markSupported() { return false; }
-        @Override public int read(char cbuf[], int off, int len) throws IOException { throw new UnsupportedOperationException(); }
-        @Override public void reset() throws IOException { throw new UnsupportedOperationException(); }
-        @Override public long skip(long n) throws IOException { throw new UnsupportedOperationException(); }
     }
 }
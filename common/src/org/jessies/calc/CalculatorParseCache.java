@@ -0,0 +1,198 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * A bounded, least-recently-used cache of parsed (and simplified) expressions, keyed by their text.
+ *
+ * Each entry remembers the names of the free variables its expression refers to, so that it can be thrown away when
+ * one of those variables is assigned a new value.
+ */
+class CalculatorParseCache {
+    static class Entry {
+        // The expression as parsed, which is what gets simplified.
+        final Node parsedExpression;
+        // The expression to evaluate: the parsed expression with its common subexpressions shared.
+        final Node expression;
+        // Computed on first use, because evaluating an expression doesn't need it, and simplifying can be expensive.
+        volatile Node simplifiedExpression;
+        final Set<String> variableKeys;
+
+        Entry(Node parsedExpression, Node expression) {
+            this.parsedExpression = parsedExpression;
+            this.expression = expression;
+            this.variableKeys = freeVariableKeys(expression);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                forget(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Maps a variable's key to the text of every cached expression that refers to it.
+    private final HashMap<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    private int capacity;
+    private long hitCount;
+    private long missCount;
+
+    CalculatorParseCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the entry for 'text', or null if it isn't cached.
+     */
+    synchronized Entry get(String text) {
+        final Entry entry = entries.get(text);
+        if (entry != null) {
+            ++hitCount;
+        } else {
+            ++missCount;
+        }
+        return entry;
+    }
+
+    synchronized void put(String text, Entry entry) {
+        if (capacity == 0) {
+            return;
+        }
+        final Entry oldEntry = entries.put(text, entry);
+        if (oldEntry != null) {
+            forget(text, oldEntry);
+        }
+        for (String key : entry.variableKeys) {
+            Set<String> texts = dependents.get(key);
+            if (texts == null) {
+                texts = new HashSet<String>();
+                dependents.put(key, texts);
+            }
+            texts.add(text);
+        }
+    }
+
+    /**
+     * Discards every entry that refers to the variable with the given (lowercase) key.
+     */
+    synchronized void invalidate(String key) {
+        final Set<String> texts = dependents.remove(key);
+        if (texts == null) {
+            return;
+        }
+        for (String text : texts) {
+            final Entry entry = entries.remove(text);
+            if (entry != null) {
+                forget(text, entry);
+            }
+        }
+    }
+
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be non-negative: " + capacity);
+        }
+        this.capacity = capacity;
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            final Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            forget(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    // Removes 'text' from the dependency lists of the variables 'entry' refers to.
+    private void forget(String text, Entry entry) {
+        for (String key : entry.variableKeys) {
+            final Set<String> texts = dependents.get(key);
+            if (texts != null) {
+                texts.remove(text);
+                if (texts.isEmpty()) {
+                    dependents.remove(key);
+                }
+            }
+        }
+    }
+
+    // Returns the keys of the variables 'expression' reads, ignoring those bound by functions like Map and Sum.
+    private static Set<String> freeVariableKeys(Node expression) {
+        final HashSet<String> result = new HashSet<String>();
+        addFreeVariableKeys(expression, Collections.<String>emptySet(), result);
+        return result;
+    }
+
+    private static void addFreeVariableKeys(Node node, Set<String> boundKeys, Set<String> result) {
+        if (node instanceof CalculatorVariableNode) {
+            final String key = ((CalculatorVariableNode) node).name().toLowerCase(Locale.US);
+            if (!boundKeys.contains(key)) {
+                result.add(key);
+            }
+        } else if (node instanceof ListNode) {
+            for (Node element : (ListNode) node) {
+                addFreeVariableKeys(element, boundKeys, result);
+            }
+        } else if (node instanceof CalculatorFunction) {
+            final CalculatorFunction function = (CalculatorFunction) node;
+            if (function.args == null) {
+                return;
+            }
+            final int boundIndex = function.boundVariableIndex();
+            for (int i = 0; i < function.args.size(); ++i) {
+                final Node arg = function.args.get(i);
+                if (i == boundIndex) {
+                    continue;
+                } else if (i == 0 && boundIndex != -1 && function.args.get(boundIndex) instanceof CalculatorVariableNode) {
+                    final HashSet<String> innerBoundKeys = new HashSet<String>(boundKeys);
+                    innerBoundKeys.add(((CalculatorVariableNode) function.args.get(boundIndex)).name().toLowerCase(Locale.US));
+                    addFreeVariableKeys(arg, innerBoundKeys, result);
+                } else if (i == 0 && function instanceof CalculatorFunctions.Define) {
+                    // The target of an assignment is written, not read.
+                    if (!(arg instanceof CalculatorVariableNode)) {
+                        addFreeVariableKeys(arg, boundKeys, result);
+                    }
+                } else {
+                    addFreeVariableKeys(arg, boundKeys, result);
+                }
+            }
+        }
+    }
+}
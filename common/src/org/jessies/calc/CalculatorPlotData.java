@@ -55,9 +55,16 @@ public class CalculatorPlotData {
         }
         // FIXME: scale to nice round numbers.
         // FIXME: clip really large (positive or negative) values; (x+1)^2/(x-1) near x==1, for instance.
+        // (CalculatorPlotSampler.calculateRange does, for functions it can bound with interval arithmetic.)
         yRange = (float)(yMax - yMin);
     }
     
+    public void setRange(double yMin, double yMax) {
+        this.yMin = yMin;
+        this.yMax = yMax;
+        this.yRange = (float)(yMax - yMin);
+    }
+    
     public String toString() {
         StringBuilder result = new StringBuilder();
         result.append(data.length);
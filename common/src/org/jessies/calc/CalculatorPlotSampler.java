@@ -0,0 +1,339 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fills in a CalculatorPlotData's samples, splitting the x range across cores where the expression allows it.
+ *
+ * Each worker gets its own copy of the function being plotted, so no variable bindings are shared between threads.
+ * An optional refinement pass looks more closely at pixels where the curve jumps sharply, and breaks the line at
+ * discontinuities (such as the pole in 1/x) rather than joining them with a near-vertical line.
+ *
+ * For functions that can be evaluated over intervals, the y range comes from interval bounds rather than the samples,
+ * so it includes spikes narrower than a pixel. We bound the function over the whole x range, and subdivide only where
+ * the bounds are too wide to be useful and reach outside the range we already know, so most of the plot costs only a
+ * few evaluations. A pixel with bounds that stay infinite even over a small fraction of it contains a pole, which no
+ * y range could show, so we leave that pixel out rather than letting the pole squash the rest of the plot.
+ */
+class CalculatorPlotSampler {
+    // Below this many samples, it's not worth forking.
+    private static final int SEQUENTIAL_THRESHOLD = 256;
+
+    // How many extra samples to take across a suspicious pixel.
+    private static final int REFINEMENT_SAMPLES = 16;
+
+    // How many times we'll halve a pixel to bound the function more tightly, or to decide it contains a pole.
+    private static final int MAX_SUBDIVISION_DEPTH = 4;
+
+    /**
+     * The function being plotted, as seen by a single worker.
+     */
+    abstract static class Function {
+        /**
+         * Returns the value at 'x', or NaN if there isn't a finite real value there.
+         */
+        abstract double valueAt(double x);
+
+        /**
+         * Returns a Function for use by another worker, or null if this function can't be evaluated concurrently.
+         */
+        abstract Function copy();
+
+        /**
+         * Returns an interval containing every value for x between 'from' and 'to', or null if this function can't be
+         * evaluated over intervals.
+         */
+        IntervalNode valueOver(double from, double to) {
+            return null;
+        }
+
+        /**
+         * Called once sampling is complete.
+         */
+        void finish() {
+        }
+    }
+
+    private final CalculatorPlotData plotData;
+    private final double xStep;
+
+    CalculatorPlotSampler(CalculatorPlotData plotData) {
+        this.plotData = plotData;
+        this.xStep = ((double) plotData.xRange) / plotData.data.length;
+    }
+
+    /**
+     * Samples 'function' across the plot, optionally followed by a refinement pass near discontinuities.
+     */
+    void sample(Function function, boolean refine) {
+        try {
+            // Tasks only fork if the function can be copied; otherwise they run entirely on this thread.
+            new SampleTask(function, 0, plotData.data.length).invoke();
+            if (refine && plotData.data.length > 2) {
+                final boolean[] discontinuities = new boolean[plotData.data.length];
+                new RefineTask(function, jumpThreshold(), discontinuities, 1, plotData.data.length).invoke();
+                for (int i = 0; i < discontinuities.length; ++i) {
+                    if (discontinuities[i]) {
+                        plotData.data[i] = Double.NaN;
+                    }
+                }
+            }
+        } finally {
+            function.finish();
+        }
+    }
+
+    /**
+     * Sets the plot's y range. If 'function' can be evaluated over intervals, the range contains every value of the
+     * function over the x range except near poles; otherwise, it's just the range of the samples.
+     * Call this after sample.
+     */
+    void calculateRange(Function function) {
+        if (function.valueOver(plotData.xMin, plotData.xMax) == null) {
+            plotData.calculateRange();
+            return;
+        }
+        // The samples are actual values, so the range includes them. Only regions whose bounds reach outside that can
+        // make a difference, which lets us skip most of the plot after a single evaluation.
+        double sampleMin = Double.POSITIVE_INFINITY;
+        double sampleMax = Double.NEGATIVE_INFINITY;
+        for (double y : plotData.data) {
+            sampleMin = Math.min(sampleMin, y); // NaN samples are ignored, since the comparisons are false.
+            sampleMax = Math.max(sampleMax, y);
+        }
+        final IntervalNode samples = (sampleMin <= sampleMax) ? IntervalNode.valueOf(sampleMin, sampleMax) : IntervalNode.EMPTY;
+        // Bounds on a region are good enough when they're about as precise as the plot can show.
+        final double tolerance = (sampleMax > sampleMin) ? (sampleMax - sampleMin) / plotData.data.length : 0.0;
+        final IntervalNode range = enclose(function, 0, plotData.data.length, tolerance, samples);
+        if (range.isEmpty()) {
+            // Nowhere defined (or nowhere bounded), so the samples are as good as anything.
+            plotData.calculateRange();
+        } else {
+            plotData.setRange(range.lo(), range.hi());
+        }
+    }
+
+    // Returns 'range' extended to include bounds on 'function' over pixels [from, to), subdividing until each is
+    // narrower than 'tolerance'. Pixels containing poles are left out.
+    private IntervalNode enclose(Function function, int from, int to, double tolerance, IntervalNode range) {
+        final IntervalNode y = function.valueOver(xAt(from), xAt(to));
+        if (contains(range, y)) {
+            return range;
+        } else if (y.isBounded() && y.width() <= tolerance) {
+            return range.union(y);
+        } else if (to - from == 1) {
+            final IntervalNode pixel = enclose(function, xAt(from), xAt(to), tolerance, MAX_SUBDIVISION_DEPTH, range);
+            return (pixel != null) ? pixel : range;
+        }
+        final int mid = (from + to) >>> 1;
+        return enclose(function, mid, to, tolerance, enclose(function, from, mid, tolerance, range));
+    }
+
+    // Like the above, for [from, to], part of a single pixel. Returns null if the function is unbounded anywhere in
+    // the pixel, even after 'depth' more halvings.
+    private IntervalNode enclose(Function function, double from, double to, double tolerance, int depth, IntervalNode range) {
+        final IntervalNode y = function.valueOver(from, to);
+        if (contains(range, y)) {
+            return range;
+        } else if (y.isBounded() && (y.width() <= tolerance || depth == 0)) {
+            return range.union(y);
+        } else if (depth == 0) {
+            return null;
+        }
+        final double mid = from + (to - from) / 2;
+        final IntervalNode lhs = enclose(function, from, mid, tolerance, depth - 1, range);
+        return (lhs != null) ? enclose(function, mid, to, tolerance, depth - 1, lhs) : null;
+    }
+
+    private static boolean contains(IntervalNode outer, IntervalNode inner) {
+        return inner.isEmpty() || (!outer.isEmpty() && outer.lo() <= inner.lo() && inner.hi() <= outer.hi());
+    }
+
+    private double xAt(double i) {
+        return plotData.xMin + i * xStep;
+    }
+
+    // Returns the size of jump between adjacent pixels we consider worth a closer look.
+    private double jumpThreshold() {
+        final double[] data = plotData.data;
+        final double[] jumps = new double[data.length - 1];
+        int count = 0;
+        for (int i = 1; i < data.length; ++i) {
+            final double jump = Math.abs(data[i] - data[i - 1]);
+            if (!Double.isNaN(jump)) {
+                jumps[count++] = jump;
+            }
+        }
+        if (count == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        Arrays.sort(jumps, 0, count);
+        // Anything much steeper than the typical pixel-to-pixel change is suspicious.
+        return 8.0 * jumps[count / 2] + Double.MIN_VALUE;
+    }
+
+    private class SampleTask extends RecursiveAction {
+        private final Function function;
+        private final int from;
+        private final int to;
+
+        SampleTask(Function function, int from, int to) {
+            this.function = function;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            final Function copy = (to - from > SEQUENTIAL_THRESHOLD) ? function.copy() : null;
+            if (copy == null) {
+                for (int i = from; i < to; ++i) {
+                    plotData.data[i] = function.valueAt(xAt(i));
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new SampleTask(copy, from, mid), new SampleTask(function, mid, to));
+        }
+    }
+
+    private class RefineTask extends RecursiveAction {
+        private final Function function;
+        private final double threshold;
+        private final boolean[] discontinuities;
+        private final int from;
+        private final int to;
+
+        RefineTask(Function function, double threshold, boolean[] discontinuities, int from, int to) {
+            this.function = function;
+            this.threshold = threshold;
+            this.discontinuities = discontinuities;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            final Function copy = (to - from > SEQUENTIAL_THRESHOLD) ? function.copy() : null;
+            if (copy == null) {
+                for (int i = from; i < to; ++i) {
+                    refine(i);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new RefineTask(copy, threshold, discontinuities, from, mid), new RefineTask(function, threshold, discontinuities, mid, to));
+        }
+
+        // Looks between pixels i-1 and i. If the function is merely steep, the jump spreads out across the extra samples;
+        // if there's a discontinuity, most of the jump stays between a single pair of them.
+        private void refine(int i) {
+            final double y0 = plotData.data[i - 1];
+            final double y1 = plotData.data[i];
+            final double jump = Math.abs(y1 - y0);
+            if (Double.isNaN(jump) || jump <= threshold) {
+                return;
+            }
+            double previous = y0;
+            double largestStep = 0.0;
+            for (int k = 1; k <= REFINEMENT_SAMPLES; ++k) {
+                final double y = (k == REFINEMENT_SAMPLES) ? y1 : function.valueAt(xAt(i - 1 + ((double) k) / REFINEMENT_SAMPLES));
+                final double step = Math.abs(y - previous);
+                if (Double.isNaN(step)) {
+                    // The function isn't even defined somewhere in here.
+                    discontinuities[i] = true;
+                    return;
+                }
+                largestStep = Math.max(largestStep, step);
+                previous = y;
+            }
+            discontinuities[i] = (largestStep > 0.5 * jump);
+        }
+    }
+
+    /**
+     * Plots a CompiledRealExpression. Each copy has its own variable array, so copies can run concurrently.
+     */
+    static class RealFunction extends Function {
+        private final CompiledRealExpression expression;
+        private final double[] variables = new double[1];
+        private final IntervalNode[] intervals = new IntervalNode[1];
+
+        RealFunction(CompiledRealExpression expression) {
+            this.expression = expression;
+        }
+
+        double valueAt(double x) {
+            variables[0] = x;
+            final double y = expression.evaluate(variables);
+            return Double.isInfinite(y) ? Double.NaN : y; // Infinity confuses the range calculations.
+        }
+
+        Function copy() {
+            return new RealFunction(expression);
+        }
+
+        @Override IntervalNode valueOver(double from, double to) {
+            intervals[0] = IntervalNode.valueOf(Math.min(from, to), Math.max(from, to));
+            return expression.evaluate(intervals);
+        }
+    }
+
+    /**
+     * Plots an arbitrary expression using the ordinary evaluator.
+     * Each copy binds the variable in its own scope, so copies can run concurrently.
+     */
+    static class GenericFunction extends Function {
+        private final Calculator environment;
+        private final Calculator scope;
+        private final Node expression;
+        private final String variableName;
+
+        GenericFunction(Calculator environment, Node expression, String variableName) {
+            this.environment = environment;
+            this.scope = environment.newScope();
+            this.expression = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expression, variableName, true));
+            this.variableName = variableName;
+        }
+
+        // Copies 'original', whose expression is already simplified.
+        private GenericFunction(GenericFunction original) {
+            this.environment = original.environment;
+            this.scope = environment.newScope();
+            this.expression = original.expression;
+            this.variableName = original.variableName;
+        }
+
+        double valueAt(double x) {
+            try {
+                scope.setLocalVariable(variableName, new RealNode(x));
+                final double y = Double.parseDouble(expression.evaluate(scope).toString());
+                return Double.isInfinite(y) ? Double.NaN : y; // Infinity confuses the range calculations.
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                return Double.NaN;
+            }
+        }
+
+        Function copy() {
+            return new GenericFunction(this);
+        }
+    }
+}
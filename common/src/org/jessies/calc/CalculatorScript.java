@@ -0,0 +1,259 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluation of a script, statement by statement, for Calculator.evaluateScript.
+ *
+ * Statements are separated by semicolons or newlines. A newline inside parentheses or square brackets doesn't end a
+ * statement, so long expressions can be split across lines. Statements are parsed as they're read, and only one
+ * statement (or in parallel mode, one window of statements) is held at a time, so memory use doesn't grow with the
+ * length of the script.
+ *
+ * In parallel mode, a statement depends on an earlier one in the same window if either assigns to a variable that
+ * the other reads or assigns. Each statement goes in the first wave after those of all the statements it depends
+ * on, and the statements in a wave are evaluated at the same time. Statements that refer to Ans or Plot are
+ * evaluated on their own, after everything before them. Either way, results are reported in order.
+ */
+class CalculatorScript {
+    // How many statements parallel mode reads ahead.
+    private static final int WINDOW_SIZE = 256;
+
+    private final Calculator calculator;
+    private final CalculatorScriptListener listener;
+    private final boolean parallel;
+
+    // The input, read a buffer at a time.
+    private final Reader reader;
+    private final char[] buffer = new char[4096];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+
+    // The text of the statement being read, and the line it started on. Humans count lines from 1.
+    private final StringBuilder text = new StringBuilder();
+    private int lineNumber = 1;
+    private int statementLineNumber;
+
+    CalculatorScript(Calculator calculator, Reader reader, CalculatorScriptListener listener, boolean parallel) {
+        this.calculator = calculator;
+        this.reader = reader;
+        this.listener = listener;
+        this.parallel = parallel;
+    }
+
+    void run() throws IOException {
+        final ArrayList<Statement> window = new ArrayList<Statement>();
+        Statement statement;
+        while ((statement = nextStatement()) != null) {
+            if (!parallel || statement.isBarrier) {
+                evaluateWindow(window);
+                statement.compute();
+                finish(statement);
+            } else {
+                window.add(statement);
+                if (window.size() == WINDOW_SIZE) {
+                    evaluateWindow(window);
+                }
+            }
+        }
+        evaluateWindow(window);
+    }
+
+    private void evaluateWindow(List<Statement> window) {
+        if (window.isEmpty()) {
+            return;
+        }
+        int waveCount = 0;
+        for (int j = 0; j < window.size(); ++j) {
+            final Statement statement = window.get(j);
+            for (int i = 0; i < j; ++i) {
+                final Statement earlier = window.get(i);
+                if (earlier.wave >= statement.wave && statement.dependsOn(earlier)) {
+                    statement.wave = earlier.wave + 1;
+                }
+            }
+            waveCount = Math.max(waveCount, statement.wave + 1);
+        }
+        for (int wave = 0; wave < waveCount; ++wave) {
+            final ArrayList<Statement> tasks = new ArrayList<Statement>();
+            for (Statement statement : window) {
+                if (statement.wave == wave) {
+                    tasks.add(statement);
+                }
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+        for (Statement statement : window) {
+            finish(statement);
+        }
+        window.clear();
+    }
+
+    private void finish(Statement statement) {
+        if (statement.error != null) {
+            listener.statementFailed(statement.lineNumber, statement.text, statement.error);
+        } else {
+            calculator.setAns(statement.result);
+            listener.statementEvaluated(statement.lineNumber, statement.text, statement.result);
+        }
+    }
+
+    // Returns the next non-empty statement, parsed, or null at the end of the input.
+    private Statement nextStatement() throws IOException {
+        text.setLength(0);
+        int depth = 0;
+        int ch;
+        while ((ch = read()) != -1) {
+            if ((ch == ';' || ch == '\n') && depth <= 0 && text.length() > 0) {
+                final Statement statement = new Statement(calculator, statementLineNumber, text.toString());
+                if (ch == '\n') {
+                    ++lineNumber;
+                }
+                return statement;
+            }
+            if (ch == '\n') {
+                ++lineNumber;
+            } else if (ch == '(' || ch == '[') {
+                ++depth;
+            } else if (ch == ')' || ch == ']') {
+                --depth;
+            }
+            if (text.length() == 0) {
+                if (ch <= ' ' || ch == ';') {
+                    // Leading whitespace, or an empty statement.
+                    continue;
+                }
+                statementLineNumber = lineNumber;
+            }
+            text.append((char) ch);
+        }
+        return (text.length() > 0) ? new Statement(calculator, statementLineNumber, text.toString()) : null;
+    }
+
+    private int read() throws IOException {
+        if (bufferPos == bufferLimit) {
+            bufferLimit = reader.read(buffer, 0, buffer.length);
+            bufferPos = 0;
+            if (bufferLimit <= 0) {
+                bufferLimit = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPos++];
+    }
+
+    private static class Statement extends RecursiveAction {
+        private final Calculator calculator;
+        final int lineNumber;
+        final String text;
+        private Node expression;
+        Node result;
+        CalculatorError error;
+
+        // The keys of the variables this statement reads and assigns.
+        private final HashSet<String> reads = new HashSet<String>();
+        private final HashSet<String> writes = new HashSet<String>();
+        // Whether this statement has to be evaluated on its own.
+        boolean isBarrier = false;
+        int wave = 0;
+
+        Statement(Calculator calculator, int lineNumber, String text) {
+            this.calculator = calculator;
+            this.lineNumber = lineNumber;
+            this.text = text;
+            try {
+                expression = new CalculatorParser(calculator, text).parse();
+                analyze(expression);
+            } catch (CalculatorError ex) {
+                error = ex;
+            }
+        }
+
+        private void analyze(Node node) {
+            if (node instanceof CalculatorVariableNode) {
+                final String key = key(((CalculatorVariableNode) node).name());
+                reads.add(key);
+                if (key.equals("ans")) {
+                    // Ans is only well-defined once everything before us has finished.
+                    isBarrier = true;
+                }
+            } else if (node instanceof ListNode) {
+                for (Node element : (ListNode) node) {
+                    analyze(element);
+                }
+            } else if (node instanceof CalculatorFunction) {
+                final CalculatorFunction function = (CalculatorFunction) node;
+                if (function instanceof CalculatorFunctions.Plot) {
+                    // Plots should appear in order.
+                    isBarrier = true;
+                }
+                if (function.args == null) {
+                    return;
+                }
+                for (int i = 0; i < function.args.size(); ++i) {
+                    final Node arg = function.args.get(i);
+                    if (i == 0 && function instanceof CalculatorFunctions.Define && arg instanceof CalculatorVariableNode) {
+                        writes.add(key(((CalculatorVariableNode) arg).name()));
+                    } else {
+                        analyze(arg);
+                    }
+                }
+            }
+        }
+
+        private static String key(String name) {
+            return name.toLowerCase(Locale.US);
+        }
+
+        boolean dependsOn(Statement earlier) {
+            return intersects(earlier.writes, reads) || intersects(earlier.reads, writes) || intersects(earlier.writes, writes);
+        }
+
+        private static boolean intersects(Set<String> a, Set<String> b) {
+            for (String key : a) {
+                if (b.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override protected void compute() {
+            if (expression == null) {
+                // It didn't parse.
+                return;
+            }
+            try {
+                result = expression.evaluate(calculator);
+            } catch (CalculatorError ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                // Something like "Integer value too large" from deep inside BigInteger. Report it like any other
+                // error rather than abandoning the rest of the script.
+                final String detail = ex.getMessage();
+                error = new CalculatorError(detail != null ? detail : ex.toString());
+                error.initCause(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Receives the outcome of each statement in a script run by Calculator.evaluateScript, in the order the statements
+ * appear in the script.
+ */
+public interface CalculatorScriptListener {
+    public void statementEvaluated(int lineNumber, String statement, Node result);
+    public void statementFailed(int lineNumber, String statement, CalculatorError error);
+}
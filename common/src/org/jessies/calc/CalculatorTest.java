@@ -18,6 +18,7 @@ package org.jessies.calc;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.math.*;
 import junit.framework.*;
 
 public class CalculatorTest extends TestCase {
@@ -62,6 +63,51 @@ public class CalculatorTest extends TestCase {
     checkFormatted("-12,345", "-12345");
   }
 
+  public void testLexer() throws Exception {
+    // Numbers either side of the fixnum boundary, in each base.
+    check("9223372036854775807", "9223372036854775807");
+    check("9223372036854775808", "9223372036854775808");
+    check("true", "0x7fffffffffffffff == 2^63 - 1");
+    check("true", "0x10000000000000000 == 2^64");
+    check("5", "0b101");
+    check("true", "0o1777777777777777777777 == 2^64 - 1");
+    check("0", "0x");
+    check("true", "1<<3 <= 8 && 8 >= 1 >> 0 && 2 != 3");
+
+    // Built-in names are shared, other identifiers aren't.
+    final CalculatorLexer lexer = new CalculatorLexer(new StringBuilder("Sqrt(myVariable)"));
+    assertSame(lexer.identifier(), new CalculatorLexer("Sqrt").identifier());
+    lexer.nextToken();
+    lexer.nextToken();
+    assertEquals("myVariable", lexer.identifier());
+
+    // A file longer than the lexer's window, with a token straddling each boundary.
+    final java.io.File file = java.io.File.createTempFile("CalculatorTest", ".txt");
+    try {
+      final StringBuilder text = new StringBuilder();
+      for (int i = 0; i < 5000; ++i) {
+        text.append("123456789012345678901234567890 + averyveryverylongidentifier\n");
+      }
+      final java.io.Writer out = new java.io.FileWriter(file);
+      out.write(text.toString());
+      out.close();
+      final CalculatorLexer fileLexer = new CalculatorLexer(file);
+      int tokenCount = 0;
+      while (fileLexer.token() != CalculatorToken.END_OF_INPUT) {
+        if (fileLexer.token() == CalculatorToken.NUMBER) {
+          assertEquals("123456789012345678901234567890", fileLexer.number().toInputString());
+        } else if (fileLexer.token() == CalculatorToken.IDENTIFIER) {
+          assertEquals("averyveryverylongidentifier", fileLexer.identifier());
+        }
+        ++tokenCount;
+        fileLexer.nextToken();
+      }
+      assertEquals(3 * 5000, tokenCount);
+    } finally {
+      file.delete();
+    }
+  }
+
   public void testArithmetic() {
     check("0", "0");
     check("1", "1");
@@ -112,6 +158,21 @@ public class CalculatorTest extends TestCase {
     RationalNode r = (RationalNode) makeRational(6, 8);
     assertEquals(IntegerNode.valueOf(3), r.numerator());
     assertEquals(IntegerNode.valueOf(4), r.denominator());
+    // The sign is kept in the numerator.
+    r = (RationalNode) makeRational(3, -4);
+    assertEquals(IntegerNode.valueOf(-3), r.numerator());
+    assertEquals(IntegerNode.valueOf(4), r.denominator());
+    // Mixed integer and rational arithmetic stays exact.
+    assertEquals(makeRational(7, 4), IntegerNode.ONE.plus(makeRational(3, 4)));
+    assertEquals(makeRational(1, 4), IntegerNode.ONE.subtract(makeRational(3, 4)));
+    assertEquals(makeRational(3, 2), IntegerNode.valueOf(2).times(makeRational(3, 4)));
+    assertEquals(makeRational(8, 3), IntegerNode.valueOf(2).divide(makeRational(3, 4)));
+    assertEquals(IntegerNode.ONE, makeRational(1, 4).plus(makeRational(3, 4)));
+    try {
+      makeRational(1, 0);
+      fail("made a rational with a zero denominator");
+    } catch (CalculatorError expected) {
+    }
   }
 
   private static NumberNode makeRational(long numerator, long denominator) {
@@ -272,6 +333,37 @@ public class CalculatorTest extends TestCase {
     check("true", "0x8000000000000000/-1 == -0x8000000000000000");
   }
 
+  public void testHugeIntegers() {
+    // Operands large enough for the transform-based multiplication and recursive division must give the same answers
+    // as BigInteger.
+    final java.util.Random random = new java.util.Random(42);
+    for (int bits : new int[] { 70000, 250000, 1000000 }) {
+      final java.math.BigInteger a = new java.math.BigInteger(bits, random);
+      final java.math.BigInteger b = new java.math.BigInteger(bits - 12345, random).negate();
+      assertEquals(a.multiply(b), org.jessies.calc.bigint.Multiplication.multiply(a, b));
+      assertEquals(b.multiply(b), org.jessies.calc.bigint.Multiplication.square(b));
+      final java.math.BigInteger product = a.multiply(b).add(java.math.BigInteger.valueOf(12345));
+      final java.math.BigInteger divisor = a.shiftRight(bits / 3);
+      assertEquals(java.util.Arrays.asList(product.divideAndRemainder(divisor)), java.util.Arrays.asList(org.jessies.calc.bigint.Division.divideAndRemainder(product, divisor)));
+      assertEquals(java.util.Arrays.asList(product.divideAndRemainder(b)), java.util.Arrays.asList(org.jessies.calc.bigint.Division.divideAndRemainder(product, b)));
+      assertEquals(product.toString(), org.jessies.calc.bigint.Radix.toString(product, 10));
+      assertEquals(b.toString(16), org.jessies.calc.bigint.Radix.toString(b, 16));
+    }
+    assertEquals(java.math.BigInteger.valueOf(3).pow(100000), org.jessies.calc.bigint.Multiplication.pow(java.math.BigInteger.valueOf(3), 100000));
+    assertEquals(java.math.BigInteger.valueOf(-12).pow(33333), org.jessies.calc.bigint.Multiplication.pow(java.math.BigInteger.valueOf(-12), 33333));
+
+    // The prime swing factorial against the obvious product.
+    java.math.BigInteger expected = java.math.BigInteger.ONE;
+    for (int n = 1; n <= 20000; ++n) {
+      expected = expected.multiply(java.math.BigInteger.valueOf(n));
+      if (n < 40 || n == 20000) {
+        assertEquals(expected, org.jessies.calc.bigint.Factorial.factorial(n));
+      }
+    }
+    check("true", "20000! / 19999! == 20000");
+    check("5565709", "IntegerLength(1000000!)");
+  }
+
   public void testAbs() {
     check("2", "Abs(2)");
     check("2", "Abs(-2)");
@@ -334,6 +426,21 @@ public class CalculatorTest extends TestCase {
     check("true", "IsPrime(5)");
     check("false", "IsPrime(-4)");
     check("true", "IsPrime(-5)");
+    check("false", "IsPrime(-9)");
+    // The whole 64-bit range, including strong pseudoprimes to several small bases.
+    check("true", "IsPrime(2147483647)");
+    check("true", "IsPrime(9223372036854775783)");
+    check("false", "IsPrime(9223372036854775807)");
+    check("false", "IsPrime(3215031751)");
+    check("false", "IsPrime(3825123056546413051)");
+    check("false", "IsPrime(318665857834031151167461)");
+    check("false", "IsPrime(-9223372036854775808)");
+    // Bignums.
+    check("true", "IsPrime(2^89 - 1)");
+    check("false", "IsPrime(2^89 + 1)");
+    check("true", "IsPrime(170141183460469231731687303715884105727)");
+    check("false", "IsPrime(2^64)");
+    check("false", "IsPrime((2^61 - 1)^2)");
   }
 
   public void testLog() {
@@ -386,6 +493,81 @@ public class CalculatorTest extends TestCase {
     check(c, "true", "Abs(Tan(45) - 1.0) < 0.01");
   }
 
+  public void testPrecision() {
+    final Calculator c = new Calculator();
+    c.setPrecision(50);
+    check(c, "3.1415926535897932384626433832795028841971693993751", "pi");
+    check(c, "2.7182818284590452353602874713526624977572470937000", "e");
+    check(c, "0.33333333333333333333333333333333333333333333333333", "1/3");
+    check(c, "2", "4/2");
+    check(c, "1.4142135623730950488016887242096980785696718753769", "Sqrt(2)");
+    check(c, "2.7182818284590452353602874713526624977572470937000", "Exp(1)");
+    check(c, "1.9700711140170469938888793522433231253169379853238E+434", "Exp(1000)");
+    check(c, "0.69314718055994530941723212145817656807550013436026", "LogE(2)");
+    check(c, "0.84147098480789650665250232163029899962256306079837", "Sin(1)");
+    check(c, "0.54030230586813971740093660744297660373231042061792", "Cos(1)");
+    check(c, "1.5574077246549022305069748074583601730872507723815", "Tan(1)");
+    check(c, "true", "Abs(Atan(1)*4 - pi) < 10^-45");
+    check(c, "true", "Abs(Asin(0.5)*6 - pi) < 10^-45");
+    check(c, "true", "Abs(Acos(-0.5)*3/2 - pi) < 10^-45");
+    check(c, "3", "Log10(1000)");
+    check(c, "100", "Log2(2^100)");
+    check(c, "10", "Log2(1024)");
+    check(c, "20", "Log10(10^20)");
+    check(c, "5.0759588975494567652918094795743369193055992828928E-435", "Exp(-1000)");
+    // Outside the real domain, we get the same answers as with doubles.
+    check(c, "NaN", "Sqrt(-1)");
+    check(c, "NaN", "Asin(2)");
+
+    c.setPrecision(1000);
+    check(c, "true", "Abs(Sin(pi))*10^990 < 1");
+    check(c, "true", "Abs(Sqrt(2)^2 - 2)*10^990 < 1");
+    check(c, "true", "Abs(Exp(LogE(10)) - 10)*10^990 < 1");
+    check(c, "true", "Abs(Tan(Atan(1/3))*3 - 1)*10^990 < 1");
+    check(c, "true", "Abs(Cos(Acos(0.999)) - 0.999)*10^990 < 1");
+
+    final Calculator degrees = new Calculator();
+    degrees.setPrecision(50);
+    degrees.setDegreesMode(true);
+    check(degrees, "true", "Abs(Sin(30) - 0.5) < 10^-45");
+    check(degrees, "true", "Abs(Atan(1) - 45) < 10^-45");
+
+    // Without a precision, we use doubles as before.
+    check(new Calculator(), "1.4142135623730951", "Sqrt(2)");
+  }
+
+  public void testBigRealConstants() throws Exception {
+    // Ask for a few digits first, so the 1000-digit values have to extend the cached sums.
+    assertEquals("3.1415926535897932385", BigRealConstant.PI.value(new MathContext(20)).toString());
+    assertEquals("2.7182818284590452354", BigRealConstant.E.value(new MathContext(20)).toString());
+    assertEquals("0.69314718055994530942", BigRealConstant.LN2.value(new MathContext(20)).toString());
+    assertEquals("2.3025850929940456840", BigRealConstant.LN10.value(new MathContext(20)).toString());
+    final MathContext mc = new MathContext(1000);
+    assertTrue(BigRealConstant.PI.value(mc).toString().endsWith("1927876611195909216420199"));
+    assertTrue(BigRealConstant.E.value(mc).toString().endsWith("6965521267154688957035035"));
+    assertTrue(BigRealConstant.LN2.value(mc).toString().endsWith("1649256872747782344535348"));
+    assertTrue(BigRealConstant.LN10.value(mc).toString().endsWith("8696511086257149219884998"));
+
+    // Concurrent requests for different precisions should all agree.
+    final BigDecimal[] results = new BigDecimal[8];
+    final Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override public void run() {
+          results[index] = BigRealConstant.PI.value(new MathContext(2000 + 500 * index));
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int i = 0; i < results.length; ++i) {
+      assertEquals(results[results.length - 1].round(new MathContext(2000 + 500 * i)), results[i]);
+    }
+  }
+
   public void testDigitCount() {
     check("[1, 0, 0, 0, 0, 0, 0, 0, 0, 0]", "DigitCount(0)");
     check("[0, 1, 1, 0, 0, 0, 0, 0, 0, 0]", "DigitCount(-12)");
@@ -394,6 +576,7 @@ public class CalculatorTest extends TestCase {
     check("[1, 1, 1, 1, 1, 1, 1, 1, 1, 1]", "DigitCount(1234567890)");
     check("[1, 2, 2, 2, 2, 2, 2, 2, 2, 2]", "DigitCount(9876543210123456789)");
     check("[30, 15, 19, 10, 10, 14, 19, 7, 14, 20]", "DigitCount(100!)");
+    check("[2, 0, 3, 3, 1, 2, 1, 3, 3, 1]", "DigitCount(-(2^63))");
     // Binary.
     check("[1, 0]", "DigitCount(0, 2)");
     check("[0, 1]", "DigitCount(1, 2)");
@@ -403,6 +586,10 @@ public class CalculatorTest extends TestCase {
     check("[0, 0, 3, 1, 0, 0, 0, 0]", "DigitCount(1234, 8)");
     // Hex.
     check("[0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 2, 3, 1]", "DigitCount(0xdeadbeef, 16)");
+    // Other bases work for bignums as well as fixnums.
+    check("[30, 1, 0]", "DigitCount(3^30, 3)");
+    check("[50, 1, 0]", "DigitCount(3^50, 3)");
+    check("[50, 1, 0]", "DigitCount(-(3^50), 3)");
   }
 
   public void testDivideByZero() {
@@ -449,6 +636,10 @@ public class CalculatorTest extends TestCase {
     check("[1, 17]", "Divisors(17)");
     check("[1]", "Divisors(1)");
     check("[]", "Divisors(0)");
+    check("[1, 2, 3, 4, 6, 12]", "Divisors(12)");
+    check("[1, 2147483647]", "Divisors(2147483647)");
+    check("[1, 4294967291, 4294967311, 18446744116659224501]", "Divisors(4294967291 * 4294967311)");
+    check("340032", "Length(Divisors(25!))");
   }
 
   public void testFactorial() {
@@ -474,6 +665,18 @@ public class CalculatorTest extends TestCase {
     check("[17]", "Factors(17)");
     check("[]", "Factors(1)");
     check("[]", "Factors(0)");
+    check("[-1]", "Factors(-1)");
+    check("[2147483647]", "Factors(2147483647)");
+    check("[46327, 46337]", "Factors(46337 * 46327)");
+    check("[2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2]", "Factors(-(-2^63))");
+    check("[-2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2]", "Factors(-2^63)");
+    // Large semiprimes, with and without bignums.
+    check("[3037000453, 3037000493]", "Factors(3037000453 * 3037000493)");
+    check("[4294967291, 4294967311]", "Factors(18446744116659224501)");
+    check("[1000000007, 1000000009, 1000000021]", "Factors(1000000007 * 1000000009 * 1000000021)");
+    check("[3, 5, 17, 257, 641, 65537, 6700417]", "Factors(2^64 - 1)");
+    check("[3, 3, 7, 11, 13, 17, 19, 8191, 2147483647]", "Factors(3^2 * 7 * 11 * 13 * 17 * 19 * 8191 * 2147483647)");
+    check("[99999999977, 100000000003]", "Factors(99999999977 * 100000000003)");
   }
 
   public void testFilter() {
@@ -505,6 +708,11 @@ public class CalculatorTest extends TestCase {
     check("2", "IntegerLength(9, 8)");
     check("2", "IntegerLength(255, 16)");
     check("3", "IntegerLength(256, 16)");
+    check("1", "IntegerLength(0)");
+    check("19", "IntegerLength(-(2^63))");
+    check("31", "IntegerLength(3^30, 3)");
+    check("51", "IntegerLength(3^50, 3)");
+    check("51", "IntegerLength(-(3^50), 3)");
   }
 
   public void testIntegerPart() {
@@ -561,6 +769,17 @@ public class CalculatorTest extends TestCase {
     check("385", "Sum(i^2, i, 0, 10)");
     check(0.0, "Sum(1/i!, i, 0, 30)-e", 0.000001);
     // FIXME: failure test for min > max.
+
+    // Polynomials are summed in closed form, so huge ranges are fine.
+    check("333333333833333333500000000", "Sum(i^2, i, 1, 10^9)");
+    check("15386020", "Sum((3*i^3 - 2*i + 7)*(i - 5), i, -20, 30)");
+    check("true", "Sum(i^5 - 3*i, i, -7, 12) == Total(Map(i^5 - 3*i, i, Range(-7, 12)))");
+    check("0", "Sum(i^7, i, -100, 100)");
+    // Anything else is summed term by term, exactly.
+    check("4950", "Sum(Mod(i, 100), i, 1, 100)");
+    check("18446744073709551618", "Sum(2^62 + Mod(i, 2), i, 1, 4)");
+    check("-18446744073709551618", "Sum(-(2^62) - Mod(i, 2), i, 1, 4)");
+    check("3.0", "Sum(i/2, i, 1, 3)");
   }
 
   public void testPermutations() {
@@ -570,6 +789,24 @@ public class CalculatorTest extends TestCase {
     check("5040", "nPr(10, 4)");
     check("22100", "nCr(52, 3)");
     check("132600", "nPr(52, 3)");
+    check("1", "nCr(0, 0)");
+    check("0", "nCr(3, 5)");
+    check("0", "nPr(3, 5)");
+    check("166666166667000000", "nCr(10^6, 3)");
+    check("999997000002000000", "nPr(10^6, 3)");
+    // Results that only just fit, or only just don't fit, in a long.
+    check("9223372036854775807", "nCr(9223372036854775807, 1)");
+    check("2305843008139952128", "nCr(2^31, 2)");
+    check("4611686016279904256", "nPr(2^31, 2)");
+    check("9223372034707292160", "nCr(2^32, 2)");
+    check("18446744069414584320", "nPr(2^32, 2)");
+    check("true", "nCr(2^300, 1) == 2^300");
+    check("true", "nCr(2^100, 3) == 2^100*(2^100-1)*(2^100-2)/6");
+    check("100891344545564193334812497256", "nCr(100, 50)");
+    check("true", "nCr(2000, 700) == 2000!/(700!*1300!)");
+    check("true", "nCr(20000, 19000) == 20000!/(1000!*19000!)");
+    check("true", "nCr(30000, 100) == nPr(30000, 100)/100!");
+    check("true", "nPr(20000, 15000) == 20000!/5000!");
   }
 
   public void testProduct() {
@@ -577,6 +814,9 @@ public class CalculatorTest extends TestCase {
     check("3628800", "Product(x, x, 1, 10.2)");
     check("518400", "Product(i^2, i, 1, 6)");
     // FIXME: failure test for min > max.
+    check("265252859812191058636308480000000", "Product(i, i, 1, 30)");
+    check("0", "Product(i, i, -5, 5)");
+    check("true", "Product(i, i, 1, 500) == 500!");
   }
 
   public void testAns() {
@@ -601,6 +841,89 @@ public class CalculatorTest extends TestCase {
     check(c, "4", "2*a");
   }
 
+  public void testLocalVariables() {
+    final Calculator c = new Calculator();
+    check(c, "5", "x = 5");
+    // Loop variables are local to the loop...
+    check(c, "[2, 4]", "Map(x*2, x, [1, 2])");
+    check(c, "6", "Sum(x, x, 1, 3)");
+    check(c, "5", "x");
+    // ...but other variables are still global.
+    check(c, "[1, 2]", "Map(y = i, i, [1, 2])");
+    check(c, "2", "y");
+    check(c, "i", "i");
+    try {
+      c.evaluate("Map(pi, pi, [1, 2])");
+      fail("constants can't be loop variables");
+    } catch (CalculatorError expected) {
+    }
+  }
+
+  public void testParseCache() {
+    final Calculator c = new Calculator();
+    check(c, "3", "1 + 2");
+    check(c, "3", "1 + 2");
+    check(c, "[1, 4, 9]", "Map(x^2, x, [1, 2, 3])");
+    check(c, "[1, 4, 9]", "Map(x^2, x, [1, 2, 3])");
+    assertEquals(2, c.getParseCacheHitCount());
+    assertEquals(2, c.getParseCacheMissCount());
+
+    // Assigning to a variable discards the expressions that read it...
+    check(c, "Plus(a, 0)", "a + 0");
+    check(c, "2", "a = 2");
+    check(c, "2", "a + 0");
+    assertEquals(5, c.getParseCacheMissCount());
+    // ...but not those that merely bind a variable of the same name.
+    check(c, "1", "x = 1");
+    check(c, "[1, 4, 9]", "Map(x^2, x, [1, 2, 3])");
+    assertEquals(3, c.getParseCacheHitCount());
+
+    // The cache is bounded, with the least-recently used entries evicted first.
+    c.setParseCacheSize(1);
+    check(c, "4", "2 + 2");
+    check(c, "5", "2 + 3");
+    check(c, "5", "2 + 3");
+    check(c, "4", "2 + 2");
+    assertEquals(4, c.getParseCacheHitCount());
+    assertEquals(9, c.getParseCacheMissCount());
+  }
+
+  public void testSharedCalculator() throws Exception {
+    // A single Calculator should be usable from several threads at once.
+    final Calculator c = new Calculator();
+    final CompiledExpression f = c.compile("Sum(i*n, i, 1, 100)");
+    final Throwable[] failures = new Throwable[8];
+    final Thread[] threads = new Thread[failures.length];
+    for (int t = 0; t < threads.length; ++t) {
+      final int id = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 200; ++i) {
+              check(c, "[" + id + ", " + (2 * id) + "]", "Map(x*" + id + ", x, [1, 2])");
+              check(c, Integer.toString(5050 * id), "Sum(x*" + id + ", x, 1, 100)");
+              assertEquals(Integer.toString(5050 * id), f.evaluate(IntegerNode.valueOf(id)).toInputString());
+              check(c, Integer.toString(id), "v" + id + " = " + id);
+            }
+          } catch (Throwable th) {
+            failures[id] = th;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Throwable failure : failures) {
+      if (failure != null) {
+        throw new AssertionFailedError(failure.toString());
+      }
+    }
+    check(c, "x", "x");
+    check(c, "7", "v7");
+  }
+
   public void testLCM() {
     check("0", "LCM(0, 0)");
     check("0", "LCM(12, 0)");
@@ -645,6 +968,22 @@ public class CalculatorTest extends TestCase {
     check("[1, 3, 5]", "Range(1, 6, 2)");
     check("[4, 3, 2, 1]", "Range(4, 1, -1)");
     check("[1.2, 1.5, 1.8, 2.1]", "Range(1.2, 2.1, 0.3)");
+    check("[10, 7, 4, 1]", "Range(10, 0, -3)");
+    check("[]", "Range(1, 6, -1)");
+    check("[1, 3, 5]", "Reverse(Range(5, 1, -2))");
+    check("true", "Range(3) == [1, 2, 3]");
+    // Integer ranges are lazy, so long ones don't need a list's worth of memory.
+    check("100000000", "Length(Range(10^8))");
+    check("500000500000", "Total(Range(10^6))");
+    check("333333833333500000", "Total(Map(x^2, x, Range(10^6)))");
+    check("500000", "Length(Filter(Mod(x, 2) == 0, x, Range(10^6)))");
+    check("[4, 16, 36]", "Map(x^2, x, Filter(Mod(x, 2) == 0, x, Range(6)))");
+    check("Plus(Plus(Plus(0, y), 1), 2)", "Total(Map(x, x, [y, 1, 2]))");
+    try {
+      new Calculator().evaluate("Range(10^10)");
+      fail("made a range with more elements than a list can have");
+    } catch (CalculatorError expected) {
+    }
   }
 
   public void testReverse() {
@@ -658,6 +997,12 @@ public class CalculatorTest extends TestCase {
     check("0", "Total([])");
     check("123", "Total([123])");
     check("6", "Total([1, 2, 3])");
+    // Integers overflowing a fixnum part-way through.
+    check("9223372036854775808", "Total([2^62, 2^62, 2^62, -(2^62)])");
+    check("0", "Total([2^63, -1, -(2^63), 1])");
+    // Exact runs mixed with other elements.
+    check("3.5", "Total([1/2, 1, 2])");
+    check("6.5", "Total([1, 2, 0.5, 3])");
   }
 
   public void testMap() {
@@ -669,6 +1014,24 @@ public class CalculatorTest extends TestCase {
     check("[1, 1, 2, 6, 24, 120, 720, 5040, 40320, 362880, 3628800]", "Map(x!, x, Range(0, 10))");
   }
 
+  public void testParallelMap() {
+    check("[1, 4, 9]", "ParallelMap(x^2, x, Range(3))");
+    check("[2, 4]", "ParallelFilter(Mod(x, 2) == 0, x, Range(5))");
+    // Long enough to be split up, and the results must still come back in order.
+    check("true", "ParallelMap(x^2 - 3*x, x, Range(-5000, 5000)) == Map(x^2 - 3*x, x, Range(-5000, 5000))");
+    check("true", "ParallelFilter(IsPrime(x), x, Range(10000)) == Filter(IsPrime(x), x, Range(10000))");
+    check("1229", "Length(ParallelFilter(IsPrime(x), x, Range(10000)))");
+    try {
+      new Calculator().evaluate("ParallelMap(1/(x - 7777), x, Range(10000))");
+      fail("division by zero in a worker went unreported");
+    } catch (CalculatorError expected) {
+    }
+    // Long exact totals are added up in parallel, but must give exactly the sequential answer.
+    check("50000005000000", "Total(Range(10^7))");
+    check("333383335000", "Total(ParallelMap(x^2, x, Range(10^4)))");
+    check("true", "Total(Map(1/x, x, Range(2000))) == Sum(1/x, x, 1, 2000)");
+  }
+
   public void testIdentityMatrix() {
     check("[]", "IdentityMatrix(-1)");
     check("[]", "IdentityMatrix(0)");
@@ -735,6 +1098,527 @@ public class CalculatorTest extends TestCase {
     check("[[1, 2]]", "Transpose([[1], [2]])");
     check("[[1, 3], [2, 4]]", "Transpose([[1, 2], [3, 4]])");
     check("[[1, 0], [2, -6], [3, 0]]", "Transpose([[1, 2, 3], [0, -6, 0]])");
+    check("[[a, c], [b, d]]", "Transpose([[a, b], [c, d]])");
+  }
+
+  public void testMatrixNode() {
+    // Results are dense matrices, but still behave like lists of lists.
+    final Calculator c = new Calculator();
+    check(c, "[[2, 0], [0, 2]]", "m = 2*IdentityMatrix(2)");
+    check(c, "2", "Length(m)");
+    check(c, "[2, 2]", "Dimensions(m)");
+    check(c, "true", "m == [[2, 0], [0, 2]]");
+    check(c, "[[0, 2], [2, 0]]", "Reverse(m)");
+    check(c, "[[4, 0], [0, 4]]", "m*m");
+
+    // Overflowing longs fall back to bignums.
+    check("[[18446744073709551614, 0], [0, 2]]", "[[9223372036854775807, 0], [0, 1]] * (2*IdentityMatrix(2))");
+    check("[[-9223372036854775809]]", "[[-9223372036854775807]] - 2");
+    check("[[85070591730234615847396907784232501249]]", "[[9223372036854775807]] * [[9223372036854775807]]");
+
+    // Mixed element types are still multiplied exactly, element by element.
+    check("[[2.0, 3.5]]", "[[1, 0.5]] * [[2, 3], [0, 1]]");
+    check("[[1.5]]", "[[Sqrt(0.25), 1]] * [[1], [1]]");
+
+    // Non-numeric matrices can't be multiplied.
+    try {
+      c.evaluate("[[a]] * [[b]]");
+      fail("multiplied non-numeric matrices");
+    } catch (CalculatorError expected) {
+    }
+
+    // The double kernel rounds exactly as element-by-element RealNode arithmetic would.
+    final int n = 70;
+    final java.util.Random random = new java.util.Random(42);
+    final NumberNode[] a = new NumberNode[n * n];
+    final NumberNode[] b = new NumberNode[n * n];
+    final NumberNode[] expected = new NumberNode[n * n];
+    for (int i = 0; i < a.length; ++i) {
+      a[i] = new RealNode(random.nextDouble() - 0.5);
+      b[i] = new RealNode(random.nextDouble() * 1e6);
+    }
+    MatrixNode.timesNumbers(a, b, expected, n, n, 0, n);
+    final MatrixNode product = MatrixNode.fromNumbers(n, n, a).times(MatrixNode.fromNumbers(n, n, b));
+    assertNotNull(product.doubles());
+    assertEquals(MatrixNode.fromNumbers(n, n, expected), product);
+    assertEquals(product, product.times(MatrixNode.identity(n)).transpose().transpose());
+  }
+
+  public void testLinearAlgebra() {
+    check("-2", "Det([[1, 2], [3, 4]])");
+    check("0", "Det([[1, 2], [2, 4]])");
+    check("1", "Det(IdentityMatrix(5))");
+    check("-306", "Det([[6, 1, 1], [4, -2, 5], [2, 8, 7]])");
+    // Pivoting past a zero on the diagonal.
+    check("-1", "Det([[0, 1], [1, 0]])");
+    check(-2.0, "Det([[1.0, 2], [3, 4]])", 1e-12);
+
+    check("[[-2, 1], [(3/2), (-1/2)]]", "Inverse([[1, 2], [3, 4]])");
+    check("true", "[[6, 1, 1], [4, -2, 5], [2, 8, 7]] * Inverse([[6, 1, 1], [4, -2, 5], [2, 8, 7]]) == IdentityMatrix(3)");
+    check("[[1, 2], [3, 4]]", "Inverse(Inverse([[1, 2], [3, 4]]))");
+    check("[[0, 1], [1, 0]]", "Inverse([[0, 1], [1, 0]])");
+    check("[[0.5, 0.0], [0.0, 0.25]]", "Inverse([[2.0, 0], [0, 4]])");
+    check(-0.5, "Det(Inverse([[1.0, 2], [3, 4]]))", 1e-12);
+
+    check("[1, 2]", "LinearSolve([[1, 1], [1, -1]], [3, -1])");
+    check("[(1/2), (1/2)]", "LinearSolve([[1, 1], [1, -1]], [1, 0])");
+    check("[[1, 0], [0, 1]]", "LinearSolve([[2, 0], [0, 3]], [[2, 0], [0, 3]])");
+
+    check("[[1, 1], [1, 0]]", "MatrixPower([[1, 1], [1, 0]], 1)");
+    check("[[89, 55], [55, 34]]", "MatrixPower([[1, 1], [1, 0]], 10)");
+    check("[[1, 0], [0, 1]]", "MatrixPower([[1, 1], [1, 0]], 0)");
+    check("[[34, -55], [-55, 89]]", "MatrixPower([[1, 1], [1, 0]], -10)");
+
+    // Rationals are handled exactly too.
+    final MatrixNode h = MatrixNode.fromNumbers(2, 2, new NumberNode[] { makeRational(1, 2), makeRational(1, 3), makeRational(1, 3), makeRational(1, 4) });
+    assertEquals(makeRational(1, 72), LinearAlgebra.det(h));
+    assertEquals(MatrixNode.identity(2), h.times(LinearAlgebra.inverse(h)));
+
+    for (String input : new String[] { "Inverse([[1, 2], [2, 4]])", "Inverse([[1.0, 2], [2, 4]])", "Det([[1, 2, 3]])", "LinearSolve([[1, 2], [2, 4]], [1, 1])", "Inverse([[a]])" }) {
+      try {
+        new Calculator().evaluate(input);
+        fail(input + " should have failed");
+      } catch (CalculatorError expected) {
+      }
+    }
+
+    // Large products and eliminations are split across threads; the answers mustn't change.
+    final int n = 150;
+    final java.util.Random random = new java.util.Random(42);
+    final NumberNode[] a = new NumberNode[n * n];
+    for (int i = 0; i < a.length; ++i) {
+      a[i] = IntegerNode.valueOf(random.nextInt(21) - 10);
+    }
+    final NumberNode[] expected = new NumberNode[n * n];
+    MatrixNode.timesNumbers(a, a, expected, n, n, 0, n);
+    final MatrixNode m = MatrixNode.fromNumbers(n, n, a);
+    assertEquals(MatrixNode.fromNumbers(n, n, expected), m.times(m));
+    final MatrixNode small = MatrixNode.fromNumbers(40, 40, java.util.Arrays.copyOf(a, 40 * 40));
+    assertEquals(MatrixNode.identity(40), small.times(LinearAlgebra.inverse(small)));
+  }
+
+  // Returns its argument, counting how many times it's been applied.
+  private static class CountingFunction extends CalculatorFunction {
+    private final int[] count;
+
+    CountingFunction(int[] count) {
+      super("Counting", 1);
+      this.count = count;
+    }
+
+    public Node apply(Calculator environment) {
+      ++count[0];
+      return arg(environment, 0);
+    }
+
+    public String syntax() { return "(x)"; }
+    public String description() { return "Counts its applications."; }
+  }
+
+  public void testCommonSubexpressions() {
+    final Calculator c = new Calculator();
+    check(c, "0.5", "x = 0.5");
+    final double sin = Math.sin(0.5);
+    assertEquals(sin * sin + sin * Math.cos(0.5) + sin, ((NumberNode) c.evaluate("Sin(x)^2 + Sin(x)*Cos(x) + Sin(x)")).toReal().doubleValue(), 1e-15);
+
+    // The shared form prints and compares like the original.
+    final Node expression = new CalculatorParser(c, "Sin(x)^2 + Sin(x)*Cos(x) + Sin(x)").parse();
+    final Node shared = CommonSubexpressions.eliminate(expression);
+    assertTrue(shared instanceof CommonSubexpressions.Let);
+    assertEquals(expression.toInputString(), shared.toInputString());
+    assertEquals(expression.evaluate(c), shared.evaluate(c));
+    final Node unshared = new CalculatorParser(c, "Sin(x) + Cos(x)").parse();
+    assertSame(unshared, CommonSubexpressions.eliminate(unshared));
+    assertEquals(expression.hashCode(), new CalculatorParser(c, "Sin(x)^2 + Sin(x)*Cos(x) + Sin(x)").parse().hashCode());
+
+    // Each shared subexpression is evaluated once per evaluation.
+    final int[] count = new int[1];
+    final CalculatorFunction plus = c.getFunction("Plus");
+    final CalculatorFunction times = c.getFunction("Times");
+    final Node term = new CountingFunction(count).bind(new CalculatorVariableNode("i"));
+    final Node twice = plus.bind(term, times.bind(IntegerNode.valueOf(2), term));
+    c.evaluate("i = 3");
+    assertEquals(IntegerNode.valueOf(9), CommonSubexpressions.eliminate(twice).evaluate(c));
+    assertEquals(1, count[0]);
+    // ...and once per term in a Sum.
+    count[0] = 0;
+    check("165", c.getFunction("Sum").bind(twice, new CalculatorVariableNode("i"), IntegerNode.ONE, IntegerNode.valueOf(10)).evaluate(c).toInputString());
+    assertEquals(10, count[0]);
+
+    // Random isn't shared.
+    check("false", "Random() == Random()");
+    // Expressions with assignments are left alone.
+    check(c, "4", "(z = 2) + (z = 2)");
+  }
+
+  public void testCompiledExpression() {
+    final Calculator c = new Calculator();
+    final CompiledExpression f = c.compile("x^2 + y");
+    assertEquals(java.util.Arrays.asList("x", "y"), f.getVariableNames());
+    assertEquals("7", f.evaluate(IntegerNode.valueOf(2), IntegerNode.valueOf(3)).toInputString());
+    assertEquals("19", f.evaluate(IntegerNode.valueOf(4), IntegerNode.valueOf(3)).toInputString());
+    // The bindings don't outlive the evaluation.
+    check(c, "x", "x");
+
+    // Variables bound by Sum (or Map, etc.) aren't parameters.
+    final CompiledExpression g = c.compile("Sum(i*n, i, 1, 3)");
+    assertEquals(java.util.Arrays.asList("n"), g.getVariableNames());
+    assertEquals("12", g.evaluate(IntegerNode.valueOf(2)).toInputString());
+
+    // Free variables see later assignments; constants aren't parameters.
+    final CompiledExpression h = c.compile("a*pi/pi");
+    assertEquals(java.util.Arrays.asList("a"), h.getVariableNames());
+    check(c, "3", "a = 3");
+    assertEquals(3.0, ((NumberNode) h.evaluate()).toReal().doubleValue(), 0.000001);
+
+    // Assignment targets aren't parameters, and assignments stick.
+    final CompiledExpression assignment = c.compile("b = 2*z");
+    assertEquals(java.util.Arrays.asList("z"), assignment.getVariableNames());
+    assignment.evaluate(IntegerNode.valueOf(5));
+    check(c, "10", "b");
+  }
+
+  public void testCompiledRealExpression() {
+    final Calculator c = new Calculator();
+    final CalculatorParser parser = new CalculatorParser(c, "Sin(x)^2 + Cos(x)^2 + y/3");
+    final CompiledRealExpression f = CompiledRealExpression.compile(c, parser.parse(), "x", "y");
+    assertEquals(2.0, f.evaluate(new double[] { 0.7, 3.0 }), 0.000001);
+    // Functions without a double implementation can't be compiled.
+    assertNull(CompiledRealExpression.compile(c, new CalculatorParser(c, "IsPrime(x)").parse(), "x"));
+  }
+
+  private static final String SCRIPT =
+      "a = 2; b = 3\n" +
+      "\n" +
+      "c = a*b\n" +
+      "d = Sum(i, i, 1,\n" +
+      "        10)\n" +
+      "1 +\n" +
+      "a = 10;;\n" +
+      "Ans + c\n" +
+      "f = a + d; b = f - b\n";
+
+  private String runScript(Calculator c, String script, boolean parallel) throws java.io.IOException {
+    final StringBuilder result = new StringBuilder();
+    new CalculatorScript(c, new java.io.StringReader(script), new CalculatorScriptListener() {
+      public void statementEvaluated(int lineNumber, String statement, Node value) {
+        result.append(lineNumber + ": " + statement + " => " + value.toInputString() + "\n");
+      }
+      public void statementFailed(int lineNumber, String statement, CalculatorError error) {
+        result.append(lineNumber + ": " + statement + " failed\n");
+      }
+    }, parallel).run();
+    return result.toString();
+  }
+
+  public void testEvaluateScript() throws Exception {
+    final String expected =
+        "1: a = 2 => 2\n" +
+        "1: b = 3 => 3\n" +
+        "3: c = a*b => 6\n" +
+        "4: d = Sum(i, i, 1,\n        10) => 55\n" +
+        "6: 1 + failed\n" +
+        "7: a = 10 => 10\n" +
+        "8: Ans + c => 16\n" +
+        "9: f = a + d => 65\n" +
+        "9: b = f - b => 62\n";
+    assertEquals(expected, runScript(new Calculator(), SCRIPT, false));
+    // Statements run out of order must still see the right values, and be reported in order.
+    assertEquals(expected, runScript(new Calculator(), SCRIPT, true));
+    final StringBuilder longScript = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      longScript.append("x" + i + " = " + i + "^2\n");
+      longScript.append("y" + i + " = x" + i + " + " + (i > 0 ? "y" + (i - 1) : "0") + "\n");
+    }
+    final Calculator c = new Calculator();
+    runScript(c, longScript.toString(), true);
+    check(c, "332833500", "y999");
+
+    // Errors that aren't CalculatorErrors are reported too, without losing the rest of the script.
+    final String failing = "u = 1\nSin(10^400)\nMap(x^(-1), x, [0.0])\nv = u + 1\n";
+    final String failures =
+        "1: u = 1 => 1\n" +
+        "2: Sin(10^400) failed\n" +
+        "3: Map(x^(-1), x, [0.0]) failed\n" +
+        "4: v = u + 1 => 2\n";
+    assertEquals(failures, runScript(new Calculator(), failing, false));
+    assertEquals(failures, runScript(new Calculator(), failing, true));
+
+    // The public entry point.
+    final Calculator d = new Calculator();
+    d.evaluateScript(new java.io.StringReader("p = 6; q = p*7"), new CalculatorScriptListener() {
+      public void statementEvaluated(int lineNumber, String statement, Node value) {
+      }
+      public void statementFailed(int lineNumber, String statement, CalculatorError error) {
+        fail();
+      }
+    });
+    check(d, "42", "q");
+    check(d, "42", "Ans");
+  }
+
+  public void testEvaluateBatch() {
+    final Calculator c = new Calculator();
+    final int n = 50000;
+    final double[] price = new double[n];
+    final double[] discount = new double[n];
+    final long[] qty = new long[n];
+    for (int i = 0; i < n; ++i) {
+      price[i] = 0.25 * i;
+      discount[i] = (i % 10) / 100.0;
+      qty[i] = i % 7;
+    }
+    final java.util.HashMap<String, Object> columns = new java.util.HashMap<String, Object>();
+    columns.put("price", price);
+    columns.put("discount", discount);
+    columns.put("qty", qty);
+
+    // All double columns: evaluated on doubles, in blocks.
+    final double[] net = (double[]) c.evaluateBatch("price*(1 - discount) + Sqrt(price)", columns);
+    assertEquals(n, net.length);
+    for (int i = 0; i < n; i += 997) {
+      assertEquals(price[i] * (1 - discount[i]) + Math.sqrt(price[i]), net[i], 0.0);
+    }
+
+    // An integer column means exact arithmetic, row by row.
+    final Node[] total = (Node[]) c.evaluateBatch("price*qty*(1 - discount)", columns);
+    assertEquals(n, total.length);
+    assertEquals(price[1234] * qty[1234] * (1 - discount[1234]), ((RealNode) total[1234]).doubleValue(), 0.0);
+    final Node[] squares = (Node[]) c.evaluateBatch("qty^2 + k", java.util.Collections.<String, Object>singletonMap("qty", new long[] { 1, 2, 3 }));
+    assertEquals("Plus(1, k)", squares[0].toInputString());
+    assertEquals("Plus(9, k)", squares[2].toInputString());
+
+    // Variables without columns keep their values, and Node columns can hold anything.
+    c.evaluate("rate = 3");
+    final java.util.HashMap<String, Object> mixed = new java.util.HashMap<String, Object>();
+    mixed.put("x", new Node[] { IntegerNode.valueOf(2), RationalNode.valueOf(IntegerNode.ONE, IntegerNode.valueOf(2)) });
+    assertEquals("[6, (3/2)]", java.util.Arrays.asList((Node[]) c.evaluateBatch("rate*x", mixed)).toString());
+
+    try {
+      mixed.put("y", new double[] { 1.0 });
+      c.evaluateBatch("x + y", mixed);
+      fail();
+    } catch (CalculatorError expected) {
+      assertTrue(expected.getMessage().contains("rows"));
+    }
+    try {
+      mixed.put("y", new long[] { 1, 2 });
+      mixed.put("X", new long[] { 3, 4 });
+      c.evaluateBatch("x + y", mixed);
+      fail();
+    } catch (CalculatorError expected) {
+      assertTrue(expected.getMessage().contains("more than one column"));
+    }
+    try {
+      c.evaluateBatch("x = 3", java.util.Collections.<String, Object>singletonMap("x", new double[] { 1.0, 2.0 }));
+      fail();
+    } catch (CalculatorError expected) {
+      assertTrue(expected.getMessage().contains("assign"));
+    }
+    assertNull(c.getVariable("x"));
+  }
+
+  public void testRealSeries() {
+    // Machine-precision real ranges take the double fast path; other ranges must stay exact.
+    check("21.0", "Sum(x^2, x, Sqrt(0.25), 3.5)");
+    check("21.00", "Sum(x^2, x, 0.5, 3.5)");
+    check("14", "Sum(x^2, x, 1, 3)");
+    check(Math.sin(0.5) * Math.sin(1.5), "Product(Sin(x), x, Sqrt(0.25), 2)", 0.000001);
+  }
+
+  private static class TestPlotter implements CalculatorPlotter {
+    private CalculatorPlotData plotData;
+    public void showPlot(CalculatorPlotData plotData) {
+      this.plotData = plotData;
+    }
+  }
+
+  public void testPlot() {
+    final Calculator c = new Calculator();
+    final TestPlotter plotter = new TestPlotter();
+    c.setPlotter(plotter);
+    check(c, "true", "Plot(Sin(x), x, 0, 3)");
+    final double[] fastData = plotter.plotData.data;
+    assertEquals(0.0, fastData[0], 0.000001);
+    assertEquals(Math.sin(1.5), fastData[fastData.length / 2], 0.000001);
+    assertEquals(1.0, plotter.plotData.yMax, 0.001);
+    // Max has no double implementation, so this uses the ordinary evaluator; the results should agree.
+    check(c, "true", "Plot(Max(Sin(x), -2), x, 0, 3)");
+    for (int i = 0; i < fastData.length; ++i) {
+      assertEquals(fastData[i], plotter.plotData.data[i], 0.000001);
+    }
+
+    // Explicit resolution, enough to be split across workers.
+    check(c, "true", "Plot(x^2, x, -1, 1, 4000)");
+    assertEquals(4000, plotter.plotData.data.length);
+    assertEquals(1.0, plotter.plotData.data[0], 0.000001);
+    assertEquals(0.0, plotter.plotData.yMin, 0.000001);
+
+    // The default resolution is limited just like an explicit one.
+    c.setPlotResolution(2);
+    check(c, "true", "Plot(x, x, 0, 1)");
+    assertEquals(2, plotter.plotData.data.length);
+    try {
+      c.setPlotResolution(0);
+      fail("plot resolution 0 accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testPlotRefinement() {
+    final Calculator c = new Calculator();
+    final TestPlotter plotter = new TestPlotter();
+    c.setPlotter(plotter);
+    c.setPlotRefinement(true);
+    // The pole at x=1 falls between pixels 49 and 50.
+    check(c, "true", "Plot((x+1)^2/(x-1), x, 0, 2.01, 100)");
+    int breaks = 0;
+    for (double y : plotter.plotData.data) {
+      if (Double.isNaN(y)) {
+        ++breaks;
+      }
+    }
+    assertEquals(1, breaks);
+    assertTrue(Double.isNaN(plotter.plotData.data[50]));
+    // A smooth curve isn't broken anywhere.
+    check(c, "true", "Plot(Sin(x), x, 0, 10, 100)");
+    for (double y : plotter.plotData.data) {
+      assertFalse(Double.isNaN(y));
+    }
+  }
+
+  public void testPlotRange() {
+    final Calculator c = new Calculator();
+    final TestPlotter plotter = new TestPlotter();
+    c.setPlotter(plotter);
+    // The peak at x=0.5005 falls between samples, which only reach 0.8, but the range should include it.
+    check(c, "true", "Plot(1/(1 + (1000*(x - 0.5005))^2), x, 0, 1, 100)");
+    assertEquals(1.0, plotter.plotData.yMax, 0.01);
+    assertTrue(plotter.plotData.yMax >= 1.0);
+    assertEquals(0.0, plotter.plotData.yMin, 0.01);
+    // The pole is left out of the range, but the samples either side of it aren't.
+    check(c, "true", "Plot((x+1)^2/(x-1), x, 0, 2.01, 100)");
+    assertTrue(plotter.plotData.yMax < 1000 && plotter.plotData.yMin > -1000);
+    for (double y : plotter.plotData.data) {
+      assertTrue(y >= plotter.plotData.yMin && y <= plotter.plotData.yMax);
+    }
+  }
+
+  public void testIntervals() {
+    check("Interval(1.0, 3.0)", "Interval(1, 3)");
+    check("Interval(4.0, 6.0)", "Interval(1, 2) + Interval(3, 4)");
+    check("Interval(-3.0, 1.0)", "Interval(1, 2) - Interval(1, 4)");
+    check("Interval(-2.0, 4.0)", "2*Interval(-1, 2)");
+    check("Interval(0.25, 1.5)", "Interval(1, 3)/Interval(2, 4)");
+    check("Interval(-Infinity, Infinity)", "1/Interval(-1, 1)");
+    check("Interval(0.0, 4.0)", "Interval(-1, 2)^2");
+    check("Interval(-1.0, 8.0)", "Interval(-1, 2)^3");
+    check("Interval(0.0, 2.0)", "Sqrt(Interval(-1, 4))");
+    check("Interval(-1.0, 1.0)", "Sin(Interval(0, 10))");
+    check("Interval(1.0, 3.0)", "Abs(Interval(-2, 1)) + 1");
+    // Inexact results are rounded outward.
+    final IntervalNode third = IntervalNode.valueOf(makeRational(1, 3));
+    assertTrue(third.lo() < 1.0/3 && third.hi() > 1.0/3);
+    assertTrue(third.hi() - third.lo() < 1e-15);
+    // Functions that can't handle intervals say so, rather than using the midpoint.
+    try {
+      new Calculator().evaluate("Max(Interval(1, 2), 3)");
+      fail("Max accepted an interval");
+    } catch (CalculatorError expected) {
+    }
+
+    // Compiled expressions give bounds on every value in the interval.
+    final Calculator c = new Calculator();
+    final CompiledRealExpression expression = CompiledRealExpression.compile(c, parse("Sin(x)*Exp(-x/10) + x^2/100 - Sqrt(x)"), "x");
+    final double[] x = new double[1];
+    for (double lo = 0.0; lo < 10.0; lo += 0.37) {
+      final double hi = lo + 0.37;
+      final IntervalNode bounds = expression.evaluate(new IntervalNode[] { IntervalNode.valueOf(lo, hi) });
+      for (int i = 0; i <= 100; ++i) {
+        x[0] = Math.min(lo + (hi - lo) * i / 100, hi);
+        final double y = expression.evaluate(x);
+        assertTrue(y >= bounds.lo() && y <= bounds.hi());
+      }
+    }
+  }
+
+  public void testDerivatives() {
+    check("Times(2, x)", "D(x^2, x)");
+    check("cos(x)", "D(Sin(x), x)");
+    check("0", "D(y^2, x)");
+    check("[3, 12]", "Map(D(x^3, x), x, [1, 2])");
+    check("[1, 0.5]", "Map(D(LogE(x), x), x, [1, 2])");
+    // The product, quotient and chain rules, checked numerically.
+    check(Math.cos(2) * Math.exp(Math.sin(2)), "Total(Map(D(Exp(Sin(x)), x), x, [2]))", 1e-15);
+    check(4 * 2 * Math.sin(2) + (2 * 2 - 2) * Math.cos(2), "Total(Map(D(x^2*Sin(x) - 2*x*Cos(x), x), x, [2]))", 1e-14);
+    check(-1.0/4, "Total(Map(D(1/x, x), x, [2]))", 1e-15);
+    check(Math.pow(2, 2) * (Math.log(2) + 1), "Total(Map(D(x^x, x), x, [2]))", 1e-14);
+    check(1.0 / (2 * Math.sqrt(2)), "Total(Map(D(Sqrt(x), x), x, [2]))", 1e-15);
+    check(1.0, "Total(Map(D(D(Cos(x), x), x), x, [pi]))", 0);
+    check(1.0, "Total(Map(D(Atan2(x, 1), x), x, [0]))", 0);
+    // In degrees mode, the chain rule introduces a factor of pi/180.
+    final Calculator degrees = new Calculator();
+    degrees.setDegreesMode(true);
+    check(degrees, "[0.017453292519943295]", "Map(D(Sin(x), x), x, [0])");
+    try {
+      new Calculator().evaluate("D(Floor(x), x)");
+      fail("differentiated Floor");
+    } catch (CalculatorError expected) {
+    }
+  }
+
+  public void testFindRoot() {
+    check(Math.sqrt(2), "FindRoot(x^2 - 2, x, 1)", 1e-15);
+    check(0.7390851332151607, "Solve(Cos(x) == x, x, 0, 1)", 1e-15);
+    check(Math.PI, "FindRoot(Sin(x), x, 3)", 1e-15);
+    // Bracketing keeps us between the given points even when Newton's method alone would leave.
+    check(0.0, "FindRoot(Atan(x), x, -10, 20)", 1e-15);
+    // Floor has no derivative, so we're bisecting.
+    check(1.0, "FindRoot(Floor(x) - 0.5, x, 0, 3)", 1e-15);
+    // A zero derivative at the starting point isn't a root.
+    check(2.0, "FindRoot(x^2 - 4, x, 0)", 1e-15);
+    for (String noRoot : new String[] { "FindRoot(Cos(x) + 2, x, 0)", "FindRoot(x^2 + 1, x, 0)" }) {
+      try {
+        new Calculator().evaluate(noRoot);
+        fail("found a root: " + noRoot);
+      } catch (CalculatorError expected) {
+      }
+    }
+    try {
+      new Calculator().evaluate("FindRoot(x^2 + 1, x, 1)");
+      fail("found a root of x^2 + 1");
+    } catch (CalculatorError expected) {
+    }
+    try {
+      new Calculator().evaluate("FindRoot(x^2 + 1, x, -1, 1)");
+      fail("accepted an interval without a sign change");
+    } catch (CalculatorError expected) {
+    }
+  }
+
+  public void testIntegrate() {
+    check(2.0, "Integrate(Sin(x), x, 0, pi)", 1e-15);
+    check(-9.0, "Integrate(x^2, x, 3, 0)", 1e-14);
+    check(0.0, "Integrate(x^2, x, 1, 1)", 0);
+    check(Math.sqrt(Math.PI), "Integrate(Exp(-(x^2)), x, -10, 10)", 1e-15);
+    check(500 - Math.sin(2000) / 4, "Integrate(Sin(x)^2, x, 0, 1000)", 1e-11);
+    // Refinement copes with an integrable singularity at an endpoint.
+    check(2.0, "Integrate(1/Sqrt(x), x, 0, 1)", 1e-12);
+    // Max has no double implementation, so this goes through the ordinary evaluator.
+    check(2.5, "Integrate(Max(x, 1), x, 0, 2)", 1e-15);
+    try {
+      new Calculator().evaluate("Integrate(x > 0, x, -1, 1)");
+      fail("integrated a boolean");
+    } catch (CalculatorError expected) {
+    }
+    for (String infinite : new String[] { "Integrate(x^2, x, 0, 10^400)", "Integrate(x^2, x, -Exp(1000), 0)" }) {
+      try {
+        new Calculator().evaluate(infinite);
+        fail("integrated over an infinite range: " + infinite);
+      } catch (CalculatorError expected) {
+        assertEquals("'Integrate' requires finite limits", expected.getMessage());
+      }
+    }
   }
 
   private Node parse(String stringExpression) throws CalculatorError {
@@ -750,6 +1634,15 @@ public class CalculatorTest extends TestCase {
     return expression.simplify(calculator);
   }
 
+  private Node simplify(String expression, String numericName) {
+    return Simplifier.simplify(new Calculator(), parse(expression), numericName);
+  }
+
+  private void checkSimplified(String expected, String input) {
+    // As if 'x' were bound to a number.
+    assertEquals(parse(expected), simplify(input, "x"));
+  }
+
   public void testSimplifier() {
     final Calculator calculator = new Calculator();
     final Node x = new CalculatorVariableNode("x");
@@ -768,8 +1661,9 @@ public class CalculatorTest extends TestCase {
     // *0
     assertEquals(IntegerNode.ZERO, simplify(parse("0*0")));
     assertEquals(IntegerNode.ZERO, simplify(parse("0*1")));
-    assertEquals(IntegerNode.ZERO, simplify(parse("x*0")));
-    assertEquals(IntegerNode.ZERO, simplify(parse("0*x")));
+    // x might be a matrix, an infinity, or an error.
+    assertEquals(parse("0*x"), simplify(parse("x*0")));
+    assertEquals(parse("0*x"), simplify(parse("0*x")));
 
     // --
     assertEquals(IntegerNode.ONE, simplify(parse("1")));
@@ -780,40 +1674,45 @@ public class CalculatorTest extends TestCase {
     // From "Paradigms of Artificial Intelligence Programming", section 8.2.
     assertEquals(IntegerNode.valueOf(4), simplify(parse("2+2")));
     assertEquals(IntegerNode.valueOf(137), simplify(parse("5*20+30+7")));
-    // 5*x-(4+1)*x == 0
+    checkSimplified("0*x", "5*x-(4+1)*x");
     // (y/z*(5*x-(4+1)*x)) == 0
     // ((4-3)*x+(y/y-1)*z) == x
     // 1*f(x)+0 == f(x)
     assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("3*2*x")));
-    //assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("3*x*2")));
-    //assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("x*3*2")));
+    assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("3*x*2")));
+    assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("x*3*2")));
 
     // From "Paradigms of Artificial Intelligence Programming", section 8.3.
     assertEquals(new CalculatorFunctions.Times().bind(IntegerNode.valueOf(6), x), simplify(parse("3*2*x")));
-    // 2*x*x*3 == 6*x^2
-    // 2*x*3*y*4*z*5*6 == 720*x*y*z
-    // 3+x+4+x == 2*x+7
+    checkSimplified("6*x^2", "2*x*x*3");
+    // We don't know that y and z are numbers, so they stay where they were.
+    checkSimplified("720*x*y*z", "2*x*3*y*4*z*5*6");
+    checkSimplified("2*x+7", "3+x+4+x");
     // 2*x*3*x*4*(1/x)*5*6 == 720*x
-    // 3+x+4-x == 7
-    // x+y+y+x == 2*x+2*y
-    // 3*x+4*x == 7*x
-
-    // 0-0 == 0
-    // x-0 == x
-    // 0-x == -x
-    // x-x == 0
-    // x+(-x) == 0
-    // (-x)+x == 0
-
-    // 2^sin(x/2) - 2^sin(x/2) == 0
+    checkSimplified("0*x + 7", "3+x+4-x");
+    checkSimplified("2*x+y+y", "x+y+y+x");
+    checkSimplified("7*x", "3*x+4*x");
+
+    checkSimplified("0", "0-0");
+    checkSimplified("x", "x-0");
+    checkSimplified("-x", "0-x");
+    // If x were infinite, x-x would be NaN.
+    checkSimplified("0*x", "x-x");
+    checkSimplified("0*x", "x+(-x)");
+    checkSimplified("0*x", "(-x)+x");
+
+    checkSimplified("0*2^sin(x/2)", "2^sin(x/2) - 2^sin(x/2)");
     // 2^sin(x/2) / 2^sin(x/2) == 1
 
-    // x+x == 2*x
-    // 3*x+4*x == 7*x
+    checkSimplified("2*x", "x+x");
+    checkSimplified("x - 2*x^2", "x - x*x*2");
 
-    // x*x == x^2
-    // x*x*x == x^3
-    // 2*x*3*x == 6*x^2
+    checkSimplified("x^2", "x*x");
+    checkSimplified("x^3", "x*x*x");
+    checkSimplified("6*x^2", "2*x*3*x");
+    checkSimplified("x^6", "(x*x)^3");
+    checkSimplified("x^5*Sin(x)", "x^2*Sin(x)*x^3");
+    checkSimplified("y + 2*x", "y + x + x");
 
     // 0/0 == indeterminate
     // 0/x (where x!=0) == 0
@@ -827,12 +1726,62 @@ public class CalculatorTest extends TestCase {
     // 0^x == 0
     // 1^infinity == indeterminate
     // 1^x (where x!=infinity) == 1
-    // x^1 == x
+    checkSimplified("x", "x^1");
     // 1/infinity == 0
     // x^-1 == 1/x (is this useful?)
 
     // x+y-x == y
     // x*(y/x) == y
     // (x*y)/x == y
+
+    // Constants are propagated through any function, but only exact results are kept.
+    checkSimplified("120*x", "Factorial(5)*x");
+    checkSimplified("x + 2.5 + 1.5", "x + 2.5 + 1.5");
+    checkSimplified("Sin(1)", "Sin(1)");
+    // Errors are left for evaluation to report.
+    assertEquals(parse("1/0"), simplify(parse("1/0")));
+    // Only numbers are known to commute, or to be the same as their square: y might be a matrix.
+    assertEquals(parse("y*y"), simplify(parse("y*y")));
+    assertEquals(parse("y+y"), simplify(parse("y+y")));
+    assertEquals(parse("pi^2"), simplify(parse("pi*pi")));
+    // Results are cached.
+    final Node expression = parse("x*x + 2*x*x");
+    assertSame(Simplifier.simplify(calculator, expression, "x"), Simplifier.simplify(calculator, expression, "x"));
+  }
+
+  public void testSimplifiedEvaluation() {
+    final Calculator c = new Calculator();
+    // Functions like Sum simplify their bodies before evaluating them, with their variables bound...
+    check(c, "3", "a = 3");
+    check(c, "20", "Sum(a*i*2 - i*a - i*a + Factorial(a) - 4, i, 1, 10)");
+    check(c, "[2, 16.25]", "Map(x*x - x + 2*x*x - 2*x + x*2, x, [1, 2.5])");
+    check(1.0, "Product(Sin(i)^2 + Cos(i)*Cos(i), i, 1, 50)", 1e-12);
+    // ...which means they don't need to evaluate loop-invariant subexpressions more than once.
+    final int[] count = new int[1];
+    final Node term = new CountingFunction(count).bind(new CalculatorVariableNode("a"));
+    final Node body = c.getFunction("Times").bind(term, new CalculatorVariableNode("i"));
+    check("165", c.getFunction("Sum").bind(body, new CalculatorVariableNode("i"), IntegerNode.ONE, IntegerNode.valueOf(10)).evaluate(c).toInputString());
+    assertEquals(1, count[0]);
+    // But the results are always as if they hadn't been simplified.
+    check(c, "[[1, 2], [3, 4]]", "m = [[1, 2], [3, 4]]");
+    check(c, "[[[7, 10], [15, 22]], [[7, 10], [15, 22]]]", "Map(m*m, k, [1, 2])");
+    check(c, "[Plus(y, y), Plus(y, y)]", "Map(y + y, x, [1, 2])");
+    check(c, "[0, 0]", "Map(x - x, x, [1, 2])");
+    check(c, "[[[0, 0], [0, 0]]]", "Map(x - x, x, [m])");
+    check(c, "55", "Sum((i = i) + 0, i, 1, 10)");
+    // 0*x is only 0 if x is a finite number.
+    check(c, "[[[0, 0], [0, 0]]]", "Map(0*x, x, [m])");
+    check(c, "[NaN]", "Map(0*Sqrt(0-x), x, [2])");
+    check(c, "[NaN]", "Map(0*Exp(1000*x), x, [1.0])");
+    try {
+      c.evaluate("Sum(0*(i/0), i, 1, 3)");
+      fail("division by zero was simplified away");
+    } catch (CalculatorError expected) {
+    }
+    // Floating-point arithmetic isn't associative.
+    check(c, "0.0", "Sum(i + Exp(40) - Exp(40), i, 1, 3)");
+    // Even when the inexact values depend on the loop variable.
+    check(c, "0.0", "Sum(Exp(i) + Sin(i) - Exp(i), i, 40, 40)");
+    check(c, "12.05374525387624", "Sum(Cbrt(x) + Sinh(x) - Tanh(x)*Cosh(x), x, 0.5, 8)");
   }
 }
@@ -23,8 +23,27 @@ import java.math.*;
 public class CalculatorVariableNode implements Node {
     private final String name;
     
+    // Set if this node has been resolved by CompiledExpression, either to a constant (or Ans), or to one of the
+    // CompiledExpression's parameters. A resolved node must only be evaluated by the Calculator that compiled it.
+    private final Calculator.Variable variable;
+    private final int parameterIndex;
+    
     public CalculatorVariableNode(String name) {
+        this(name, null, -1);
+    }
+    
+    CalculatorVariableNode(String name, Calculator.Variable variable) {
+        this(name, variable, -1);
+    }
+    
+    CalculatorVariableNode(String name, int parameterIndex) {
+        this(name, null, parameterIndex);
+    }
+    
+    private CalculatorVariableNode(String name, Calculator.Variable variable, int parameterIndex) {
         this.name = name;
+        this.variable = variable;
+        this.parameterIndex = parameterIndex;
     }
     
     public String name() {
@@ -32,9 +51,19 @@ public class CalculatorVariableNode implements Node {
     }
     
     public Node evaluate(Calculator environment) {
-        final Node value = environment.getVariable(name);
+        final Node value;
+        if (variable != null) {
+            value = variable.value;
+        } else if (parameterIndex != -1) {
+            value = environment.getArgument(parameterIndex, name);
+        } else {
+            value = environment.getVariable(name);
+        }
         if (value == null) {
             return this;
+        } else if (value instanceof RealConstantNode) {
+            // The value of a built-in constant like pi depends on the precision setting.
+            return value.evaluate(environment);
         }
         return value;
     }
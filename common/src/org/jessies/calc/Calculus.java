@@ -0,0 +1,653 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Symbolic differentiation, root finding, and numerical integration.
+ *
+ * Derivatives are built from the usual rules as new Node trees, folding constants and trivial identities as we go so
+ * the result is no bigger than it needs to be, and then passed through Node.simplify. Other variables are treated as
+ * constants.
+ *
+ * Root finding uses Halley's method (Newton's, if the second derivative isn't available), with the derivatives
+ * compiled along with the function. Whenever we know an interval with a sign change, either because we were given one
+ * or because successive iterates straddle a root, any step that would leave that interval is replaced by bisection,
+ * so we can't wander off or oscillate, but still converge cubically once we're close.
+ *
+ * Integration uses the 15-point Gauss-Kronrod rule, whose embedded 7-point Gauss rule gives an error estimate for free.
+ * Subintervals whose error is too large for their share of the tolerance are halved, so the work goes where the
+ * integrand is difficult. The halves are independent, so they're forked into the fork/join pool when the integrand
+ * can be evaluated concurrently, and idle workers steal whichever subintervals still need refining.
+ */
+class Calculus {
+    private static final int MAX_ITERATIONS = 200;
+
+    // We aim for this relative accuracy, but will settle for ACCEPTABLE_ERROR rather than fail.
+    private static final double TARGET_ERROR = 1e-10;
+    private static final double ACCEPTABLE_ERROR = 1e-6;
+
+    // How many times a subinterval can be halved, and how many subintervals we'll look at in total.
+    private static final int MAX_DEPTH = 100;
+    private static final int MAX_INTERVALS = 1 << 16;
+
+    // Below this depth, subintervals are forked; beyond it, each task refines its subinterval on its own.
+    private static final int FORK_DEPTH = 10;
+
+    // Nodes of the 15-point Kronrod rule on [-1, 1], from the outside in; the odd ones are the 7-point Gauss nodes.
+    private static final double[] KRONROD_NODES = {
+        0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245, 0.0,
+    };
+    private static final double[] KRONROD_WEIGHTS = {
+        0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649, 0.209482141084727828012999174891714,
+    };
+    private static final double[] GAUSS_WEIGHTS = {
+        0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975, 0.417959183673469387755102040816327,
+    };
+
+    private Calculus() {
+    }
+
+    /**
+     * Returns the derivative of 'expression' with respect to the variable 'name'.
+     */
+    static Node derivative(Calculator environment, Node expression, String name) {
+        final Node derivative = new Differentiator(environment, name).d(Simplifier.simplify(environment, expression, name));
+        return Simplifier.simplify(environment, derivative, name);
+    }
+
+    /**
+     * Returns true if 'expression' mentions the variable 'name'.
+     */
+    static boolean dependsOn(Node expression, String name) {
+        if (expression instanceof CalculatorVariableNode) {
+            return ((CalculatorVariableNode) expression).name().equalsIgnoreCase(name);
+        } else if (expression instanceof CalculatorFunction) {
+            final List<Node> args = ((CalculatorFunction) expression).args;
+            if (args != null) {
+                for (Node arg : args) {
+                    if (dependsOn(arg, name)) {
+                        return true;
+                    }
+                }
+            }
+        } else if (expression instanceof ListNode) {
+            for (Node element : (ListNode) expression) {
+                if (dependsOn(element, name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Differentiator {
+        private final Calculator environment;
+        private final String name;
+
+        Differentiator(Calculator environment, String name) {
+            this.environment = environment;
+            this.name = name;
+        }
+
+        Node d(Node n) {
+            if (!dependsOn(n, name)) {
+                return IntegerNode.ZERO;
+            } else if (n instanceof CalculatorVariableNode) {
+                return IntegerNode.ONE;
+            } else if (!(n instanceof CalculatorFunction) || ((CalculatorFunction) n).args == null) {
+                throw new CalculatorError("can't differentiate '" + n.toInputString() + "'");
+            }
+            final CalculatorFunction f = (CalculatorFunction) n;
+            final List<Node> args = f.args;
+            final Node u = args.get(0);
+            if (f instanceof CalculatorFunctions.Plus) {
+                return plus(d(u), d(args.get(1)));
+            } else if (f instanceof CalculatorFunctions.Subtract) {
+                return subtract(d(u), d(args.get(1)));
+            } else if (f instanceof CalculatorFunctions.Times) {
+                final Node v = args.get(1);
+                return plus(times(d(u), v), times(u, d(v)));
+            } else if (f instanceof CalculatorFunctions.Divide) {
+                final Node v = args.get(1);
+                if (!dependsOn(v, name)) {
+                    return divide(d(u), v);
+                }
+                return divide(subtract(times(d(u), v), times(u, d(v))), power(v, IntegerNode.valueOf(2)));
+            } else if (f instanceof CalculatorFunctions.Power) {
+                return dPower(u, args.get(1));
+            } else if (f instanceof CalculatorFunctions.Atan2) {
+                // d/dx atan2(y, x) = (x dy - y dx)/(x^2 + y^2).
+                final Node x = args.get(1);
+                final Node numerator = subtract(times(x, d(u)), times(u, d(x)));
+                return angleResult(divide(numerator, plus(power(x, IntegerNode.valueOf(2)), power(u, IntegerNode.valueOf(2)))));
+            } else if (f instanceof CalculatorFunctions.Hypot) {
+                final Node y = args.get(1);
+                return divide(plus(times(u, d(u)), times(y, d(y))), f);
+            } else if (f instanceof CalculatorFunctions.D && args.get(1) instanceof CalculatorVariableNode) {
+                // Higher derivatives.
+                return d(derivative(environment, u, ((CalculatorVariableNode) args.get(1)).name()));
+            } else if (f instanceof CalculatorFunctions.Log) {
+                // Log(base, n) = LogE(n)/LogE(base).
+                return d(divide(apply(new CalculatorFunctions.LogE(), args.get(1)), apply(new CalculatorFunctions.LogE(), u)));
+            } else if (args.size() == 1) {
+                return times(dUnary(f, u), d(u));
+            }
+            throw new CalculatorError("can't differentiate '" + f.name() + "'");
+        }
+
+        private Node dPower(Node u, Node v) {
+            if (!dependsOn(v, name)) {
+                // d/dx u^c = c u^(c-1) du.
+                return times(times(v, power(u, subtract(v, IntegerNode.ONE))), d(u));
+            } else if (!dependsOn(u, name)) {
+                // d/dx c^v = c^v ln(c) dv.
+                return times(times(power(u, v), apply(new CalculatorFunctions.LogE(), u)), d(v));
+            }
+            // d/dx u^v = u^v (ln(u) dv + v du/u).
+            final Node logU = apply(new CalculatorFunctions.LogE(), u);
+            return times(power(u, v), plus(times(logU, d(v)), divide(times(v, d(u)), u)));
+        }
+
+        // Returns the derivative of f with respect to its single argument u.
+        private Node dUnary(CalculatorFunction f, Node u) {
+            final Node two = IntegerNode.valueOf(2);
+            if (f instanceof CalculatorFunctions.Abs) {
+                return apply(new CalculatorFunctions.Sign(), u);
+            } else if (f instanceof CalculatorFunctions.Acos) {
+                return angleResult(negate(divide(IntegerNode.ONE, apply(new CalculatorFunctions.Sqrt(), subtract(IntegerNode.ONE, power(u, two))))));
+            } else if (f instanceof CalculatorFunctions.Asin) {
+                return angleResult(divide(IntegerNode.ONE, apply(new CalculatorFunctions.Sqrt(), subtract(IntegerNode.ONE, power(u, two)))));
+            } else if (f instanceof CalculatorFunctions.Atan) {
+                return angleResult(divide(IntegerNode.ONE, plus(IntegerNode.ONE, power(u, two))));
+            } else if (f instanceof CalculatorFunctions.Cbrt) {
+                return divide(IntegerNode.ONE, times(IntegerNode.valueOf(3), power(f, two)));
+            } else if (f instanceof CalculatorFunctions.Cos) {
+                return angleArgument(negate(apply(new CalculatorFunctions.Sin(), u)));
+            } else if (f instanceof CalculatorFunctions.Cosh) {
+                return apply(new CalculatorFunctions.Sinh(), u);
+            } else if (f instanceof CalculatorFunctions.Exp) {
+                return f;
+            } else if (f instanceof CalculatorFunctions.Log10) {
+                return divide(IntegerNode.ONE, times(u, apply(new CalculatorFunctions.LogE(), IntegerNode.valueOf(10))));
+            } else if (f instanceof CalculatorFunctions.Log2) {
+                return divide(IntegerNode.ONE, times(u, apply(new CalculatorFunctions.LogE(), two)));
+            } else if (f instanceof CalculatorFunctions.LogE) {
+                return divide(IntegerNode.ONE, u);
+            } else if (f instanceof CalculatorFunctions.Sin) {
+                return angleArgument(apply(new CalculatorFunctions.Cos(), u));
+            } else if (f instanceof CalculatorFunctions.Sinh) {
+                return apply(new CalculatorFunctions.Cosh(), u);
+            } else if (f instanceof CalculatorFunctions.Sqrt) {
+                return divide(IntegerNode.ONE, times(two, f));
+            } else if (f instanceof CalculatorFunctions.Tan) {
+                return angleArgument(divide(IntegerNode.ONE, power(apply(new CalculatorFunctions.Cos(), u), two)));
+            } else if (f instanceof CalculatorFunctions.Tanh) {
+                return divide(IntegerNode.ONE, power(apply(new CalculatorFunctions.Cosh(), u), two));
+            }
+            throw new CalculatorError("can't differentiate '" + f.name() + "'");
+        }
+
+        // In degrees mode, the trigonometric functions are really of u*pi/180, and the inverses return 180/pi times
+        // the angle in radians; the chain rule gives us the corresponding factors.
+        private Node angleArgument(Node n) {
+            return environment.isDegreesMode() ? times(n, divide(new CalculatorVariableNode("pi"), IntegerNode.valueOf(180))) : n;
+        }
+
+        private Node angleResult(Node n) {
+            return environment.isDegreesMode() ? times(n, divide(IntegerNode.valueOf(180), new CalculatorVariableNode("pi"))) : n;
+        }
+    }
+
+    // These build nodes, folding constants and applying the trivial identities as they go.
+
+    private static Node apply(CalculatorFunction f, Node... args) {
+        return f.bind(args);
+    }
+
+    private static Node plus(Node a, Node b) {
+        if (isZero(a)) {
+            return b;
+        } else if (isZero(b)) {
+            return a;
+        } else if (isExact(a) && isExact(b)) {
+            return ((NumberNode) a).plus((NumberNode) b);
+        }
+        return apply(new CalculatorFunctions.Plus(), a, b);
+    }
+
+    private static Node subtract(Node a, Node b) {
+        if (isZero(b)) {
+            return a;
+        } else if (isZero(a)) {
+            return negate(b);
+        } else if (isExact(a) && isExact(b)) {
+            return ((NumberNode) a).subtract((NumberNode) b);
+        }
+        return apply(new CalculatorFunctions.Subtract(), a, b);
+    }
+
+    private static Node negate(Node a) {
+        return times(IntegerNode.MINUS_ONE, a);
+    }
+
+    private static Node times(Node a, Node b) {
+        if (isZero(a) || isZero(b)) {
+            return IntegerNode.ZERO;
+        } else if (isOne(a)) {
+            return b;
+        } else if (isOne(b)) {
+            return a;
+        } else if (isExact(a) && isExact(b)) {
+            return ((NumberNode) a).times((NumberNode) b);
+        } else if (isExact(b)) {
+            // Prefer "2*x" to "x*2", as the Simplifier does.
+            return times(b, a);
+        } else if (isExact(a) && b instanceof CalculatorFunctions.Times && isExact(((CalculatorFunction) b).args.get(0))) {
+            // 2*(3*x) is 6*x.
+            final List<Node> args = ((CalculatorFunction) b).args;
+            return times(times(a, args.get(0)), args.get(1));
+        }
+        return apply(new CalculatorFunctions.Times(), a, b);
+    }
+
+    private static Node divide(Node a, Node b) {
+        if (isZero(a)) {
+            return IntegerNode.ZERO;
+        } else if (isOne(b)) {
+            return a;
+        } else if (isExact(a) && isExact(b)) {
+            return quotient((NumberNode) a, (NumberNode) b);
+        } else if (isExact(b)) {
+            return times(quotient(IntegerNode.ONE, (NumberNode) b), a);
+        }
+        return apply(new CalculatorFunctions.Divide(), a, b);
+    }
+
+    private static Node power(Node a, Node b) {
+        if (isZero(b)) {
+            return IntegerNode.ONE;
+        } else if (isOne(b)) {
+            return a;
+        } else if (isExact(a) && b instanceof IntegerNode && ((IntegerNode) b).sign() == IntegerNode.ONE) {
+            return ((NumberNode) a).power((NumberNode) b);
+        }
+        return apply(new CalculatorFunctions.Power(), a, b);
+    }
+
+    // Integer division gives a real when there's a remainder, but we want to stay exact.
+    private static NumberNode quotient(NumberNode a, NumberNode b) {
+        if (a instanceof IntegerNode && b instanceof IntegerNode) {
+            return RationalNode.valueOf((IntegerNode) a, (IntegerNode) b);
+        }
+        return a.divide(b);
+    }
+
+    private static boolean isExact(Node n) {
+        return (n instanceof IntegerNode) || (n instanceof RationalNode);
+    }
+
+    private static boolean isZero(Node n) {
+        return (n instanceof IntegerNode) && ((IntegerNode) n).sign() == IntegerNode.ZERO;
+    }
+
+    private static boolean isOne(Node n) {
+        return IntegerNode.ONE.equals(n);
+    }
+
+    /**
+     * A real function of one variable, and its first two derivatives where available.
+     */
+    private static class RealFunction {
+        private final CompiledRealExpression f;
+        private final CompiledRealExpression df;
+        private final CompiledRealExpression d2f;
+        private final double[] variables = new double[1];
+
+        RealFunction(CompiledRealExpression f, CompiledRealExpression df, CompiledRealExpression d2f) {
+            this.f = f;
+            this.df = df;
+            this.d2f = d2f;
+        }
+
+        double f(double x) {
+            return evaluate(f, x);
+        }
+
+        double df(double x) {
+            return (df != null) ? evaluate(df, x) : Double.NaN;
+        }
+
+        double d2f(double x) {
+            return (d2f != null) ? evaluate(d2f, x) : Double.NaN;
+        }
+
+        private double evaluate(CompiledRealExpression expression, double x) {
+            variables[0] = x;
+            return expression.evaluate(variables);
+        }
+    }
+
+    /**
+     * Returns a root of 'expression' as a function of the variable 'name', starting from 'x0'. If 'x1' is not NaN, the
+     * root is between 'x0' and 'x1', and the expression must have opposite signs there.
+     */
+    static double findRoot(Calculator environment, String functionName, Node expression, String name, double x0, double x1) {
+        final CompiledRealExpression f = CompiledRealExpression.compile(environment, expression, name);
+        if (f == null) {
+            throw new CalculatorError("'" + functionName + "' requires a real-valued expression");
+        }
+        // The derivatives make us converge faster, but we can manage without them.
+        CompiledRealExpression df = null;
+        CompiledRealExpression d2f = null;
+        try {
+            final Node derivative = derivative(environment, expression, name);
+            df = CompiledRealExpression.compile(environment, derivative, name);
+            if (df != null) {
+                d2f = CompiledRealExpression.compile(environment, derivative(environment, derivative, name), name);
+            }
+        } catch (CalculatorError ex) {
+            // Not differentiable by us.
+        }
+        final RealFunction function = new RealFunction(f, df, d2f);
+
+        // [a, b] is our bracket: fa and fb have opposite signs, or a is NaN if we don't have one yet.
+        double a = Double.NaN;
+        double b = Double.NaN;
+        double fa = Double.NaN;
+        double x = x0;
+        double fx = function.f(x);
+        // Anything within rounding error of zero, relative to where we started, counts as a root.
+        final double tolerance = 4 * Math.ulp(Math.abs(fx));
+        if (!Double.isNaN(x1)) {
+            final double fx1 = function.f(x1);
+            if (fx == 0) {
+                return x0;
+            } else if (fx1 == 0) {
+                return x1;
+            } else if (!(Math.signum(fx) * Math.signum(fx1) < 0)) {
+                throw new CalculatorError("'" + functionName + "' requires an interval where the expression changes sign");
+            }
+            a = Math.min(x0, x1);
+            b = Math.max(x0, x1);
+            fa = (a == x0) ? fx : fx1;
+            x = a + (b - a) / 2;
+            fx = function.f(x);
+        }
+        double previousX = Double.NaN;
+        double previousFx = Double.NaN;
+        for (int i = 0; i < MAX_ITERATIONS; ++i) {
+            if (fx == 0) {
+                return x;
+            } else if (Double.isNaN(fx) && Double.isNaN(a)) {
+                break;
+            }
+            if (!Double.isNaN(a)) {
+                // Shrink the bracket.
+                if (Math.signum(fx) == Math.signum(fa)) {
+                    a = x;
+                    fa = fx;
+                } else {
+                    b = x;
+                }
+            } else if (!Double.isNaN(previousX) && Math.signum(fx) * Math.signum(previousFx) < 0) {
+                // We've stepped over a root, so now we have a bracket.
+                a = Math.min(x, previousX);
+                b = Math.max(x, previousX);
+                fa = (a == x) ? fx : previousFx;
+            }
+
+            double step = step(function, x, fx, previousX, previousFx);
+            if (step == 0 || Double.isNaN(step) || Double.isInfinite(step)) {
+                // We're at a stationary point (or worse), where the derivatives can't tell us which way to go.
+                step = secantStep(function, x, fx, previousX, previousFx);
+            }
+            double next = x - step;
+            if (!Double.isNaN(a) && !(next > a && next < b)) {
+                next = a + (b - a) / 2;
+            }
+            if (Double.isNaN(next) || Double.isInfinite(next)) {
+                break;
+            }
+            if (!Double.isNaN(a) && (b - a) <= 4 * Math.ulp(Math.max(Math.abs(a), Math.abs(b)))) {
+                // The bracket has collapsed around the root.
+                return next;
+            } else if (next == x) {
+                // We can't get any closer, which is only good enough if we're there.
+                if (isRoot(function, x, fx, tolerance)) {
+                    return x;
+                }
+                break;
+            }
+            previousX = x;
+            previousFx = fx;
+            x = next;
+            fx = function.f(x);
+            if (Math.abs(x - previousX) <= 4 * Math.ulp(x) && isRoot(function, x, fx, tolerance)) {
+                return x;
+            }
+        }
+        throw new CalculatorError("'" + functionName + "' didn't converge");
+    }
+
+    // Returns true if f is zero at x, or within 'tolerance' of zero, or changes sign within a few ulps of x.
+    private static boolean isRoot(RealFunction function, double x, double fx, double tolerance) {
+        if (Math.abs(fx) <= tolerance) {
+            return true;
+        }
+        final double h = 4 * Math.ulp(x);
+        return Math.signum(function.f(x - h)) * Math.signum(fx) <= 0 || Math.signum(function.f(x + h)) * Math.signum(fx) <= 0;
+    }
+
+    // Returns the Halley step at x, or the Newton step without a second derivative, or the secant step without either.
+    private static double step(RealFunction function, double x, double fx, double previousX, double previousFx) {
+        final double d1 = function.df(x);
+        if (Double.isNaN(d1)) {
+            return secantStep(function, x, fx, previousX, previousFx);
+        }
+        final double d2 = function.d2f(x);
+        final double halleyDenominator = 2 * d1 * d1 - fx * d2;
+        if (!Double.isNaN(d2) && halleyDenominator != 0) {
+            return 2 * fx * d1 / halleyDenominator;
+        }
+        return fx / d1;
+    }
+
+    private static double secantStep(RealFunction function, double x, double fx, double previousX, double previousFx) {
+        if (Double.isNaN(previousX)) {
+            // We don't have a previous point for the secant method yet, so make one up.
+            final double h = 1e-7 * Math.max(Math.abs(x), 1.0);
+            return fx * h / (function.f(x + h) - fx);
+        }
+        return fx * (x - previousX) / (fx - previousFx);
+    }
+
+    /**
+     * A real function of one variable, as seen by a single thread.
+     */
+    private abstract static class Integrand {
+        abstract double valueAt(double x);
+
+        /**
+         * Returns an Integrand for use by another thread, or null if this integrand can't be evaluated concurrently.
+         */
+        Integrand copy() {
+            return null;
+        }
+    }
+
+    // Each copy has its own variable array, so copies can run concurrently.
+    private static class RealIntegrand extends Integrand {
+        private final CompiledRealExpression expression;
+        private final double[] variables = new double[1];
+
+        RealIntegrand(CompiledRealExpression expression) {
+            this.expression = expression;
+        }
+
+        double valueAt(double x) {
+            variables[0] = x;
+            return expression.evaluate(variables);
+        }
+
+        @Override Integrand copy() {
+            return new RealIntegrand(expression);
+        }
+    }
+
+    // Anything else goes through the ordinary evaluator, on the calling thread.
+    private static class GenericIntegrand extends Integrand {
+        private final String functionName;
+        private final Calculator scope;
+        private final Node expression;
+        private final String name;
+
+        GenericIntegrand(String functionName, Calculator environment, Node expression, String name) {
+            this.functionName = functionName;
+            this.scope = environment.newScope();
+            this.expression = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expression, name, true));
+            this.name = name;
+        }
+
+        double valueAt(double x) {
+            scope.setLocalVariable(name, new RealNode(x));
+            final Node value = expression.evaluate(scope);
+            if (!(value instanceof NumberNode) || value instanceof IntervalNode) {
+                throw new CalculatorError("'" + functionName + "' requires a real-valued expression");
+            }
+            return ((NumberNode) value).toReal().doubleValue();
+        }
+    }
+
+    /**
+     * Returns the integral of 'expression' with respect to the variable 'name', from 'a' to 'b'.
+     */
+    static double integrate(Calculator environment, String functionName, Node expression, String name, double a, double b) {
+        if (Double.isNaN(a) || Double.isInfinite(a) || Double.isNaN(b) || Double.isInfinite(b)) {
+            throw new CalculatorError("'" + functionName + "' requires finite limits");
+        } else if (a == b) {
+            return 0.0;
+        } else if (a > b) {
+            return -integrate(environment, functionName, expression, name, b, a);
+        }
+        final CompiledRealExpression compiled = CompiledRealExpression.compile(environment, expression, name);
+        final Integrand f = (compiled != null) ? new RealIntegrand(compiled) : new GenericIntegrand(functionName, environment, expression, name);
+
+        // A first look at the whole interval tells us roughly how big the integrand is, which sets the tolerance.
+        final double[] whole = new double[3];
+        gaussKronrod(f, a, b, whole);
+        final double scale = whole[2];
+        if (Double.isNaN(whole[0])) {
+            return Double.NaN;
+        }
+
+        final IntegrationTask task = new IntegrationTask(f, new AtomicInteger(MAX_INTERVALS), TARGET_ERROR * scale / (b - a), a, b, whole, 0);
+        task.invoke();
+        if (Double.isNaN(task.value)) {
+            return Double.NaN;
+        } else if (!(task.error <= ACCEPTABLE_ERROR * scale)) {
+            throw new CalculatorError("'" + functionName + "' didn't converge");
+        }
+        return task.value;
+    }
+
+    // Applies the Gauss-Kronrod rule to [lo, hi], returning the Kronrod estimate, the error estimate, and the estimated
+    // integral of the absolute value in 'result'.
+    private static void gaussKronrod(Integrand f, double lo, double hi, double[] result) {
+        final double center = lo + (hi - lo) / 2;
+        final double halfWidth = (hi - lo) / 2;
+        final double fc = f.valueAt(center);
+        double kronrod = KRONROD_WEIGHTS[7] * fc;
+        double gauss = GAUSS_WEIGHTS[3] * fc;
+        double absolute = KRONROD_WEIGHTS[7] * Math.abs(fc);
+        for (int j = 0; j < 7; ++j) {
+            final double dx = halfWidth * KRONROD_NODES[j];
+            final double f1 = f.valueAt(center - dx);
+            final double f2 = f.valueAt(center + dx);
+            kronrod += KRONROD_WEIGHTS[j] * (f1 + f2);
+            absolute += KRONROD_WEIGHTS[j] * (Math.abs(f1) + Math.abs(f2));
+            if ((j & 1) == 1) {
+                gauss += GAUSS_WEIGHTS[j / 2] * (f1 + f2);
+            }
+        }
+        result[0] = kronrod * halfWidth;
+        result[1] = Math.abs(kronrod - gauss) * halfWidth;
+        result[2] = absolute * halfWidth;
+    }
+
+    private static class IntegrationTask extends RecursiveAction {
+        private final Integrand f;
+        private final AtomicInteger intervalsLeft;
+        private final double tolerancePerUnit;
+        private final double lo;
+        private final double hi;
+        private final double[] estimate;
+        private final int depth;
+
+        // The results, for our parent to add up.
+        double value;
+        double error;
+
+        IntegrationTask(Integrand f, AtomicInteger intervalsLeft, double tolerancePerUnit, double lo, double hi, double[] estimate, int depth) {
+            this.f = f;
+            this.intervalsLeft = intervalsLeft;
+            this.tolerancePerUnit = tolerancePerUnit;
+            this.lo = lo;
+            this.hi = hi;
+            this.estimate = estimate;
+            this.depth = depth;
+        }
+
+        @Override protected void compute() {
+            final double mid = lo + (hi - lo) / 2;
+            // Give up on refining if the estimate's good enough (or hopeless), or we've run out of depth or budget.
+            if (estimate[1] <= tolerancePerUnit * (hi - lo) || Double.isNaN(estimate[1]) || depth >= MAX_DEPTH ||
+                    !(lo < mid && mid < hi) || intervalsLeft.addAndGet(-2) < 0) {
+                value = estimate[0];
+                error = estimate[1];
+                return;
+            }
+            final double[] leftEstimate = new double[3];
+            final double[] rightEstimate = new double[3];
+            gaussKronrod(f, lo, mid, leftEstimate);
+            gaussKronrod(f, mid, hi, rightEstimate);
+            final Integrand copy = (depth < FORK_DEPTH) ? f.copy() : null;
+            final IntegrationTask left = new IntegrationTask((copy != null) ? copy : f, intervalsLeft, tolerancePerUnit, lo, mid, leftEstimate, depth + 1);
+            final IntegrationTask right = new IntegrationTask(f, intervalsLeft, tolerancePerUnit, mid, hi, rightEstimate, depth + 1);
+            if (copy != null) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+            value = left.value + right.value;
+            error = left.error + right.error;
+        }
+    }
+}
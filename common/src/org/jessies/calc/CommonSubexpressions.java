@@ -0,0 +1,232 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * Common-subexpression elimination.
+ *
+ * eliminate returns an expression equivalent to the one it's given, in which each subexpression that occurs more
+ * than once is evaluated at most once per evaluation of the whole. Equal subtrees are hash-consed into a single
+ * instance, each repeated one is wrapped in a Shared node, and the whole is wrapped in a Let node. Evaluating a Let
+ * creates a scope with a slot for each shared value, and each Shared node fills its slot the first time it's
+ * evaluated. Nothing is evaluated early, so a subexpression that wouldn't have been evaluated before (because it's
+ * in the branch of an If that isn't taken, say) still isn't.
+ *
+ * Functions like Sum and Map evaluate their first argument with a different binding for each element, so we don't
+ * look inside it: its repeated subexpressions need sharing per element, not per evaluation of the whole. Those
+ * functions call eliminate on that argument themselves when they're about to evaluate it generically, rather than
+ * compiling it or treating it symbolically. Expressions containing assignments are left alone, and subexpressions
+ * involving Random or Plot are never shared.
+ */
+class CommonSubexpressions {
+    private CommonSubexpressions() {
+    }
+
+    /**
+     * The values of a Let's shared subexpressions during one evaluation of it.
+     */
+    static class Values {
+        // Identifies the Let, and its Shared nodes. Clones made by CalculatorFunction.bind share it.
+        final Object token;
+        final Node[] values;
+
+        Values(Object token, int count) {
+            this.token = token;
+            this.values = new Node[count];
+        }
+    }
+
+    /**
+     * Returns 'expression' with its common subexpressions shared, or 'expression' itself if there are none.
+     */
+    static Node eliminate(Node expression) {
+        if (!(expression instanceof CalculatorFunction) || expression instanceof Let || hasAssignment(expression)) {
+            return expression;
+        }
+        final HashMap<Node, Integer> counts = new HashMap<Node, Integer>();
+        count(expression, counts);
+        final Rewriter rewriter = new Rewriter(counts);
+        final Node body = rewriter.rewrite(expression);
+        if (rewriter.slotCount == 0) {
+            return expression;
+        }
+        return new Let(rewriter.token, rewriter.slotCount).bind(body);
+    }
+
+    static boolean hasAssignment(Node node) {
+        if (node instanceof CalculatorFunctions.Define) {
+            return true;
+        } else if (node instanceof ListNode) {
+            for (Node element : (ListNode) node) {
+                if (hasAssignment(element)) {
+                    return true;
+                }
+            }
+        } else if (node instanceof CalculatorFunction && ((CalculatorFunction) node).args != null) {
+            for (Node arg : ((CalculatorFunction) node).args) {
+                if (hasAssignment(arg)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Returns true if 'i' is the index of an argument of 'function' that's evaluated once per binding of a variable,
+    // or names that variable.
+    static boolean isBound(CalculatorFunction function, int i) {
+        final int boundIndex = function.boundVariableIndex();
+        return boundIndex != -1 && (i == 0 || i == boundIndex);
+    }
+
+    // Counts the occurrences of each pure function application in 'node', returning true if 'node' itself is pure.
+    private static boolean count(Node node, Map<Node, Integer> counts) {
+        if (node instanceof ListNode) {
+            boolean isPure = true;
+            for (Node element : (ListNode) node) {
+                isPure &= count(element, counts);
+            }
+            return isPure;
+        } else if (!(node instanceof CalculatorFunction) || ((CalculatorFunction) node).args == null) {
+            return true;
+        }
+        final CalculatorFunction function = (CalculatorFunction) node;
+        boolean isPure = !(function instanceof CalculatorFunctions.Random || function instanceof CalculatorFunctions.Plot);
+        for (int i = 0; i < function.args.size(); ++i) {
+            final Node arg = function.args.get(i);
+            if (isBound(function, i)) {
+                // Not ours to share, but it can still make this application impure.
+                isPure &= count(arg, new HashMap<Node, Integer>());
+            } else {
+                isPure &= count(arg, counts);
+            }
+        }
+        if (isPure) {
+            final Integer count = counts.get(function);
+            counts.put(function, (count == null) ? 1 : count + 1);
+        }
+        return isPure;
+    }
+
+    private static class Rewriter {
+        private final Object token = new Object();
+        private final Map<Node, Integer> counts;
+        // Hash-consing: every distinct function application we've seen, mapped to its rewritten form.
+        private final HashMap<Node, Node> canonical = new HashMap<Node, Node>();
+        private int slotCount = 0;
+
+        Rewriter(Map<Node, Integer> counts) {
+            this.counts = counts;
+        }
+
+        Node rewrite(Node node) {
+            if (node instanceof ListNode) {
+                final ListNode result = new ListNode();
+                for (Node element : (ListNode) node) {
+                    result.add(rewrite(element));
+                }
+                return result;
+            } else if (!(node instanceof CalculatorFunction) || ((CalculatorFunction) node).args == null) {
+                return node;
+            }
+            Node result = canonical.get(node);
+            if (result != null) {
+                return result;
+            }
+            final CalculatorFunction function = (CalculatorFunction) node;
+            final ArrayList<Node> newArgs = new ArrayList<Node>(function.args.size());
+            boolean changed = false;
+            for (int i = 0; i < function.args.size(); ++i) {
+                final Node arg = function.args.get(i);
+                final Node newArg = isBound(function, i) ? arg : rewrite(arg);
+                newArgs.add(newArg);
+                changed |= (newArg != arg);
+            }
+            result = changed ? function.bind(newArgs) : function;
+            final Integer count = counts.get(node);
+            if (count != null && count > 1) {
+                result = new Shared(token, slotCount++).bind(result);
+            }
+            canonical.put(node, result);
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates its argument in a scope holding the values of the Shared nodes within it.
+     */
+    static class Let extends CalculatorFunction {
+        private final Object token;
+        private final int slotCount;
+
+        Let(Object token, int slotCount) {
+            super("Let", 1);
+            this.token = token;
+            this.slotCount = slotCount;
+        }
+
+        public Node apply(Calculator environment) {
+            return args.get(0).evaluate(environment.newScope(new Values(token, slotCount)));
+        }
+
+        @Override public String toInputString() {
+            return args.get(0).toInputString();
+        }
+
+        public String syntax() { return "(Expression)"; }
+        public String description() { return "Evaluates an expression, evaluating each of its shared subexpressions at most once."; }
+    }
+
+    /**
+     * A subexpression that occurs more than once in its Let, and is evaluated at most once per evaluation of it.
+     */
+    static class Shared extends CalculatorFunction {
+        private final Object token;
+        private final int slot;
+
+        Shared(Object token, int slot) {
+            super("Shared", 1);
+            this.token = token;
+            this.slot = slot;
+        }
+
+        public Node apply(Calculator environment) {
+            final Values values = environment.getSharedValues(token);
+            if (values == null) {
+                // We've been evaluated outside our Let.
+                return arg(environment, 0);
+            }
+            Node value = values.values[slot];
+            if (value == null) {
+                value = arg(environment, 0);
+                values.values[slot] = value;
+            }
+            return value;
+        }
+
+        @Override public String toInputString() {
+            return args.get(0).toInputString();
+        }
+
+        public String syntax() { return "(Expression)"; }
+        public String description() { return "Evaluates a subexpression at most once per evaluation of the enclosing Let."; }
+    }
+}
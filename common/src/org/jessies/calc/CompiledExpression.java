@@ -0,0 +1,136 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * An expression that has been parsed and simplified once, and can then be evaluated many times.
+ *
+ * References to free variables are resolved to parameter slots at compile time, so evaluation doesn't need to look
+ * anything up by name. Variables bound by functions such as Map or Sum are left alone, because they're rebound on each
+ * iteration. Parameter values live in a scope private to each evaluation, so a CompiledExpression can be evaluated by
+ * several threads at once.
+ */
+public class CompiledExpression {
+    private final Calculator calculator;
+    private final Node expression;
+
+    // The free variables, in order of first appearance. These are the parameters to evaluate(Node...).
+    private final ArrayList<String> parameterKeys = new ArrayList<String>();
+    private final ArrayList<String> parameterNames = new ArrayList<String>();
+
+    CompiledExpression(Calculator calculator, Node expression) {
+        this.calculator = calculator;
+        this.expression = resolve(expression, Collections.<String>emptySet());
+    }
+
+    private Node resolve(Node node, Set<String> boundNames) {
+        if (node instanceof CalculatorVariableNode) {
+            return resolveVariable((CalculatorVariableNode) node, boundNames);
+        } else if (node instanceof ListNode) {
+            final ListNode result = new ListNode();
+            for (Node element : (ListNode) node) {
+                result.add(resolve(element, boundNames));
+            }
+            return result;
+        } else if (node instanceof CalculatorFunction) {
+            final CalculatorFunction function = (CalculatorFunction) node;
+            if (function.args == null) {
+                return function;
+            }
+            final int boundIndex = function.boundVariableIndex();
+            final ArrayList<Node> newArgs = new ArrayList<Node>(function.args.size());
+            for (int i = 0; i < function.args.size(); ++i) {
+                final Node arg = function.args.get(i);
+                if (i == boundIndex) {
+                    // The function binds this name itself; leave it alone.
+                    newArgs.add(arg);
+                } else if (i == 0 && boundIndex != -1 && function.args.get(boundIndex) instanceof CalculatorVariableNode) {
+                    // The function's body sees the bound variable rather than any variable of the same name.
+                    final HashSet<String> innerBoundNames = new HashSet<String>(boundNames);
+                    innerBoundNames.add(key(((CalculatorVariableNode) function.args.get(boundIndex)).name()));
+                    newArgs.add(resolve(arg, innerBoundNames));
+                } else if (i == 0 && function instanceof CalculatorFunctions.Define && arg instanceof CalculatorVariableNode) {
+                    // The target of an assignment is written, not read, so it isn't a parameter.
+                    newArgs.add(arg);
+                } else {
+                    newArgs.add(resolve(arg, boundNames));
+                }
+            }
+            return function.bind(newArgs);
+        } else {
+            return node;
+        }
+    }
+
+    private Node resolveVariable(CalculatorVariableNode node, Set<String> boundNames) {
+        final String key = key(node.name());
+        if (boundNames.contains(key)) {
+            return node;
+        }
+        final Calculator.Variable variable = calculator.getUnassignableVariable(node.name());
+        if (variable != null) {
+            return new CalculatorVariableNode(node.name(), variable);
+        }
+        int index = parameterKeys.indexOf(key);
+        if (index == -1) {
+            index = parameterKeys.size();
+            parameterKeys.add(key);
+            parameterNames.add(node.name());
+        }
+        return new CalculatorVariableNode(node.name(), index);
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the names of this expression's free variables, in the order evaluate(Node...) expects their values.
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(parameterNames);
+    }
+
+    /**
+     * Evaluates this expression using the current values of its variables.
+     */
+    public Node evaluate() {
+        return expression.evaluate(calculator);
+    }
+
+    /**
+     * Evaluates this expression with its free variables bound to 'values'.
+     */
+    public Node evaluate(Node... values) {
+        if (values.length != parameterKeys.size()) {
+            throw new CalculatorError("compiled expression needs " + parameterKeys.size() + " values but got " + values.length);
+        }
+        return expression.evaluate(calculator.newScope(values.clone()));
+    }
+
+    public String toInputString() {
+        return expression.toInputString();
+    }
+
+    @Override public String toString() {
+        return toInputString();
+    }
+}
@@ -0,0 +1,429 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * A real-valued expression compiled to work directly on doubles, for the inner loops of functions like Plot and Sum.
+ *
+ * Only the arithmetic and transcendental functions that RealNode supports can be compiled. Subexpressions that don't
+ * depend on any of the variables are evaluated once, using the ordinary (exact) evaluator, at compile time.
+ * Given RealNode values for its variables, a compiled expression gives the same result as the ordinary evaluator,
+ * but without allocating or touching the Calculator's variables.
+ *
+ * A compiled expression can also be evaluated over intervals, giving bounds guaranteed to contain its value for any
+ * values of its variables in those intervals. Constants keep intervals containing their exact values for this.
+ */
+abstract class CompiledRealExpression {
+    /**
+     * Returns the value of this expression, given the values of its variables in the order they were passed to compile.
+     */
+    abstract double evaluate(double[] variables);
+
+    /**
+     * Evaluates this expression for 'count' consecutive rows of 'columns', starting at row 'offset', putting the
+     * results in the first 'count' elements of 'out'. The columns hold the values of the variables in the order they
+     * were passed to compile. The result is the same as calling evaluate(double[]) for each row in turn, but each
+     * operation is a single loop over the whole block.
+     */
+    abstract void evaluate(double[][] columns, int offset, int count, double[] out);
+
+    /**
+     * Returns an interval containing every value of this expression with its variables in the given intervals.
+     */
+    abstract IntervalNode evaluate(IntervalNode[] variables);
+
+    /**
+     * Returns true if this expression doesn't depend on any of its variables.
+     */
+    boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * Returns 'expression' compiled in terms of the given variables, or null if it can't be compiled.
+     */
+    static CompiledRealExpression compile(Calculator environment, Node expression, String... variableNames) {
+        final String[] keys = new String[variableNames.length];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = variableNames[i].toLowerCase(Locale.US);
+        }
+        return new Compiler(environment, keys).compile(expression);
+    }
+
+    private static class Compiler {
+        private final Calculator environment;
+        private final String[] keys;
+        private final boolean degreesMode;
+
+        Compiler(Calculator environment, String[] keys) {
+            this.environment = environment;
+            this.keys = keys;
+            this.degreesMode = environment.isDegreesMode();
+        }
+
+        CompiledRealExpression compile(Node node) {
+            if (node instanceof NumberNode) {
+                return constant((NumberNode) node);
+            } else if (node instanceof CalculatorVariableNode) {
+                final String key = ((CalculatorVariableNode) node).name().toLowerCase(Locale.US);
+                for (int i = 0; i < keys.length; ++i) {
+                    if (keys[i].equals(key)) {
+                        return new Variable(i);
+                    }
+                }
+                // Not one of our variables, so its value won't change while we're running.
+                final Node value = node.evaluate(environment);
+                return (value instanceof NumberNode) ? constant((NumberNode) value) : null;
+            } else if (node instanceof CalculatorFunction) {
+                return compileFunction((CalculatorFunction) node);
+            }
+            return null;
+        }
+
+        private CompiledRealExpression compileFunction(CalculatorFunction function) {
+            if (function.args == null) {
+                return null;
+            }
+            final CompiledRealExpression[] args = new CompiledRealExpression[function.args.size()];
+            boolean allConstant = true;
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = compile(function.args.get(i));
+                if (args[i] == null) {
+                    return null;
+                }
+                allConstant &= args[i].isConstant();
+            }
+            final int op = opFor(function);
+            if (op == -1) {
+                return null;
+            }
+            if (allConstant) {
+                // Use the exact evaluator so that, say, 1/3 and 2^100 are only rounded once.
+                try {
+                    final Node value = function.evaluate(environment);
+                    return (value instanceof NumberNode) ? constant((NumberNode) value) : null;
+                } catch (RuntimeException ex) {
+                    // Let the ordinary evaluator report the error, if it's ever reached.
+                    return null;
+                }
+            }
+            if (args.length == 1) {
+                return new Unary(op, args[0], degreesMode);
+            } else if (args.length == 2) {
+                return new Binary(op, args[0], args[1], degreesMode);
+            }
+            return null;
+        }
+
+        private static CompiledRealExpression constant(NumberNode n) {
+            if (n instanceof IntervalNode) {
+                // Doesn't have a single double value.
+                return null;
+            }
+            try {
+                final double value = n.toReal().doubleValue();
+                // A real constant is likely to be the rounded result of something like Sqrt(2), or pi, so allow for that.
+                return new Constant(value, (n instanceof RealNode) ? IntervalNode.around(value) : IntervalNode.valueOf(n));
+            } catch (RuntimeException ex) {
+                // An integer too large to be represented as a double, say.
+                return null;
+            }
+        }
+    }
+
+    private static final int ABS = 0;
+    private static final int ACOS = 1;
+    private static final int ASIN = 2;
+    private static final int ATAN = 3;
+    private static final int ATAN2 = 4;
+    private static final int CBRT = 5;
+    private static final int CEILING = 6;
+    private static final int COS = 7;
+    private static final int COSH = 8;
+    private static final int DIVIDE = 9;
+    private static final int EXP = 10;
+    private static final int FLOOR = 11;
+    private static final int HYPOT = 12;
+    private static final int LOG = 13;
+    private static final int LOG10 = 14;
+    private static final int LOG2 = 15;
+    private static final int LOGE = 16;
+    private static final int PLUS = 17;
+    private static final int POWER = 18;
+    private static final int SIN = 19;
+    private static final int SINH = 20;
+    private static final int SQRT = 21;
+    private static final int SUBTRACT = 22;
+    private static final int TAN = 23;
+    private static final int TANH = 24;
+    private static final int TIMES = 25;
+
+    private static final Map<Class<?>, Integer> OPS = new HashMap<Class<?>, Integer>();
+    static {
+        OPS.put(CalculatorFunctions.Abs.class, ABS);
+        OPS.put(CalculatorFunctions.Acos.class, ACOS);
+        OPS.put(CalculatorFunctions.Asin.class, ASIN);
+        OPS.put(CalculatorFunctions.Atan.class, ATAN);
+        OPS.put(CalculatorFunctions.Atan2.class, ATAN2);
+        OPS.put(CalculatorFunctions.Cbrt.class, CBRT);
+        OPS.put(CalculatorFunctions.Ceiling.class, CEILING);
+        OPS.put(CalculatorFunctions.Cos.class, COS);
+        OPS.put(CalculatorFunctions.Cosh.class, COSH);
+        OPS.put(CalculatorFunctions.Divide.class, DIVIDE);
+        OPS.put(CalculatorFunctions.Exp.class, EXP);
+        OPS.put(CalculatorFunctions.Floor.class, FLOOR);
+        OPS.put(CalculatorFunctions.Hypot.class, HYPOT);
+        OPS.put(CalculatorFunctions.Log.class, LOG);
+        OPS.put(CalculatorFunctions.Log10.class, LOG10);
+        OPS.put(CalculatorFunctions.Log2.class, LOG2);
+        OPS.put(CalculatorFunctions.LogE.class, LOGE);
+        OPS.put(CalculatorFunctions.Plus.class, PLUS);
+        OPS.put(CalculatorFunctions.Power.class, POWER);
+        OPS.put(CalculatorFunctions.Sin.class, SIN);
+        OPS.put(CalculatorFunctions.Sinh.class, SINH);
+        OPS.put(CalculatorFunctions.Sqrt.class, SQRT);
+        OPS.put(CalculatorFunctions.Subtract.class, SUBTRACT);
+        OPS.put(CalculatorFunctions.Tan.class, TAN);
+        OPS.put(CalculatorFunctions.Tanh.class, TANH);
+        OPS.put(CalculatorFunctions.Times.class, TIMES);
+    }
+
+    private static int opFor(CalculatorFunction function) {
+        final Integer op = OPS.get(function.getClass());
+        return (op != null) ? op : -1;
+    }
+
+    private static class Constant extends CompiledRealExpression {
+        private final double value;
+        private final IntervalNode interval;
+
+        Constant(double value, IntervalNode interval) {
+            this.value = value;
+            this.interval = interval;
+        }
+
+        double evaluate(double[] variables) {
+            return value;
+        }
+
+        void evaluate(double[][] columns, int offset, int count, double[] out) {
+            Arrays.fill(out, 0, count, value);
+        }
+
+        IntervalNode evaluate(IntervalNode[] variables) {
+            return interval;
+        }
+
+        @Override boolean isConstant() {
+            return true;
+        }
+    }
+
+    private static class Variable extends CompiledRealExpression {
+        private final int index;
+
+        Variable(int index) {
+            this.index = index;
+        }
+
+        double evaluate(double[] variables) {
+            return variables[index];
+        }
+
+        void evaluate(double[][] columns, int offset, int count, double[] out) {
+            System.arraycopy(columns[index], offset, out, 0, count);
+        }
+
+        IntervalNode evaluate(IntervalNode[] variables) {
+            return variables[index];
+        }
+    }
+
+    private static class Unary extends CompiledRealExpression {
+        private final int op;
+        private final CompiledRealExpression arg;
+        private final boolean degreesMode;
+
+        Unary(int op, CompiledRealExpression arg, boolean degreesMode) {
+            this.op = op;
+            this.arg = arg;
+            this.degreesMode = degreesMode;
+        }
+
+        double evaluate(double[] variables) {
+            return apply(arg.evaluate(variables));
+        }
+
+        void evaluate(double[][] columns, int offset, int count, double[] out) {
+            arg.evaluate(columns, offset, count, out);
+            for (int i = 0; i < count; ++i) {
+                out[i] = apply(out[i]);
+            }
+        }
+
+        private double apply(double x) {
+            switch (op) {
+            case ABS: return Math.abs(x);
+            case ACOS: return angleResult(Math.acos(x));
+            case ASIN: return angleResult(Math.asin(x));
+            case ATAN: return angleResult(Math.atan(x));
+            case CBRT: return Math.cbrt(x);
+            case CEILING: return Math.ceil(x);
+            case COS: return Math.cos(angleArgument(x));
+            case COSH: return Math.cosh(x);
+            case EXP: return Math.exp(x);
+            case FLOOR: return Math.floor(x);
+            case LOG10: return Math.log10(x);
+            case LOG2: return Math.log(x) / Math.log(2.0);
+            case LOGE: return Math.log(x);
+            case SIN: return Math.sin(angleArgument(x));
+            case SINH: return Math.sinh(x);
+            case SQRT: return Math.sqrt(x);
+            case TAN: return Math.tan(angleArgument(x));
+            case TANH: return Math.tanh(x);
+            default: return Double.NaN; // Unreachable for a well-formed expression.
+            }
+        }
+
+        IntervalNode evaluate(IntervalNode[] variables) {
+            final IntervalNode x = arg.evaluate(variables);
+            switch (op) {
+            case ABS: return x.abs();
+            case ACOS: return angleResult(x.acos());
+            case ASIN: return angleResult(x.asin());
+            case ATAN: return angleResult(x.atan());
+            case CBRT: return x.cbrt();
+            case CEILING: return x.ceiling();
+            case COS: return angleArgument(x).cos();
+            case COSH: return x.cosh();
+            case EXP: return x.exp();
+            case FLOOR: return x.floor();
+            case LOG10: return x.log10();
+            case LOG2: return x.log2();
+            case LOGE: return x.logE();
+            case SIN: return angleArgument(x).sin();
+            case SINH: return x.sinh();
+            case SQRT: return x.sqrt();
+            case TAN: return angleArgument(x).tan();
+            case TANH: return x.tanh();
+            default: return IntervalNode.ENTIRE; // Unreachable for a well-formed expression.
+            }
+        }
+
+        // These mirror Calculator.angleArgument and Calculator.angleResult.
+        private double angleArgument(double x) {
+            return degreesMode ? Math.toRadians(x) : x;
+        }
+
+        private double angleResult(double x) {
+            return degreesMode ? Math.toDegrees(x) : x;
+        }
+
+        private IntervalNode angleArgument(IntervalNode x) {
+            return degreesMode ? x.toRadians() : x;
+        }
+
+        private IntervalNode angleResult(IntervalNode x) {
+            return degreesMode ? x.toDegrees() : x;
+        }
+    }
+
+    private static class Binary extends CompiledRealExpression {
+        private final int op;
+        private final CompiledRealExpression lhs;
+        private final CompiledRealExpression rhs;
+        private final boolean degreesMode;
+
+        Binary(int op, CompiledRealExpression lhs, CompiledRealExpression rhs, boolean degreesMode) {
+            this.op = op;
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.degreesMode = degreesMode;
+        }
+
+        double evaluate(double[] variables) {
+            return apply(lhs.evaluate(variables), rhs.evaluate(variables));
+        }
+
+        void evaluate(double[][] columns, int offset, int count, double[] out) {
+            lhs.evaluate(columns, offset, count, out);
+            final double[] y = new double[count];
+            rhs.evaluate(columns, offset, count, y);
+            // The common operations get loops of their own, simple enough for the JIT to vectorize.
+            switch (op) {
+            case PLUS:
+                for (int i = 0; i < count; ++i) {
+                    out[i] += y[i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < count; ++i) {
+                    out[i] -= y[i];
+                }
+                break;
+            case TIMES:
+                for (int i = 0; i < count; ++i) {
+                    out[i] *= y[i];
+                }
+                break;
+            case DIVIDE:
+                for (int i = 0; i < count; ++i) {
+                    out[i] /= y[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < count; ++i) {
+                    out[i] = apply(out[i], y[i]);
+                }
+            }
+        }
+
+        private double apply(double x, double y) {
+            switch (op) {
+            case ATAN2: return degreesMode ? Math.toDegrees(Math.atan2(x, y)) : Math.atan2(x, y);
+            case DIVIDE: return x / y;
+            case HYPOT: return Math.hypot(x, y);
+            case LOG: return Math.log(y) / Math.log(x); // Log(base, n).
+            case PLUS: return x + y;
+            case POWER: return Math.pow(x, y);
+            case SUBTRACT: return x - y;
+            case TIMES: return x * y;
+            default: return Double.NaN; // Unreachable for a well-formed expression.
+            }
+        }
+
+        IntervalNode evaluate(IntervalNode[] variables) {
+            final IntervalNode x = lhs.evaluate(variables);
+            final IntervalNode y = rhs.evaluate(variables);
+            switch (op) {
+            case ATAN2: return degreesMode ? x.atan2(y).toDegrees() : x.atan2(y);
+            case DIVIDE: return x.divide(y);
+            case HYPOT: return x.hypot(y);
+            case LOG: return y.log(x); // Log(base, n).
+            case PLUS: return x.plus(y);
+            case POWER: return x.power(y);
+            case SUBTRACT: return x.subtract(y);
+            case TIMES: return x.times(y);
+            default: return IntervalNode.ENTIRE; // Unreachable for a well-formed expression.
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * A mutable running total of integers.
+ *
+ * Adding IntegerNodes together allocates a new node for every partial sum. This keeps the total in a long for as
+ * long as it fits, and only spills into a BigInteger on overflow, so summing a run of fixnums allocates nothing.
+ */
+final class IntegerAccumulator {
+    private long sum = 0;
+    // What didn't fit in 'sum'. Null until something overflows.
+    private BigInteger overflow = null;
+
+    void add(long term) {
+        final long newSum = sum + term;
+        // Overflow if both operands have the same sign, and the result has the other sign.
+        if (((sum ^ newSum) & (term ^ newSum)) < 0) {
+            spill(BigInteger.valueOf(sum));
+            sum = term;
+        } else {
+            sum = newSum;
+        }
+    }
+
+    void add(IntegerNode term) {
+        if (term.isBig()) {
+            spill(term.big());
+        } else {
+            add(term.fix());
+        }
+    }
+
+    private void spill(BigInteger n) {
+        overflow = (overflow == null) ? n : overflow.add(n);
+    }
+
+    boolean isZero() {
+        return sum == 0 && (overflow == null || overflow.signum() == 0);
+    }
+
+    IntegerNode value() {
+        return (overflow == null) ? IntegerNode.valueOf(sum) : IntegerNode.valueOf(overflow.add(BigInteger.valueOf(sum)));
+    }
+
+    void clear() {
+        sum = 0;
+        overflow = null;
+    }
+}
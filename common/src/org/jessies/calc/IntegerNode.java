@@ -19,7 +19,7 @@ package org.jessies.calc;
  */
 
 import java.math.*;
-//import org.jessies.calc.bigint.*;
+import org.jessies.calc.bigint.*;
 
 public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     // Cache common values, equivalent to what the JLS mandates for boxed integers in Java.
@@ -36,9 +36,6 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     public static final IntegerNode ZERO = IntegerNode.valueOf(0);
     public static final IntegerNode ONE = IntegerNode.valueOf(1);
 
-    // Used by factorial.
-    private static final BigInteger BIG_INTEGER_TWO = BigInteger.valueOf(2);
-
     // If 'bignum' is null, this IntegerNode's value is 'fixnum'. Otherwise, it's 'bignum' and 'fixnum' is ignored.
     private final long fixnum;
     private final BigInteger bignum;
@@ -236,15 +233,20 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public NumberNode divide(NumberNode rhs) {
-        if (rhs instanceof BigRealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).divide(rhs);
+        } else if (rhs instanceof BigRealNode) {
             return toBigReal().divide(rhs);
         } else if (rhs instanceof RealNode) {
             return toReal().divide(rhs);
+        } else if (rhs instanceof RationalNode) {
+            final RationalNode r = (RationalNode) rhs;
+            return RationalNode.valueOf((IntegerNode) times(r.denominator()), r.numerator());
         }
 
         try {
             IntegerNode iRhs = (IntegerNode) rhs;
-            BigInteger[] divmod = big().divideAndRemainder(iRhs.big());
+            BigInteger[] divmod = Division.divideAndRemainder(big(), iRhs.big());
             if (divmod[1].equals(BigInteger.ZERO)) {
                 return new IntegerNode(divmod[0]);
             } else {
@@ -263,23 +265,105 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         } else if (signum == 0) {
             return IntegerNode.ONE;
         }
-        // Based on fact6 from Richard J Fateman's "Comments on Factorial Programs".
-        return IntegerNode.valueOf(factorialHelper(n, BigInteger.ONE));
+        if (n.bitLength() > 31) {
+            throw new CalculatorError("factorial argument too large: " + this);
+        }
+        return IntegerNode.valueOf(Factorial.factorial(n.intValue()));
     }
 
-    public static IntegerNode gcd(IntegerNode a, IntegerNode b) {
-        // If you special-case !isBig, don't forget to test Long.MIN_VALUE!
-        return IntegerNode.valueOf(a.big().abs().gcd(b.big().abs()));
+    /**
+     * Returns the binomial coefficient nCr(this, r), or zero if r > this.
+     */
+    public IntegerNode binomial(IntegerNode r) {
+        checkCombinatorialArguments("nCr", r);
+        if (compareTo(r) < 0) {
+            return IntegerNode.ZERO;
+        }
+        // nCr(n, r) = nCr(n, n-r), and the smaller r is the less work.
+        final IntegerNode nMinusR = (IntegerNode) subtract(r);
+        if (r.compareTo(nMinusR) > 0) {
+            r = nMinusR;
+        }
+        if (!isBig()) {
+            final long result = binomial(fixnum, r.fixnum);
+            if (result != -1) {
+                return IntegerNode.valueOf(result);
+            }
+        }
+        return IntegerNode.valueOf(Binomial.binomial(big(), combinatorialCount("nCr", r)));
     }
 
-    private static BigInteger factorialHelper(BigInteger n, BigInteger m) {
-        if (n.compareTo(m) <= 0) {
-            return n;
+    /**
+     * Returns the number of permutations nPr(this, r), which is this!/(this-r)!, or zero if r > this.
+     */
+    public IntegerNode fallingFactorial(IntegerNode r) {
+        checkCombinatorialArguments("nPr", r);
+        if (compareTo(r) < 0) {
+            return IntegerNode.ZERO;
+        }
+        if (!isBig()) {
+            final long result = fallingFactorial(fixnum, r.fixnum);
+            if (result != -1) {
+                return IntegerNode.valueOf(result);
+            }
         }
-        // shiftLeft(1) - 550145094 ns
-        // multiply()   - 535161265 ns
-        final BigInteger twoM = BIG_INTEGER_TWO.multiply(m); // This seems consistently faster than m.shiftLeft(1)!
-        return factorialHelper(n, twoM).multiply(factorialHelper(n.subtract(m), twoM));
+        return IntegerNode.valueOf(Binomial.fallingFactorial(big(), combinatorialCount("nPr", r)));
+    }
+
+    private void checkCombinatorialArguments(String function, IntegerNode r) {
+        if (sign().fix() < 0 || r.sign().fix() < 0) {
+            throw new IllegalArgumentException(function + " requires non-negative integer arguments; got " + this + " and " + r + " instead");
+        }
+    }
+
+    private static int combinatorialCount(String function, IntegerNode r) {
+        if (r.big().bitLength() > 31) {
+            throw new CalculatorError(function + " argument too large: " + r);
+        }
+        return r.intValue();
+    }
+
+    // Returns nCr(n, r) for 0 <= r <= n/2, or -1 if it doesn't fit in a long.
+    private static long binomial(long n, long r) {
+        // Each partial product nCr(n-r+i, i) is an integer, so after dividing out the gcd of the running total and i,
+        // what's left of i must divide the next factor. Nothing but the final result ever needs to fit.
+        long result = 1;
+        for (long i = 1; i <= r; ++i) {
+            final long g = gcd(result, i);
+            result /= g;
+            final long factor = (n - r + i) / (i / g);
+            if (result > Long.MAX_VALUE / factor) {
+                return -1;
+            }
+            result *= factor;
+        }
+        return result;
+    }
+
+    // Returns n!/(n-r)! for 0 <= r <= n, or -1 if it doesn't fit in a long.
+    private static long fallingFactorial(long n, long r) {
+        long result = 1;
+        for (long i = n - r + 1; i <= n; ++i) {
+            if (result > Long.MAX_VALUE / i) {
+                return -1;
+            }
+            result *= i;
+        }
+        return result;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            final long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public static IntegerNode gcd(IntegerNode a, IntegerNode b) {
+        // If you special-case !isBig, don't forget to test Long.MIN_VALUE!
+        return IntegerNode.valueOf(a.big().abs().gcd(b.big().abs()));
     }
 
     public NumberNode fractionalPart() {
@@ -299,77 +383,56 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public BooleanNode isPrime() {
-        if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-            throw new CalculatorError("IsPrime uses a naive algorithm unsuitable for huge numbers");
-        }
-        return isPrime((int) fixnum);
-    }
-
-    private static BooleanNode isPrime(int n) {
-      // FIXME: replace the naive algorithm with something better.
-      if (n == 1) {
-        return BooleanNode.FALSE;
-      }
-      if (n == 2) {
-        return BooleanNode.TRUE;
-      }
-      if ((n % 2) == 0) {
-        return BooleanNode.FALSE;
-      }
-      final int max = (int) Math.sqrt(n);
-      for (int i = 3; i <= max; i += 2) {
-        if (n % i == 0) {
-          return BooleanNode.FALSE;
+        // We follow the convention that -p is prime if p is.
+        final boolean result;
+        if (isBig() || fixnum == Long.MIN_VALUE) {
+            result = NumberTheory.isPrime(big().abs());
+        } else {
+            result = NumberTheory.isPrime(Math.abs(fixnum));
         }
-      }
-      return BooleanNode.TRUE;
+        return BooleanNode.valueOf(result);
     }
 
+    /**
+     * Returns the prime factors of this integer, with multiplicity, in ascending order.
+     * The first factor of a negative integer is negated. Zero and one have no prime factors.
+     */
     public ListNode primeFactors() {
-      if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-        throw new CalculatorError("Factors uses a naive algorithm unsuitable for huge numbers");
-      }
-
-      // FIXME: replace the naive algorithm with something better.
-      int n = Math.abs((int) fixnum);
-
-      final ListNode result = new ListNode();
-      for (int factor = 2; factor <= n; ++factor) {
-        if ((n % factor) == 0) {
-          result.add(IntegerNode.valueOf(factor));
-          n /= factor;
-          --factor; // Try this factor again.
+        final ListNode result = new ListNode();
+        if (compareTo(ZERO) == 0) {
+            return result;
         }
-      }
-      if (fixnum < 0) {
-        result.set(0, IntegerNode.ZERO.subtract((IntegerNode) result.get(0)));
-      }
-      return result;
+        for (BigInteger factor : NumberTheory.primeFactors(big().abs())) {
+            result.add(IntegerNode.valueOf(factor));
+        }
+        if (compareTo(ZERO) < 0) {
+            if (result.size() == 0) {
+                result.add(MINUS_ONE);
+            } else {
+                result.set(0, ZERO.subtract((IntegerNode) result.get(0)));
+            }
+        }
+        return result;
     }
 
+    /**
+     * Returns the positive divisors of this integer, in ascending order. Zero has no divisors.
+     */
     public ListNode divisors() {
-      if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-        throw new CalculatorError("Factors uses a naive algorithm unsuitable for huge numbers");
-      }
-
-      // FIXME: replace the naive algorithm with something better.
-      int n = Math.abs((int) fixnum);
-
-      final ListNode result = new ListNode();
-
-      // TODO: only need to go to sqrt(n) if we build the list from both ends by actually dividing.
-      for (int i = 1; i <= n; ++i) {
-        if ((n % i) == 0) {
-          result.add(IntegerNode.valueOf(i));
+        final ListNode result = new ListNode();
+        if (compareTo(ZERO) == 0) {
+            return result;
         }
-      }
-      return result;
+        for (BigInteger divisor : NumberTheory.divisors(big().abs())) {
+            result.add(IntegerNode.valueOf(divisor));
+        }
+        return result;
     }
 
     public IntegerNode mod(IntegerNode rhs) {
         try {
             if (isBig() || rhs.isBig()) {
-                return IntegerNode.valueOf(big().remainder(rhs.big()));
+                return IntegerNode.valueOf(Division.divideAndRemainder(big(), rhs.big())[1]);
             } else {
                 return IntegerNode.valueOf(fixnum % rhs.fixnum);
             }
@@ -379,10 +442,14 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public NumberNode plus(NumberNode rhs) {
-        if (rhs instanceof BigRealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).plus(rhs);
+        } else if (rhs instanceof BigRealNode) {
             return toBigReal().plus(rhs);
         } else if (rhs instanceof RealNode) {
             return toReal().plus(rhs);
+        } else if (rhs instanceof RationalNode) {
+            return rhs.plus(this);
         }
 
         IntegerNode iRhs = (IntegerNode) rhs;
@@ -402,16 +469,43 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public NumberNode power(NumberNode rhs) {
-        if (rhs instanceof BigRealNode || rhs instanceof RealNode || rhs.sign().compareTo(MINUS_ONE) == 0) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).power(rhs);
+        } else if (rhs instanceof BigRealNode || rhs instanceof RealNode || rhs.sign().compareTo(MINUS_ONE) == 0) {
             return toReal().power(rhs);
         }
-        // FIXME: special-case small enough fixnums?
         final IntegerNode exponent = (IntegerNode) rhs;
         if (exponent.isBig() || exponent.fixnum > Integer.MAX_VALUE) {
             throw new CalculatorError("can't raise " + this + " to the " + exponent + "th power");
         }
-        return new IntegerNode(big().pow(exponent.intValue()));
+        if (!isBig()) {
+            final IntegerNode result = fixnumPower(fixnum, (int) exponent.fixnum);
+            if (result != null) {
+                return result;
+            }
+        }
+        return new IntegerNode(Multiplication.pow(big(), exponent.intValue()));
+    }
 
+    // Returns base^n by repeated squaring, or null if that doesn't fit in a fixnum.
+    private static IntegerNode fixnumPower(long base, int n) {
+        long result = 1;
+        while (n > 0) {
+            if ((n & 1) != 0) {
+                if (multiplicationOverflows(result, base)) {
+                    return null;
+                }
+                result *= base;
+            }
+            n >>= 1;
+            if (n > 0) {
+                if (multiplicationOverflows(base, base)) {
+                    return null;
+                }
+                base *= base;
+            }
+        }
+        return IntegerNode.valueOf(result);
     }
 
     public IntegerNode sign() {
@@ -432,10 +526,15 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public NumberNode subtract(NumberNode rhs) {
-        if (rhs instanceof BigRealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).subtract(rhs);
+        } else if (rhs instanceof BigRealNode) {
             return toBigReal().subtract(rhs);
         } else if (rhs instanceof RealNode) {
             return toReal().subtract(rhs);
+        } else if (rhs instanceof RationalNode) {
+            final RationalNode r = (RationalNode) rhs;
+            return RationalNode.valueOf((IntegerNode) times(r.denominator()).subtract(r.numerator()), r.denominator());
         }
 
         IntegerNode iRhs = (IntegerNode) rhs;
@@ -454,26 +553,23 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public NumberNode times(NumberNode rhs) {
-        if (rhs instanceof BigRealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).times(rhs);
+        } else if (rhs instanceof BigRealNode) {
             return toBigReal().times(rhs);
         } else if (rhs instanceof RealNode) {
             return toReal().times(rhs);
+        } else if (rhs instanceof RationalNode) {
+            return rhs.times(this);
         }
 
         IntegerNode iRhs = (IntegerNode) rhs;
         if (isBig() || iRhs.isBig()) {
-            return IntegerNode.valueOf(big().multiply(iRhs.big()));
+            return IntegerNode.valueOf(Multiplication.multiply(big(), iRhs.big()));
         } else {
             final long a = fixnum;
             final long b = iRhs.fixnum;
-            // https://www.securecoding.cert.org/confluence/display/seccode/INT32-C.+Ensure+that+operations+on+signed+integers+do+not+result+in+overflow?showComments=false
-            boolean overflow;
-            if (a > 0) {
-                overflow = ((b > 0) && (a > Long.MAX_VALUE / b)) || ((b <= 0) && (b < Long.MIN_VALUE / a));
-            } else {
-                overflow = ((b > 0) && (a < Long.MIN_VALUE / b)) || ((b <= 0) && (a != 0 && b < (Long.MAX_VALUE / a)));
-            }
-            if (overflow) {
+            if (multiplicationOverflows(a, b)) {
                 return new IntegerNode(big().multiply(iRhs.big()));
             } else {
                 return IntegerNode.valueOf(a*b);
@@ -481,6 +577,15 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         }
     }
 
+    private static boolean multiplicationOverflows(long a, long b) {
+        // https://www.securecoding.cert.org/confluence/display/seccode/INT32-C.+Ensure+that+operations+on+signed+integers+do+not+result+in+overflow?showComments=false
+        if (a > 0) {
+            return ((b > 0) && (a > Long.MAX_VALUE / b)) || ((b <= 0) && (b < Long.MIN_VALUE / a));
+        } else {
+            return ((b > 0) && (a < Long.MIN_VALUE / b)) || ((b <= 0) && (a != 0 && b < (Long.MAX_VALUE / a)));
+        }
+    }
+
     public BigRealNode toBigReal() {
         return new BigRealNode(new BigDecimal(big()));
     }
@@ -500,7 +605,7 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
   public String toInputString(int base) {
     String result;
     if (isBig()) {
-      result = big().toString(base);
+      result = Radix.toString(big(), base);
     } else {
       result = Long.toString(fixnum, base);
     }
@@ -0,0 +1,555 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A closed interval of reals [lo, hi], with doubles as bounds. The result of any operation on intervals contains the
+ * exact result of that operation on every choice of values from its arguments, so evaluating an expression over
+ * intervals gives guaranteed bounds on its value (though not necessarily the tightest bounds, since the interval
+ * arithmetic doesn't know that both x in x-x are the same value).
+ *
+ * The four arithmetic operations and square root are rounded outward only when they were actually inexact, so
+ * intervals with small integer bounds stay exact. Library functions such as Math.sin are only accurate to an ulp, so
+ * their results are always widened by an ulp in each direction.
+ *
+ * Functions applied partly outside their domain give the range over the part inside it, so Sqrt(Interval(-1, 4)) is
+ * [0, 2]; the empty interval represents a function applied entirely outside its domain.
+ */
+public class IntervalNode implements NumberNode {
+    public static final IntervalNode EMPTY = new IntervalNode(Double.NaN, Double.NaN);
+    public static final IntervalNode ENTIRE = new IntervalNode(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+    private static final IntervalNode ONE = new IntervalNode(1, 1);
+    private static final IntervalNode UNIT = new IntervalNode(-1, 1);
+    private static final IntervalNode PI = new IntervalNode(down(Math.PI), up(Math.PI));
+    private static final IntervalNode ATAN2_RANGE = new IntervalNode(-PI.hi, PI.hi);
+    // Math.PI/180 is rounded twice, so allow two ulps.
+    private static final IntervalNode RADIANS_PER_DEGREE = new IntervalNode(down(down(Math.PI / 180)), up(up(Math.PI / 180)));
+    private static final IntervalNode DEGREES_PER_RADIAN = new IntervalNode(down(down(180 / Math.PI)), up(up(180 / Math.PI)));
+
+    // Above this, we don't trust our reduction modulo pi for the trigonometric functions.
+    private static final double MAX_TRIGONOMETRIC_ARGUMENT = 1e9;
+
+    private final double lo;
+    private final double hi;
+
+    private IntervalNode(double lo, double hi) {
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /**
+     * Returns the interval [lo, hi], or the empty interval if either bound is NaN.
+     */
+    public static IntervalNode valueOf(double lo, double hi) {
+        if (Double.isNaN(lo) || Double.isNaN(hi)) {
+            return EMPTY;
+        }
+        if (lo > hi) {
+            throw new IllegalArgumentException("interval bounds out of order: " + lo + " > " + hi);
+        }
+        return new IntervalNode(lo, hi);
+    }
+
+    /**
+     * Returns the smallest interval we can represent that contains 'n'.
+     */
+    public static IntervalNode valueOf(NumberNode n) {
+        if (n instanceof IntervalNode) {
+            return (IntervalNode) n;
+        }
+        final double value = n.toReal().doubleValue();
+        if (n instanceof RealNode || (n instanceof IntegerNode && !((IntegerNode) n).isBig() && Math.abs(((IntegerNode) n).fix()) <= (1L << 53))) {
+            // Exactly representable.
+            return valueOf(value, value);
+        }
+        return around(value);
+    }
+
+    /**
+     * Returns an interval containing any real that rounds to 'value'.
+     */
+    static IntervalNode around(double value) {
+        return valueOf(down(value), up(value));
+    }
+
+    public double lo() {
+        return lo;
+    }
+
+    public double hi() {
+        return hi;
+    }
+
+    public boolean isEmpty() {
+        return Double.isNaN(lo);
+    }
+
+    /**
+     * Returns true if this interval is non-empty and has finite bounds.
+     */
+    public boolean isBounded() {
+        return !Double.isInfinite(lo) && !Double.isInfinite(hi) && !isEmpty();
+    }
+
+    public double width() {
+        return hi - lo;
+    }
+
+    /**
+     * Returns the smallest interval containing both this interval and 'other'.
+     */
+    public IntervalNode union(IntervalNode other) {
+        if (isEmpty()) {
+            return other;
+        } else if (other.isEmpty()) {
+            return this;
+        }
+        return new IntervalNode(Math.min(lo, other.lo), Math.max(hi, other.hi));
+    }
+
+    public Node evaluate(Calculator environment) {
+        return this;
+    }
+
+    public Node simplify(Calculator environment) {
+        return this;
+    }
+
+    public IntervalNode abs() {
+        if (lo >= 0 || isEmpty()) {
+            return this;
+        } else if (hi <= 0) {
+            return new IntervalNode(-hi, -lo);
+        }
+        return new IntervalNode(0, Math.max(-lo, hi));
+    }
+
+    public IntervalNode plus(NumberNode rhs) {
+        final IntervalNode y = valueOf(rhs);
+        if (isEmpty() || y.isEmpty()) {
+            return EMPTY;
+        }
+        final double a = lo + y.lo;
+        final double b = hi + y.hi;
+        return new IntervalNode(roundDown(a, sumError(lo, y.lo, a)), roundUp(b, sumError(hi, y.hi, b)));
+    }
+
+    public IntervalNode subtract(NumberNode rhs) {
+        return plus(valueOf(rhs).negate());
+    }
+
+    public IntervalNode negate() {
+        return isEmpty() ? this : new IntervalNode(-hi, -lo);
+    }
+
+    public IntervalNode increment() {
+        return plus(IntegerNode.ONE);
+    }
+
+    public IntervalNode times(NumberNode rhs) {
+        final IntervalNode y = valueOf(rhs);
+        if (isEmpty() || y.isEmpty()) {
+            return EMPTY;
+        }
+        final double a = multiplyDown(lo, y.lo);
+        final double b = multiplyDown(lo, y.hi);
+        final double c = multiplyDown(hi, y.lo);
+        final double d = multiplyDown(hi, y.hi);
+        final double e = multiplyUp(lo, y.lo);
+        final double f = multiplyUp(lo, y.hi);
+        final double g = multiplyUp(hi, y.lo);
+        final double h = multiplyUp(hi, y.hi);
+        return new IntervalNode(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(e, f), Math.max(g, h)));
+    }
+
+    public IntervalNode divide(NumberNode rhs) {
+        final IntervalNode y = valueOf(rhs);
+        if (isEmpty() || y.isEmpty() || (y.lo == 0 && y.hi == 0)) {
+            return EMPTY;
+        } else if (y.lo <= 0 && y.hi >= 0) {
+            // We could do better when zero is one of the bounds, but the result is unbounded either way.
+            return ENTIRE;
+        }
+        final double a = divideDown(lo, y.lo);
+        final double b = divideDown(lo, y.hi);
+        final double c = divideDown(hi, y.lo);
+        final double d = divideDown(hi, y.hi);
+        final double e = divideUp(lo, y.lo);
+        final double f = divideUp(lo, y.hi);
+        final double g = divideUp(hi, y.lo);
+        final double h = divideUp(hi, y.hi);
+        return new IntervalNode(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(e, f), Math.max(g, h)));
+    }
+
+    public IntervalNode power(NumberNode rhs) {
+        final IntervalNode y = valueOf(rhs);
+        if (y.lo == y.hi && y.lo == Math.rint(y.lo) && Math.abs(y.lo) <= (1 << 30)) {
+            return integerPower((int) y.lo);
+        }
+        // x^y = e^(y ln x), which is only real for x >= 0.
+        return y.times(logE()).exp();
+    }
+
+    private IntervalNode integerPower(int n) {
+        if (n < 0) {
+            return ONE.divide(integerPower(-n));
+        } else if (n == 0 || isEmpty()) {
+            return (n == 0) ? ONE : this;
+        } else if ((n & 1) == 0) {
+            final IntervalNode a = abs();
+            return new IntervalNode(powerBound(a.lo, n, false), powerBound(a.hi, n, true));
+        }
+        final double a = (lo >= 0) ? powerBound(lo, n, false) : -powerBound(-lo, n, true);
+        final double b = (hi >= 0) ? powerBound(hi, n, true) : -powerBound(-hi, n, false);
+        return new IntervalNode(a, b);
+    }
+
+    // Returns a lower or upper bound for x^n, for x >= 0 and n >= 1, by repeated squaring.
+    private static double powerBound(double x, int n, boolean upper) {
+        double result = 1;
+        double base = x;
+        while (true) {
+            if ((n & 1) != 0) {
+                result = upper ? multiplyUp(result, base) : multiplyDown(result, base);
+            }
+            n >>>= 1;
+            if (n == 0) {
+                return result;
+            }
+            base = upper ? multiplyUp(base, base) : multiplyDown(base, base);
+        }
+    }
+
+    public IntegerNode sign() {
+        if (lo > 0) {
+            return IntegerNode.ONE;
+        } else if (hi < 0) {
+            return IntegerNode.MINUS_ONE;
+        } else if (lo == 0 && hi == 0) {
+            return IntegerNode.ZERO;
+        }
+        throw new CalculatorError("the sign of " + toInputString() + " isn't known");
+    }
+
+    public IntegerNode integerPart() {
+        final IntegerNode result = new RealNode(lo).integerPart();
+        if (isEmpty() || !result.equals(new RealNode(hi).integerPart())) {
+            throw new CalculatorError("the integer part of " + toInputString() + " isn't known");
+        }
+        return result;
+    }
+
+    public IntervalNode fractionalPart() {
+        return subtract(integerPart());
+    }
+
+    /**
+     * Returns the midpoint of the interval.
+     */
+    public RealNode toReal() {
+        return new RealNode(lo / 2 + hi / 2);
+    }
+
+    public IntervalNode ceiling() {
+        return isEmpty() ? this : new IntervalNode(Math.ceil(lo), Math.ceil(hi));
+    }
+
+    public IntervalNode floor() {
+        return isEmpty() ? this : new IntervalNode(Math.floor(lo), Math.floor(hi));
+    }
+
+    // Most of the functions below are monotonic over their domains, so we just need their values at the bounds.
+
+    public IntervalNode acos() {
+        if (isEmpty() || lo > 1 || hi < -1) {
+            return EMPTY;
+        }
+        return new IntervalNode(Math.max(0, down(Math.acos(Math.min(hi, 1)))), up(Math.acos(Math.max(lo, -1))));
+    }
+
+    public IntervalNode asin() {
+        if (isEmpty() || lo > 1 || hi < -1) {
+            return EMPTY;
+        }
+        return new IntervalNode(down(Math.asin(Math.max(lo, -1))), up(Math.asin(Math.min(hi, 1))));
+    }
+
+    public IntervalNode atan() {
+        return isEmpty() ? this : new IntervalNode(down(Math.atan(lo)), up(Math.atan(hi)));
+    }
+
+    public IntervalNode atan2(IntervalNode x) {
+        if (isEmpty() || x.isEmpty()) {
+            return EMPTY;
+        }
+        // We don't bother finding the quadrants; this is always correct.
+        return ATAN2_RANGE;
+    }
+
+    public IntervalNode cbrt() {
+        return isEmpty() ? this : new IntervalNode(down(Math.cbrt(lo)), up(Math.cbrt(hi)));
+    }
+
+    public IntervalNode cos() {
+        return sinusoid(true);
+    }
+
+    public IntervalNode cosh() {
+        final IntervalNode a = abs();
+        return isEmpty() ? this : new IntervalNode(Math.max(1, down(Math.cosh(a.lo))), up(Math.cosh(a.hi)));
+    }
+
+    public IntervalNode exp() {
+        return isEmpty() ? this : new IntervalNode(Math.max(0, down(Math.exp(lo))), up(Math.exp(hi)));
+    }
+
+    public IntervalNode hypot(IntervalNode y) {
+        if (isEmpty() || y.isEmpty()) {
+            return EMPTY;
+        }
+        final IntervalNode a = abs();
+        final IntervalNode b = y.abs();
+        return new IntervalNode(Math.max(0, down(Math.hypot(a.lo, b.lo))), up(Math.hypot(a.hi, b.hi)));
+    }
+
+    /**
+     * Returns the logarithm of this interval to the given base.
+     */
+    public IntervalNode log(IntervalNode base) {
+        return logE().divide(base.logE());
+    }
+
+    public IntervalNode log2() {
+        return logE().times(new IntervalNode(down(1 / Math.log(2)), up(1 / Math.log(2))));
+    }
+
+    public IntervalNode logE() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return new IntervalNode((lo > 0) ? down(Math.log(lo)) : Double.NEGATIVE_INFINITY, up(Math.log(hi)));
+    }
+
+    public IntervalNode log10() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return new IntervalNode((lo > 0) ? down(Math.log10(lo)) : Double.NEGATIVE_INFINITY, up(Math.log10(hi)));
+    }
+
+    public IntervalNode sin() {
+        return sinusoid(false);
+    }
+
+    public IntervalNode sinh() {
+        return isEmpty() ? this : new IntervalNode(down(Math.sinh(lo)), up(Math.sinh(hi)));
+    }
+
+    public IntervalNode sqrt() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return new IntervalNode(sqrtDown(Math.max(lo, 0)), sqrtUp(hi));
+    }
+
+    public IntervalNode tan() {
+        if (isEmpty()) {
+            return this;
+        } else if (!(hi - lo < Math.PI) || Math.abs(lo) > MAX_TRIGONOMETRIC_ARGUMENT || Math.abs(hi) > MAX_TRIGONOMETRIC_ARGUMENT || mightContain(Math.PI / 2, Math.PI)) {
+            // There's a pole in here somewhere.
+            return ENTIRE;
+        }
+        return new IntervalNode(down(Math.tan(lo)), up(Math.tan(hi)));
+    }
+
+    public IntervalNode tanh() {
+        return isEmpty() ? this : new IntervalNode(Math.max(-1, down(Math.tanh(lo))), Math.min(1, up(Math.tanh(hi))));
+    }
+
+    /**
+     * Converts this interval from degrees to radians.
+     */
+    public IntervalNode toRadians() {
+        return times(RADIANS_PER_DEGREE);
+    }
+
+    /**
+     * Converts this interval from radians to degrees.
+     */
+    public IntervalNode toDegrees() {
+        return times(DEGREES_PER_RADIAN);
+    }
+
+    // Returns the range of sin or cos. Between its extrema, each is monotonic; the maxima of cos are at 2*pi*k, and
+    // those of sin are pi/2 further on. The minima are pi from the maxima.
+    private IntervalNode sinusoid(boolean isCos) {
+        if (isEmpty()) {
+            return this;
+        } else if (!(hi - lo < 2 * Math.PI) || Math.abs(lo) > MAX_TRIGONOMETRIC_ARGUMENT || Math.abs(hi) > MAX_TRIGONOMETRIC_ARGUMENT) {
+            return UNIT;
+        }
+        final double a = isCos ? Math.cos(lo) : Math.sin(lo);
+        final double b = isCos ? Math.cos(hi) : Math.sin(hi);
+        final double maximum = isCos ? 0 : Math.PI / 2;
+        final double resultLo = mightContain(maximum + Math.PI, 2 * Math.PI) ? -1 : down(Math.min(a, b));
+        final double resultHi = mightContain(maximum, 2 * Math.PI) ? 1 : up(Math.max(a, b));
+        return new IntervalNode(Math.max(-1, resultLo), Math.min(1, resultHi));
+    }
+
+    // Returns true if offset + k*period might be in this interval for some integer k. Our pi isn't exact, so we err on
+    // the side of saying yes, which only costs us a slightly wider result.
+    private boolean mightContain(double offset, double period) {
+        final double slack = 1e-9;
+        return Math.floor((hi - offset) / period + slack) >= Math.ceil((lo - offset) / period - slack);
+    }
+
+    @Override public boolean equals(Object other) {
+        if (!(other instanceof IntervalNode)) {
+            return false;
+        }
+        final IntervalNode rhs = (IntervalNode) other;
+        return Double.compare(lo, rhs.lo) == 0 && Double.compare(hi, rhs.hi) == 0;
+    }
+
+    @Override public int hashCode() {
+        final long bits = Double.doubleToLongBits(lo) * 31 + Double.doubleToLongBits(hi);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    public String toInputString() {
+        return "Interval(" + lo + ", " + hi + ")";
+    }
+
+    @Override public String toString() {
+        return toInputString();
+    }
+
+    // Directed rounding. Java only rounds to nearest, so we round the other way by stepping an ulp when the rounding
+    // error (computed exactly, below) was in the wrong direction. A NaN error means we don't know, so we step anyway.
+
+    private static double down(double x) {
+        return Math.nextAfter(x, Double.NEGATIVE_INFINITY);
+    }
+
+    private static double up(double x) {
+        return Math.nextAfter(x, Double.POSITIVE_INFINITY);
+    }
+
+    // Returns a lower bound for the exact result of an operation that gave 'result', given 'error', the exact result
+    // minus 'result'. A NaN result, from something like infinity minus infinity, could be anything.
+    private static double roundDown(double result, double error) {
+        if (Double.isNaN(result)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return (error >= 0) ? result : down(result);
+    }
+
+    private static double roundUp(double result, double error) {
+        if (Double.isNaN(result)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (error <= 0) ? result : up(result);
+    }
+
+    // Returns (a + b) - s exactly, where s = a + b rounded. Knuth's TwoSum.
+    private static double sumError(double a, double b, double s) {
+        if (Double.isInfinite(s)) {
+            return Double.NaN;
+        }
+        final double bb = s - a;
+        return (a - (s - bb)) + (b - bb);
+    }
+
+    // Returns a*b - p exactly, where p = a*b rounded, or NaN if that might not be representable. Dekker's TwoProduct.
+    private static double productError(double a, double b, double p) {
+        if (p == 0 || a == 0 || b == 0) {
+            // Either exact, or an underflow, which we can't quantify but only matters if we guess the wrong sign.
+            return (a == 0 || b == 0) ? 0 : Double.NaN;
+        } else if (Double.isInfinite(p) || Double.isNaN(p) || Math.abs(a) > 1e290 || Math.abs(b) > 1e290 || Math.abs(p) < 1e-290) {
+            return Double.NaN;
+        }
+        final double aHi = split(a);
+        final double aLo = a - aHi;
+        final double bHi = split(b);
+        final double bLo = b - bHi;
+        return ((aHi * bHi - p) + aHi * bLo + aLo * bHi) + aLo * bLo;
+    }
+
+    // Veltkamp's splitting: returns the high 26 bits of x.
+    private static double split(double x) {
+        final double c = 134217729.0 * x; // 2^27 + 1.
+        return c - (c - x);
+    }
+
+    private static double multiplyDown(double a, double b) {
+        final double p = a * b;
+        if (Double.isNaN(p)) {
+            return 0; // 0 * infinity.
+        }
+        return roundDown(p, productError(a, b, p));
+    }
+
+    private static double multiplyUp(double a, double b) {
+        final double p = a * b;
+        if (Double.isNaN(p)) {
+            return 0; // 0 * infinity.
+        }
+        return roundUp(p, productError(a, b, p));
+    }
+
+    // For correctly-rounded q = a/b, a - q*b is exact, and has the sign of the error in q times the sign of b.
+    private static double divisionError(double a, double b, double q) {
+        if (Double.isInfinite(a) || Double.isInfinite(b)) {
+            return 0;
+        }
+        final double p = q * b;
+        final double e = productError(q, b, p);
+        return ((a - p) - e) * Math.signum(b);
+    }
+
+    // Math.sqrt is correctly rounded, and x - r*r has the sign of the error in r = sqrt(x).
+    private static double sqrtError(double x, double r) {
+        if (Double.isInfinite(x)) {
+            return 0;
+        }
+        final double p = r * r;
+        return (x - p) - productError(r, r, p);
+    }
+
+    private static double sqrtDown(double x) {
+        final double r = Math.sqrt(x);
+        return Math.max(0, roundDown(r, sqrtError(x, r)));
+    }
+
+    private static double sqrtUp(double x) {
+        final double r = Math.sqrt(x);
+        return roundUp(r, sqrtError(x, r));
+    }
+
+    private static double divideDown(double a, double b) {
+        final double q = a / b;
+        return roundDown(q, divisionError(a, b, q));
+    }
+
+    private static double divideUp(double a, double b) {
+        final double q = a / b;
+        return roundUp(q, divisionError(a, b, q));
+    }
+}
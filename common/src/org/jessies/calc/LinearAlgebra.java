@@ -0,0 +1,341 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Determinants, inverses and the solution of linear systems.
+ *
+ * Matrices of integers and rationals are handled exactly: each row is multiplied through by the LCM of its
+ * denominators, and the resulting integer matrix is reduced using fraction-free (Bareiss) elimination, where every
+ * division is known to be exact, so intermediate values grow no faster than the determinant does. Matrices containing
+ * any real elements are reduced in double arithmetic with partial pivoting.
+ *
+ * The row operations for each pivot are independent of one another, so large systems are split across the fork/join
+ * pool in the same way as MatrixNode's multiplication.
+ */
+class LinearAlgebra {
+    private LinearAlgebra() {
+    }
+
+    /**
+     * Returns the determinant of the square matrix 'a'.
+     */
+    static NumberNode det(MatrixNode a) {
+        checkSquare(a);
+        final int n = a.rowCount();
+        final NumberNode[] elements = a.toNumbers();
+        if (!isExact(elements)) {
+            return new RealNode(detDoubles(toDoubles(elements), n));
+        }
+        final BigInteger[] scales = new BigInteger[n];
+        final BigInteger[][] m = scaleRows(elements, n, null, 0, scales);
+        BigInteger scale = BigInteger.ONE;
+        for (BigInteger rowScale : scales) {
+            scale = scale.multiply(rowScale);
+        }
+        return RationalNode.valueOf(IntegerNode.valueOf(bareissDet(m, n)), IntegerNode.valueOf(scale));
+    }
+
+    /**
+     * Returns the inverse of the square matrix 'a', or throws a CalculatorError if 'a' is singular.
+     */
+    static MatrixNode inverse(MatrixNode a) {
+        checkSquare(a);
+        return solve(a, MatrixNode.identity(a.rowCount()));
+    }
+
+    /**
+     * Returns the matrix x such that a*x = b, where 'a' is square and 'b' has as many rows as 'a'.
+     * Throws a CalculatorError if 'a' is singular.
+     */
+    static MatrixNode solve(MatrixNode a, MatrixNode b) {
+        checkSquare(a);
+        final int n = a.rowCount();
+        if (b.rowCount() != n) {
+            throw new CalculatorError("LinearSolve requires a right-hand side with " + n + " rows");
+        }
+        final int p = b.columnCount();
+        final NumberNode[] aElements = a.toNumbers();
+        final NumberNode[] bElements = b.toNumbers();
+        if (!isExact(aElements) || !isExact(bElements)) {
+            final double[][] m = augment(toDoubles(aElements), n, toDoubles(bElements), p);
+            gaussJordanDoubles(m, n, p);
+            final double[] result = new double[n * p];
+            for (int i = 0; i < n; ++i) {
+                for (int j = 0; j < p; ++j) {
+                    result[i * p + j] = m[i][n + j] / m[i][i];
+                }
+            }
+            return MatrixNode.fromDoubles(n, p, result);
+        }
+        // Scaling a row of [a|b] by a constant doesn't change the solution.
+        final BigInteger[][] m = scaleRows(aElements, n, bElements, p, new BigInteger[n]);
+        final IntegerNode d = IntegerNode.valueOf(gaussJordanExact(m, n, p));
+        final NumberNode[] result = new NumberNode[n * p];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < p; ++j) {
+                result[i * p + j] = RationalNode.valueOf(IntegerNode.valueOf(m[i][n + j]), d);
+            }
+        }
+        return MatrixNode.fromNumbers(n, p, result);
+    }
+
+    /**
+     * Returns the square matrix 'a' raised to the integer power 'k', using repeated squaring.
+     * Negative powers are powers of the inverse.
+     */
+    static MatrixNode power(MatrixNode a, IntegerNode k) {
+        checkSquare(a);
+        if (k.compareTo(IntegerNode.ZERO) < 0) {
+            a = inverse(a);
+            k = (IntegerNode) IntegerNode.ZERO.subtract(k);
+        }
+        final BigInteger exponent = k.big();
+        MatrixNode result = null;
+        for (int i = exponent.bitLength() - 1; i >= 0; --i) {
+            if (result != null) {
+                result = result.times(result);
+            }
+            if (exponent.testBit(i)) {
+                result = (result != null) ? result.times(a) : a;
+            }
+        }
+        return (result != null) ? result : MatrixNode.identity(a.rowCount());
+    }
+
+    private static void checkSquare(MatrixNode a) {
+        if (a.rowCount() != a.columnCount()) {
+            throw new CalculatorError("expected a square matrix, but got a " + a.rowCount() + "x" + a.columnCount() + " matrix");
+        }
+    }
+
+    private static CalculatorError singular() {
+        return new CalculatorError("matrix is singular");
+    }
+
+    private static boolean isExact(NumberNode[] elements) {
+        for (NumberNode element : elements) {
+            if (!(element instanceof IntegerNode) && !(element instanceof RationalNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double[] toDoubles(NumberNode[] elements) {
+        final double[] result = new double[elements.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = elements[i].toReal().doubleValue();
+        }
+        return result;
+    }
+
+    // Returns the rows of the n*n matrix 'a' (stored in row order) followed by the n*p matrix 'b', as an n*(n+p) array.
+    private static double[][] augment(double[] a, int n, double[] b, int p) {
+        final double[][] m = new double[n][n + p];
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(a, i * n, m[i], 0, n);
+            System.arraycopy(b, i * p, m[i], n, p);
+        }
+        return m;
+    }
+
+    // Returns the rows of [a|b], where 'a' is n*n and 'b' is n*p, as integers, each row multiplied by the LCM of its denominators, which is stored in 'scales'.
+    // 'b' may be null if p is 0.
+    private static BigInteger[][] scaleRows(NumberNode[] a, int n, NumberNode[] b, int p, BigInteger[] scales) {
+        final BigInteger[][] m = new BigInteger[n][n + p];
+        for (int i = 0; i < n; ++i) {
+            BigInteger lcm = BigInteger.ONE;
+            for (int j = 0; j < n + p; ++j) {
+                final NumberNode element = (j < n) ? a[i * n + j] : b[i * p + j - n];
+                if (element instanceof RationalNode) {
+                    final BigInteger q = ((RationalNode) element).denominator().big();
+                    lcm = lcm.divide(lcm.gcd(q)).multiply(q);
+                }
+            }
+            for (int j = 0; j < n + p; ++j) {
+                final NumberNode element = (j < n) ? a[i * n + j] : b[i * p + j - n];
+                if (element instanceof RationalNode) {
+                    final RationalNode r = (RationalNode) element;
+                    m[i][j] = r.numerator().big().multiply(lcm.divide(r.denominator().big()));
+                } else {
+                    m[i][j] = ((IntegerNode) element).big().multiply(lcm);
+                }
+            }
+            scales[i] = lcm;
+        }
+        return m;
+    }
+
+    // Returns the determinant of the n*n integer matrix 'm', which is destroyed in the process.
+    // http://en.wikipedia.org/wiki/Bareiss_algorithm
+    private static BigInteger bareissDet(final BigInteger[][] m, final int n) {
+        if (n == 0) {
+            return BigInteger.ONE;
+        }
+        boolean negate = false;
+        BigInteger previousPivot = BigInteger.ONE;
+        for (int k = 0; k < n - 1; ++k) {
+            if (m[k][k].signum() == 0) {
+                final int pivotRow = findNonZero(m, k, n);
+                if (pivotRow == -1) {
+                    return BigInteger.ZERO;
+                }
+                swap(m, k, pivotRow);
+                negate = !negate;
+            }
+            final int pivot = k;
+            final BigInteger divisor = previousPivot;
+            MatrixNode.forEachRow(k + 1, n, n - k, new MatrixNode.RowLoop() {
+                void run(int rowStart, int rowEnd) {
+                    for (int i = rowStart; i < rowEnd; ++i) {
+                        final BigInteger[] row = m[i];
+                        for (int j = pivot + 1; j < n; ++j) {
+                            row[j] = row[j].multiply(m[pivot][pivot]).subtract(row[pivot].multiply(m[pivot][j])).divide(divisor);
+                        }
+                        row[pivot] = BigInteger.ZERO;
+                    }
+                }
+            });
+            previousPivot = m[k][k];
+        }
+        final BigInteger result = m[n - 1][n - 1];
+        return negate ? result.negate() : result;
+    }
+
+    // Reduces the n*(n+p) integer matrix 'm' using fraction-free Gauss-Jordan elimination, throwing if the left-hand n*n
+    // block is singular. Afterwards, that block is diagonal, with every diagonal element equal to the returned value,
+    // so the solution is the right-hand block divided by that value.
+    private static BigInteger gaussJordanExact(final BigInteger[][] m, final int n, final int p) {
+        BigInteger previousPivot = BigInteger.ONE;
+        for (int k = 0; k < n; ++k) {
+            if (m[k][k].signum() == 0) {
+                final int pivotRow = findNonZero(m, k, n);
+                if (pivotRow == -1) {
+                    throw singular();
+                }
+                swap(m, k, pivotRow);
+            }
+            final int pivot = k;
+            final BigInteger divisor = previousPivot;
+            MatrixNode.forEachRow(0, n, n + p, new MatrixNode.RowLoop() {
+                void run(int rowStart, int rowEnd) {
+                    final BigInteger[] pivotRow = m[pivot];
+                    for (int i = rowStart; i < rowEnd; ++i) {
+                        if (i == pivot) {
+                            continue;
+                        }
+                        final BigInteger[] row = m[i];
+                        final BigInteger factor = row[pivot];
+                        for (int j = 0; j < n + p; ++j) {
+                            if (j != pivot) {
+                                row[j] = row[j].multiply(pivotRow[pivot]).subtract(factor.multiply(pivotRow[j])).divide(divisor);
+                            }
+                        }
+                        row[pivot] = BigInteger.ZERO;
+                    }
+                }
+            });
+            previousPivot = m[k][k];
+        }
+        return previousPivot;
+    }
+
+    // Returns the first row below 'k' with a non-zero element in column 'k', or -1.
+    private static int findNonZero(BigInteger[][] m, int k, int n) {
+        for (int i = k + 1; i < n; ++i) {
+            if (m[i][k].signum() != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <T> void swap(T[] rows, int i, int j) {
+        final T tmp = rows[i];
+        rows[i] = rows[j];
+        rows[j] = tmp;
+    }
+
+    // Returns the determinant of the n*n matrix 'a' (stored in row order), using LU decomposition with partial pivoting.
+    private static double detDoubles(double[] a, int n) {
+        final double[][] m = augment(a, n, new double[0], 0);
+        double result = 1.0;
+        for (int k = 0; k < n; ++k) {
+            final int pivotRow = choosePivot(m, k, n);
+            if (m[pivotRow][k] == 0.0) {
+                return 0.0;
+            }
+            if (pivotRow != k) {
+                swap(m, k, pivotRow);
+                result = -result;
+            }
+            result *= m[k][k];
+            for (int i = k + 1; i < n; ++i) {
+                final double factor = m[i][k] / m[k][k];
+                for (int j = k + 1; j < n; ++j) {
+                    m[i][j] -= factor * m[k][j];
+                }
+            }
+        }
+        return result;
+    }
+
+    // Reduces the n*(n+p) matrix 'm' using Gauss-Jordan elimination with partial pivoting, throwing if the left-hand
+    // n*n block is singular. Afterwards, that block is diagonal.
+    private static void gaussJordanDoubles(final double[][] m, final int n, final int p) {
+        for (int k = 0; k < n; ++k) {
+            final int pivotRow = choosePivot(m, k, n);
+            if (m[pivotRow][k] == 0.0) {
+                throw singular();
+            }
+            swap(m, k, pivotRow);
+            final int pivot = k;
+            MatrixNode.forEachRow(0, n, n + p, new MatrixNode.RowLoop() {
+                void run(int rowStart, int rowEnd) {
+                    final double[] pivotRow = m[pivot];
+                    for (int i = rowStart; i < rowEnd; ++i) {
+                        if (i == pivot) {
+                            continue;
+                        }
+                        final double[] row = m[i];
+                        final double factor = row[pivot] / pivotRow[pivot];
+                        for (int j = pivot + 1; j < n + p; ++j) {
+                            row[j] -= factor * pivotRow[j];
+                        }
+                        row[pivot] = 0.0;
+                    }
+                }
+            });
+        }
+    }
+
+    // Returns the row at or below 'k' with the largest element in column 'k'.
+    private static int choosePivot(double[][] m, int k, int n) {
+        int result = k;
+        for (int i = k + 1; i < n; ++i) {
+            if (Math.abs(m[i][k]) > Math.abs(m[result][k])) {
+                result = i;
+            }
+        }
+        return result;
+    }
+}
@@ -29,7 +29,7 @@ public class ListNode implements Iterable<Node>, Node {
     }
 
     public Node get(IntegerNode index) {
-        return values.get(index.intValue());
+        return get(index.intValue());
     }
 
     public Node get(int index) {
@@ -51,11 +51,27 @@ public class ListNode implements Iterable<Node>, Node {
         if (!(other instanceof ListNode)) {
             return false;
         }
-        return values.equals(((ListNode) other).values);
+        // Compare element by element, so that a MatrixNode can equal an ordinary list of lists.
+        final ListNode rhs = (ListNode) other;
+        final int size = size();
+        if (size != rhs.size()) {
+            return false;
+        }
+        for (int i = 0; i < size; ++i) {
+            if (!get(i).equals(rhs.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override public int hashCode() {
-        return values.hashCode();
+        // The same as List.hashCode.
+        int result = 1;
+        for (int i = 0, size = size(); i < size; ++i) {
+            result = 31 * result + get(i).hashCode();
+        }
+        return result;
     }
 
     public int size() {
@@ -64,15 +80,15 @@ public class ListNode implements Iterable<Node>, Node {
 
     public ListNode reverse() {
         final ListNode result = new ListNode();
-        for (int i = values.size() - 1; i >= 0; --i) {
-            result.add(values.get(i));
+        for (int i = size() - 1; i >= 0; --i) {
+            result.add(get(i));
         }
         return result;
     }
 
     public Node evaluate(Calculator environment) {
         ListNode result = new ListNode();
-        for (Node value : values) {
+        for (Node value : this) {
             result.values.add(value.evaluate(environment));
         }
         return result;
@@ -80,7 +96,7 @@ public class ListNode implements Iterable<Node>, Node {
 
     public Node simplify(Calculator environment) {
         ListNode result = new ListNode();
-        for (Node value : values) {
+        for (Node value : this) {
             result.values.add(value.simplify(environment));
         }
         return result;
@@ -89,11 +105,11 @@ public class ListNode implements Iterable<Node>, Node {
     public String toInputString() {
         StringBuilder result = new StringBuilder();
         result.append("[");
-        for (int i = 0; i < values.size(); ++i) {
+        for (int i = 0, size = size(); i < size; ++i) {
             if (i > 0) {
                 result.append(", ");
             }
-            result.append(values.get(i).toInputString());
+            result.append(get(i).toInputString());
         }
         result.append("]");
         return result.toString();
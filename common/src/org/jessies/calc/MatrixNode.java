@@ -0,0 +1,574 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A dense, rectangular matrix of numbers.
+ *
+ * Matrices written by the user are lists of lists, and a MatrixNode still behaves like one (so Length, Map and the
+ * rest work unchanged), but it stores its elements row by row in a single flat array. Integers that fit in a long are
+ * stored in a long[], and RealNodes in a double[]. Anything else (bignums, rationals, BigRealNodes, or a mixture of
+ * types) is stored as boxed NumberNodes. The arithmetic works directly on those arrays, in cache-sized blocks, and
+ * gives exactly the same results as element-by-element NumberNode arithmetic would. Large products are split by rows
+ * across the fork/join pool.
+ *
+ * MatrixNodes are immutable.
+ */
+public class MatrixNode extends ListNode {
+    // The side of the square tiles the multiplication and transposition kernels work on.
+    // Three 64x64 tiles of longs or doubles take 96KiB, which stays close to the core.
+    static final int BLOCK_SIZE = 64;
+
+    // Below about this many multiply-adds, it's not worth handing work to other threads.
+    private static final long PARALLEL_THRESHOLD = 1L << 18;
+
+    private final int rowCount;
+    private final int columnCount;
+
+    // Exactly one of these is non-null.
+    private final long[] longs;
+    private final double[] doubles;
+    private final NumberNode[] nodes;
+
+    private MatrixNode(int rowCount, int columnCount, long[] longs, double[] doubles, NumberNode[] nodes) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Returns 'node' as a MatrixNode, or null if it isn't a rectangular list of lists of numbers.
+     */
+    static MatrixNode valueOf(Node node) {
+        if (node instanceof MatrixNode) {
+            return (MatrixNode) node;
+        }
+        if (!(node instanceof ListNode)) {
+            return null;
+        }
+        final ListNode list = (ListNode) node;
+        final int rowCount = list.size();
+        int columnCount = 0;
+        final ArrayList<ListNode> rows = new ArrayList<ListNode>(rowCount);
+        for (Node element : list) {
+            if (!(element instanceof ListNode)) {
+                return null;
+            }
+            final ListNode row = (ListNode) element;
+            if (rows.isEmpty()) {
+                columnCount = row.size();
+            } else if (row.size() != columnCount) {
+                return null;
+            }
+            rows.add(row);
+        }
+        final NumberNode[] elements = new NumberNode[rowCount * columnCount];
+        int index = 0;
+        for (ListNode row : rows) {
+            for (Node element : row) {
+                if (!(element instanceof NumberNode)) {
+                    return null;
+                }
+                elements[index++] = (NumberNode) element;
+            }
+        }
+        return fromNumbers(rowCount, columnCount, elements);
+    }
+
+    /**
+     * Returns a matrix with the given elements (in row order), using the most compact representation that can hold them.
+     */
+    static MatrixNode fromNumbers(int rowCount, int columnCount, NumberNode[] elements) {
+        boolean allFixnums = true;
+        boolean allReals = elements.length > 0; // An empty matrix is an (empty) integer matrix.
+        for (NumberNode element : elements) {
+            allFixnums = allFixnums && (element instanceof IntegerNode) && !((IntegerNode) element).isBig();
+            allReals = allReals && (element instanceof RealNode);
+        }
+        if (allFixnums) {
+            final long[] longs = new long[elements.length];
+            for (int i = 0; i < longs.length; ++i) {
+                longs[i] = ((IntegerNode) elements[i]).fix();
+            }
+            return new MatrixNode(rowCount, columnCount, longs, null, null);
+        } else if (allReals) {
+            final double[] doubles = new double[elements.length];
+            for (int i = 0; i < doubles.length; ++i) {
+                doubles[i] = ((RealNode) elements[i]).doubleValue();
+            }
+            return new MatrixNode(rowCount, columnCount, null, doubles, null);
+        }
+        return new MatrixNode(rowCount, columnCount, null, null, elements);
+    }
+
+    static MatrixNode fromLongs(int rowCount, int columnCount, long[] longs) {
+        return new MatrixNode(rowCount, columnCount, longs, null, null);
+    }
+
+    static MatrixNode fromDoubles(int rowCount, int columnCount, double[] doubles) {
+        return new MatrixNode(rowCount, columnCount, null, doubles, null);
+    }
+
+    static MatrixNode identity(int size) {
+        final long[] longs = new long[size * size];
+        for (int i = 0; i < size; ++i) {
+            longs[i * size + i] = 1;
+        }
+        return fromLongs(size, size, longs);
+    }
+
+    int rowCount() {
+        return rowCount;
+    }
+
+    int columnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Returns [rowCount, columnCount], like Dimensions.
+     */
+    ListNode dimensions() {
+        return new ListNode().add(IntegerNode.valueOf(rowCount)).add(IntegerNode.valueOf(columnCount));
+    }
+
+    // Returns our long[], or null if we're not stored as longs. Callers must not modify the array.
+    long[] longs() {
+        return longs;
+    }
+
+    // Returns our double[], or null if we're not stored as doubles. Callers must not modify the array.
+    double[] doubles() {
+        return doubles;
+    }
+
+    /**
+     * Returns our elements in row order, boxed if necessary.
+     */
+    NumberNode[] toNumbers() {
+        if (nodes != null) {
+            return nodes.clone();
+        }
+        final NumberNode[] result = new NumberNode[rowCount * columnCount];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = elementAt(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the element at zero-based row 'i' and column 'j'.
+     */
+    NumberNode elementAt(int i, int j) {
+        return elementAt(i * columnCount + j);
+    }
+
+    private NumberNode elementAt(int index) {
+        if (longs != null) {
+            return IntegerNode.valueOf(longs[index]);
+        } else if (doubles != null) {
+            return new RealNode(doubles[index]);
+        }
+        return nodes[index];
+    }
+
+    // ListNode, where each element is a row.
+
+    @Override public int size() {
+        return rowCount;
+    }
+
+    @Override public Node get(int i) {
+        if (i < 0 || i >= rowCount) {
+            throw new IndexOutOfBoundsException("row " + i + " of a matrix with " + rowCount + " rows");
+        }
+        final ListNode row = new ListNode();
+        for (int j = 0; j < columnCount; ++j) {
+            row.add(elementAt(i, j));
+        }
+        return row;
+    }
+
+    @Override public Iterator<Node> iterator() {
+        return new Iterator<Node>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < rowCount;
+            }
+
+            public Node next() {
+                if (i >= rowCount) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override public ListNode add(Node value) {
+        throw new UnsupportedOperationException("matrices are immutable");
+    }
+
+    @Override public void set(int index, Node value) {
+        throw new UnsupportedOperationException("matrices are immutable");
+    }
+
+    @Override public Node evaluate(Calculator environment) {
+        return this;
+    }
+
+    @Override public Node simplify(Calculator environment) {
+        return this;
+    }
+
+    @Override public String toInputString() {
+        final StringBuilder result = new StringBuilder();
+        result.append("[");
+        for (int i = 0; i < rowCount; ++i) {
+            result.append(i > 0 ? ", [" : "[");
+            for (int j = 0; j < columnCount; ++j) {
+                if (j > 0) {
+                    result.append(", ");
+                }
+                result.append(elementAt(i, j).toInputString());
+            }
+            result.append("]");
+        }
+        result.append("]");
+        return result.toString();
+    }
+
+    // Arithmetic. The caller is responsible for checking the dimensions.
+
+    private static final int PLUS = 0;
+    private static final int SUBTRACT = 1;
+    private static final int TIMES = 2;
+    private static final int SUBTRACT_FROM = 3;
+
+    MatrixNode plus(MatrixNode rhs) {
+        return elementwise(rhs, PLUS);
+    }
+
+    MatrixNode subtract(MatrixNode rhs) {
+        return elementwise(rhs, SUBTRACT);
+    }
+
+    private MatrixNode elementwise(MatrixNode rhs, int op) {
+        final int n = rowCount * columnCount;
+        if (longs != null && rhs.longs != null) {
+            final long[] result = new long[n];
+            try {
+                for (int i = 0; i < n; ++i) {
+                    result[i] = (op == PLUS) ? Math.addExact(longs[i], rhs.longs[i]) : Math.subtractExact(longs[i], rhs.longs[i]);
+                }
+                return fromLongs(rowCount, columnCount, result);
+            } catch (ArithmeticException overflow) {
+                // Fall back to IntegerNode arithmetic, which switches to bignums where necessary.
+            }
+        } else if (doubles != null && rhs.doubles != null) {
+            final double[] result = new double[n];
+            for (int i = 0; i < n; ++i) {
+                result[i] = (op == PLUS) ? doubles[i] + rhs.doubles[i] : doubles[i] - rhs.doubles[i];
+            }
+            return fromDoubles(rowCount, columnCount, result);
+        }
+        final NumberNode[] result = new NumberNode[n];
+        for (int i = 0; i < n; ++i) {
+            final NumberNode lhsElement = elementAt(i);
+            final NumberNode rhsElement = rhs.elementAt(i);
+            result[i] = (op == PLUS) ? lhsElement.plus(rhsElement) : lhsElement.subtract(rhsElement);
+        }
+        return fromNumbers(rowCount, columnCount, result);
+    }
+
+    MatrixNode plus(NumberNode scalar) {
+        return scalarOp(scalar, PLUS);
+    }
+
+    MatrixNode subtract(NumberNode scalar) {
+        return scalarOp(scalar, SUBTRACT);
+    }
+
+    MatrixNode times(NumberNode scalar) {
+        return scalarOp(scalar, TIMES);
+    }
+
+    /**
+     * Returns the matrix with each element 'e' replaced by 'scalar' - 'e'.
+     */
+    MatrixNode subtractFrom(NumberNode scalar) {
+        return scalarOp(scalar, SUBTRACT_FROM);
+    }
+
+    private MatrixNode scalarOp(NumberNode scalar, int op) {
+        final int n = rowCount * columnCount;
+        if (longs != null && scalar instanceof IntegerNode && !((IntegerNode) scalar).isBig()) {
+            final long s = ((IntegerNode) scalar).fix();
+            final long[] result = new long[n];
+            try {
+                for (int i = 0; i < n; ++i) {
+                    switch (op) {
+                    case PLUS: result[i] = Math.addExact(longs[i], s); break;
+                    case SUBTRACT: result[i] = Math.subtractExact(longs[i], s); break;
+                    case TIMES: result[i] = Math.multiplyExact(longs[i], s); break;
+                    case SUBTRACT_FROM: result[i] = Math.subtractExact(s, longs[i]); break;
+                    }
+                }
+                return fromLongs(rowCount, columnCount, result);
+            } catch (ArithmeticException overflow) {
+                // Fall back to IntegerNode arithmetic, which switches to bignums where necessary.
+            }
+        } else if (doubles != null && scalar instanceof RealNode) {
+            final double s = ((RealNode) scalar).doubleValue();
+            final double[] result = new double[n];
+            for (int i = 0; i < n; ++i) {
+                switch (op) {
+                case PLUS: result[i] = doubles[i] + s; break;
+                case SUBTRACT: result[i] = doubles[i] - s; break;
+                case TIMES: result[i] = doubles[i] * s; break;
+                case SUBTRACT_FROM: result[i] = s - doubles[i]; break;
+                }
+            }
+            return fromDoubles(rowCount, columnCount, result);
+        }
+        final NumberNode[] result = new NumberNode[n];
+        for (int i = 0; i < n; ++i) {
+            final NumberNode element = elementAt(i);
+            switch (op) {
+            case PLUS: result[i] = element.plus(scalar); break;
+            case SUBTRACT: result[i] = element.subtract(scalar); break;
+            case TIMES: result[i] = element.times(scalar); break;
+            case SUBTRACT_FROM: result[i] = scalar.subtract(element); break;
+            }
+        }
+        return fromNumbers(rowCount, columnCount, result);
+    }
+
+    /**
+     * Returns the matrix product of this m*n matrix and the n*p matrix 'rhs'.
+     */
+    MatrixNode times(MatrixNode rhs) {
+        final int m = rowCount;
+        final int n = columnCount;
+        final int p = rhs.columnCount;
+        final long costPerRow = ((long) n) * p;
+        if (longs != null && rhs.longs != null) {
+            final long[] a = longs;
+            final long[] b = rhs.longs;
+            final long[] result = new long[m * p];
+            try {
+                forEachRow(0, m, costPerRow, new RowLoop() {
+                    void run(int rowStart, int rowEnd) {
+                        timesLongs(a, b, result, n, p, rowStart, rowEnd);
+                    }
+                });
+                return fromLongs(m, p, result);
+            } catch (ArithmeticException overflow) {
+                // Fall back to IntegerNode arithmetic, which switches to bignums where necessary.
+            }
+        } else if (doubles != null && rhs.doubles != null) {
+            final double[] a = doubles;
+            final double[] b = rhs.doubles;
+            final double[] result = new double[m * p];
+            forEachRow(0, m, costPerRow, new RowLoop() {
+                void run(int rowStart, int rowEnd) {
+                    timesDoubles(a, b, result, n, p, rowStart, rowEnd);
+                }
+            });
+            return fromDoubles(m, p, result);
+        }
+        final NumberNode[] a = toNumbers();
+        final NumberNode[] b = rhs.toNumbers();
+        final NumberNode[] result = new NumberNode[m * p];
+        forEachRow(0, m, costPerRow, new RowLoop() {
+            void run(int rowStart, int rowEnd) {
+                timesNumbers(a, b, result, n, p, rowStart, rowEnd);
+            }
+        });
+        return fromNumbers(m, p, result);
+    }
+
+    /**
+     * Work on a range of rows. Loops over disjoint ranges may run concurrently.
+     */
+    abstract static class RowLoop {
+        abstract void run(int rowStart, int rowEnd);
+    }
+
+    /**
+     * Runs 'loop' over rows [rowStart, rowEnd), where each row costs about 'costPerRow' multiply-adds.
+     * If there's enough work, the range is split across the fork/join pool; otherwise it runs on this thread.
+     */
+    static void forEachRow(int rowStart, int rowEnd, long costPerRow, RowLoop loop) {
+        final long cost = (rowEnd - rowStart) * Math.max(costPerRow, 1);
+        if (cost < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() == 1) {
+            loop.run(rowStart, rowEnd);
+            return;
+        }
+        // Keep each task big enough to be worth forking, and a whole number of blocks tall where possible.
+        int grain = (int) Math.min(rowEnd - rowStart, Math.max(1, PARALLEL_THRESHOLD / Math.max(costPerRow, 1)));
+        if (grain > BLOCK_SIZE) {
+            grain = (grain / BLOCK_SIZE) * BLOCK_SIZE;
+        }
+        new RowTask(loop, rowStart, rowEnd, grain).invoke();
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final RowLoop loop;
+        private final int rowStart;
+        private final int rowEnd;
+        private final int grain;
+
+        RowTask(RowLoop loop, int rowStart, int rowEnd, int grain) {
+            this.loop = loop;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.grain = grain;
+        }
+
+        @Override protected void compute() {
+            final int rows = rowEnd - rowStart;
+            if (rows <= grain) {
+                loop.run(rowStart, rowEnd);
+                return;
+            }
+            // Split on a multiple of the grain, so every task but the last is exactly 'grain' rows.
+            final int mid = rowStart + ((rows / grain + 1) / 2) * grain;
+            invokeAll(new RowTask(loop, rowStart, mid, grain), new RowTask(loop, mid, rowEnd, grain));
+        }
+    }
+
+    // The multiplication kernels compute rows [rowStart, rowEnd) of c = a*b, where a has n columns and b has p columns.
+    // Each element of c is accumulated in order of increasing k, just like a naive dot product, so the blocking doesn't
+    // change the rounding of real results.
+
+    static void timesLongs(long[] a, long[] b, long[] c, int n, int p, int rowStart, int rowEnd) {
+        for (int i0 = rowStart; i0 < rowEnd; i0 += BLOCK_SIZE) {
+            final int i1 = Math.min(i0 + BLOCK_SIZE, rowEnd);
+            for (int k0 = 0; k0 < n; k0 += BLOCK_SIZE) {
+                final int k1 = Math.min(k0 + BLOCK_SIZE, n);
+                for (int j0 = 0; j0 < p; j0 += BLOCK_SIZE) {
+                    final int j1 = Math.min(j0 + BLOCK_SIZE, p);
+                    for (int i = i0; i < i1; ++i) {
+                        final int cRow = i * p;
+                        for (int k = k0; k < k1; ++k) {
+                            final long aik = a[i * n + k];
+                            if (aik == 0) {
+                                continue;
+                            }
+                            final int bRow = k * p;
+                            for (int j = j0; j < j1; ++j) {
+                                c[cRow + j] = Math.addExact(c[cRow + j], Math.multiplyExact(aik, b[bRow + j]));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void timesDoubles(double[] a, double[] b, double[] c, int n, int p, int rowStart, int rowEnd) {
+        for (int i0 = rowStart; i0 < rowEnd; i0 += BLOCK_SIZE) {
+            final int i1 = Math.min(i0 + BLOCK_SIZE, rowEnd);
+            for (int k0 = 0; k0 < n; k0 += BLOCK_SIZE) {
+                final int k1 = Math.min(k0 + BLOCK_SIZE, n);
+                for (int j0 = 0; j0 < p; j0 += BLOCK_SIZE) {
+                    final int j1 = Math.min(j0 + BLOCK_SIZE, p);
+                    for (int i = i0; i < i1; ++i) {
+                        final int cRow = i * p;
+                        for (int k = k0; k < k1; ++k) {
+                            // We can't skip zeros here, because 0*Infinity is NaN.
+                            final double aik = a[i * n + k];
+                            final int bRow = k * p;
+                            for (int j = j0; j < j1; ++j) {
+                                c[cRow + j] += aik * b[bRow + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void timesNumbers(NumberNode[] a, NumberNode[] b, NumberNode[] c, int n, int p, int rowStart, int rowEnd) {
+        for (int i = rowStart; i < rowEnd; ++i) {
+            final int cRow = i * p;
+            for (int j = 0; j < p; ++j) {
+                c[cRow + j] = IntegerNode.ZERO;
+            }
+            for (int k = 0; k < n; ++k) {
+                final NumberNode aik = a[i * n + k];
+                final int bRow = k * p;
+                for (int j = 0; j < p; ++j) {
+                    c[cRow + j] = c[cRow + j].plus(aik.times(b[bRow + j]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the transpose of this matrix.
+     */
+    MatrixNode transpose() {
+        final int m = rowCount;
+        final int n = columnCount;
+        if (longs != null) {
+            final long[] result = new long[m * n];
+            for (int i0 = 0; i0 < m; i0 += BLOCK_SIZE) {
+                for (int j0 = 0; j0 < n; j0 += BLOCK_SIZE) {
+                    for (int i = i0, i1 = Math.min(i0 + BLOCK_SIZE, m); i < i1; ++i) {
+                        for (int j = j0, j1 = Math.min(j0 + BLOCK_SIZE, n); j < j1; ++j) {
+                            result[j * m + i] = longs[i * n + j];
+                        }
+                    }
+                }
+            }
+            return fromLongs(n, m, result);
+        } else if (doubles != null) {
+            final double[] result = new double[m * n];
+            for (int i0 = 0; i0 < m; i0 += BLOCK_SIZE) {
+                for (int j0 = 0; j0 < n; j0 += BLOCK_SIZE) {
+                    for (int i = i0, i1 = Math.min(i0 + BLOCK_SIZE, m); i < i1; ++i) {
+                        for (int j = j0, j1 = Math.min(j0 + BLOCK_SIZE, n); j < j1; ++j) {
+                            result[j * m + i] = doubles[i * n + j];
+                        }
+                    }
+                }
+            }
+            return fromDoubles(n, m, result);
+        }
+        final NumberNode[] result = new NumberNode[m * n];
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < n; ++j) {
+                result[j * m + i] = nodes[i * n + j];
+            }
+        }
+        return new MatrixNode(n, m, null, null, result);
+    }
+}
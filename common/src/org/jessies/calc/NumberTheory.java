@@ -0,0 +1,751 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+import org.jessies.calc.bigint.*;
+
+/**
+ * Primality testing and factorization of non-negative integers of any size.
+ *
+ * Numbers that fit in a long are tested with a Miller-Rabin test whose bases are known to give the right answer for
+ * every 64-bit number, so the answer is exact. Larger numbers get the Baillie-PSW test (a strong base-2 Miller-Rabin
+ * test followed by a strong Lucas test), for which no counterexample is known.
+ *
+ * Factorization divides out the primes below SMALL_PRIME_LIMIT, then splits what's left with Brent's variant of
+ * Pollard's rho. While the cofactor being split fits in one long (or, below 2^127, two), the modular arithmetic is
+ * done in Montgomery form on longs rather than with BigInteger.
+ */
+class NumberTheory {
+    private static final int SMALL_PRIME_LIMIT = 1 << 12;
+
+    private static final int[] SMALL_PRIMES = sieve(SMALL_PRIME_LIMIT);
+
+    // Testing with these bases gives the right answer for every n < 2^64. (Jim Sinclair, 2011.)
+    // http://miller-rabin.appspot.com/
+    private static final long[] MILLER_RABIN_BASES = { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    private NumberTheory() {
+    }
+
+    // Returns the primes below 'limit', using the sieve of Eratosthenes.
+    private static int[] sieve(int limit) {
+        final boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 2; i < limit; ++i) {
+            if (!composite[i]) {
+                ++count;
+                for (int j = i * i; j < limit; j += i) {
+                    composite[j] = true;
+                }
+            }
+        }
+        final int[] result = new int[count];
+        count = 0;
+        for (int i = 2; i < limit; ++i) {
+            if (!composite[i]) {
+                result[count++] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the non-negative 'n' is prime. The answer is always correct.
+     */
+    static boolean isPrime(long n) {
+        if (n < 2) {
+            return false;
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n % p == 0) {
+                return n == p;
+            }
+            if (((long) p) * p > n) {
+                return true;
+            }
+        }
+        return isStrongProbablePrime(new Montgomery(n), MILLER_RABIN_BASES);
+    }
+
+    /**
+     * Tests whether the non-negative 'n' is prime. For numbers of 64 bits or fewer, the answer is always correct.
+     * For larger numbers, the Baillie-PSW test is used, and no number it gets wrong is known.
+     */
+    static boolean isPrime(BigInteger n) {
+        if (n.bitLength() < 64) {
+            return isPrime(n.longValue());
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n.mod(BigInteger.valueOf(p)).signum() == 0) {
+                return false;
+            }
+        }
+        return isStrongProbablePrime(n, TWO) && isStrongLucasProbablePrime(n);
+    }
+
+    /**
+     * Returns the prime factors of the positive 'n', with multiplicity, in ascending order.
+     */
+    static List<BigInteger> primeFactors(BigInteger n) {
+        final ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+        int i = 0;
+        for (; i < SMALL_PRIMES.length && n.bitLength() >= 64; ++i) {
+            final BigInteger p = BigInteger.valueOf(SMALL_PRIMES[i]);
+            BigInteger[] qr;
+            while ((qr = n.divideAndRemainder(p))[1].signum() == 0) {
+                result.add(p);
+                n = qr[0];
+            }
+        }
+        if (n.bitLength() < 64) {
+            // Save the BigInteger arithmetic for the large factors, where it's unavoidable.
+            long m = n.longValue();
+            for (; i < SMALL_PRIMES.length && ((long) SMALL_PRIMES[i]) * SMALL_PRIMES[i] <= m; ++i) {
+                final int p = SMALL_PRIMES[i];
+                while (m % p == 0) {
+                    result.add(BigInteger.valueOf(p));
+                    m /= p;
+                }
+            }
+            splitFactors(m, result);
+        } else {
+            splitFactors(n, result);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Adds the prime factors of 'n', which has no factors below SMALL_PRIME_LIMIT, to 'result'.
+    private static void splitFactors(BigInteger n, List<BigInteger> result) {
+        if (n.bitLength() < 64) {
+            splitFactors(n.longValue(), result);
+        } else if (isPrime(n)) {
+            result.add(n);
+        } else {
+            final BigInteger d = brent(n);
+            splitFactors(d, result);
+            splitFactors(n.divide(d), result);
+        }
+    }
+
+    private static void splitFactors(long n, List<BigInteger> result) {
+        if (n == 1) {
+            return;
+        } else if (isPrime(n)) {
+            result.add(BigInteger.valueOf(n));
+        } else {
+            final long d = brent(n);
+            splitFactors(d, result);
+            splitFactors(n / d, result);
+        }
+    }
+
+    /**
+     * Returns the positive divisors of the positive 'n', in ascending order, built from its prime factorization.
+     */
+    static List<BigInteger> divisors(BigInteger n) {
+        final List<BigInteger> factors = primeFactors(n);
+        if (n.bitLength() < 64) {
+            // Every divisor fits in a long, so we can avoid BigInteger until the end.
+            long[] divisors = new long[] { 1 };
+            for (int i = 0; i < factors.size(); ) {
+                final long p = factors.get(i).longValue();
+                int multiplicity = 0;
+                for (; i < factors.size() && factors.get(i).longValue() == p; ++i) {
+                    ++multiplicity;
+                }
+                final long[] next = new long[divisors.length * (multiplicity + 1)];
+                int count = 0;
+                for (long d : divisors) {
+                    for (int k = 0; k <= multiplicity; ++k) {
+                        next[count++] = d;
+                        d *= p;
+                    }
+                }
+                divisors = next;
+            }
+            Arrays.sort(divisors);
+            final ArrayList<BigInteger> result = new ArrayList<BigInteger>(divisors.length);
+            for (long d : divisors) {
+                result.add(BigInteger.valueOf(d));
+            }
+            return result;
+        }
+        ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+        result.add(BigInteger.ONE);
+        for (int i = 0; i < factors.size(); ) {
+            final BigInteger p = factors.get(i);
+            int multiplicity = 0;
+            for (; i < factors.size() && factors.get(i).equals(p); ++i) {
+                ++multiplicity;
+            }
+            final ArrayList<BigInteger> next = new ArrayList<BigInteger>(result.size() * (multiplicity + 1));
+            for (BigInteger d : result) {
+                for (int k = 0; k <= multiplicity; ++k) {
+                    next.add(d);
+                    d = d.multiply(p);
+                }
+            }
+            result = next;
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Miller-Rabin on longs.
+
+    private static boolean isStrongProbablePrime(Montgomery m, long[] bases) {
+        final long n = m.n;
+        final int s = Long.numberOfTrailingZeros(n - 1);
+        final long d = (n - 1) >>> s;
+        final long one = m.one;
+        final long minusOne = n - one;
+        nextBase:
+        for (long base : bases) {
+            base %= n;
+            if (base == 0) {
+                continue;
+            }
+            long x = m.pow(m.toMontgomery(base), d);
+            if (x == one || x == minusOne) {
+                continue;
+            }
+            for (int r = 1; r < s; ++r) {
+                x = m.multiply(x, x);
+                if (x == minusOne) {
+                    continue nextBase;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Arithmetic modulo an odd n < 2^63, using Montgomery's representation with R = 2^64.
+     * http://en.wikipedia.org/wiki/Montgomery_reduction
+     */
+    private static class Montgomery {
+        final long n;
+        // -1/n mod 2^64.
+        private final long nPrime;
+        // R mod n, the representation of 1.
+        final long one;
+        // R^2 mod n, used to convert into Montgomery form.
+        private final long r2;
+
+        Montgomery(long n) {
+            this.n = n;
+            // Newton's method: each step doubles the number of correct low bits, starting from 3.
+            long inverse = n;
+            for (int i = 0; i < 5; ++i) {
+                inverse *= 2 - n * inverse;
+            }
+            this.nPrime = -inverse;
+            final long twoTo63 = (Long.MAX_VALUE % n + 1) % n;
+            this.one = add(twoTo63, twoTo63);
+            long r2 = one;
+            for (int i = 0; i < 64; ++i) {
+                r2 = add(r2, r2);
+            }
+            this.r2 = r2;
+        }
+
+        // Returns a + b mod n, for a and b in [0, n).
+        long add(long a, long b) {
+            return (a >= n - b) ? a - (n - b) : a + b;
+        }
+
+        long toMontgomery(long a) {
+            return multiply(a, r2);
+        }
+
+        // Returns a * b / R mod n, which is the Montgomery form of the product of a and b.
+        long multiply(long a, long b) {
+            final long hi = unsignedMultiplyHigh(a, b);
+            final long lo = a * b;
+            // lo + (m * n) is exactly divisible by 2^64, so it carries precisely when lo is non-zero.
+            final long m = lo * nPrime;
+            long t = hi + unsignedMultiplyHigh(m, n) + (lo != 0 ? 1 : 0);
+            // t < 2n, which may not fit in a signed long.
+            if (t < 0 || t >= n) {
+                t -= n;
+            }
+            return t;
+        }
+
+        long pow(long base, long exponent) {
+            long result = one;
+            while (exponent != 0) {
+                if ((exponent & 1) != 0) {
+                    result = multiply(result, base);
+                }
+                base = multiply(base, base);
+                exponent >>>= 1;
+            }
+            return result;
+        }
+    }
+
+    // Returns the high 64 bits of the unsigned 128-bit product of 'a' and 'b'.
+    private static long unsignedMultiplyHigh(long a, long b) {
+        final long aLo = a & 0xffffffffL;
+        final long aHi = a >>> 32;
+        final long bLo = b & 0xffffffffL;
+        final long bHi = b >>> 32;
+        final long loLo = aLo * bLo;
+        final long hiLo = aHi * bLo;
+        final long loHi = aLo * bHi;
+        final long cross = (loLo >>> 32) + (hiLo & 0xffffffffL) + loHi;
+        return aHi * bHi + (hiLo >>> 32) + (cross >>> 32);
+    }
+
+    // Brent's variant of Pollard's rho.
+    // http://en.wikipedia.org/wiki/Pollard%27s_rho_algorithm
+
+    // How many differences to multiply together before taking a gcd.
+    private static final int BRENT_BATCH_SIZE = 128;
+
+    // Returns a non-trivial factor of the odd composite 'n'.
+    private static long brent(long n) {
+        final Montgomery m = new Montgomery(n);
+        for (long c = 1; ; ++c) {
+            final long d = brent(m, m.toMontgomery(c % n), m.toMontgomery(2));
+            if (d != n) {
+                return d;
+            }
+        }
+    }
+
+    // Returns a factor of m.n, possibly m.n itself, using the sequence x -> x^2 + c.
+    private static long brent(Montgomery m, long c, long y) {
+        final long n = m.n;
+        long x = y;
+        long ys = y;
+        long q = m.one;
+        long g = 1;
+        for (long r = 1; g == 1; r *= 2) {
+            x = y;
+            for (long i = 0; i < r; ++i) {
+                y = m.add(m.multiply(y, y), c);
+            }
+            for (long k = 0; k < r && g == 1; k += BRENT_BATCH_SIZE) {
+                ys = y;
+                for (long i = 0; i < Math.min(BRENT_BATCH_SIZE, r - k); ++i) {
+                    y = m.add(m.multiply(y, y), c);
+                    q = m.multiply(q, (x > y) ? x - y : y - x);
+                }
+                // Multiplying by R doesn't change the gcd, because n is odd.
+                g = gcd(q, n);
+            }
+        }
+        if (g == n) {
+            // The batch overshot; step back through it one element at a time.
+            do {
+                ys = m.add(m.multiply(ys, ys), c);
+                g = gcd((x > ys) ? x - ys : ys - x, n);
+            } while (g == 1);
+        }
+        return g;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            final long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static BigInteger brent(BigInteger n) {
+        if (n.bitLength() < 127) {
+            return brent(new WideMontgomery(n));
+        }
+        for (long c = 1; ; ++c) {
+            final BigInteger d = brent(n, BigInteger.valueOf(c), TWO);
+            if (!d.equals(n)) {
+                return d;
+            }
+        }
+    }
+
+    private static BigInteger brent(BigInteger n, BigInteger c, BigInteger y) {
+        BigInteger x = y;
+        BigInteger ys = y;
+        BigInteger q = BigInteger.ONE;
+        BigInteger g = BigInteger.ONE;
+        for (long r = 1; g.equals(BigInteger.ONE); r *= 2) {
+            x = y;
+            for (long i = 0; i < r; ++i) {
+                y = y.multiply(y).add(c).mod(n);
+            }
+            for (long k = 0; k < r && g.equals(BigInteger.ONE); k += BRENT_BATCH_SIZE) {
+                ys = y;
+                for (long i = 0; i < Math.min(BRENT_BATCH_SIZE, r - k); ++i) {
+                    y = y.multiply(y).add(c).mod(n);
+                    q = q.multiply(x.subtract(y).abs()).mod(n);
+                }
+                g = q.gcd(n);
+            }
+        }
+        if (g.equals(n)) {
+            do {
+                ys = ys.multiply(ys).add(c).mod(n);
+                g = x.subtract(ys).abs().gcd(n);
+            } while (g.equals(BigInteger.ONE));
+        }
+        return g;
+    }
+
+    private static BigInteger brent(WideMontgomery m) {
+        for (long c = 1; ; ++c) {
+            final BigInteger d = brent(m, c);
+            if (!d.equals(m.n)) {
+                return d;
+            }
+        }
+    }
+
+    // The same as brent(Montgomery, long, long), but with each value held in a pair of longs.
+    private static BigInteger brent(WideMontgomery m, long constant) {
+        final long[] c = m.toMontgomery(constant);
+        final long cHi = c[0];
+        final long cLo = c[1];
+        final long[] start = m.toMontgomery(2);
+        long yHi = start[0];
+        long yLo = start[1];
+        long xHi = yHi;
+        long xLo = yLo;
+        long ysHi = yHi;
+        long ysLo = yLo;
+        long qHi = m.oneHi;
+        long qLo = m.oneLo;
+        BigInteger g = BigInteger.ONE;
+        for (long r = 1; g.equals(BigInteger.ONE); r *= 2) {
+            xHi = yHi;
+            xLo = yLo;
+            for (long i = 0; i < r; ++i) {
+                m.multiply(yHi, yLo, yHi, yLo);
+                m.add(m.hi, m.lo, cHi, cLo);
+                yHi = m.hi;
+                yLo = m.lo;
+            }
+            for (long k = 0; k < r && g.equals(BigInteger.ONE); k += BRENT_BATCH_SIZE) {
+                ysHi = yHi;
+                ysLo = yLo;
+                for (long i = 0; i < Math.min(BRENT_BATCH_SIZE, r - k); ++i) {
+                    m.multiply(yHi, yLo, yHi, yLo);
+                    m.add(m.hi, m.lo, cHi, cLo);
+                    yHi = m.hi;
+                    yLo = m.lo;
+                    m.difference(xHi, xLo, yHi, yLo);
+                    m.multiply(qHi, qLo, m.hi, m.lo);
+                    qHi = m.hi;
+                    qLo = m.lo;
+                }
+                g = toBigInteger(qHi, qLo).gcd(m.n);
+            }
+        }
+        if (g.equals(m.n)) {
+            do {
+                m.multiply(ysHi, ysLo, ysHi, ysLo);
+                m.add(m.hi, m.lo, cHi, cLo);
+                ysHi = m.hi;
+                ysLo = m.lo;
+                m.difference(xHi, xLo, ysHi, ysLo);
+                g = toBigInteger(m.hi, m.lo).gcd(m.n);
+            } while (g.equals(BigInteger.ONE));
+        }
+        return g;
+    }
+
+    // Returns the unsigned 128-bit integer hi:lo.
+    private static BigInteger toBigInteger(long hi, long lo) {
+        BigInteger result = BigInteger.valueOf(hi >>> 1).shiftLeft(65);
+        result = result.or(BigInteger.valueOf(((hi & 1) << 62) | (lo >>> 2)).shiftLeft(2));
+        return result.or(BigInteger.valueOf(lo & 3));
+    }
+
+    // Returns true if 'a' is less than 'b', treating both as unsigned.
+    private static boolean unsignedLess(long a, long b) {
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+    }
+
+    /**
+     * Arithmetic modulo an odd n < 2^127, using Montgomery's representation with R = 2^128.
+     * Values are unsigned 128-bit integers held as a pair of longs, hi and lo. To avoid allocation, each operation
+     * leaves its result in the 'hi' and 'lo' fields, so an instance mustn't be shared between threads.
+     */
+    private static class WideMontgomery {
+        final BigInteger n;
+        private final long nHi;
+        private final long nLo;
+        // -1/n mod 2^64. Reduction works a word at a time, so only the low word is needed.
+        private final long nPrime;
+        // R mod n, the representation of 1.
+        final long oneHi;
+        final long oneLo;
+
+        // The result of the last operation.
+        long hi;
+        long lo;
+
+        // Scratch space for the four-word product, and the carry out of it.
+        private final long[] t = new long[5];
+
+        WideMontgomery(BigInteger n) {
+            this.n = n;
+            this.nHi = n.shiftRight(64).longValue();
+            this.nLo = n.longValue();
+            long inverse = nLo;
+            for (int i = 0; i < 5; ++i) {
+                inverse *= 2 - nLo * inverse;
+            }
+            this.nPrime = -inverse;
+            final long[] one = toWords(BigInteger.ONE.shiftLeft(128).mod(n));
+            this.oneHi = one[0];
+            this.oneLo = one[1];
+        }
+
+        // Returns the Montgomery form of the small non-negative 'a', as { hi, lo }.
+        long[] toMontgomery(long a) {
+            return toWords(BigInteger.valueOf(a).shiftLeft(128).mod(n));
+        }
+
+        private static long[] toWords(BigInteger value) {
+            return new long[] { value.shiftRight(64).longValue(), value.longValue() };
+        }
+
+        // Sets hi:lo to a + b mod n, for a and b in [0, n).
+        void add(long aHi, long aLo, long bHi, long bLo) {
+            long sumLo = aLo + bLo;
+            long sumHi = aHi + bHi + (unsignedLess(sumLo, aLo) ? 1 : 0);
+            // The sum is less than 2n < 2^128, so it fits.
+            if (!lessThanN(sumHi, sumLo)) {
+                final long borrow = unsignedLess(sumLo, nLo) ? 1 : 0;
+                sumLo -= nLo;
+                sumHi -= nHi + borrow;
+            }
+            hi = sumHi;
+            lo = sumLo;
+        }
+
+        // Sets hi:lo to |a - b|.
+        void difference(long aHi, long aLo, long bHi, long bLo) {
+            if (unsignedLess(aHi, bHi) || (aHi == bHi && unsignedLess(aLo, bLo))) {
+                final long tmpHi = aHi;
+                final long tmpLo = aLo;
+                aHi = bHi;
+                aLo = bLo;
+                bHi = tmpHi;
+                bLo = tmpLo;
+            }
+            hi = aHi - bHi - (unsignedLess(aLo, bLo) ? 1 : 0);
+            lo = aLo - bLo;
+        }
+
+        // Sets hi:lo to a * b / R mod n, for a and b in [0, n).
+        void multiply(long aHi, long aLo, long bHi, long bLo) {
+            final long[] t = this.t;
+            t[0] = t[1] = t[2] = t[3] = t[4] = 0;
+            addAt(0, aLo * bLo);
+            addAt(1, unsignedMultiplyHigh(aLo, bLo));
+            addAt(1, aLo * bHi);
+            addAt(2, unsignedMultiplyHigh(aLo, bHi));
+            addAt(1, aHi * bLo);
+            addAt(2, unsignedMultiplyHigh(aHi, bLo));
+            addAt(2, aHi * bHi);
+            addAt(3, unsignedMultiplyHigh(aHi, bHi));
+            // Add multiples of n that clear the low two words, then divide by R by dropping them.
+            for (int i = 0; i < 2; ++i) {
+                final long m = t[i] * nPrime;
+                addAt(i, m * nLo);
+                addAt(i + 1, unsignedMultiplyHigh(m, nLo));
+                addAt(i + 1, m * nHi);
+                addAt(i + 2, unsignedMultiplyHigh(m, nHi));
+            }
+            // The result is less than 2n < 2^128, so t[4] is zero.
+            long resultHi = t[3];
+            long resultLo = t[2];
+            if (!lessThanN(resultHi, resultLo)) {
+                final long borrow = unsignedLess(resultLo, nLo) ? 1 : 0;
+                resultLo -= nLo;
+                resultHi -= nHi + borrow;
+            }
+            hi = resultHi;
+            lo = resultLo;
+        }
+
+        // Adds the unsigned 'value' to the multi-word integer 't', starting at word 'i'.
+        private void addAt(int i, long value) {
+            final long[] t = this.t;
+            long sum = t[i] + value;
+            boolean carry = unsignedLess(sum, value);
+            t[i] = sum;
+            while (carry) {
+                ++i;
+                ++t[i];
+                carry = (t[i] == 0);
+            }
+        }
+
+        private boolean lessThanN(long aHi, long aLo) {
+            return unsignedLess(aHi, nHi) || (aHi == nHi && unsignedLess(aLo, nLo));
+        }
+    }
+
+    // Baillie-PSW on BigIntegers.
+    // http://en.wikipedia.org/wiki/Baillie-PSW_primality_test
+
+    private static boolean isStrongProbablePrime(BigInteger n, BigInteger base) {
+        final BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+        final int s = nMinusOne.getLowestSetBit();
+        BigInteger x = base.modPow(nMinusOne.shiftRight(s), n);
+        if (x.equals(BigInteger.ONE) || x.equals(nMinusOne)) {
+            return true;
+        }
+        for (int r = 1; r < s; ++r) {
+            x = x.multiply(x).mod(n);
+            if (x.equals(nMinusOne)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The strong Lucas test with Selfridge's parameters: P = 1, and D the first of 5, -7, 9, -11, ... with (D/n) = -1.
+    private static boolean isStrongLucasProbablePrime(BigInteger n) {
+        if (isSquare(n)) {
+            // There's no suitable D for a square.
+            return false;
+        }
+        long d = 5;
+        while (true) {
+            final int j = jacobi(BigInteger.valueOf(d), n);
+            if (j == -1) {
+                break;
+            } else if (j == 0 && n.compareTo(BigInteger.valueOf(Math.abs(d))) > 0) {
+                return false;
+            }
+            d = (d > 0) ? -(d + 2) : -(d - 2);
+        }
+        final BigInteger bigD = BigInteger.valueOf(d);
+        final BigInteger q = BigInteger.valueOf((1 - d) / 4);
+
+        // n + 1 = k * 2^s, with k odd.
+        final BigInteger nPlusOne = n.add(BigInteger.ONE);
+        final int s = nPlusOne.getLowestSetBit();
+        final BigInteger k = nPlusOne.shiftRight(s);
+
+        // Compute U_k, V_k and Q^k by walking down the bits of k.
+        BigInteger u = BigInteger.ONE;
+        BigInteger v = BigInteger.ONE; // V_1 = P.
+        BigInteger qk = q.mod(n);
+        for (int i = k.bitLength() - 2; i >= 0; --i) {
+            // Double.
+            u = u.multiply(v).mod(n);
+            v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+            qk = qk.multiply(qk).mod(n);
+            if (k.testBit(i)) {
+                // Increment, using U_{m+1} = (P U_m + V_m)/2 and V_{m+1} = (D U_m + P V_m)/2.
+                final BigInteger newU = halve(u.add(v), n);
+                v = halve(bigD.multiply(u).add(v), n);
+                u = newU;
+                qk = qk.multiply(q).mod(n);
+            }
+        }
+        if (u.signum() == 0 || v.signum() == 0) {
+            return true;
+        }
+        for (int r = 1; r < s; ++r) {
+            v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+            if (v.signum() == 0) {
+                return true;
+            }
+            qk = qk.multiply(qk).mod(n);
+        }
+        return false;
+    }
+
+    // Returns x/2 mod the odd n.
+    private static BigInteger halve(BigInteger x, BigInteger n) {
+        x = x.mod(n);
+        if (x.testBit(0)) {
+            x = x.add(n);
+        }
+        return x.shiftRight(1);
+    }
+
+    // Returns the Jacobi symbol (a/n), for odd positive n.
+    private static int jacobi(BigInteger a, BigInteger n) {
+        a = a.mod(n);
+        int result = 1;
+        while (a.signum() != 0) {
+            final int twos = a.getLowestSetBit();
+            a = a.shiftRight(twos);
+            final int nMod8 = n.intValue() & 7;
+            if ((twos & 1) != 0 && (nMod8 == 3 || nMod8 == 5)) {
+                result = -result;
+            }
+            // Quadratic reciprocity.
+            if ((a.intValue() & 3) == 3 && (nMod8 & 3) == 3) {
+                result = -result;
+            }
+            final BigInteger t = a;
+            a = n.mod(t);
+            n = t;
+        }
+        return n.equals(BigInteger.ONE) ? result : 0;
+    }
+
+    private static boolean isSquare(BigInteger n) {
+        final BigInteger root = sqrt(n);
+        return root.multiply(root).equals(n);
+    }
+
+    // Returns floor(sqrt(n)) for non-negative n. We take the root of the top half of n's bits recursively, which is
+    // an overestimate good to half the bits we need, and Newton's method doubles that in a step or two.
+    static BigInteger sqrt(BigInteger n) {
+        if (n.bitLength() <= 62) {
+            final long value = n.longValue();
+            long root = (long) Math.sqrt((double) value);
+            while (root * root > value) {
+                --root;
+            }
+            while ((root + 1) * (root + 1) <= value) {
+                ++root;
+            }
+            return BigInteger.valueOf(root);
+        }
+        final int k = n.bitLength() / 4;
+        BigInteger x = sqrt(n.shiftRight(2 * k)).add(BigInteger.ONE).shiftLeft(k);
+        while (true) {
+            final BigInteger y = x.add(Division.divide(n, x)).shiftRight(1);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+}
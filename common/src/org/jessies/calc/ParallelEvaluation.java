@@ -0,0 +1,151 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+
+/**
+ * Evaluation of list elements across the fork/join pool.
+ *
+ * Each worker binds the loop variable in its own scope, so nothing is shared between them but the (read-only) outer
+ * environment. Results go into an array by index, so the output order is the same as the input order however the
+ * work was split up.
+ */
+class ParallelEvaluation {
+    // Lists shorter than this aren't worth splitting up.
+    static final int THRESHOLD = 512;
+
+    // How many elements each task evaluates on its own.
+    private static final int ELEMENTS_PER_TASK = 256;
+
+    // Sums are cheaper per element, so they need bigger tasks.
+    private static final int SUMMANDS_PER_TASK = 8192;
+
+    private ParallelEvaluation() {
+    }
+
+    /**
+     * Returns true if it's worth evaluating a list of 'size' elements in parallel.
+     */
+    static boolean isWorthwhile(int size) {
+        return size >= THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Returns the values of 'expression' with the variable 'name' bound to each element of 'list' in turn.
+     */
+    static Node[] evaluateEach(Calculator environment, Node expression, String name, ListNode list) {
+        final Node[] values = new Node[list.size()];
+        expression = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expression, name, isNumeric(list)));
+        new EvaluateTask(environment, expression, name, list, values, 0, values.length).invoke();
+        return values;
+    }
+
+    private static boolean isNumeric(ListNode list) {
+        for (Node element : list) {
+            if (!(element instanceof NumberNode) || element instanceof IntervalNode) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class EvaluateTask extends RecursiveAction {
+        private final Calculator environment;
+        private final Node expression;
+        private final String name;
+        private final ListNode list;
+        private final Node[] values;
+        private final int from;
+        private final int to;
+
+        EvaluateTask(Calculator environment, Node expression, String name, ListNode list, Node[] values, int from, int to) {
+            this.environment = environment;
+            this.expression = expression;
+            this.name = name;
+            this.list = list;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= ELEMENTS_PER_TASK) {
+                final Calculator scope = environment.newScope();
+                for (int i = from; i < to; ++i) {
+                    scope.setLocalVariable(name, list.get(i));
+                    values[i] = expression.evaluate(scope);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new EvaluateTask(environment, expression, name, list, values, from, mid),
+                      new EvaluateTask(environment, expression, name, list, values, mid, to));
+        }
+    }
+
+    /**
+     * Returns the sum of the elements of 'list', or null if they're not all integers and rationals. Exact addition
+     * doesn't care about order, so we can add up the halves of the list separately.
+     */
+    static NumberNode exactTotal(ListNode list) {
+        if (!(list instanceof RangeNode)) {
+            for (Node element : list) {
+                if (!(element instanceof IntegerNode) && !(element instanceof RationalNode)) {
+                    return null;
+                }
+            }
+        }
+        return new TotalTask(list, 0, list.size()).invoke();
+    }
+
+    private static class TotalTask extends RecursiveTask<NumberNode> {
+        private final ListNode list;
+        private final int from;
+        private final int to;
+
+        TotalTask(ListNode list, int from, int to) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected NumberNode compute() {
+            if (to - from <= SUMMANDS_PER_TASK) {
+                // Integers are added without allocation; anything else the slow way.
+                final IntegerAccumulator fixnums = new IntegerAccumulator();
+                NumberNode rest = IntegerNode.ZERO;
+                for (int i = from; i < to; ++i) {
+                    final Node element = list.get(i);
+                    if (element instanceof IntegerNode) {
+                        fixnums.add((IntegerNode) element);
+                    } else {
+                        rest = rest.plus((NumberNode) element);
+                    }
+                }
+                return rest.plus(fixnums.value());
+            }
+            final int mid = (from + to) >>> 1;
+            final TotalTask left = new TotalTask(list, from, mid);
+            final TotalTask right = new TotalTask(list, mid, to);
+            invokeAll(left, right);
+            return left.getRawResult().plus(right.getRawResult());
+        }
+    }
+}
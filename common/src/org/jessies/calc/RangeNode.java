@@ -0,0 +1,126 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * An arithmetic progression of integers, such as Range returns.
+ *
+ * A RangeNode behaves like a list of its elements, but only stores the first element, the step, and the length, and
+ * creates each element when it's asked for. So Range(10^8) costs no more than Range(10), and anything that goes
+ * through the list an element at a time (Map, Filter, Total, Length and the like) runs in constant space.
+ *
+ * RangeNodes are immutable.
+ */
+public class RangeNode extends ListNode {
+    private final long start;
+    private final long step;
+    private final int size;
+
+    private RangeNode(long start, long step, int size) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+    }
+
+    /**
+     * Returns the range [start, start+step, ..., end], or null if it can't be represented as a RangeNode, because the
+     * numbers aren't all fixnum integers. The step must not be zero.
+     */
+    static RangeNode valueOf(NumberNode start, NumberNode end, NumberNode step) {
+        if (!isFixnum(start) || !isFixnum(end) || !isFixnum(step)) {
+            return null;
+        }
+        final long first = ((IntegerNode) start).fix();
+        final long last = ((IntegerNode) end).fix();
+        final long increment = ((IntegerNode) step).fix();
+        // The subtraction could overflow a long, so count in a BigInteger.
+        final BigInteger span = BigInteger.valueOf(last).subtract(BigInteger.valueOf(first));
+        if (span.signum() != 0 && span.signum() != Long.signum(increment)) {
+            return new RangeNode(first, increment, 0);
+        }
+        final BigInteger size = span.divide(BigInteger.valueOf(increment)).add(BigInteger.ONE);
+        if (size.bitLength() > 31) {
+            throw new CalculatorError("range too long: " + size + " elements");
+        }
+        return new RangeNode(first, increment, size.intValue());
+    }
+
+    private static boolean isFixnum(NumberNode n) {
+        return (n instanceof IntegerNode) && !((IntegerNode) n).isBig();
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    @Override public Node get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("element " + i + " of a range with " + size + " elements");
+        }
+        // Every element lies between the first and the last, so this can't overflow.
+        return IntegerNode.valueOf(start + i * step);
+    }
+
+    @Override public Iterator<Node> iterator() {
+        return new Iterator<Node>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public Node next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override public ListNode reverse() {
+        if (size == 0 || step == Long.MIN_VALUE) {
+            return super.reverse();
+        }
+        return new RangeNode(start + (size - 1) * step, -step, size);
+    }
+
+    @Override public ListNode add(Node value) {
+        throw new UnsupportedOperationException("ranges are immutable");
+    }
+
+    @Override public void set(int index, Node value) {
+        throw new UnsupportedOperationException("ranges are immutable");
+    }
+
+    @Override public Node evaluate(Calculator environment) {
+        return this;
+    }
+
+    @Override public Node simplify(Calculator environment) {
+        return this;
+    }
+}
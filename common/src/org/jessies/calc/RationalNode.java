@@ -48,21 +48,25 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     static NumberNode valueOf(IntegerNode p, IntegerNode q) {
         if (q.compareTo(IntegerNode.ONE) == 0) {
             return p;
-        } else {
-            return new RationalNode(p, q);
         }
+        final int sign = q.compareTo(IntegerNode.ZERO);
+        if (sign == 0) {
+            throw new CalculatorError("division by zero");
+        } else if (sign < 0) {
+            // Keep the sign in the numerator.
+            p = (IntegerNode) IntegerNode.ZERO.subtract(p);
+            q = (IntegerNode) IntegerNode.ZERO.subtract(q);
+        }
+        final RationalNode result = new RationalNode(p, q);
+        // A rational that can be represented as an integer will be.
+        return (result.q.compareTo(IntegerNode.ONE) == 0) ? result.p : result;
     }
     
     static long gcd(long a, long b) {
-        if (a == 0) {
-            return b;
-        }
         while (b != 0) {
-            if (a > b) {
-                a = a - b;
-            } else {
-                b = b - a;
-            }
+            final long t = a % b;
+            a = b;
+            b = t;
         }
         return a;
     }
@@ -108,7 +112,9 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     }
     
     public NumberNode divide(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).divide(rhs);
+        } else if (rhs instanceof RealNode || rhs instanceof BigRealNode) {
             return toReal().divide(rhs);
         } else if (rhs instanceof IntegerNode) {
             return valueOf(p, (IntegerNode) q.times(rhs));
@@ -140,7 +146,9 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     }
     
     public NumberNode plus(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).plus(rhs);
+        } else if (rhs instanceof RealNode || rhs instanceof BigRealNode) {
             return toReal().plus(rhs);
         } else if (rhs instanceof IntegerNode) {
             return valueOf((IntegerNode) p.plus(rhs.times(q)), q);
@@ -154,7 +162,9 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     }
     
     public NumberNode power(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).power(rhs);
+        } else if (rhs instanceof RealNode || rhs instanceof BigRealNode) {
             return toReal().power(rhs);
         } else if (rhs instanceof IntegerNode) {
             return valueOf((IntegerNode) p.power(rhs), (IntegerNode) q.power(rhs));
@@ -173,7 +183,9 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     }
     
     public NumberNode subtract(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).subtract(rhs);
+        } else if (rhs instanceof RealNode || rhs instanceof BigRealNode) {
             return toReal().subtract(rhs);
         } else if (rhs instanceof IntegerNode) {
             return valueOf((IntegerNode) p.subtract(rhs.times(q)), q);
@@ -187,7 +199,9 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
     }
     
     public NumberNode times(NumberNode rhs) {
-        if (rhs instanceof RealNode) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).times(rhs);
+        } else if (rhs instanceof RealNode || rhs instanceof BigRealNode) {
             return toReal().times(rhs);
         } else if (rhs instanceof IntegerNode) {
             return valueOf((IntegerNode) p.times(rhs), q);
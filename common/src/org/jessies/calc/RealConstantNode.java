@@ -0,0 +1,54 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Represents a built-in real constant such as pi, which evaluates to a double, or to a BigRealNode if the Calculator
+ * has a precision set.
+ */
+class RealConstantNode implements Node {
+    private final String name;
+    private final RealNode approximation;
+    private final BigRealConstant constant;
+
+    RealConstantNode(String name, double approximation, BigRealConstant constant) {
+        this.name = name;
+        this.approximation = new RealNode(approximation);
+        this.constant = constant;
+    }
+
+    public Node evaluate(Calculator environment) {
+        if (environment.getPrecision() == 0) {
+            return approximation;
+        }
+        return new BigRealNode(constant.value(environment.getMathContext()));
+    }
+
+    public Node simplify(Calculator environment) {
+        return this;
+    }
+
+    public String toInputString() {
+        return name;
+    }
+
+    @Override public String toString() {
+        return toInputString();
+    }
+}
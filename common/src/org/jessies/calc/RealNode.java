@@ -95,6 +95,9 @@ public class RealNode implements Comparable<RealNode>, NumberNode {
     }
 
     public NumberNode divide(NumberNode rhs) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).divide(rhs);
+        }
         if (!(rhs instanceof RealNode)) {
             rhs = rhs.toReal();
         }
@@ -166,6 +169,9 @@ public class RealNode implements Comparable<RealNode>, NumberNode {
     }
 
     public NumberNode plus(NumberNode rhs) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).plus(rhs);
+        }
         if (!(rhs instanceof RealNode)) {
             rhs = rhs.toReal();
         }
@@ -173,6 +179,13 @@ public class RealNode implements Comparable<RealNode>, NumberNode {
     }
 
     public NumberNode power(NumberNode rhs) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).power(rhs);
+        }
+        if (rhs instanceof IntegerNode && !((IntegerNode) rhs).isBig()) {
+            // Common in simplified expressions (x*x is x^2), so don't allocate a RealNode for the exponent.
+            return new RealNode(Math.pow(value, ((IntegerNode) rhs).fix()));
+        }
         if (!(rhs instanceof RealNode)) {
             rhs = rhs.toReal();
         }
@@ -204,6 +217,9 @@ public class RealNode implements Comparable<RealNode>, NumberNode {
     }
 
     public NumberNode subtract(NumberNode rhs) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).subtract(rhs);
+        }
         if (!(rhs instanceof RealNode)) {
             rhs = rhs.toReal();
         }
@@ -219,6 +235,9 @@ public class RealNode implements Comparable<RealNode>, NumberNode {
     }
 
     public NumberNode times(NumberNode rhs) {
+        if (rhs instanceof IntervalNode) {
+            return IntervalNode.valueOf(this).times(rhs);
+        }
         if (!(rhs instanceof RealNode)) {
             rhs = rhs.toReal();
         }
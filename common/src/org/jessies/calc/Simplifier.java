@@ -0,0 +1,581 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * A term-rewriting simplifier.
+ *
+ * Rules are applied bottom-up, so each rule sees arguments that have already been simplified:
+ *
+ * Sums are flattened, like terms are collected (3*x + 4*x is 7*x), and the terms are sorted into a canonical order,
+ * with any constant last. Products are flattened, their numeric factors are multiplied together and put first, and
+ * repeated factors are merged into powers (x*3*x is 3*x^2), with the rest sorted into a canonical order. Powers of
+ * powers with positive integer exponents are merged, and x^1 is x. Functions whose arguments are all constants are
+ * evaluated. Only exact constants and coefficients are combined, and a term with an inexact constant stops the sum
+ * being reordered: floating-point arithmetic isn't associative, so Exp(40) + x - Exp(40) isn't x. Nor is 0*x always 0,
+ * so products and terms with a zero coefficient are kept: x - x is 0*x.
+ *
+ * Some of these rules only hold for numbers. If x is a matrix, x*x is a matrix product but x^2 is an error, and if
+ * x is undefined, x+x is a symbolic sum but 2*x is an error. So terms are only collected, and factors only merged,
+ * if we know they're numbers (because they're constants, or a variable the caller tells us is bound to a number),
+ * and neither are reordered unless they're all numbers, which also keeps the variables of a compiled expression in
+ * the order they were written. Exact terms and factors are combined whatever else is in the sum or product.
+ *
+ * simplify is for expressions that are kept, by Calculator.compile or D for example. It assumes nothing about
+ * variables other than the built-in constants and the one it's told about, and only evaluates functions with exact
+ * results, since others may depend on the angle mode or precision. simplifyBody is for functions like Sum that are
+ * about to evaluate an expression many times with a variable bound to each of many values: variables whose values
+ * are numbers are replaced by those values, the bound variable is known to be a number if it is, and any function
+ * of constants is evaluated, which hoists work that doesn't depend on the bound variable out of the loop. Terms
+ * aren't collected or reordered there, nor factors reordered or merged into powers, because the bound variable
+ * might be a floating-point number (and the ordinary evaluator is faster at multiplying anyway, and common
+ * subexpression elimination means a repeated factor is only evaluated once). Only exact constants are combined.
+ *
+ * Equal subtrees of an expression are only simplified once, and whole results are kept in a small process-wide
+ * cache, so simplifying the same expression again (the body of a Sum inside a Map, say) is just a lookup.
+ */
+class Simplifier {
+    private static final int CACHE_CAPACITY = 256;
+
+    private static final LinkedHashMap<Key, Node> cache = new LinkedHashMap<Key, Node>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Key, Node> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private static final CalculatorFunction PLUS = new CalculatorFunctions.Plus();
+    private static final CalculatorFunction SUBTRACT = new CalculatorFunctions.Subtract();
+    private static final CalculatorFunction TIMES = new CalculatorFunctions.Times();
+    private static final CalculatorFunction POWER = new CalculatorFunctions.Power();
+
+    // A total order on expressions, used to sort the terms of sums and the factors of products.
+    private static final Comparator<Node> ORDER = new Comparator<Node>() {
+        public int compare(Node lhs, Node rhs) {
+            final int result = kind(lhs) - kind(rhs);
+            if (result != 0) {
+                return result;
+            } else if (lhs instanceof CalculatorVariableNode) {
+                return ((CalculatorVariableNode) lhs).name().compareTo(((CalculatorVariableNode) rhs).name());
+            } else if (lhs instanceof CalculatorFunction) {
+                final CalculatorFunction lhsFunction = (CalculatorFunction) lhs;
+                final CalculatorFunction rhsFunction = (CalculatorFunction) rhs;
+                final int names = lhsFunction.name().compareTo(rhsFunction.name());
+                if (names != 0) {
+                    return names;
+                }
+                return compareAll(argsOf(lhsFunction), argsOf(rhsFunction));
+            } else if (lhs instanceof ListNode) {
+                return compareAll(elementsOf((ListNode) lhs), elementsOf((ListNode) rhs));
+            }
+            return lhs.toInputString().compareTo(rhs.toInputString());
+        }
+
+        private int kind(Node node) {
+            if (node instanceof NumberNode) {
+                return 0;
+            } else if (node instanceof CalculatorVariableNode) {
+                return 1;
+            } else if (node instanceof CalculatorFunction) {
+                return 2;
+            } else if (node instanceof ListNode) {
+                return 3;
+            }
+            return 4;
+        }
+
+        private int compareAll(List<Node> lhs, List<Node> rhs) {
+            if (lhs.size() != rhs.size()) {
+                return lhs.size() - rhs.size();
+            }
+            for (int i = 0; i < lhs.size(); ++i) {
+                final int result = compare(lhs.get(i), rhs.get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        private List<Node> argsOf(CalculatorFunction function) {
+            return (function.args != null) ? function.args : Collections.<Node>emptyList();
+        }
+
+        private List<Node> elementsOf(ListNode list) {
+            final ArrayList<Node> result = new ArrayList<Node>(list.size());
+            for (Node element : list) {
+                result.add(element);
+            }
+            return result;
+        }
+    };
+
+    // What a simplification depends on, besides the expression itself.
+    private static class Key {
+        private final Node expression;
+        private final String numericName;
+        private final boolean isTransient;
+        private final boolean degreesMode;
+        private final int precision;
+
+        Key(Node expression, String numericName, boolean isTransient, boolean degreesMode, int precision) {
+            this.expression = expression;
+            this.numericName = numericName;
+            this.isTransient = isTransient;
+            this.degreesMode = degreesMode;
+            this.precision = precision;
+        }
+
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key rhs = (Key) other;
+            return expression.equals(rhs.expression) && (numericName == null ? rhs.numericName == null : numericName.equals(rhs.numericName)) &&
+                    isTransient == rhs.isTransient && degreesMode == rhs.degreesMode && precision == rhs.precision;
+        }
+
+        @Override public int hashCode() {
+            int result = expression.hashCode();
+            result = 31 * result + (numericName != null ? numericName.hashCode() : 0);
+            result = 31 * result + (isTransient ? 1 : 0);
+            result = 31 * result + (degreesMode ? 1 : 0);
+            return 31 * result + precision;
+        }
+    }
+
+    // A term of a sum: its coefficient, and what that multiplies.
+    private static class Term {
+        NumberNode coefficient;
+        final Node base;
+
+        Term(NumberNode coefficient, Node base) {
+            this.coefficient = coefficient;
+            this.base = base;
+        }
+    }
+
+    private final Calculator environment;
+    // The name of a variable known to be bound to a number, or null.
+    private final String numericName;
+    // True if the result is about to be evaluated, so we can evaluate functions whose results depend on the settings.
+    private final boolean isTransient;
+    // Each distinct function application we've simplified, mapped to its simplified form.
+    private final HashMap<Node, Node> simplified = new HashMap<Node, Node>();
+    private final IdentityHashMap<Node, Boolean> numeric = new IdentityHashMap<Node, Boolean>();
+
+    private Simplifier(Calculator environment, String numericName, boolean isTransient) {
+        this.environment = environment;
+        this.numericName = numericName;
+        this.isTransient = isTransient;
+    }
+
+    /**
+     * Returns a simpler expression equivalent to 'expression'.
+     */
+    static Node simplify(Calculator environment, Node expression) {
+        return simplify(environment, expression, null);
+    }
+
+    /**
+     * Returns a simpler expression equivalent to 'expression', in which the variable 'numericName' is a number.
+     */
+    static Node simplify(Calculator environment, Node expression, String numericName) {
+        return simplify(environment, new Key(expression, numericName, false, false, 0));
+    }
+
+    /**
+     * Returns a simpler expression equivalent to 'expression', which is about to be evaluated in 'environment' with
+     * the variable 'name' bound to each of a series of values. If 'isNumeric' is true, those values are all numbers.
+     */
+    static Node simplifyBody(Calculator environment, Node expression, String name, boolean isNumeric) {
+        if (CommonSubexpressions.hasAssignment(expression)) {
+            // The values we'd substitute might change as we go.
+            return expression;
+        }
+        final String numericName = isNumeric ? name : null;
+        final Node substituted = substitute(environment, expression, name);
+        if (substituted != expression) {
+            // Not worth caching: the values are likely to be different next time.
+            return new Simplifier(environment, numericName, true).rewrite(substituted);
+        }
+        return simplify(environment, new Key(expression, numericName, true, environment.isDegreesMode(), environment.getPrecision()));
+    }
+
+    private static Node simplify(Calculator environment, Key key) {
+        Node result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result == null) {
+            result = new Simplifier(environment, key.numericName, key.isTransient).rewrite(key.expression);
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    // Returns 'node' with each variable whose value is a constant replaced by that value, except for the variable
+    // 'name' and variables bound within 'node'. Returns 'node' itself if nothing was replaced.
+    private static Node substitute(Calculator environment, Node node, String name) {
+        if (node instanceof CalculatorVariableNode) {
+            if (((CalculatorVariableNode) node).name().equalsIgnoreCase(name)) {
+                return node;
+            }
+            final Node value = node.evaluate(environment);
+            return isConstant(value) ? value : node;
+        } else if (node instanceof ListNode) {
+            final ListNode result = new ListNode();
+            boolean changed = false;
+            for (Node element : (ListNode) node) {
+                final Node newElement = substitute(environment, element, name);
+                result.add(newElement);
+                changed |= (newElement != element);
+            }
+            return changed ? result : node;
+        } else if (!isRewritable(node)) {
+            return node;
+        }
+        final CalculatorFunction function = (CalculatorFunction) node;
+        final ArrayList<Node> newArgs = new ArrayList<Node>(function.args.size());
+        boolean changed = false;
+        for (int i = 0; i < function.args.size(); ++i) {
+            final Node arg = function.args.get(i);
+            final Node newArg = CommonSubexpressions.isBound(function, i) ? arg : substitute(environment, arg, name);
+            newArgs.add(newArg);
+            changed |= (newArg != arg);
+        }
+        return changed ? function.bind(newArgs) : node;
+    }
+
+    private static boolean isRewritable(Node node) {
+        return node instanceof CalculatorFunction && ((CalculatorFunction) node).args != null &&
+                !(node instanceof CommonSubexpressions.Let || node instanceof CommonSubexpressions.Shared);
+    }
+
+    private Node rewrite(Node node) {
+        if (node instanceof ListNode) {
+            final ListNode result = new ListNode();
+            boolean changed = false;
+            for (Node element : (ListNode) node) {
+                final Node newElement = rewrite(element);
+                result.add(newElement);
+                changed |= (newElement != element);
+            }
+            return changed ? result : node;
+        } else if (!isRewritable(node)) {
+            return node;
+        }
+        Node result = simplified.get(node);
+        if (result != null) {
+            return result;
+        }
+        final CalculatorFunction function = (CalculatorFunction) node;
+        final ArrayList<Node> newArgs = new ArrayList<Node>(function.args.size());
+        boolean changed = false;
+        for (int i = 0; i < function.args.size(); ++i) {
+            final Node arg = function.args.get(i);
+            // The bodies of functions like Sum are simplified when they're evaluated, with their variables bound.
+            final Node newArg = CommonSubexpressions.isBound(function, i) ? arg : rewrite(arg);
+            newArgs.add(newArg);
+            changed |= (newArg != arg);
+        }
+        final CalculatorFunction newFunction = changed ? function.bind(newArgs) : function;
+        result = fold(newFunction);
+        if (result == null) {
+            if (newFunction instanceof CalculatorFunctions.Plus || newFunction instanceof CalculatorFunctions.Subtract) {
+                result = sum(newFunction);
+            } else if (newFunction instanceof CalculatorFunctions.Times) {
+                result = product(newFunction);
+            } else if (newFunction instanceof CalculatorFunctions.Power) {
+                result = power(newFunction);
+            } else {
+                result = newFunction;
+            }
+        }
+        simplified.put(node, result);
+        return result;
+    }
+
+    // Returns the value of 'function' if it's a pure function of constants, or null.
+    private Node fold(CalculatorFunction function) {
+        if (function.args.isEmpty() || function.boundVariableIndex() != -1 || function instanceof CalculatorFunctions.Define ||
+                function instanceof CalculatorFunctions.Random || function instanceof CalculatorFunctions.Plot) {
+            return null;
+        }
+        for (Node arg : function.args) {
+            if (!isConstant(arg)) {
+                return null;
+            }
+        }
+        final Node value;
+        try {
+            value = function.evaluate(environment);
+        } catch (CalculatorError ex) {
+            // Leave it to be reported when the expression is evaluated, if it ever is.
+            return null;
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+        if (!isConstant(value) || (!isTransient && !isExact(value))) {
+            return null;
+        }
+        return value;
+    }
+
+    private Node sum(CalculatorFunction function) {
+        final ArrayList<Term> terms = new ArrayList<Term>();
+        final HashMap<Node, Term> numericTerms = new HashMap<Node, Term>();
+        final NumberNode constant = addTerms(function, false, IntegerNode.ZERO, terms, numericTerms);
+        if (numericTerms.size() == terms.size()) {
+            Collections.sort(terms, new Comparator<Term>() {
+                public int compare(Term lhs, Term rhs) {
+                    return ORDER.compare(lhs.base, rhs.base);
+                }
+            });
+        }
+        Node result = null;
+        for (Term term : terms) {
+            // Terms with a zero coefficient stay, for the same reason as in product.
+            if (result == null) {
+                result = times(term.coefficient, term.base);
+            } else if (isNegative(term.coefficient)) {
+                result = SUBTRACT.bind(result, times(negate(term.coefficient), term.base));
+            } else {
+                result = PLUS.bind(result, times(term.coefficient, term.base));
+            }
+        }
+        if (result == null) {
+            return constant;
+        } else if (isZero(constant)) {
+            return result;
+        } else if (isNegative(constant)) {
+            return SUBTRACT.bind(result, negate(constant));
+        }
+        return PLUS.bind(result, constant);
+    }
+
+    // Adds the terms of 'node' (negated, if 'negate' is true) to 'terms', collecting like terms whose bases are
+    // numbers and whose coefficients are exact, and returns 'constant' plus the exact constant terms. Inexact terms
+    // are left where they were, since floating-point addition isn't associative.
+    private NumberNode addTerms(Node node, boolean negate, NumberNode constant, List<Term> terms, Map<Node, Term> numericTerms) {
+        if (node instanceof CalculatorFunctions.Plus || node instanceof CalculatorFunctions.Subtract) {
+            final List<Node> args = ((CalculatorFunction) node).args;
+            constant = addTerms(args.get(0), negate, constant, terms, numericTerms);
+            final boolean isSubtract = (node instanceof CalculatorFunctions.Subtract);
+            return addTerms(args.get(1), negate != isSubtract, constant, terms, numericTerms);
+        } else if (isExactNumber(node)) {
+            return negate ? constant.subtract((NumberNode) node) : constant.plus((NumberNode) node);
+        }
+        NumberNode coefficient = IntegerNode.ONE;
+        Node base = node;
+        if (node instanceof CalculatorFunctions.Times) {
+            final ArrayList<Node> factors = new ArrayList<Node>();
+            addFactors(node, factors);
+            if (isExactNumber(factors.get(0))) {
+                coefficient = (NumberNode) factors.remove(0);
+                base = times(IntegerNode.ONE, factors);
+            }
+        }
+        if (negate) {
+            coefficient = negate(coefficient);
+        }
+        // In a loop body, the bound variable might be a double, so even Exp(x) + Sin(x) - Exp(x) isn't Sin(x).
+        final boolean isNumeric = !isTransient && isNumeric(base) && !(base instanceof NumberNode) && isExact(coefficient);
+        final Term term = isNumeric ? numericTerms.get(base) : null;
+        if (term != null) {
+            term.coefficient = term.coefficient.plus(coefficient);
+        } else {
+            final Term newTerm = new Term(coefficient, base);
+            terms.add(newTerm);
+            if (isNumeric) {
+                numericTerms.put(base, newTerm);
+            }
+        }
+        return constant;
+    }
+
+    private Node product(CalculatorFunction function) {
+        final ArrayList<Node> factors = new ArrayList<Node>();
+        addFactors(function, factors);
+        NumberNode coefficient = IntegerNode.ONE;
+        ArrayList<Node> others = new ArrayList<Node>();
+        boolean isNumeric = true;
+        boolean isExact = true;
+        for (Node factor : factors) {
+            if (isExactNumber(factor)) {
+                coefficient = coefficient.times((NumberNode) factor);
+            } else {
+                others.add(factor);
+                isNumeric = isNumeric && isNumeric(factor);
+                isExact = false;
+            }
+        }
+        if (isExact) {
+            return coefficient;
+        } else if (isNumeric && !isTransient) {
+            // Multiplication of numbers commutes, so we can sort the factors and merge repeated ones. Not if we're
+            // about to evaluate the result, though: x^2 is slower to evaluate than x*x, even with both x's to look up,
+            // and floating-point multiplication isn't associative, so the result might differ in the last place.
+            others = mergePowers(others);
+        }
+        // Even 0*x isn't 0 unless we know x is a finite number, and not a matrix, an infinity, or an error. (And
+        // even then it might be 0.0 rather than 0.)
+        return times(coefficient, others);
+    }
+
+    private static void addFactors(Node node, List<Node> factors) {
+        if (node instanceof CalculatorFunctions.Times) {
+            final List<Node> args = ((CalculatorFunction) node).args;
+            addFactors(args.get(0), factors);
+            addFactors(args.get(1), factors);
+        } else {
+            factors.add(node);
+        }
+    }
+
+    // Merges factors with the same base by adding their exponents, and sorts the results.
+    private static ArrayList<Node> mergePowers(List<Node> factors) {
+        final HashMap<Node, IntegerNode> exponents = new HashMap<Node, IntegerNode>();
+        final ArrayList<Node> bases = new ArrayList<Node>();
+        for (Node factor : factors) {
+            Node base = factor;
+            IntegerNode exponent = IntegerNode.ONE;
+            if (factor instanceof CalculatorFunctions.Power && isPositiveInteger(((CalculatorFunction) factor).args.get(1))) {
+                base = ((CalculatorFunction) factor).args.get(0);
+                exponent = (IntegerNode) ((CalculatorFunction) factor).args.get(1);
+            }
+            final IntegerNode oldExponent = exponents.get(base);
+            if (oldExponent == null) {
+                bases.add(base);
+                exponents.put(base, exponent);
+            } else {
+                exponents.put(base, (IntegerNode) oldExponent.plus(exponent));
+            }
+        }
+        Collections.sort(bases, ORDER);
+        final ArrayList<Node> result = new ArrayList<Node>(bases.size());
+        for (Node base : bases) {
+            final IntegerNode exponent = exponents.get(base);
+            result.add(isOne(exponent) ? base : POWER.bind(base, exponent));
+        }
+        return result;
+    }
+
+    private Node power(CalculatorFunction function) {
+        final Node base = function.args.get(0);
+        final Node exponent = function.args.get(1);
+        if (!isNumeric(base) || !(exponent instanceof IntegerNode)) {
+            return function;
+        } else if (isOne(exponent)) {
+            return base;
+        } else if (base instanceof CalculatorFunctions.Power && isPositiveInteger(exponent) && isPositiveInteger(((CalculatorFunction) base).args.get(1))) {
+            // (x^2)^3 is x^6.
+            final List<Node> baseArgs = ((CalculatorFunction) base).args;
+            return POWER.bind(baseArgs.get(0), ((IntegerNode) baseArgs.get(1)).times((IntegerNode) exponent));
+        }
+        return function;
+    }
+
+    // Returns the product of 'coefficient' and 'base', preferring "2*x" to "x*2".
+    private static Node times(NumberNode coefficient, Node base) {
+        if (isOne(coefficient)) {
+            return base;
+        }
+        final ArrayList<Node> factors = new ArrayList<Node>();
+        addFactors(base, factors);
+        return times(coefficient, factors);
+    }
+
+    private static Node times(NumberNode coefficient, List<Node> factors) {
+        Node result = isOne(coefficient) ? null : coefficient;
+        for (Node factor : factors) {
+            result = (result == null) ? factor : TIMES.bind(result, factor);
+        }
+        return (result == null) ? coefficient : result;
+    }
+
+    // Returns true if 'node' is known to evaluate to a number (and not an interval).
+    private boolean isNumeric(Node node) {
+        if (node instanceof NumberNode) {
+            return !(node instanceof IntervalNode);
+        } else if (node instanceof CalculatorVariableNode) {
+            final String name = ((CalculatorVariableNode) node).name();
+            if (name.equalsIgnoreCase(numericName)) {
+                return true;
+            }
+            final Calculator.Variable constant = environment.getUnassignableVariable(name);
+            return constant != null && constant.value instanceof RealConstantNode;
+        } else if (!isRewritable(node)) {
+            return false;
+        }
+        Boolean result = numeric.get(node);
+        if (result == null) {
+            final CalculatorFunction function = (CalculatorFunction) node;
+            result = isArithmetic(function);
+            for (int i = 0; result && i < function.args.size(); ++i) {
+                result = isNumeric(function.args.get(i));
+            }
+            numeric.put(node, result);
+        }
+        return result;
+    }
+
+    // Returns true if 'function' returns a number when given numbers.
+    private static boolean isArithmetic(CalculatorFunction function) {
+        if (function instanceof CalculatorFunctions.Plus || function instanceof CalculatorFunctions.Subtract || function instanceof CalculatorFunctions.Times) {
+            return true;
+        }
+        return (function instanceof CalculatorFunctionN || function instanceof CalculatorFunctionNN) && !(function instanceof CalculatorFunctions.Interval);
+    }
+
+    private static boolean isConstant(Node node) {
+        return (node instanceof NumberNode && !(node instanceof IntervalNode)) || node instanceof BooleanNode;
+    }
+
+    private static boolean isExact(Node node) {
+        return node instanceof IntegerNode || node instanceof RationalNode || node instanceof BooleanNode;
+    }
+
+    private static boolean isExactNumber(Node node) {
+        return node instanceof IntegerNode || node instanceof RationalNode;
+    }
+
+    private static boolean isZero(Node n) {
+        return (n instanceof IntegerNode) && (((IntegerNode) n).compareTo(IntegerNode.ZERO) == 0);
+    }
+
+    private static boolean isOne(Node n) {
+        return (n instanceof IntegerNode) && (((IntegerNode) n).compareTo(IntegerNode.ONE) == 0);
+    }
+
+    private static boolean isPositiveInteger(Node n) {
+        return (n instanceof IntegerNode) && (((IntegerNode) n).compareTo(IntegerNode.ZERO) > 0);
+    }
+
+    private static boolean isNegative(NumberNode n) {
+        return !(n instanceof IntervalNode) && n.sign().compareTo(IntegerNode.ZERO) < 0;
+    }
+
+    private static NumberNode negate(NumberNode n) {
+        return IntegerNode.ZERO.subtract(n);
+    }
+}
@@ -0,0 +1,313 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Fast paths for Sum and Product over integer ranges.
+ *
+ * A summand that's a polynomial in the summation variable with exact coefficients is summed in closed form using
+ * Faulhaber's formula, so the cost depends on the polynomial's degree rather than the number of terms:
+ * Sum(i^2, i, 1, 10^9) is as quick as Sum(i^2, i, 1, 10).
+ *
+ * Anything else is evaluated term by term, but the loop counter is a long, and while the terms are fixnums they're
+ * accumulated in a long too, only spilling into a bignum on overflow. Products are accumulated in fixnum chunks, and
+ * the chunks are multiplied together in a balanced tree at the end, so the big multiplications are between numbers of
+ * similar size, which is where the fast multiplication algorithms pay off.
+ */
+class Summation {
+    // Polynomials of higher degree than this are summed term by term. Faulhaber's formula costs O(degree^2).
+    private static final int MAX_DEGREE = 128;
+
+    // The Bernoulli numbers computed so far, with B(1) = +1/2.
+    private static final List<NumberNode> bernoulliNumbers = new ArrayList<NumberNode>();
+
+    private Summation() {
+    }
+
+    /**
+     * Returns the coefficients of 'expression' as a polynomial in the variable 'name', constant term first, or null if
+     * it isn't a polynomial with exact coefficients (or is one of too high a degree).
+     */
+    static NumberNode[] polynomial(Calculator environment, Node expression, String name) {
+        // We evaluate each constant part once rather than once per term, which only works if it's the same every time.
+        return isDeterministic(expression) ? coefficients(environment, expression, name) : null;
+    }
+
+    private static boolean isDeterministic(Node expression) {
+        if (expression instanceof CalculatorFunctions.Random) {
+            return false;
+        } else if (expression instanceof CalculatorFunction && ((CalculatorFunction) expression).args != null) {
+            for (Node arg : ((CalculatorFunction) expression).args) {
+                if (!isDeterministic(arg)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static NumberNode[] coefficients(Calculator environment, Node expression, String name) {
+        if (!Calculus.dependsOn(expression, name)) {
+            final Node value = expression.evaluate(environment);
+            if (value instanceof IntegerNode || value instanceof RationalNode) {
+                return new NumberNode[] { (NumberNode) value };
+            }
+            return null;
+        } else if (expression instanceof CalculatorVariableNode) {
+            return new NumberNode[] { IntegerNode.ZERO, IntegerNode.ONE };
+        } else if (!(expression instanceof CalculatorFunction) || ((CalculatorFunction) expression).args == null) {
+            return null;
+        }
+        final CalculatorFunction f = (CalculatorFunction) expression;
+        final List<Node> args = f.args;
+        if (f instanceof CalculatorFunctions.Plus || f instanceof CalculatorFunctions.Subtract) {
+            final NumberNode[] lhs = coefficients(environment, args.get(0), name);
+            final NumberNode[] rhs = (lhs != null) ? coefficients(environment, args.get(1), name) : null;
+            if (rhs == null) {
+                return null;
+            }
+            final NumberNode[] result = new NumberNode[Math.max(lhs.length, rhs.length)];
+            for (int i = 0; i < result.length; ++i) {
+                final NumberNode a = (i < lhs.length) ? lhs[i] : IntegerNode.ZERO;
+                final NumberNode b = (i < rhs.length) ? rhs[i] : IntegerNode.ZERO;
+                result[i] = (f instanceof CalculatorFunctions.Plus) ? a.plus(b) : a.subtract(b);
+            }
+            return result;
+        } else if (f instanceof CalculatorFunctions.Times) {
+            final NumberNode[] lhs = coefficients(environment, args.get(0), name);
+            final NumberNode[] rhs = (lhs != null) ? coefficients(environment, args.get(1), name) : null;
+            return (rhs != null) ? times(lhs, rhs) : null;
+        } else if (f instanceof CalculatorFunctions.Power && !Calculus.dependsOn(args.get(1), name)) {
+            final NumberNode[] base = coefficients(environment, args.get(0), name);
+            final Node exponent = args.get(1).evaluate(environment);
+            if (base == null || !(exponent instanceof IntegerNode) || ((IntegerNode) exponent).isBig()) {
+                return null;
+            }
+            final long n = ((IntegerNode) exponent).fix();
+            if (n < 0 || (base.length - 1) * n > MAX_DEGREE) {
+                return null;
+            }
+            NumberNode[] result = new NumberNode[] { IntegerNode.ONE };
+            for (long i = 0; i < n; ++i) {
+                result = times(result, base);
+            }
+            return result;
+        }
+        // Division isn't exact for integers, so (for example) i/2 isn't a polynomial as far as we're concerned.
+        return null;
+    }
+
+    private static NumberNode[] times(NumberNode[] lhs, NumberNode[] rhs) {
+        if (lhs.length + rhs.length - 2 > MAX_DEGREE) {
+            return null;
+        }
+        final NumberNode[] result = new NumberNode[lhs.length + rhs.length - 1];
+        Arrays.fill(result, IntegerNode.ZERO);
+        for (int i = 0; i < lhs.length; ++i) {
+            for (int j = 0; j < rhs.length; ++j) {
+                result[i + j] = result[i + j].plus(lhs[i].times(rhs[j]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the polynomial with the given coefficients over the integers from 'from' to 'to' inclusive.
+     */
+    static NumberNode sumPolynomial(NumberNode[] coefficients, IntegerNode from, IntegerNode to) {
+        // Sum from 'from' to 'to' is S(to) - S(from - 1), where S(n) is the sum from 1 to n.
+        final IntegerNode before = (IntegerNode) from.subtract(IntegerNode.ONE);
+        NumberNode result = IntegerNode.ZERO;
+        for (int k = 0; k < coefficients.length; ++k) {
+            if (!coefficients[k].equals(IntegerNode.ZERO)) {
+                final NumberNode powerSum = faulhaber(k, to).subtract(faulhaber(k, before));
+                result = result.plus(coefficients[k].times(powerSum));
+            }
+        }
+        return result;
+    }
+
+    // Returns the sum of i^k for i from 1 to n, using Faulhaber's formula:
+    // (1/(k+1)) * sum for j from 0 to k of C(k+1, j) * B(j) * n^(k+1-j).
+    // The formula is a polynomial in n, so it's also the right continuation for n <= 0.
+    private static NumberNode faulhaber(int k, IntegerNode n) {
+        final BigInteger bigN = n.big();
+        NumberNode result = IntegerNode.ZERO;
+        BigInteger binomial = BigInteger.ONE; // C(k+1, j).
+        for (int j = 0; j <= k; ++j) {
+            final NumberNode b = bernoulli(j);
+            if (!b.equals(IntegerNode.ZERO)) {
+                final IntegerNode term = IntegerNode.valueOf(binomial.multiply(bigN.pow(k + 1 - j)));
+                result = result.plus(b.times(term));
+            }
+            binomial = binomial.multiply(BigInteger.valueOf(k + 1 - j)).divide(BigInteger.valueOf(j + 1));
+        }
+        return result.times(RationalNode.valueOf(IntegerNode.ONE, IntegerNode.valueOf(k + 1)));
+    }
+
+    // Returns the Bernoulli number B(n), with B(1) = +1/2, as Faulhaber's formula wants.
+    private static synchronized NumberNode bernoulli(int n) {
+        // Uses the recurrence sum for j from 0 to m of C(m+1, j) * B(j) = 0, which is for B(1) = -1/2.
+        while (bernoulliNumbers.size() <= n) {
+            final int m = bernoulliNumbers.size();
+            NumberNode sum = IntegerNode.ZERO;
+            BigInteger binomial = BigInteger.ONE; // C(m+1, j).
+            for (int j = 0; j < m; ++j) {
+                NumberNode b = bernoulliNumbers.get(j);
+                if (j == 1) {
+                    b = IntegerNode.ZERO.subtract(b);
+                }
+                sum = sum.plus(b.times(IntegerNode.valueOf(binomial)));
+                binomial = binomial.multiply(BigInteger.valueOf(m + 1 - j)).divide(BigInteger.valueOf(j + 1));
+            }
+            NumberNode b = (m == 0) ? IntegerNode.ONE : IntegerNode.ZERO.subtract(sum.times(RationalNode.valueOf(IntegerNode.ONE, IntegerNode.valueOf(m + 1))));
+            if (m == 1) {
+                b = IntegerNode.ZERO.subtract(b);
+            }
+            bernoulliNumbers.add(b);
+        }
+        return bernoulliNumbers.get(n);
+    }
+
+    /**
+     * Returns the sum (or product) of 'expression' with the variable 'name' bound to each integer from 'from' to 'to'
+     * inclusive, evaluating each term.
+     */
+    static NumberNode series(String functionName, Calculator environment, Node expression, String name, IntegerNode from, IntegerNode to, boolean isSum) {
+        if (from.isBig() || to.isBig()) {
+            // We're never going to finish anyway, but we can at least get started.
+            return bigSeries(functionName, environment, expression, name, from, to, isSum);
+        }
+        expression = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expression, name, true));
+        final Calculator scope = environment.newScope();
+        final long last = to.fix();
+        // Fixnum terms are accumulated here, and everything else in 'result'.
+        final FixnumAccumulator accumulator = isSum ? new FixnumSum() : new FixnumProduct();
+        NumberNode result = isSum ? IntegerNode.ZERO : IntegerNode.ONE;
+        for (long i = from.fix(); i <= last; ++i) {
+            scope.setLocalVariable(name, IntegerNode.valueOf(i));
+            final NumberNode term = toTerm(functionName, expression.evaluate(scope));
+            if (term instanceof IntegerNode && !((IntegerNode) term).isBig() && isExact(result)) {
+                accumulator.add(((IntegerNode) term).fix());
+            } else {
+                // Inexact arithmetic isn't associative, so keep to the order the terms came in.
+                result = combine(combine(result, accumulator.total(), isSum), term, isSum);
+                accumulator.clear();
+            }
+            if (i == Long.MAX_VALUE) {
+                break;
+            }
+        }
+        return combine(result, accumulator.total(), isSum);
+    }
+
+    private static NumberNode bigSeries(String functionName, Calculator environment, Node expression, String name, IntegerNode from, IntegerNode to, boolean isSum) {
+        expression = CommonSubexpressions.eliminate(Simplifier.simplifyBody(environment, expression, name, true));
+        final Calculator scope = environment.newScope();
+        NumberNode result = isSum ? IntegerNode.ZERO : IntegerNode.ONE;
+        for (IntegerNode i = from; i.compareTo(to) <= 0; i = i.increment()) {
+            scope.setLocalVariable(name, i);
+            result = combine(result, toTerm(functionName, expression.evaluate(scope)), isSum);
+        }
+        return result;
+    }
+
+    private static NumberNode toTerm(String functionName, Node term) {
+        if (!(term instanceof NumberNode)) {
+            throw new CalculatorError("'" + functionName + "' requires numeric terms, but got '" + term.toInputString() + "'");
+        }
+        return (NumberNode) term;
+    }
+
+    private static boolean isExact(NumberNode n) {
+        return (n instanceof IntegerNode) || (n instanceof RationalNode);
+    }
+
+    private static NumberNode combine(NumberNode lhs, NumberNode rhs, boolean isSum) {
+        return isSum ? lhs.plus(rhs) : lhs.times(rhs);
+    }
+
+    private abstract static class FixnumAccumulator {
+        abstract void add(long term);
+        abstract IntegerNode total();
+        abstract void clear();
+    }
+
+    private static class FixnumSum extends FixnumAccumulator {
+        private final IntegerAccumulator sum = new IntegerAccumulator();
+
+        void add(long term) {
+            sum.add(term);
+        }
+
+        IntegerNode total() {
+            return sum.value();
+        }
+
+        void clear() {
+            sum.clear();
+        }
+    }
+
+    private static class FixnumProduct extends FixnumAccumulator {
+        private long product = 1;
+        // Products of fixnums, each close to filling a long, to be multiplied together at the end.
+        private final ArrayList<IntegerNode> chunks = new ArrayList<IntegerNode>();
+
+        void add(long term) {
+            final long high = Math.abs(product) | Math.abs(term);
+            if ((high >>> 31) == 0 || term == 0 || product == 0) {
+                // Both fit in 31 bits, so the product fits in 62.
+                product *= term;
+            } else {
+                final long newProduct = product * term;
+                if (product != Long.MIN_VALUE && term != Long.MIN_VALUE && newProduct / term == product) {
+                    product = newProduct;
+                } else {
+                    chunks.add(IntegerNode.valueOf(product));
+                    product = term;
+                }
+            }
+        }
+
+        IntegerNode total() {
+            chunks.add(IntegerNode.valueOf(product));
+            final IntegerNode result = productOf(chunks, 0, chunks.size());
+            chunks.remove(chunks.size() - 1);
+            return result;
+        }
+
+        // Multiplies in a balanced tree, so the big multiplications are between similar-sized numbers.
+        private static IntegerNode productOf(List<IntegerNode> factors, int from, int to) {
+            if (to - from == 1) {
+                return factors.get(from);
+            }
+            final int mid = (from + to) >>> 1;
+            return (IntegerNode) productOf(factors, from, mid).times(productOf(factors, mid, to));
+        }
+
+        void clear() {
+            product = 1;
+            chunks.clear();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Computes binomial coefficients and falling factorials without computing any full factorials.
+ *
+ * The falling factorial n!/(n-k)! is just the product of the k integers n-k+1 ... n, which we multiply in a balanced
+ * tree. A binomial coefficient is that divided by k!, which is fine when k is small compared to n. When it isn't, we
+ * instead count the exponent of each prime in n!/(k!(n-k)!) using Legendre's formula, and multiply the prime powers.
+ */
+public final class Binomial {
+    private Binomial() {
+    }
+
+    /**
+     * Returns n!/(k!(n-k)!), for 0 <= k <= n.
+     */
+    public static BigInteger binomial(BigInteger n, int k) {
+        checkArguments(n, k);
+        if (n.bitLength() < 32) {
+            final int nInt = n.intValue();
+            k = Math.min(k, nInt - k);
+            // Sieving costs time proportional to n, so it only pays when k (and so the result) is large too.
+            if (k >= 64 && k >= nInt / 16) {
+                return primePowerProduct(nInt, k, nInt - k);
+            }
+        }
+        return Division.divide(fallingFactorial(n, k), Factorial.factorial(k));
+    }
+
+    /**
+     * Returns n!/(n-k)!, for 0 <= k <= n.
+     */
+    public static BigInteger fallingFactorial(BigInteger n, int k) {
+        checkArguments(n, k);
+        final Multiplication.Accumulator product = new Multiplication.Accumulator();
+        if (n.bitLength() < 63) {
+            for (long i = n.longValue() - k + 1; i <= n.longValue(); ++i) {
+                product.multiply(i);
+            }
+        } else {
+            BigInteger i = n.subtract(BigInteger.valueOf(k - 1));
+            for (int j = 0; j < k; ++j) {
+                product.multiply(i);
+                i = i.add(BigInteger.ONE);
+            }
+        }
+        return product.product();
+    }
+
+    private static void checkArguments(BigInteger n, int k) {
+        if (k < 0 || n.compareTo(BigInteger.valueOf(k)) < 0) {
+            throw new ArithmeticException("expected 0 <= k <= n; got n=" + n + " and k=" + k);
+        }
+    }
+
+    // Returns n!/(a!b!), for a + b = n, as a product of prime powers.
+    private static BigInteger primePowerProduct(int n, int a, int b) {
+        final Multiplication.Accumulator product = new Multiplication.Accumulator();
+        for (int p : Factorial.oddPrimes(n)) {
+            // By Kummer's theorem, p^exponent <= n, so each power fits comfortably in a long.
+            long power = 1;
+            for (int i = exponent(n, a, b, p); i > 0; --i) {
+                power *= p;
+            }
+            product.multiply(power);
+        }
+        return product.product().shiftLeft(exponent(n, a, b, 2));
+    }
+
+    // Returns the exponent of the prime p in n!/(a!b!), which is the sum over i of floor(n/p^i) - floor(a/p^i) - floor(b/p^i).
+    private static int exponent(int n, int a, int b, int p) {
+        int result = 0;
+        while (n > 0) {
+            n /= p;
+            a /= p;
+            b /= p;
+            result += n - a - b;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Division of BigIntegers using Burnikel and Ziegler's recursive algorithm, on top of Multiplication.
+ *
+ * Recursive division costs a small multiple of the multiplications it's built from, so giving it our transform-based
+ * multiplication makes division of very large numbers (and so radix conversion) subquadratic too. Small divisions,
+ * where our multiplication is no faster than BigInteger's, are left to BigInteger.
+ *
+ * "Fast Recursive Division", Christoph Burnikel and Joachim Ziegler, MPI-I-98-1-022, 1998.
+ */
+public final class Division {
+    // Blocks shorter than this many words are divided by BigInteger.
+    static final int THRESHOLD = Multiplication.FFT_THRESHOLD;
+
+    private Division() {
+    }
+
+    /**
+     * Returns { a / b, a % b }, with the same semantics as BigInteger.divideAndRemainder.
+     */
+    public static BigInteger[] divideAndRemainder(BigInteger a, BigInteger b) {
+        if (b.signum() == 0) {
+            throw new ArithmeticException("BigInteger divide by zero");
+        }
+        final int bWords = Multiplication.wordCount(b);
+        if (bWords < THRESHOLD || Multiplication.wordCount(a) - bWords < THRESHOLD) {
+            return a.divideAndRemainder(b);
+        }
+        final BigInteger[] result = divideAndRemainderMagnitudes(a.abs(), b.abs());
+        // Truncating division: the quotient's sign is the product of the signs, and the remainder's is the dividend's.
+        if (a.signum() * b.signum() < 0) {
+            result[0] = result[0].negate();
+        }
+        if (a.signum() < 0) {
+            result[1] = result[1].negate();
+        }
+        return result;
+    }
+
+    public static BigInteger divide(BigInteger a, BigInteger b) {
+        return divideAndRemainder(a, b)[0];
+    }
+
+    // Algorithm 3 (RecursiveDivision) from the paper, for non-negative a and positive b.
+    private static BigInteger[] divideAndRemainderMagnitudes(BigInteger a, BigInteger b) {
+        // Choose a block size n = j*m, where m is a power of two, so n/2^k stays even down to the threshold.
+        final int s = Multiplication.wordCount(b);
+        int m = 1;
+        while (m * THRESHOLD <= s) {
+            m <<= 1;
+        }
+        final int j = (s + m - 1) / m;
+        final int n = j * m;
+        final int nBits = 32 * n;
+
+        // Normalize so that b has exactly n words, with the top bit set.
+        final int sigma = Math.max(0, nBits - b.bitLength());
+        b = b.shiftLeft(sigma);
+        a = a.shiftLeft(sigma);
+
+        // Split a into t blocks of n words, such that the top block is less than b/2.
+        int t = Math.max(2, (a.bitLength() + nBits) / nBits);
+        final BigInteger mask = BigInteger.ONE.shiftLeft(nBits).subtract(BigInteger.ONE);
+
+        BigInteger z = a.shiftRight((t - 2) * nBits);
+        BigInteger quotient = BigInteger.ZERO;
+        for (int i = t - 2; ; --i) {
+            final BigInteger[] qr = divide2n1n(z, b, n);
+            quotient = quotient.shiftLeft(nBits).add(qr[0]);
+            if (i == 0) {
+                return new BigInteger[] { quotient, qr[1].shiftRight(sigma) };
+            }
+            z = qr[1].shiftLeft(nBits).add(a.shiftRight((i - 1) * nBits).and(mask));
+        }
+    }
+
+    // Algorithm 1: divides the 2n-word 'a' by the n-word 'b', where a < b*2^(32n).
+    private static BigInteger[] divide2n1n(BigInteger a, BigInteger b, int n) {
+        if ((n & 1) != 0 || n < THRESHOLD) {
+            return a.divideAndRemainder(b);
+        }
+        final int half = n / 2;
+        final int halfBits = 32 * half;
+        final BigInteger mask = BigInteger.ONE.shiftLeft(halfBits).subtract(BigInteger.ONE);
+        final BigInteger[] qr1 = divide3n2n(a.shiftRight(halfBits), b, half, mask);
+        final BigInteger[] qr2 = divide3n2n(qr1[1].shiftLeft(halfBits).add(a.and(mask)), b, half, mask);
+        return new BigInteger[] { qr1[0].shiftLeft(halfBits).add(qr2[0]), qr2[1] };
+    }
+
+    // Algorithm 2: divides the 3n-word 'a' by the 2n-word 'b', where a < b*2^(32n).
+    private static BigInteger[] divide3n2n(BigInteger a, BigInteger b, int n, BigInteger mask) {
+        final int nBits = 32 * n;
+        final BigInteger a12 = a.shiftRight(nBits);
+        final BigInteger a1 = a12.shiftRight(nBits);
+        final BigInteger b1 = b.shiftRight(nBits);
+        final BigInteger b2 = b.and(mask);
+
+        BigInteger q;
+        BigInteger r1;
+        if (a1.compareTo(b1) < 0) {
+            final BigInteger[] qr = divide2n1n(a12, b1, n);
+            q = qr[0];
+            r1 = qr[1];
+        } else {
+            // The quotient is 2^(32n) - 1, so r1 = a12 - q*b1 = a12 - b1*2^(32n) + b1.
+            q = mask;
+            r1 = a12.subtract(b1.shiftLeft(nBits)).add(b1);
+        }
+        final BigInteger d = Multiplication.multiply(q, b2);
+        BigInteger r = r1.shiftLeft(nBits).add(a.and(mask)).subtract(d);
+        // At most two corrections are needed.
+        while (r.signum() < 0) {
+            q = q.subtract(BigInteger.ONE);
+            r = r.add(b);
+        }
+        return new BigInteger[] { q, r };
+    }
+}
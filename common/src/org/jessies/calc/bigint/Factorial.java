@@ -0,0 +1,102 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Computes factorials using Peter Luschny's prime swing algorithm.
+ *
+ * The "swing" n!/(n/2)!^2 has a known prime factorization, so n! = (n/2)!^2 * swing(n) needs only one squaring and
+ * a product of prime powers at each of log(n) levels, rather than n multiplications. Powers of two are factored out
+ * and applied as a single shift at the end. The prime powers are packed into longs, then multiplied in a balanced
+ * tree, so the big multiplications are between numbers of similar size, where Multiplication does best.
+ *
+ * http://www.luschny.de/math/factorial/FastFactorialFunctions.htm
+ */
+public final class Factorial {
+    private Factorial() {
+    }
+
+    /**
+     * Returns n!, for non-negative n.
+     */
+    public static BigInteger factorial(int n) {
+        if (n < 0) {
+            throw new ArithmeticException("factorial of negative number: " + n);
+        } else if (n < 2) {
+            return BigInteger.ONE;
+        }
+        final int[] primes = oddPrimes(n);
+        // The power of two in n! is n minus the number of ones in n's binary representation.
+        return oddFactorial(n, primes).shiftLeft(n - Integer.bitCount(n));
+    }
+
+    // Returns the odd part of n!.
+    private static BigInteger oddFactorial(int n, int[] primes) {
+        if (n < 2) {
+            return BigInteger.ONE;
+        }
+        return Multiplication.multiply(Multiplication.square(oddFactorial(n / 2, primes)), oddSwing(n, primes));
+    }
+
+    // Returns the odd part of n!/(n/2)!^2.
+    private static BigInteger oddSwing(int n, int[] primes) {
+        // A prime p divides the swing floor(n/p) + floor(n/p^2) + ... times, each term counted mod 2.
+        final Multiplication.Accumulator product = new Multiplication.Accumulator();
+        for (int p : primes) {
+            if (p > n) {
+                break;
+            }
+            long power = 1;
+            for (long q = n / p; q > 0; q /= p) {
+                if ((q & 1) != 0) {
+                    power *= p;
+                }
+            }
+            product.multiply(power);
+        }
+        return product.product();
+    }
+
+    // Returns the odd primes up to and including n, using a sieve of Eratosthenes over the odd numbers.
+    static int[] oddPrimes(int n) {
+        // composite.get(i) represents 2i+1.
+        final BitSet composite = new BitSet(n / 2 + 1);
+        int count = 0;
+        for (int i = 1; 2L * i + 1 <= n; ++i) {
+            if (!composite.get(i)) {
+                ++count;
+                final long p = 2L * i + 1;
+                for (long multiple = p * p; multiple <= n; multiple += 2 * p) {
+                    composite.set((int) (multiple / 2));
+                }
+            }
+        }
+        final int[] result = new int[count];
+        count = 0;
+        for (int i = 1; 2L * i + 1 <= n; ++i) {
+            if (!composite.get(i)) {
+                result[count++] = 2 * i + 1;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Multiplication of BigIntegers, using a number-theoretic transform for very large operands.
+ *
+ * BigInteger already switches from schoolbook multiplication to Karatsuba and then Toom-3 as its operands grow, but
+ * has nothing asymptotically faster. Above FFT_THRESHOLD words, we convert to arrays of words and multiply those with
+ * a transform, which takes O(n log n) time.
+ */
+public final class Multiplication {
+    // Below this many 32-bit words (in the smaller operand), BigInteger's own Toom-3 is faster.
+    static final int FFT_THRESHOLD = 1 << 11;
+
+    private Multiplication() {
+    }
+
+    public static BigInteger multiply(BigInteger a, BigInteger b) {
+        final int aWords = wordCount(a);
+        final int bWords = wordCount(b);
+        if (Math.min(aWords, bWords) < FFT_THRESHOLD || aWords + bWords > NumberTheoreticTransform.MAX_LENGTH) {
+            return a.multiply(b);
+        }
+        final int[] product = NumberTheoreticTransform.multiply(toWords(a.abs()), toWords(b.abs()));
+        return fromWords(product, a.signum() * b.signum());
+    }
+
+    public static BigInteger square(BigInteger a) {
+        final int words = wordCount(a);
+        if (words < FFT_THRESHOLD || 2 * words > NumberTheoreticTransform.MAX_LENGTH) {
+            return a.multiply(a);
+        }
+        final int[] magnitude = toWords(a.abs());
+        return fromWords(NumberTheoreticTransform.multiply(magnitude, magnitude), 1);
+    }
+
+    /**
+     * Returns base^exponent, for non-negative 'exponent', by repeated squaring.
+     */
+    public static BigInteger pow(BigInteger base, int exponent) {
+        if (exponent < 0) {
+            throw new ArithmeticException("negative exponent: " + exponent);
+        }
+        // Factors of two in the base just become a shift at the end.
+        final int twos = (base.signum() == 0) ? 0 : base.getLowestSetBit();
+        BigInteger odd = base.shiftRight(twos);
+        BigInteger result = BigInteger.ONE;
+        for (int bit = 31 - Integer.numberOfLeadingZeros(exponent); bit >= 0; --bit) {
+            result = square(result);
+            if ((exponent & (1 << bit)) != 0) {
+                result = multiply(result, odd);
+            }
+        }
+        return result.shiftLeft((int) Math.min(Integer.MAX_VALUE, ((long) twos) * exponent));
+    }
+
+    /**
+     * Returns the product of the BigIntegers in the given range, multiplying them in a balanced tree so that
+     * the largest multiplications are between operands of similar sizes.
+     */
+    public static BigInteger product(BigInteger[] values, int from, int to) {
+        final int count = to - from;
+        if (count == 0) {
+            return BigInteger.ONE;
+        } else if (count == 1) {
+            return values[from];
+        } else if (count == 2) {
+            return multiply(values[from], values[from + 1]);
+        }
+        final int mid = (from + to) >>> 1;
+        return multiply(product(values, from, mid), product(values, mid, to));
+    }
+
+    /**
+     * Accumulates the product of many small positive factors, packing as many of them as will fit into each long,
+     * so that the final product tree starts from a few hundred words rather than from the individual factors.
+     */
+    static final class Accumulator {
+        private final ArrayList<BigInteger> factors = new ArrayList<BigInteger>();
+        private long product = 1;
+
+        void multiply(long value) {
+            if (product > Long.MAX_VALUE / value) {
+                factors.add(BigInteger.valueOf(product));
+                product = value;
+            } else {
+                product *= value;
+            }
+        }
+
+        void multiply(BigInteger value) {
+            factors.add(value);
+        }
+
+        BigInteger product() {
+            factors.add(BigInteger.valueOf(product));
+            product = 1;
+            final BigInteger[] values = factors.toArray(new BigInteger[factors.size()]);
+            factors.clear();
+            return Multiplication.product(values, 0, values.length);
+        }
+    }
+
+    static int wordCount(BigInteger a) {
+        return (a.bitLength() + 31) >>> 5;
+    }
+
+    /**
+     * Returns the magnitude of the non-negative 'a' as little-endian 32-bit words.
+     */
+    static int[] toWords(BigInteger a) {
+        final byte[] bytes = a.toByteArray(); // Big-endian, possibly with a leading zero sign byte.
+        final int[] result = new int[wordCount(a)];
+        for (int i = 0; i < result.length; ++i) {
+            int word = 0;
+            for (int j = 0; j < 4; ++j) {
+                final int index = bytes.length - 1 - (4 * i + j);
+                if (index >= 0) {
+                    word |= (bytes[index] & 0xff) << (8 * j);
+                }
+            }
+            result[i] = word;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the BigInteger with the given sign and little-endian 32-bit words of magnitude.
+     */
+    static BigInteger fromWords(int[] words, int signum) {
+        final byte[] bytes = new byte[4 * words.length];
+        for (int i = 0; i < words.length; ++i) {
+            final int word = words[i];
+            final int index = bytes.length - 4 * (i + 1);
+            bytes[index] = (byte) (word >>> 24);
+            bytes[index + 1] = (byte) (word >>> 16);
+            bytes[index + 2] = (byte) (word >>> 8);
+            bytes[index + 3] = (byte) word;
+        }
+        return new BigInteger(signum == 0 ? 0 : signum, bytes);
+    }
+}
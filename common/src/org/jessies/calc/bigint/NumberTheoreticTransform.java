@@ -0,0 +1,257 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.*;
+
+/**
+ * Multiplies arrays of 32-bit words using number-theoretic transforms.
+ *
+ * The product of two n-word numbers is the (carried) convolution of their words. Each convolution coefficient is
+ * less than n * 2^64, so we compute the convolution modulo three primes of the form k*2^m+1 whose product exceeds
+ * 2^89, and reconstruct the coefficients with the Chinese remainder theorem. The three transforms are independent,
+ * and run in parallel.
+ *
+ * Arithmetic modulo each prime uses Montgomery's representation with R = 2^32, so the inner loops need only
+ * multiplications and shifts. Only the twiddle factors are kept in Montgomery form; the transformed data isn't,
+ * and a final scale by R^2/n undoes both the transform's factor of n and the 1/R from the pointwise products.
+ */
+final class NumberTheoreticTransform {
+    // Each is k*2^m+1, with the given primitive root.
+    private static final Modulus[] MODULI = {
+        new Modulus(2013265921L, 31), // 15*2^27+1
+        new Modulus(469762049L, 3),   // 7*2^26+1
+        new Modulus(754974721L, 11),  // 45*2^24+1
+    };
+
+    // The longest transform all three primes support, which also keeps each coefficient below their product.
+    static final int MAX_LENGTH = 1 << 24;
+
+    private NumberTheoreticTransform() {
+    }
+
+    /**
+     * Returns the product of the little-endian word arrays 'a' and 'b', which may be the same array.
+     * The result has a.length + b.length words.
+     */
+    static int[] multiply(final int[] a, final int[] b) {
+        final int resultLength = a.length + b.length;
+        int length = 1;
+        while (length < resultLength) {
+            length <<= 1;
+        }
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("operands too long: " + a.length + " and " + b.length + " words");
+        }
+        final int[][] residues = new int[MODULI.length][];
+        final int n = length;
+        final RecursiveAction[] tasks = new RecursiveAction[MODULI.length];
+        for (int i = 0; i < MODULI.length; ++i) {
+            final int index = i;
+            tasks[i] = new RecursiveAction() {
+                @Override protected void compute() {
+                    residues[index] = MODULI[index].convolve(a, b, n);
+                }
+            };
+        }
+        ForkJoinTask.invokeAll(tasks);
+        return combine(residues[0], residues[1], residues[2], resultLength);
+    }
+
+    // Reconstructs each coefficient from its three residues using Garner's algorithm, and adds them up with carries.
+    private static int[] combine(int[] r1, int[] r2, int[] r3, int resultLength) {
+        final long p1 = MODULI[0].p;
+        final long p2 = MODULI[1].p;
+        final long p3 = MODULI[2].p;
+        final long p1InverseModP2 = modInverse(p1 % p2, p2);
+        final long p1InverseModP3 = modInverse(p1 % p3, p3);
+        final long p2InverseModP3 = modInverse(p2 % p3, p3);
+        final long p1p2 = p1 * p2;
+        final long p1p2Lo = p1p2 & 0xffffffffL;
+        final long p1p2Hi = p1p2 >>> 32;
+
+        final int[] result = new int[resultLength];
+        // The running total, a 128-bit number accHi:accLo, of the coefficients not yet written out.
+        long accLo = 0;
+        long accHi = 0;
+        for (int i = 0; i < resultLength; ++i) {
+            final long v1 = r1[i];
+            final long v2 = ((r2[i] - v1 % p2 + p2) % p2) * p1InverseModP2 % p2;
+            long v3 = ((r3[i] - v1 % p3 + p3) % p3) * p1InverseModP3 % p3;
+            v3 = ((v3 - v2 % p3 + p3) % p3) * p2InverseModP3 % p3;
+            // x = v1 + p1*v2 + p1*p2*v3, where the last term needs more than 64 bits.
+            final long low = v1 + p1 * v2; // < 2^62.
+            final long termLo = p1p2Lo * v3; // < 2^63.
+            final long termHi = p1p2Hi * v3; // < 2^61, to be shifted left 32 bits.
+            long xLo = low + termLo;
+            long xHi = 0;
+            final long shifted = termHi << 32;
+            final long sum = xLo + shifted;
+            xHi = (termHi >>> 32) + (unsignedLess(sum, xLo) ? 1 : 0);
+            xLo = sum;
+            // Add x to the accumulator, emit the low word, and shift right by one word.
+            final long newLo = accLo + xLo;
+            accHi += xHi + (unsignedLess(newLo, accLo) ? 1 : 0);
+            accLo = newLo;
+            result[i] = (int) accLo;
+            accLo = (accLo >>> 32) | (accHi << 32);
+            accHi >>>= 32;
+        }
+        return result;
+    }
+
+    private static boolean unsignedLess(long a, long b) {
+        return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+    }
+
+    private static long modInverse(long a, long p) {
+        return power(a, p - 2, p);
+    }
+
+    private static long power(long base, long exponent, long p) {
+        long result = 1;
+        base %= p;
+        while (exponent != 0) {
+            if ((exponent & 1) != 0) {
+                result = result * base % p;
+            }
+            base = base * base % p;
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    private static final class Modulus {
+        final long p;
+        private final long root;
+        // -1/p mod 2^32.
+        private final long pInverseNegated;
+        // R mod p and R^2 mod p.
+        private final long r;
+        private final long r2;
+
+        Modulus(long p, long root) {
+            this.p = p;
+            this.root = root;
+            long inverse = p; // Correct to 3 bits; Newton's method doubles that each step.
+            for (int i = 0; i < 4; ++i) {
+                inverse *= 2 - p * inverse;
+            }
+            this.pInverseNegated = (-inverse) & 0xffffffffL;
+            this.r = (1L << 32) % p;
+            this.r2 = r * r % p;
+        }
+
+        // Returns a * b / R mod p, for a and b in [0, p).
+        private long reduce(long a, long b) {
+            final long t = a * b;
+            final long m = ((t & 0xffffffffL) * pInverseNegated) & 0xffffffffL;
+            // t + m*p can exceed Long.MAX_VALUE, but not 2^64, and is divisible by 2^32.
+            final long u = ((t + m * p) >>> 32) - p;
+            return u + ((u >> 63) & p);
+        }
+
+        // Returns the cyclic convolution of 'a' and 'b', reduced modulo p, for a transform of length 'n'.
+        int[] convolve(int[] a, int[] b, int n) {
+            final long w = power(root, (p - 1) / n, p);
+            final int[] roots = twiddles(w, n);
+            final int[] inverseRoots = twiddles(modInverse(w, p), n);
+
+            final int[] x = load(a, n);
+            forward(x, roots);
+            final int[] y;
+            if (b == a) {
+                y = x;
+            } else {
+                y = load(b, n);
+                forward(y, roots);
+            }
+            for (int i = 0; i < n; ++i) {
+                x[i] = (int) reduce(x[i], y[i]);
+            }
+            inverse(x, inverseRoots);
+            // Multiply by R^2/n, in Montgomery form, to leave exactly the convolution.
+            final long scale = reduce(r2, reduce(r2, modInverse(n, p)));
+            for (int i = 0; i < n; ++i) {
+                x[i] = (int) reduce(x[i], scale);
+            }
+            return x;
+        }
+
+        // Returns w^0, w^1, ..., w^(n/2 - 1), in Montgomery form.
+        private int[] twiddles(long w, int n) {
+            final int[] result = new int[Math.max(n / 2, 1)];
+            final long wR = w * r % p;
+            long value = r;
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = (int) value;
+                value = reduce(value, wR);
+            }
+            return result;
+        }
+
+        // Returns the words of 'a' reduced modulo p, zero-padded to length n.
+        private int[] load(int[] a, int n) {
+            final int[] result = new int[n];
+            for (int i = 0; i < a.length; ++i) {
+                result[i] = (int) ((a[i] & 0xffffffffL) % p);
+            }
+            return result;
+        }
+
+        // A decimation-in-frequency transform: natural order in, bit-reversed order out.
+        private void forward(int[] a, int[] roots) {
+            final int n = a.length;
+            for (int length = n; length >= 2; length >>>= 1) {
+                final int half = length >>> 1;
+                final int step = n / length;
+                for (int start = 0; start < n; start += length) {
+                    for (int j = 0; j < half; ++j) {
+                        final long u = a[start + j];
+                        final long v = a[start + j + half];
+                        final long sum = u + v - p;
+                        a[start + j] = (int) (sum + ((sum >> 63) & p));
+                        a[start + j + half] = (int) reduce(u - v + p, roots[j * step]);
+                    }
+                }
+            }
+        }
+
+        // A decimation-in-time transform: bit-reversed order in, natural order out. With the inverse roots, this undoes
+        // forward, except for a factor of n.
+        private void inverse(int[] a, int[] inverseRoots) {
+            final int n = a.length;
+            for (int length = 2; length <= n; length <<= 1) {
+                final int half = length >>> 1;
+                final int step = n / length;
+                for (int start = 0; start < n; start += length) {
+                    for (int j = 0; j < half; ++j) {
+                        final long u = a[start + j];
+                        final long v = reduce(a[start + j + half], inverseRoots[j * step]);
+                        // Branch-free, because these comparisons are unpredictable.
+                        final long sum = u + v - p;
+                        a[start + j] = (int) (sum + ((sum >> 63) & p));
+                        final long difference = u - v;
+                        a[start + j + half] = (int) (difference + ((difference >> 63) & p));
+                    }
+                }
+            }
+        }
+    }
+}
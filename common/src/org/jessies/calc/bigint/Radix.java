@@ -0,0 +1,80 @@
+package org.jessies.calc.bigint;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * LittleHelper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Conversion of very large BigIntegers to strings.
+ *
+ * We divide by radix^(d*2^k), for the largest k whose square is still below the number, and convert the quotient
+ * and remainder recursively, so the cost is dominated by a few large divisions rather than by a quadratic number of
+ * small ones. Numbers below THRESHOLD words are left to BigInteger.toString.
+ */
+public final class Radix {
+    static final int THRESHOLD = Division.THRESHOLD;
+
+    private Radix() {
+    }
+
+    public static String toString(BigInteger value, int radix) {
+        if (Multiplication.wordCount(value) < 2 * THRESHOLD) {
+            return value.toString(radix);
+        }
+        final StringBuilder result = new StringBuilder();
+        if (value.signum() < 0) {
+            result.append('-');
+            value = value.negate();
+        }
+        // The smallest power covers about half the threshold, so each piece at the bottom of the recursion is between
+        // a quarter and a half of the threshold, which BigInteger handles well.
+        final int baseDigits = (int) (32 * THRESHOLD / 2 / (Math.log(radix) / Math.log(2)));
+        final ArrayList<BigInteger> powers = new ArrayList<BigInteger>();
+        powers.add(Multiplication.pow(BigInteger.valueOf(radix), baseDigits));
+        while (2L * powers.get(powers.size() - 1).bitLength() - 1 <= value.bitLength()) {
+            powers.add(Multiplication.square(powers.get(powers.size() - 1)));
+        }
+        convert(value, powers.size() - 1, powers, baseDigits, radix, false, result);
+        return result.toString();
+    }
+
+    // Appends the digits of 'value', which is less than powers[level]^2, to 'result'. If 'pad' is true, the digits are
+    // padded on the left with zeros to exactly 2*baseDigits*2^level digits.
+    private static void convert(BigInteger value, int level, List<BigInteger> powers, int baseDigits, int radix, boolean pad, StringBuilder result) {
+        if (level < 0) {
+            final String digits = value.toString(radix);
+            if (pad) {
+                for (int i = digits.length(); i < baseDigits; ++i) {
+                    result.append('0');
+                }
+            }
+            result.append(digits);
+            return;
+        }
+        final BigInteger[] qr = Division.divideAndRemainder(value, powers.get(level));
+        if (!pad && qr[0].signum() == 0) {
+            // Leading zeros aren't wanted.
+            convert(qr[1], level - 1, powers, baseDigits, radix, false, result);
+        } else {
+            convert(qr[0], level - 1, powers, baseDigits, radix, pad, result);
+            convert(qr[1], level - 1, powers, baseDigits, radix, true, result);
+        }
+    }
+}